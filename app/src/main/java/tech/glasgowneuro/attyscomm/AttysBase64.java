@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Base64 (standard alphabet, with padding) as used by the Attys
+ * in "d=1" mode. Works on caller supplied arrays and does not
+ * depend on the Android runtime.
+ */
+public final class AttysBase64 {
+
+    private static final byte[] ALPHABET = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    // maps characters to their 6 bit value, -1 for invalid, -2 for '='
+    private static final byte[] DECODE = new byte[256];
+    private static final byte INVALID = -1;
+    private static final byte PAD = -2;
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = INVALID;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+        DECODE['='] = PAD;
+    }
+
+    private AttysBase64() {
+    }
+
+    // number of characters needed to encode len bytes
+    public static int encodedLength(int len) {
+        return ((len + 2) / 3) * 4;
+    }
+
+    // encodes len bytes of src starting at srcOff into dst at dstOff
+    // returns the number of characters written
+    public static int encode(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        int d = dstOff;
+        int s = srcOff;
+        final int end = srcOff + len;
+        while (end - s >= 3) {
+            final int v = ((src[s] & 0xff) << 16) | ((src[s + 1] & 0xff) << 8) | (src[s + 2] & 0xff);
+            dst[d++] = ALPHABET[(v >>> 18) & 0x3f];
+            dst[d++] = ALPHABET[(v >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(v >>> 6) & 0x3f];
+            dst[d++] = ALPHABET[v & 0x3f];
+            s += 3;
+        }
+        final int rest = end - s;
+        if (rest == 1) {
+            final int v = (src[s] & 0xff) << 16;
+            dst[d++] = ALPHABET[(v >>> 18) & 0x3f];
+            dst[d++] = ALPHABET[(v >>> 12) & 0x3f];
+            dst[d++] = '=';
+            dst[d++] = '=';
+        } else if (rest == 2) {
+            final int v = ((src[s] & 0xff) << 16) | ((src[s + 1] & 0xff) << 8);
+            dst[d++] = ALPHABET[(v >>> 18) & 0x3f];
+            dst[d++] = ALPHABET[(v >>> 12) & 0x3f];
+            dst[d++] = ALPHABET[(v >>> 6) & 0x3f];
+            dst[d++] = '=';
+        }
+        return d - dstOff;
+    }
+
+    // maximum number of bytes decoding len characters can produce
+    public static int decodedLength(int len) {
+        return ((len + 3) / 4) * 3;
+    }
+
+    // decodes len characters of src starting at srcOff into dst at dstOff
+    // without allocating anything. Padding is optional.
+    // Returns the number of bytes written or -1 if the input contains
+    // an invalid character, is truncated or doesn't fit into dst.
+    public static int decode(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        int end = srcOff + len;
+        // strip the padding
+        while ((end > srcOff) && (src[end - 1] == '=')) {
+            end--;
+        }
+        if ((srcOff + len - end) > 2) return -1;
+        final int nChars = end - srcOff;
+        if ((nChars % 4) == 1) return -1;
+        final int nBytes = (nChars * 3) / 4;
+        if (dstOff + nBytes > dst.length) return -1;
+
+        int d = dstOff;
+        int s = srcOff;
+        while (end - s >= 4) {
+            final int c0 = DECODE[src[s] & 0xff];
+            final int c1 = DECODE[src[s + 1] & 0xff];
+            final int c2 = DECODE[src[s + 2] & 0xff];
+            final int c3 = DECODE[src[s + 3] & 0xff];
+            if ((c0 | c1 | c2 | c3) < 0) return -1;
+            final int v = (c0 << 18) | (c1 << 12) | (c2 << 6) | c3;
+            dst[d++] = (byte) (v >> 16);
+            dst[d++] = (byte) (v >> 8);
+            dst[d++] = (byte) v;
+            s += 4;
+        }
+        final int rest = end - s;
+        if (rest == 2) {
+            final int c0 = DECODE[src[s] & 0xff];
+            final int c1 = DECODE[src[s + 1] & 0xff];
+            if ((c0 | c1) < 0) return -1;
+            dst[d++] = (byte) ((c0 << 2) | (c1 >> 4));
+        } else if (rest == 3) {
+            final int c0 = DECODE[src[s] & 0xff];
+            final int c1 = DECODE[src[s + 1] & 0xff];
+            final int c2 = DECODE[src[s + 2] & 0xff];
+            if ((c0 | c1 | c2) < 0) return -1;
+            final int v = (c0 << 18) | (c1 << 12) | (c2 << 6);
+            dst[d++] = (byte) (v >> 16);
+            dst[d++] = (byte) (v >> 8);
+        }
+        return d - dstOff;
+    }
+}
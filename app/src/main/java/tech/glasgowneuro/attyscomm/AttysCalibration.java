@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Converts the raw counts of the Attys into SI units. Every channel
+ * has a precomputed scale so that the conversion is one subtraction
+ * and one multiplication per value: si = (count - zero) * scale.
+ * The difference is exact and the zero counts are powers of two, so
+ * there's only one rounding and values near zero keep their precision.
+ * <p>
+ * The accelerometer and the magnetometer deliver 16 bit counts and
+ * the ADC 24 bit counts, all offset binary: the count in the middle
+ * of the range is zero (see getZeroCount()). The digital inputs and
+ * the charging status are 0 or 1 and stay as they are.
+ * <p>
+ * Immutable. A new one is needed whenever a range changes, for example
+ * after a gain change (see AttysComm.getCalibration()).
+ */
+public final class AttysCalibration {
+
+    // same channel layout as in AttysComm
+    public final static int NCHANNELS = 11;
+    private static final int INDEX_Acceleration_X = 0;
+    private static final int INDEX_Magnetic_field_X = 3;
+    private static final int INDEX_Analogue_channel_1 = 6;
+
+    // counts corresponding to zero
+    public final static int ACCEL_ZERO_COUNT = 0x8000;
+    public final static int MAG_ZERO_COUNT = 0x8000;
+    public final static int ADC_ZERO_COUNT = 0x800000;
+
+    // bits of the counts of a channel (AttysComm.INDEX_...)
+    public static int getBits(int channel) {
+        if ((channel >= INDEX_Acceleration_X) && (channel < INDEX_Analogue_channel_1)) return 16;
+        if ((channel == INDEX_Analogue_channel_1) || (channel == INDEX_Analogue_channel_1 + 1)) return 24;
+        if ((channel > INDEX_Analogue_channel_1 + 1) && (channel < NCHANNELS)) return 1;
+        return 0;
+    }
+
+    private final float accelFullScaleRange;
+    private final float magFullScaleRange;
+    private final float[] adcFullScaleRange;
+    private final float[] fullScaleRange = new float[NCHANNELS];
+    private final int[] zeroCount = new int[NCHANNELS];
+    private final float[] scale = new float[NCHANNELS];
+
+    // the ranges in m/s^2, Tesla and Volt as in AttysComm
+    public AttysCalibration(float accelFullScaleRange, float magFullScaleRange,
+                            float adc0FullScaleRange, float adc1FullScaleRange) {
+        this.accelFullScaleRange = accelFullScaleRange;
+        this.magFullScaleRange = magFullScaleRange;
+        adcFullScaleRange = new float[]{adc0FullScaleRange, adc1FullScaleRange};
+        for (int i = 0; i < NCHANNELS; i++) {
+            scale[i] = 1;
+        }
+        for (int i = 0; i < 3; i++) {
+            channel(INDEX_Acceleration_X + i, accelFullScaleRange, ACCEL_ZERO_COUNT);
+            channel(INDEX_Magnetic_field_X + i, magFullScaleRange, MAG_ZERO_COUNT);
+        }
+        for (int i = 0; i < 2; i++) {
+            channel(INDEX_Analogue_channel_1 + i, adcFullScaleRange[i], ADC_ZERO_COUNT);
+        }
+    }
+
+    // (count - zero) / zero * range
+    private void channel(int i, float range, int zero) {
+        fullScaleRange[i] = range;
+        zeroCount[i] = zero;
+        scale[i] = range / zero;
+    }
+
+    // the conversion of all the methods below and of the LosslessCodec
+    static float toSI(int count, int zero, float scale) {
+        return (count - zero) * scale;
+    }
+
+    public float getAccelFullScaleRange() {
+        return accelFullScaleRange;
+    }
+
+    public float getMagFullScaleRange() {
+        return magFullScaleRange;
+    }
+
+    // channel is 0 or 1
+    public float getADCFullScaleRange(int channel) {
+        return adcFullScaleRange[channel];
+    }
+
+    // the value of the positive full scale count in SI units, 0 for
+    // the digital channels
+    public float getFullScaleRange(int channel) {
+        return fullScaleRange[channel];
+    }
+
+    // the count which means zero, 0 for the digital channels
+    public int getZeroCount(int channel) {
+        return zeroCount[channel];
+    }
+
+    public float getScale(int channel) {
+        return scale[channel];
+    }
+
+    public float toSI(int channel, int count) {
+        return toSI(count, zeroCount[channel], scale[channel]);
+    }
+
+    // converts one sample of NCHANNELS counts
+    public void toSI(int[] counts, float[] dst) {
+        for (int i = 0; i < NCHANNELS; i++) {
+            dst[i] = toSI(counts[i], zeroCount[i], scale[i]);
+        }
+    }
+
+    // converts n counts of one channel
+    public void toSI(int channel, int[] counts, int countsOffset, float[] dst, int dstOffset, int n) {
+        final float a = scale[channel];
+        final int zero = zeroCount[channel];
+        for (int i = 0; i < n; i++) {
+            dst[dstOffset + i] = toSI(counts[countsOffset + i], zero, a);
+        }
+    }
+
+    // converts n samples of NCHANNELS counts each which are stored
+    // one after the other
+    public void toSI(int[] counts, int countsOffset, float[] dst, int dstOffset, int n) {
+        int s = countsOffset;
+        int d = dstOffset;
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < NCHANNELS; i++) {
+                dst[d++] = toSI(counts[s++], zeroCount[i], scale[i]);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AttysCalibration)) return false;
+        final AttysCalibration c = (AttysCalibration) o;
+        return (accelFullScaleRange == c.accelFullScaleRange) &&
+                (magFullScaleRange == c.magFullScaleRange) &&
+                (adcFullScaleRange[0] == c.adcFullScaleRange[0]) &&
+                (adcFullScaleRange[1] == c.adcFullScaleRange[1]);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Float.floatToIntBits(accelFullScaleRange);
+        h = 31 * h + Float.floatToIntBits(magFullScaleRange);
+        h = 31 * h + Float.floatToIntBits(adcFullScaleRange[0]);
+        return 31 * h + Float.floatToIntBits(adcFullScaleRange[1]);
+    }
+
+    @Override
+    public String toString() {
+        return "accel=" + accelFullScaleRange + "m/s^2 mag=" + magFullScaleRange +
+                "T adc1=" + adcFullScaleRange[0] + "V adc2=" + adcFullScaleRange[1] + "V";
+    }
+}
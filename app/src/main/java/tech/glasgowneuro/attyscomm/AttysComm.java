@@ -21,19 +21,27 @@ package tech.glasgowneuro.attyscomm;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.util.Base64;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -116,6 +124,7 @@ public class AttysComm {
     // the actual sampling rate in terms of the sampling rate index
     private byte adc_rate_index = ADC_DEFAULT_RATE;
 
+    // takes effect with the next start()
     public void setAdc_samplingrate_index(byte idx) {
         adc_rate_index = idx;
     }
@@ -131,6 +140,17 @@ public class AttysComm {
 
     private boolean highSpeed = false;
 
+    ///////////////////////////////////////////////////////////////////////
+    // IIR filters (notch, highpass, lowpass) applied before the
+    // samples are delivered. They are designed for the sampling rate
+    // the Attys is streaming at and redesigned when start() changes it.
+    private final FilterStage filterStage = new FilterStage(NCHANNELS, ADC_SAMPLINGRATE[ADC_DEFAULT_RATE]);
+
+    // for example getFilterStage().addNotch(INDEX_Analogue_channel_1, 50)
+    public FilterStage getFilterStage() {
+        return filterStage;
+    }
+
     ///////////////////////////////////////////////////////////////////////
     // Full data set or just ADC channels?
     // This reflects the "f=" parameter
@@ -171,17 +191,21 @@ public class AttysComm {
             case 0:
                 return ADC_REF / ADC_GAIN_FACTOR[adc0_gain_index];
             case 1:
-                return ADC_REF / ADC_GAIN_FACTOR[adc0_gain_index];
+                return ADC_REF / ADC_GAIN_FACTOR[adc1_gain_index];
         }
         return 0;
     }
 
+    // the gain is changed straight away if the data acquisition is
+    // running (see live reconfiguration below)
     public void setAdc1_gain_index(byte idx) {
         adc0_gain_index = idx;
+        configChanged();
     }
 
     public void setAdc2_gain_index(byte idx) {
         adc1_gain_index = idx;
+        configChanged();
     }
 
     // initial gain factor is 6 for both channels
@@ -203,6 +227,7 @@ public class AttysComm {
     // sets the bias current which can be switched on
     public void setBiasCurrent(byte currIndex) {
         current_index = currIndex;
+        configChanged();
     }
 
     // gets the bias current as in index
@@ -222,6 +247,7 @@ public class AttysComm {
         if (pos_ch2) {
             current_mask = (byte) (current_mask | (byte) 0b00000100);
         }
+        configChanged();
     }
 
 
@@ -239,10 +265,12 @@ public class AttysComm {
 
     public void setAdc0_mux_index(byte idx) {
         adc0_mux_index = idx;
+        configChanged();
     }
 
     public void setAdc1_mux_index(byte idx) {
         adc1_mux_index = idx;
+        configChanged();
     }
 
 
@@ -262,6 +290,49 @@ public class AttysComm {
 
     public void setAccel_full_scale_index(byte idx) {
         accel_full_scale_index = idx;
+        configChanged();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////
+    // live reconfiguration
+    // The gains, muxes, the accelerometer range and the bias currents
+    // can be changed while the data acquisition is running. The
+    // acquisition thread stops the Attys between two packets, sends only
+    // the registers which differ from the ones the Attys has confirmed
+    // and starts it again. The sampling rate and full/partial data
+    // only change with the next start() or reconnect.
+
+    public interface ConfigChangeListener {
+        // the samples from sampleNumber on have been acquired with config.
+        // Called from the acquisition thread: return quickly.
+        void configChanged(long sampleNumber, AttysConfig config);
+    }
+
+    private volatile ConfigChangeListener configChangeListener = null;
+    private volatile AttysConfig deviceConfig = null;
+    // set by the setters, served by the acquisition thread
+    private volatile boolean configPending = false;
+
+    // null unregisters it
+    public void setConfigChangeListener(ConfigChangeListener l) {
+        configChangeListener = l;
+    }
+
+    // the registers as set with the setters
+    public AttysConfig getConfig() {
+        return new AttysConfig(adc_rate_index, fullOrPartialData, accel_full_scale_index,
+                adc0_gain_index, adc1_gain_index, adc0_mux_index, adc1_mux_index,
+                current_mask, current_index);
+    }
+
+    // the registers the Attys has confirmed, null if it's not connected
+    public AttysConfig getDeviceConfig() {
+        return deviceConfig;
+    }
+
+    private void configChanged() {
+        configPending = true;
     }
 
 
@@ -275,30 +346,84 @@ public class AttysComm {
     }
 
 
+    ///////////////////////////////////////////////////
+    // raw counts
+    // Recorders and forwarders which don't need SI units get the raw
+    // counts of the Attys. The calibration converts them later.
+    // In raw mode the counts are all there is: the filters, the ring
+    // buffer and the data listeners get nothing. It's switched with
+    // the next start().
+
+    private volatile RawSampleListener rawSampleListener = null;
+    private volatile boolean rawMode = false;
+    private volatile AttysCalibration calibration = null;
+
+    // called from the acquisition thread for every sample: return
+    // quickly. null unregisters it.
+    public void setRawSampleListener(RawSampleListener l) {
+        rawSampleListener = l;
+    }
+
+    public void setRawMode(boolean r) {
+        rawMode = r;
+    }
+
+    public boolean isRawMode() {
+        return rawMode;
+    }
+
+    // the calibration for the ranges the Attys is using now. Listen to
+    // config changes to know from which sample on a new one applies.
+    public AttysCalibration getCalibration() {
+        final AttysCalibration c = calibration;
+        if (c != null) return c;
+        return calibrationOf(getConfig());
+    }
+
+    // the calibration for the ranges of a config
+    public static AttysCalibration calibrationOf(AttysConfig c) {
+        return new AttysCalibration(ACCEL_FULL_SCALE[c.getAccelFullScaleIndex()], MAG_FULL_SCALE,
+                adcFullScaleRange((byte) c.getAdcGainIndex(0)),
+                adcFullScaleRange((byte) c.getAdcGainIndex(1)));
+    }
+
+    // full scale ranges of all channels with the settings of c
+    public static float[] fullScaleRangesOf(AttysConfig c) {
+        final AttysCalibration cal = calibrationOf(c);
+        final float[] r = new float[NCHANNELS];
+        for (int i = 0; i < NCHANNELS; i++) {
+            r[i] = cal.getFullScaleRange(i);
+        }
+        r[INDEX_GPIO0] = 1;
+        r[INDEX_GPIO1] = 1;
+        r[INDEX_CHARGING] = 1;
+        return r;
+    }
+
+
     ////////////////////////////////////////////////
     // timestamp stuff as long in samples
     public void resetSampleCounter() {
-        sampleNumber = 0;
+        decoder.setSampleNumber(0);
         startTime = 0;
     }
 
     public long getSampleCounter() {
-        return sampleNumber;
+        return decoder.getSampleNumber();
     }
 
-    public double getTimestamp() { return timestamp; }
+    public double getTimestamp() { return decoder.getTimestamp(); }
 
     ////////////////////////////////////////////////
     // sample counter
-    private long sampleNumber = 0;
     private long startTime = 0;
 
     public long getSampleNumber() {
-        return sampleNumber;
+        return decoder.getSampleNumber();
     }
 
     public void setSampleNumber(long sn) {
-        sampleNumber = sn;
+        decoder.setSampleNumber(sn);
     }
 
 
@@ -306,14 +431,100 @@ public class AttysComm {
     // data listener
     // provides the data with the sample number as long
     // the data array contains all the data:
-    public interface DataListener {
+    // Every listener is called from its own thread and has its own queue
+    // so that it never delays the data acquisition.
+    public interface DataListener extends SampleListener {
         void gotData(long samplenumber, float[] data);
     }
 
+    // backpressure policies when a listener can't keep up
+    public final static int BACKPRESSURE_BLOCK = SampleDispatcher.BACKPRESSURE_BLOCK;
+    public final static int BACKPRESSURE_DROP_OLDEST = SampleDispatcher.BACKPRESSURE_DROP_OLDEST;
+    public final static int BACKPRESSURE_DROP_NEWEST = SampleDispatcher.BACKPRESSURE_DROP_NEWEST;
+
     private DataListener dataListener = null;
+    private final SampleDispatcher dispatcher = new SampleDispatcher(NCHANNELS);
 
-    public void registerDataListener(DataListener l) {
+    // sets the one default listener which replaces the previous one
+    // null unregisters it
+    public synchronized void registerDataListener(DataListener l) {
+        if (dataListener != null) {
+            dispatcher.unsubscribe(dataListener);
+        }
         dataListener = l;
+        if (l != null) {
+            dispatcher.subscribe(l, RINGBUFFERSIZE, BACKPRESSURE_DROP_OLDEST);
+        }
+    }
+
+    // adds a listener with its own queue of queueCapacity samples
+    // and the given backpressure policy. The returned subscription
+    // reports how far the listener lags behind.
+    public SampleDispatcher.Subscription addDataListener(DataListener l, int queueCapacity, int backpressure) {
+        return dispatcher.subscribe(l, queueCapacity, backpressure);
+    }
+
+    public void removeDataListener(DataListener l) {
+        dispatcher.unsubscribe(l);
+    }
+
+    // adds a listener which gets the samples in blocks of up to
+    // maxBlockSize samples. A block is delivered once it's full or
+    // at the latest maxLatencyInMs after its first sample has arrived.
+    // The sample array is recycled after gotDataBlock has returned.
+    public SampleDispatcher.Subscription addDataBlockListener(BlockListener l,
+                                                              int queueCapacity,
+                                                              int backpressure,
+                                                              int maxBlockSize,
+                                                              int maxLatencyInMs) {
+        return dispatcher.subscribe(l, queueCapacity, backpressure,
+                maxBlockSize, maxLatencyInMs * 1000000L);
+    }
+
+    public void removeDataBlockListener(BlockListener l) {
+        dispatcher.unsubscribe(l);
+    }
+
+    // creates a decimator for plotting the channels over the last
+    // windowInSeconds in width columns which is updated refreshRate
+    // times per second. Create it again when the sampling rate changes.
+    public DisplayDecimator addDisplay(int[] channels, float windowInSeconds, int width, int refreshRate) {
+        final int rate = getSamplingRateInHz();
+        final DisplayDecimator d = new DisplayDecimator(channels, Math.round(windowInSeconds * rate),
+                width, rate, refreshRate);
+        dispatcher.subscribe(d, rate, BACKPRESSURE_DROP_OLDEST,
+                Math.max(1, rate / refreshRate), 1000000000L / refreshRate);
+        return d;
+    }
+
+    public void removeDisplay(DisplayDecimator d) {
+        dispatcher.unsubscribe(d);
+    }
+
+    private final List<SpectrumStage> spectra = new CopyOnWriteArrayList<SpectrumStage>();
+
+    // computes the spectra of the channels over the last fftSize samples
+    // every hop samples on its own thread. window is one of
+    // SpectrumStage.WINDOW_... and output OUTPUT_MAGNITUDE or OUTPUT_POWER.
+    // They follow changes of the sampling rate.
+    public SpectrumStage addSpectrum(int[] channels, int fftSize, int hop, int window, int output,
+                                     SpectrumStage.Listener l) {
+        final SpectrumStage s = new SpectrumStage(channels, fftSize, hop, window, output,
+                filterStage.getSamplingRate());
+        s.setListener(l);
+        spectra.add(s);
+        dispatcher.subscribe(s, Math.max(fftSize, getSamplingRateInHz()), BACKPRESSURE_DROP_OLDEST,
+                hop, 0);
+        return s;
+    }
+
+    public void removeSpectrum(SpectrumStage s) {
+        dispatcher.unsubscribe(s);
+        spectra.remove(s);
+    }
+
+    public SampleDispatcher.Subscription[] getDataListenerSubscriptions() {
+        return dispatcher.getSubscriptions();
     }
 
     ///////////////////////////////////////////////////////////////////////
@@ -343,6 +554,46 @@ public class AttysComm {
         messageListener = null;
     }
 
+    ///////////////////////////////////////////////////////////////////////
+    // connection state
+    // reported to the ConnectionListener whenever it changes
+    public final static int CONNECTION_CONNECTING = 0;
+    public final static int CONNECTION_CONNECTED = 1;
+    // no data within the watchdog timeout or the connection has broken
+    public final static int CONNECTION_LOST = 2;
+    // connecting has failed and is tried again after the backoff delay
+    public final static int CONNECTION_RETRY_SCHEDULED = 3;
+    // the data acquisition has been stopped
+    public final static int CONNECTION_CLOSED = 4;
+
+    public interface ConnectionListener {
+        // failedAttempts counts the failed attempts in a row and
+        // retryInMs is the delay till the next one if it's scheduled.
+        // Called from the acquisition thread or the scheduler:
+        // return quickly.
+        void connectionStateChanged(int state, int failedAttempts, long retryInMs);
+    }
+
+    private volatile ConnectionListener connectionListener = null;
+    private volatile int connectionState = CONNECTION_CLOSED;
+
+    // null unregisters it
+    public void setConnectionListener(ConnectionListener l) {
+        connectionListener = l;
+    }
+
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    private void setConnectionState(int state, int failedAttempts, long retryInMs) {
+        connectionState = state;
+        final ConnectionListener l = connectionListener;
+        if (l != null) {
+            l.connectionStateChanged(state, failedAttempts, retryInMs);
+        }
+    }
+
 
     ////////////////////////////////////////////
     // connection info
@@ -356,45 +607,60 @@ public class AttysComm {
 
     /////////////////////////////////////////////////
     // ringbuffer keeping data for chunk-wise plotting
+    // It's lock-free and has one reader: all the functions
+    // below reading from it need to be called from the same thread.
+
+    // creates a new ringbuffer with the given capacity in samples
+    // and the overflow policy SampleRingBuffer.OVERFLOW_OVERWRITE or
+    // SampleRingBuffer.OVERFLOW_DROP_NEW. Call before start().
+    public void setRingbuffer(int capacity, int overflowPolicy) {
+        final SampleRingBuffer r = new SampleRingBuffer(capacity, NCHANNELS, overflowPolicy);
+        r.setResidenceHistogram(ringbufferLatency);
+        ringBuffer = r;
+    }
+
+    public SampleRingBuffer getRingbuffer() {
+        return ringBuffer;
+    }
+
+    // returns the oldest sample or null if there is none
+    // the array is reused by the next call
     public float[] getSampleFromBuffer() {
-        if (inPtr != outPtr) {
-            float[] sample = null;
-            sample = ringBuffer[outPtr];
-            outPtr++;
-            if (outPtr == RINGBUFFERSIZE) {
-                outPtr = 0;
-            }
-            return sample;
-        } else {
-            return null;
-        }
+        return ringBuffer.get();
+    }
+
+    // copies up to maxSamples samples with NCHANNELS values each
+    // into dst and returns the number of samples copied
+    public int drainSamples(float[] dst, int maxSamples) {
+        return ringBuffer.drainTo(dst, maxSamples);
+    }
+
+    // copies the most recent n samples into dst without removing them
+    // from the buffer, for example to plot the last couple of seconds
+    public int peekLastSamples(int n, float[] dst) {
+        return ringBuffer.peekLast(n, dst);
+    }
+
+    // samples lost because the ringbuffer hasn't been read in time
+    public long getRingbufferOverflows() {
+        return ringBuffer.getOverwrittenSamples() + ringBuffer.getDroppedSamples();
     }
 
     public void emptyRingBuffer() {
-        outPtr = inPtr;
+        ringBuffer.empty();
     }
 
     public boolean isSampleAvilabale() {
-        return (inPtr != outPtr);
+        return !ringBuffer.isEmpty();
     }
 
     // empties the ringbuffer
     public void resetRingbuffer() {
-        inPtr = 0;
-        outPtr = 0;
+        ringBuffer.reset();
     }
 
     public int getNumSamplesAvilable() {
-        int n = 0;
-        int tmpOutPtr = outPtr;
-        while (inPtr != tmpOutPtr) {
-            tmpOutPtr++;
-            n++;
-            if (tmpOutPtr == RINGBUFFERSIZE) {
-                tmpOutPtr = 0;
-            }
-        }
-        return n;
+        return ringBuffer.size();
     }
 
     public void enableRingbuffer() {
@@ -406,6 +672,259 @@ public class AttysComm {
         resetRingbuffer();
     }
 
+    /////////////////////////////////////////////////
+    // history keeping every channel in its own array
+    // for plotting or analysing single channels.
+    // It can be read from any thread.
+
+    // keeps the most recent capacity samples. 0 switches it off.
+    // Call before start().
+    public void setHistory(int capacity) {
+        if (capacity > 0) {
+            history = new SampleHistory(capacity, NCHANNELS);
+        } else {
+            history = null;
+        }
+    }
+
+    // null if there is no history
+    public SampleHistory getHistory() {
+        return history;
+    }
+
+    // keeps the raw counts of the last maxChunks chunks of
+    // CompressedHistory.DEFAULT_CHUNK_SIZE samples compressed in memory
+    // for scrolling back hours. The counts are unfiltered: convert them
+    // with getCalibration(). 0 switches it off. Call before start().
+    public void setCompressedHistory(int maxChunks) {
+        if (maxChunks > 0) {
+            compressedHistory = new CompressedHistory(maxChunks, NCHANNELS);
+        } else {
+            compressedHistory = null;
+        }
+    }
+
+    // null if there is none
+    public CompressedHistory getCompressedHistory() {
+        return compressedHistory;
+    }
+
+    // keeps min/max/mean of the channels over the whole session at
+    // power of two resolutions for zooming out beyond the history.
+    // null switches it off. Call before start().
+    public void setSummaryPyramid(int[] channels) {
+        if (channels != null) {
+            pyramid = new SummaryPyramid(channels);
+        } else {
+            pyramid = null;
+        }
+    }
+
+    // null if there is none
+    public SummaryPyramid getSummaryPyramid() {
+        return pyramid;
+    }
+
+    /////////////////////////////////////////////////
+    // recording into a binary file, see AttysRecorder
+    // The file is written by its own threads and never
+    // holds up the data acquisition.
+
+    // size of the queue between the acquisition and the recorder in samples
+    public final static int RECORDING_QUEUE_SIZE = 8192;
+    // samples per block handed over to the recorder
+    private final static int RECORDING_BLOCK_SIZE = 256;
+    private final static int RECORDING_MAX_LATENCY_IN_MS = 100;
+
+    private volatile AttysRecorder recorder = null;
+
+    // what the Attys is streaming with or, if it isn't, what the
+    // next start() sends. The setters only take effect then.
+    private AttysConfig streamingConfig() {
+        final AttysConfig c = deviceConfig;
+        return (c != null) ? c : getConfig();
+    }
+
+    // records the channels in channelMap (INDEX_...) into file
+    public void startRecording(File file, int[] channelMap) throws IOException {
+        startRecording(file, channelMap, AttysRecorder.COMPRESSION_NONE);
+    }
+
+    // AttysRecorder.COMPRESSION_LOSSLESS compresses the samples.
+    // Filtered samples compress badly: switch the filters off.
+    public synchronized void startRecording(File file, int[] channelMap, int compression) throws IOException {
+        stopRecording();
+        final AttysConfig c = streamingConfig();
+        final AttysRecorder r = new AttysRecorder(file, ADC_SAMPLINGRATE[c.getSamplingRateIndex()], channelMap);
+        r.setCompression(compression);
+        r.setLabels(CHANNEL_DESCRIPTION);
+        r.setUnits(CHANNEL_UNITS);
+        r.setFullScaleRanges(fullScaleRangesOf(c));
+        r.setAdcGains(new int[]{ADC_GAIN_FACTOR[c.getAdcGainIndex(0)], ADC_GAIN_FACTOR[c.getAdcGainIndex(1)]});
+        r.start();
+        recorder = r;
+        dispatcher.subscribe(r, RECORDING_QUEUE_SIZE, BACKPRESSURE_DROP_NEWEST,
+                RECORDING_BLOCK_SIZE, RECORDING_MAX_LATENCY_IN_MS * 1000000L);
+        if (messageListener != null) {
+            messageListener.haveMessage(MESSAGE_STARTED_RECORDING);
+        }
+    }
+
+    // records all channels
+    public void startRecording(File file) throws IOException {
+        final int[] all = new int[NCHANNELS];
+        for (int i = 0; i < NCHANNELS; i++) {
+            all[i] = i;
+        }
+        startRecording(file, all);
+    }
+
+    // waits till everything has been written and closes the file
+    public synchronized void stopRecording() {
+        final AttysRecorder r = recorder;
+        if (r == null) return;
+        recorder = null;
+        dispatcher.drainAndUnsubscribe(r);
+        try {
+            r.stop();
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Error while recording to " + r.getFile(), e);
+            }
+            if (messageListener != null) {
+                messageListener.haveMessage(MESSAGE_ERROR);
+            }
+        }
+        if (messageListener != null) {
+            messageListener.haveMessage(MESSAGE_STOPPED_RECORDING);
+        }
+    }
+
+    public synchronized boolean isRecording() {
+        return recorder != null;
+    }
+
+    // null if not recording
+    public synchronized AttysRecorder getRecorder() {
+        return recorder;
+    }
+
+    /////////////////////////////////////////////////
+    // streaming into a European Data Format file (EDF+
+    // or BDF+), see EdfWriter. Independent of the
+    // recording above so that both can run at once.
+
+    private volatile EdfWriter edfWriter = null;
+
+    // writes the channels in channelMap (INDEX_...) into file with
+    // EdfWriter.FORMAT_EDF (16 bit) or EdfWriter.FORMAT_BDF (24 bit)
+    public synchronized void startEdfRecording(File file, int[] channelMap, int format) throws IOException {
+        stopEdfRecording();
+        final AttysConfig c = streamingConfig();
+        final EdfWriter w = new EdfWriter(file, format, ADC_SAMPLINGRATE[c.getSamplingRateIndex()], channelMap);
+        // the descriptions are too long for the 16 characters of a label
+        w.setLabels(CHANNEL_DESCRIPTION_SHORT);
+        w.setTransducers(CHANNEL_DESCRIPTION);
+        w.setUnits(CHANNEL_UNITS);
+        w.setFullScaleRanges(fullScaleRangesOf(c));
+        w.start();
+        edfWriter = w;
+        dispatcher.subscribe(w, RECORDING_QUEUE_SIZE, BACKPRESSURE_DROP_NEWEST,
+                RECORDING_BLOCK_SIZE, RECORDING_MAX_LATENCY_IN_MS * 1000000L);
+    }
+
+    // completes the last data record and closes the file
+    public synchronized void stopEdfRecording() {
+        final EdfWriter w = edfWriter;
+        if (w == null) return;
+        edfWriter = null;
+        dispatcher.drainAndUnsubscribe(w);
+        try {
+            w.stop();
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Error while writing " + w.getFile(), e);
+            }
+            if (messageListener != null) {
+                messageListener.haveMessage(MESSAGE_ERROR);
+            }
+        }
+    }
+
+    public boolean isEdfRecording() {
+        return edfWriter != null;
+    }
+
+    // null if not writing an EDF file
+    public EdfWriter getEdfWriter() {
+        return edfWriter;
+    }
+
+    /////////////////////////////////////////////////
+    // capturing the raw lines from the Attys for
+    // replaying them with PacketReplay
+
+    private volatile PacketCapture capture = null;
+
+    public synchronized void startCapture(File file) throws IOException {
+        stopCapture();
+        final PacketCapture c = new PacketCapture(file);
+        c.start();
+        c.config(decoder, highSpeed);
+        capture = c;
+    }
+
+    public synchronized void stopCapture() {
+        final PacketCapture c = capture;
+        if (c == null) return;
+        capture = null;
+        try {
+            c.stop();
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Error while capturing to " + c.getFile(), e);
+            }
+        }
+    }
+
+    public boolean isCapturing() {
+        return capture != null;
+    }
+
+    // null if not capturing
+    public PacketCapture getPacketCapture() {
+        return capture;
+    }
+
+    /////////////////////////////////////////////////
+    // arrival times of the packets for aligning
+    // several Attys, see MultiDeviceMerger
+
+    private volatile PacketTimeListener packetTimeListener = null;
+
+    // called from the receiving thread for every decoded packet
+    // with its System.nanoTime(). null switches it off.
+    public void setPacketTimeListener(PacketTimeListener l) {
+        packetTimeListener = l;
+    }
+
+    // full scale ranges of all channels in their units
+    public float[] getFullScaleRanges() {
+        final float[] r = new float[NCHANNELS];
+        r[INDEX_Acceleration_X] = getAccelFullScaleRange();
+        r[INDEX_Acceleration_Y] = getAccelFullScaleRange();
+        r[INDEX_Acceleration_Z] = getAccelFullScaleRange();
+        r[INDEX_Magnetic_field_X] = getMagFullScaleRange();
+        r[INDEX_Magnetic_field_Y] = getMagFullScaleRange();
+        r[INDEX_Magnetic_field_Z] = getMagFullScaleRange();
+        r[INDEX_Analogue_channel_1] = adcFullScaleRange(adc0_gain_index);
+        r[INDEX_Analogue_channel_2] = adcFullScaleRange(adc1_gain_index);
+        r[INDEX_GPIO0] = 1;
+        r[INDEX_GPIO1] = 1;
+        r[INDEX_CHARGING] = 1;
+        return r;
+    }
+
     // searches for an Attys. Use as:
     //
     // AttysComm attysComm = new AttysComm(AttysComm.findAttysBtDevice())
@@ -413,6 +932,17 @@ public class AttysComm {
     // has been found. Otherwise it will be null.
     //
     static public BluetoothDevice findAttysBtDevice() {
+        final List<BluetoothDevice> devices = findAllAttysBtDevices();
+        if (devices.isEmpty()) {
+            return null;
+        }
+        return devices.get(0);
+    }
+
+    // all paired Attys
+    static public List<BluetoothDevice> findAllAttysBtDevices() {
+
+        final List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
 
         final BluetoothAdapter BA = BluetoothAdapter.getDefaultAdapter();
 
@@ -420,7 +950,7 @@ public class AttysComm {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "no bluetooth adapter!");
             }
-            return null;
+            return devices;
         }
 
         Set<BluetoothDevice> pairedDevices = null;
@@ -428,14 +958,14 @@ public class AttysComm {
             pairedDevices = BA.getBondedDevices();
         } catch (java.lang.SecurityException e) {
             Log.d(TAG,"BT access denied: ",e);
-            return null;
+            return devices;
         }
 
         if (pairedDevices == null) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "No paired devices available. Exiting.");
             }
-            return null;
+            return devices;
         }
 
         for (BluetoothDevice bt : pairedDevices) {
@@ -444,31 +974,177 @@ public class AttysComm {
                 b = bt.getName();
             } catch (java.lang.SecurityException e) {
                 Log.d(TAG,"BT access denied: ",e);
-                return null;
+                return devices;
             }
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "Paired dev=" + b);
             }
-            if (b.startsWith("GN-ATTYS")) {
+            if ((b != null) && b.startsWith("GN-ATTYS")) {
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
                     Log.d(TAG, "Found an Attys");
                 }
-                return bt;
+                devices.add(bt);
             }
         }
-        return null;
+        return devices;
     }
 
     /////////////////////////////////////////////////
     // Constructor
-    public AttysComm() {}
+    // without a transport AttysComm connects to the first
+    // paired Attys it finds when start() is called
+    public AttysComm() {
+        dispatcher.setLatencyHistogram(dispatchLatency);
+        ringBuffer.setResidenceHistogram(ringbufferLatency);
+    }
+
+    // connects via the given transport, for example a
+    // TcpTransport to the AttysSimulator
+    public AttysComm(AttysTransport t) {
+        this();
+        transport = t;
+    }
+
+    // sets the transport used by the next start()
+    // null falls back to the first paired Attys
+    public synchronized void setTransport(AttysTransport t) {
+        transport = t;
+    }
+
+    // the transport in use, before start() the one given to
+    // setTransport() or the constructor
+    public AttysTransport getTransport() {
+        final AttysTransport c = connection;
+        return (c != null) ? c : transport;
+    }
+
+    // runs the data acquisition on the executor instead of on a
+    // thread of its own, for example to share the threads between
+    // several Attys. Call before start().
+    public synchronized void setExecutor(ExecutorService e) {
+        executor = e;
+    }
+
+    // the scheduler which watches if data is arriving. By default
+    // all Attys share LivenessMonitor.getSharedScheduler().
+    // Call before start().
+    public void setScheduler(ScheduledExecutorService s) {
+        scheduler = s;
+    }
+
+    // reconnects if no data has arrived for this time. Call before start().
+    public void setWatchdogTimeout(long timeoutInMs) {
+        watchdogTimeoutInMs = timeoutInMs;
+    }
+
+    // delays between failed connection attempts
+    public void setReconnectBackoff(BackoffPolicy b) {
+        backoff = b;
+    }
+
+    public BackoffPolicy getReconnectBackoff() {
+        return backoff;
+    }
+
+    // all Attys which share the barrier start their data acquisition
+    // together once they have all been configured. Only used by the
+    // next start(), not by reconnects.
+    public void setStartBarrier(CyclicBarrier b) {
+        startBarrier = b;
+    }
+
+    // System.nanoTime() when the data acquisition has been started
+    // with "x=1", 0 before
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    // packets which couldn't be decoded
+    public long getReceptionErrors() {
+        return metrics.get(AttysMetrics.BASE64_ERRORS) + metrics.get(AttysMetrics.SHORT_PACKETS);
+    }
+
+    // samples lost during the transmission and filled in
+    public long getLostSamples() {
+        return metrics.get(AttysMetrics.LOST_SAMPLES);
+    }
+
+    public long getReconnects() {
+        return metrics.get(AttysMetrics.RECONNECTS);
+    }
+
+    /////////////////////////////////////////////////
+    // health of the data acquisition. Export it with
+    // a MetricsExporter.
+
+    private final AttysMetrics metrics = new AttysMetrics(new Runnable() {
+        @Override
+        public void run() {
+            final SampleRingBuffer r = ringBuffer;
+            metrics.set(AttysMetrics.RINGBUFFER_FILL, r.size());
+            metrics.set(AttysMetrics.RINGBUFFER_CAPACITY, r.getCapacity());
+            metrics.set(AttysMetrics.RINGBUFFER_OVERFLOWS,
+                    r.getOverwrittenSamples() + r.getDroppedSamples());
+        }
+    });
+
+    public AttysMetrics getMetrics() {
+        return metrics;
+    }
+
+    // same as getMetrics().snapshot(s)
+    public AttysMetrics.Snapshot getMetricsSnapshot(AttysMetrics.Snapshot s) {
+        return metrics.snapshot(s);
+    }
+
+    /////////////////////////////////////////////////
+    // latencies in nanoseconds. Every packet is timestamped
+    // as soon as its line has been read from the connection.
+
+    // from the packet's arrival to its samples coming out of the decoder
+    private final LatencyHistogram decodeLatency = new LatencyHistogram("decode");
+    // from the packet's arrival to the listener being called:
+    // the end to end latency of the listeners
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram("dispatch");
+    // from a sample being put in the ringbuffer to it being read
+    private final LatencyHistogram ringbufferLatency = new LatencyHistogram("ringbuffer");
+
+    public LatencyHistogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    public LatencyHistogram getRingbufferLatency() {
+        return ringbufferLatency;
+    }
+
+    // clears the latency histograms, for example after a warm up
+    public void resetLatencies() {
+        decodeLatency.reset();
+        dispatchLatency.reset();
+        ringbufferLatency.reset();
+    }
 
     public synchronized void start() {
         if (null == mainThread) {
-            bluetoothDevice = findAttysBtDevice();
-            if (bluetoothDevice != null) {
-                mainThread = new Thread(attysRunnable);
-                mainThread.start();
+            if (null == transport) {
+                bluetoothDevice = findAttysBtDevice();
+                if (bluetoothDevice != null) {
+                    connection = new BluetoothTransport(bluetoothDevice);
+                } else {
+                    connection = null;
+                }
+            } else {
+                connection = transport;
+                if (transport instanceof BluetoothTransport) {
+                    bluetoothDevice = ((BluetoothTransport) transport).getBluetoothDevice();
+                }
+            }
+            if (connection != null) {
+                mainThread = launch(attysRunnable, "AttysComm");
             }
         }
     }
@@ -479,7 +1155,7 @@ public class AttysComm {
         if (null == mainThread) return;
         try {
             Log.d(TAG,"Waiting for the thread to complete.");
-            mainThread.join();
+            mainThread.get();
             Log.d(TAG,"Thread completed.");
         } catch (Exception e){
             Log.d(TAG,"Main thread completion error:",e);
@@ -491,56 +1167,169 @@ public class AttysComm {
     ///////////////////////////////////////////////////////
     // from here it's private
     private static final String TAG = "AttysComm";
-    private final int RINGBUFFERSIZE = 1000;
+    private final static int RINGBUFFERSIZE = 1000;
+    private final static int START_BARRIER_TIMEOUT_IN_MS = 10000;
+    private final static byte[] STOP = {'\r', '\n', 'x', '=', '0', '\r'};
+    private final static byte[] START = {'\r', '\n', 'x', '=', '1', '\r'};
+    // x=0 is sent again if the Attys is still streaming after this time
+    private final static long STOP_REPEAT_NS = 500000000L;
+    private final static long STOP_TIMEOUT_NS = 2000000000L;
+    // time for the Attys to confirm a batch of register commands
+    private final static long COMMAND_TIMEOUT_NS = 2000000000L;
+    // the registers of the Attys and their commands
+    private final static int REG_BASE64 = 0;
+    private final static int REG_RATE = 1;
+    private final static int REG_FULL_DATA = 2;
+    private final static int REG_ACCEL = 3;
+    private final static int REG_ADC0 = 4;
+    private final static int REG_ADC1 = 5;
+    private final static int REG_CURRENT_MASK = 6;
+    private final static int REG_BIAS = 7;
+    private final static int NREGISTERS = 8;
+    private final static char[] REGISTER_COMMANDS = {'d', 'r', 'f', 't', 'a', 'b', 'c', 'i'};
     private final AttysRunnable attysRunnable = new AttysRunnable();
     private boolean fatalError = false;
-    private final float[][] ringBuffer = new float[RINGBUFFERSIZE][NCHANNELS];
-    private final float[] sample = new float[NCHANNELS];
-    private final long[] data = new long[NCHANNELS];
-    private int inPtr = 0;
-    private int outPtr = 0;
+    private volatile SampleRingBuffer ringBuffer = new SampleRingBuffer(RINGBUFFERSIZE, NCHANNELS);
+    private volatile SampleHistory history = null;
+    private volatile CompressedHistory compressedHistory = null;
+    private volatile SummaryPyramid pyramid = null;
+    private final AttysPacketDecoder decoder = new AttysPacketDecoder();
     private boolean isConnected = false;
-    private double timestamp = 0.0; // in secs
     private BluetoothDevice bluetoothDevice = findAttysBtDevice();
-    private Thread mainThread = null;
+    private AttysTransport transport = null;
+    private volatile AttysTransport connection = null;
+    private Future<?> mainThread = null;
+    private ExecutorService executor = null;
+    private volatile CyclicBarrier startBarrier = null;
+    private volatile long startNanos = 0;
+    private volatile ScheduledExecutorService scheduler = null;
+    private volatile long watchdogTimeoutInMs = LivenessMonitor.DEFAULT_TIMEOUT_IN_MS;
+    private volatile BackoffPolicy backoff = new BackoffPolicy();
+    private final Random random = new Random();
+
+
+    // runs r on the executor if there is one, otherwise on a new thread
+    private Future<?> launch(Runnable r, String name) {
+        final ExecutorService e = executor;
+        if (e != null) {
+            return e.submit(r);
+        }
+        final FutureTask<Void> task = new FutureTask<Void>(r, null);
+        new Thread(task, name).start();
+        return task;
+    }
     private boolean useRingBuffer = true;
 
     final private Object mainThreadSem = new Object();
-
-    // standard SPP uid
-    UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+    // arrival time of the packet being decoded, acquisition thread only
+    private long packetNanos = 0;
 
     public BluetoothDevice getBluetoothDevice() {
         return bluetoothDevice;
     }
 
+    // gets every decoded sample on the acquisition thread
+    private final SampleListener sampleSink = new SampleListener() {
+        // the decoder delivers the same sample again for lost ones
+        // so the filters can't work on its array
+        private final float[] filtered = new float[NCHANNELS];
+
+        @Override
+        public void gotData(long samplenumber, float[] data) {
+            metrics.increment(AttysMetrics.SAMPLES);
+            final long now = System.nanoTime();
+            decodeLatency.record(now - packetNanos);
+            if (filterStage.isActive()) {
+                System.arraycopy(data, 0, filtered, 0, NCHANNELS);
+                filterStage.filter(filtered);
+                data = filtered;
+            }
+            dispatcher.publish(samplenumber, data, packetNanos);
+            if (useRingBuffer) {
+                ringBuffer.put(samplenumber, data, now);
+            }
+            final SampleHistory h = history;
+            if (h != null) {
+                h.put(samplenumber, data);
+            }
+            final SummaryPyramid p = pyramid;
+            if (p != null) {
+                p.put(samplenumber, data, 0);
+            }
+        }
+    };
+
+    // gets the raw counts on the acquisition thread
+    private final RawSampleListener rawSink = new RawSampleListener() {
+        @Override
+        public void gotRawData(long samplenumber, int[] counts) {
+            if (rawMode) {
+                metrics.increment(AttysMetrics.SAMPLES);
+                decodeLatency.record(System.nanoTime() - packetNanos);
+            }
+            final RawSampleListener l = rawSampleListener;
+            if (l != null) {
+                l.gotRawData(samplenumber, counts);
+            }
+            final CompressedHistory h = compressedHistory;
+            if (h != null) {
+                h.put(samplenumber, counts);
+            }
+        }
+    };
+
+    // full scale range of the ADC for a given gain index
+    private static float adcFullScaleRange(byte gainIndex) {
+        if ((gainIndex < 0) || (gainIndex >= ADC_GAIN_FACTOR.length)) {
+            return 0;
+        }
+        return ADC_REF / ADC_GAIN_FACTOR[gainIndex];
+    }
+
+    // the value of the a= and b= register
+    private static int gainMuxRegister(int gainIndex, int muxIndex) {
+        return (muxIndex & 0x0f) | ((gainIndex & 0x0f) << 4);
+    }
+
+    // the register values for config, base64 is always on
+    private static void registerValues(AttysConfig c, int[] registers) {
+        registers[REG_BASE64] = 1;
+        registers[REG_RATE] = c.getSamplingRateIndex();
+        registers[REG_FULL_DATA] = c.getFullOrPartialData();
+        registers[REG_ACCEL] = c.getAccelFullScaleIndex();
+        registers[REG_ADC0] = gainMuxRegister(c.getAdcGainIndex(0), c.getAdcMuxIndex(0));
+        registers[REG_ADC1] = gainMuxRegister(c.getAdcGainIndex(1), c.getAdcMuxIndex(1));
+        registers[REG_CURRENT_MASK] = c.getCurrentMask();
+        registers[REG_BIAS] = c.getBiasCurrentIndex();
+    }
+
     private class AttysRunnable implements Runnable {
 
-        private boolean doRun = true;
-        private BluetoothSocket mmSocket = null;
-        private BufferedReader bufferedReader = null;
+        private volatile boolean doRun = true;
+        private LineFramer lineFramer = null;
         private OutputStream mmOutStream = null;
-        private byte[] adcMuxRegister = null;
-        private byte[] adcGainRegister = null;
-
-        private boolean correctTimestampDifference = false;
-        private byte expectedTimestamp = 0;
+        // the register values the Attys has confirmed with OK, -1 if
+        // unknown. Forgotten with every connection because the Attys
+        // might have been reset, live changes only send the ones which
+        // have changed.
+        private final int[] registers = new int[NREGISTERS];
+        // OKs still to come from x=0 commands which have been repeated
+        private int staleOKs = 0;
+        // the OK of x=1 which will arrive with the first packets
+        private boolean startOKPending = false;
+        // start of the most recent connection attempt
+        private long connectNanos = 0;
+        private boolean waitingForFirstSample = false;
 
         public void connectToAttys() throws IOException {
 
-            if (mmSocket != null) {
-                try {
-                    mmSocket.close();
-                } catch (Exception ignored) {
-                }
-            }
-            mmSocket = null;
-            bufferedReader = null;
+            final AttysTransport t = connection;
+            lineFramer = null;
             InputStream mmInStream = null;
             mmOutStream = null;
 
-            if (bluetoothDevice == null) {
-                Log.e(TAG, "Bluetooth device is null.");
+            if (t == null) {
+                Log.e(TAG, "No transport to the Attys.");
                 throw new IOException();
             }
 
@@ -548,229 +1337,185 @@ public class AttysComm {
                 messageListener.haveMessage(MESSAGE_CONNECTING);
             }
 
-            try {
-                mmSocket = bluetoothDevice.createRfcommSocketToServiceRecord(uuid);
-            } catch (java.lang.SecurityException e) {
-                Log.d(TAG, "BT permission not granted: ", e);
-                try {
-                    mmSocket.close();
-                } catch (Exception ignored) {
-                }
-                mmSocket = null;
-                throw e;
-            } catch (Exception ex) {
-                Log.d(TAG, "Could not get rfComm socket:", ex);
-                try {
-                    mmSocket.close();
-                } catch (Exception ignored) {
-                }
-                mmSocket = null;
-                throw ex;
-            }
+            connectNanos = System.nanoTime();
+            t.connect();
 
-            Log.v(TAG, "Got rfComm socket!");
-
-            if (mmSocket != null) {
-                try {
-                    mmSocket.connect();
-                }  catch (java.lang.SecurityException e) {
-                    Log.d(TAG, "BT permission not granted: ", e);
-                    try {
-                        mmSocket.close();
-                    } catch (Exception ignored) {
-                    }
-                    mmSocket = null;
-                    throw e;
-                } catch (IOException e) {
-                    if (mmSocket != null) {
-                        try {
-                            mmSocket.close();
-                        } catch (Exception ignored) {
-                        }
-                    }
-                    mmSocket = null;
-                    Log.d(TAG, "mmSocket.connect() failed");
-                    throw e;
-                }
-            }
             try {
-                assert mmSocket != null;
-                mmInStream = mmSocket.getInputStream();
-                mmOutStream = mmSocket.getOutputStream();
-                bufferedReader = new BufferedReader(new InputStreamReader(mmInStream, StandardCharsets.US_ASCII));
-            } catch (Exception es) {
-                try {
-                    mmSocket.close();
-                } catch (Exception ignored) {
-                }
-                mmSocket = null;
+                mmInStream = t.getInputStream();
+                mmOutStream = t.getOutputStream();
+                lineFramer = new LineFramer(mmInStream);
+            } catch (IOException es) {
+                t.close();
                 Log.d(TAG, "Couldn't get streams during connect.");
                 throw es;
             }
-            Log.d(TAG, "Connected to Attys");
+            staleOKs = 0;
+            startOKPending = false;
+            // the liveness monitor also catches an Attys which stops
+            // answering during the initialisation
+            liveness.arm();
+            Log.d(TAG, "Connected to Attys via " + t.getName());
         }
 
-
-        // brute force stop of the Attys
-        // bluetooth is so terrible in full duplex that this is required!
-        private synchronized void stopADC() throws IOException {
-            String s = "\r\n\r\n\r\nx=0\r";
-            byte[] bytes = s.getBytes();
-            if (mmSocket != null) {
-                if (!mmSocket.isConnected()) throw new IOException();
+        // swallows an OK which belongs to an earlier x=0 or x=1
+        private boolean isLeftoverOK() {
+            if (startOKPending) {
+                startOKPending = false;
+                return true;
             }
-            for (int j = 0; j < 100; j++) {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "Trying to stop the data acquisition. Attempt #" + (j + 1) + ".");
+            if (staleOKs > 0) {
+                staleOKs--;
+                return true;
+            }
+            return false;
+        }
+
+        // reads the next line during the initialisation. The Attys is
+        // alive as long as anything arrives.
+        private int readInitLine() throws IOException {
+            final LineFramer framer = lineFramer;
+            if (framer == null) throw new IOException("Not connected.");
+            final int len = framer.readLine();
+            if (len < 0) throw new IOException("Stream closed.");
+            final long t = System.nanoTime();
+            liveness.alive(t);
+            captureLine(t, framer.isOK() ? PacketCapture.LINE_OK : PacketCapture.LINE_NOT_DECODED);
+            return len;
+        }
+
+        private synchronized void write(byte[] bytes) throws IOException {
+            final OutputStream out = mmOutStream;
+            if (out == null) throw new IOException("Not connected.");
+            out.write(bytes);
+            out.flush();
+        }
+
+        // stops the data acquisition and waits for the OK. Packets still
+        // arriving are discarded. Bluetooth is so terrible in full duplex
+        // that x=0 might get lost: if data keeps coming it's sent again.
+        // Gives up after STOP_TIMEOUT_NS.
+        private void stopADC() throws IOException {
+            final long start = System.nanoTime();
+            long nextStop = start;
+            int sent = 0;
+            while (doRun) {
+                final long now = System.nanoTime();
+                if (now - start > STOP_TIMEOUT_NS) {
+                    throw new IOException("No OK after x=0.");
                 }
-                try {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "flushing stream");
-                    }
-                    if (mmOutStream == null) throw new IOException();
-                    mmOutStream.flush();
+                if (now - nextStop >= 0) {
                     if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "Sending x=0");
+                        Log.d(TAG, "Trying to stop the data acquisition. Attempt #" + (sent + 1) + ".");
                     }
-                    if (mmOutStream == null) throw new IOException();
-                    mmOutStream.write(bytes);
-                    if (mmOutStream == null) throw new IOException();
-                    mmOutStream.flush();
-                } catch (IOException e) {
-                    if (Log.isLoggable(TAG, Log.ERROR)) {
-                        Log.e(TAG, "Could not send 'x=0' (=stop requ) to the Attys:" + e.getMessage());
-                    }
-                    throw e;
+                    write(STOP);
+                    sent++;
+                    nextStop = now + STOP_REPEAT_NS;
                 }
-                if (bufferedReader == null) return;
-                for (int i = 0; (i < 100) && doRun; i++) {
-                    if (bufferedReader != null) {
-                        String l = bufferedReader.readLine();
-                        if (l.equals("OK")) {
-                            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                                Log.d(TAG, "ADC stopped. Now in command mode.");
-                            }
-                            return;
-                        } else {
-                            Thread.yield();
-                        }
+                readInitLine();
+                if (lineFramer.isOK()) {
+                    if (isLeftoverOK()) continue;
+                    // the other x=0 might have arrived as well
+                    staleOKs += sent - 1;
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "ADC stopped. Now in command mode.");
                     }
+                    return;
                 }
             }
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "Could not detect OK after x=0!");
-            }
         }
 
-        private synchronized void startADC() throws IOException {
-            String s = "x=1\r";
-            byte[] bytes = s.getBytes();
+        private void startADC() throws IOException {
             try {
-                if (mmOutStream != null) {
-                    mmOutStream.flush();
-                    mmOutStream.write(13);
-                    mmOutStream.write(10);
-                    mmOutStream.write(bytes);
-                    mmOutStream.flush();
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "ADC started. Now acquiring data.");
-                    }
+                write(START);
+                startOKPending = true;
+                startNanos = System.nanoTime();
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "ADC started. Now acquiring data.");
                 }
             } catch (IOException e) {
                 if (Log.isLoggable(TAG, Log.ERROR)) {
                     Log.e(TAG, "Could not send x=1 to the Attys.");
                 }
-                throw new IOException(e);
+                throw e;
             }
         }
 
-
-        private synchronized void sendSyncCommand(String s) throws IOException {
-            byte[] bytes = s.getBytes();
-
-            try {
-                if (mmOutStream != null) {
-                    mmOutStream.flush();
-                    mmOutStream.write(10);
-                    mmOutStream.write(13);
-                    mmOutStream.write(bytes);
-                    mmOutStream.write(13);
-                    mmOutStream.flush();
-                } else {
-                    return;
+        // sends all registers in wanted (-1 = leave as it is) which differ
+        // from the confirmed ones in one go and then matches the OKs which
+        // come back in the same order. Returns the number of commands sent.
+        private int sendRegisters(int[] wanted) throws IOException {
+            final int[] pending = new int[NREGISTERS];
+            final StringBuilder b = new StringBuilder();
+            int n = 0;
+            for (int i = 0; i < NREGISTERS; i++) {
+                if ((wanted[i] >= 0) && (wanted[i] != registers[i])) {
+                    b.append("\n\r").append(REGISTER_COMMANDS[i]).append('=').append(wanted[i]).append('\r');
+                    pending[n++] = i;
                 }
-            } catch (IOException e) {
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                    Log.e(TAG, "Could not send: " + s);
-                }
-                throw new IOException(e);
             }
-            for (int j = 0; (j < 100) && doRun; j++) {
-                if (bufferedReader != null) {
-                    String l = bufferedReader.readLine();
-                    if (l.equals("OK")) {
-                        if (Log.isLoggable(TAG, Log.DEBUG)) {
-                            Log.d(TAG, "Sent successfully '" + s + "' to the Attys.");
-                        }
-                        return;
-                    } else {
-                        try {
-                            synchronized (mainThreadSem) {
-                                mainThreadSem.wait(10);
-                            }
-                        } catch (InterruptedException ignored) { }
-                    }
+            if (n == 0) return 0;
+            write(b.toString().getBytes(StandardCharsets.US_ASCII));
+            final long deadline = System.nanoTime() + COMMAND_TIMEOUT_NS;
+            int confirmed = 0;
+            while (confirmed < n) {
+                if (!doRun) throw new IOException("Cancelled.");
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IOException("The Attys has confirmed only " + confirmed + " of " + b);
                 }
+                readInitLine();
+                if ((!lineFramer.isOK()) || isLeftoverOK()) continue;
+                final int r = pending[confirmed++];
+                registers[r] = wanted[r];
             }
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "ATTYS hasn't replied with OK after command: " + s + ".");
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Sent successfully to the Attys: " + b.toString().trim());
             }
-            throw new IOException();
-        }
-
-
-        private synchronized void sendSamplingRate() throws IOException {
-            sendSyncCommand("r=" + adc_rate_index);
-            highSpeed = (adc_rate_index == ADC_RATE_500Hz);
-            Log.d(TAG, "High speed: " + highSpeed);
+            return n;
         }
 
-        private synchronized void sendFullscaleAccelRange() throws IOException {
-            sendSyncCommand("t=" + accel_full_scale_index);
-        }
-
-        private synchronized void sendFullOrPartialData() throws IOException {
-            sendSyncCommand("f=" + fullOrPartialData);
-        }
-
-        private synchronized void sendCurrentMask() throws IOException {
-            sendSyncCommand("c=" + current_mask);
-        }
-
-        private synchronized void sendBiasCurrent() throws IOException {
-            sendSyncCommand("i=" + current_index);
+        private int countChanges(int[] wanted) {
+            int n = 0;
+            for (int i = 0; i < NREGISTERS; i++) {
+                if ((wanted[i] >= 0) && (wanted[i] != registers[i])) n++;
+            }
+            return n;
         }
 
-        private synchronized void sendGainMux(int channel, byte gain, byte mux) throws IOException {
-            int v = (mux & 0x0f) | ((gain & 0x0f) << 4);
-            switch (channel) {
-                case 0:
-                    sendSyncCommand("a=" + v);
-                    break;
-                case 1:
-                    sendSyncCommand("b=" + v);
-                    break;
+        // forgets what has been sent to the Attys, for example
+        // because it's a new session
+        private void forgetRegisters() {
+            for (int i = 0; i < NREGISTERS; i++) {
+                registers[i] = -1;
             }
-            adcGainRegister[channel] = gain;
-            adcMuxRegister[channel] = mux;
+            deviceConfig = null;
         }
 
-        private synchronized void setADCGain(int channel, byte gain) throws IOException {
-            sendGainMux(channel, gain, adcMuxRegister[channel]);
+        // publishes the confirmed registers if they are all known
+        private void updateDeviceConfig() {
+            for (int i = 0; i < NREGISTERS; i++) {
+                if (registers[i] < 0) {
+                    deviceConfig = null;
+                    return;
+                }
+            }
+            deviceConfig = new AttysConfig(registers[REG_RATE], registers[REG_FULL_DATA], registers[REG_ACCEL],
+                    registers[REG_ADC0] >> 4, registers[REG_ADC1] >> 4,
+                    registers[REG_ADC0] & 0x0f, registers[REG_ADC1] & 0x0f,
+                    registers[REG_CURRENT_MASK], registers[REG_BIAS]);
         }
 
-        private synchronized void setADCMux(int channel, byte mux) throws IOException {
-            sendGainMux(channel, adcGainRegister[channel], mux);
+        // sets up the decoder for the data the Attys sends with this config
+        private void configureDecoder(AttysConfig c) {
+            final int rate = ADC_SAMPLINGRATE[c.getSamplingRateIndex()];
+            decoder.setSamplingRate(rate);
+            filterStage.setSamplingRate(rate);
+            for (SpectrumStage s : spectra) {
+                s.setSamplingRate(rate);
+            }
+            highSpeed = (c.getSamplingRateIndex() == ADC_RATE_500Hz);
+            decoder.setFullData(c.getFullOrPartialData() == FULL_DATA);
+            calibration = calibrationOf(c);
+            decoder.setCalibration(calibration);
         }
 
         private synchronized void sendMasterReset() {
@@ -782,19 +1527,55 @@ public class AttysComm {
             }
         }
 
-        private synchronized void sendInit() throws IOException {
+        // stops the Attys, sends the registers which aren't what the
+        // Attys has confirmed already and starts the data acquisition
+        private void sendInit() throws IOException {
             if (!doRun) return;
             stopADC();
-            // switching to base64 encoding
-            sendSyncCommand("d=1");
-            sendSamplingRate();
-            sendFullOrPartialData();
-            sendFullscaleAccelRange();
-            sendGainMux(0, adc0_gain_index, adc0_mux_index);
-            sendGainMux(1, adc1_gain_index, adc1_mux_index);
-            sendCurrentMask();
-            sendBiasCurrent();
+            final AttysConfig want = getConfig();
+            final int[] wanted = new int[NREGISTERS];
+            registerValues(want, wanted);
+            final int n = sendRegisters(wanted);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, n + " registers sent, config: " + want);
+            }
+            updateDeviceConfig();
+            configureDecoder(want);
+            final PacketCapture c = capture;
+            if (c != null) {
+                c.config(decoder, highSpeed);
+            }
+            awaitStartBarrier();
             startADC();
+            waitingForFirstSample = true;
+        }
+
+        // waits for the other Attys sharing the start barrier
+        private void awaitStartBarrier() {
+            final CyclicBarrier b = startBarrier;
+            if (b == null) return;
+            startBarrier = null;
+            // the stopped Attys is silent while we wait for the others
+            liveness.disarm();
+            try {
+                b.await(START_BARRIER_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (BrokenBarrierException | TimeoutException e) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "Not all Attys ready to start. Starting anyway.");
+                }
+            } finally {
+                liveness.arm();
+            }
+        }
+
+        private void captureLine(long nanoTime, int kind) {
+            final PacketCapture c = capture;
+            final LineFramer framer = lineFramer;
+            if ((c != null) && (framer != null)) {
+                c.line(nanoTime, framer.getLine(), framer.getLineLength(), kind);
+            }
         }
 
         /* Call this from the main activity to shutdown the connection */
@@ -803,279 +1584,258 @@ public class AttysComm {
                 Log.d(TAG, "doRun = false");
             }
             doRun = false;
-            if (null != mmSocket) {
-                try {
-                    mmSocket.close();
-                } catch (Exception e) {
-                    Log.d(TAG, "Tried to close the socket during cancel()", e);
-                }
+            if (null != connection) {
+                connection.close();
+            }
+            synchronized (retrySem) {
+                retrySem.notifyAll();
             }
         }
 
-        public void decodeStandardSpeedPacket(String oneLine) {
-            int nTrans = 1;
-            // we have a real sample
-            try {
-                final byte[] raw = Base64.decode(oneLine, Base64.DEFAULT);
+        private void logDecodeStatus(int status) {
+            switch (status) {
+                case AttysPacketDecoder.STATUS_RECEPTION_ERROR:
+                    metrics.increment(decoder.getReceptionErrorType() == AttysPacketDecoder.RECEPTION_ERROR_BASE64 ?
+                            AttysMetrics.BASE64_ERRORS : AttysMetrics.SHORT_PACKETS);
+                    if (Log.isLoggable(TAG, Log.WARN)) {
+                        Log.w(TAG, "reception error: " + lineFramer.lineToString());
+                    }
+                    break;
+                case AttysPacketDecoder.STATUS_SAMPLES_LOST:
+                    metrics.add(AttysMetrics.LOST_SAMPLES, decoder.getLostSamples());
+                    if (Log.isLoggable(TAG, Log.WARN)) {
+                        Log.w(TAG, String.format("Lost %d samples, timestamp now %d",
+                                decoder.getLostSamples(), decoder.getExpectedTimestamp() - 1));
+                    }
+                    break;
+            }
+        }
 
-                for (int i = 0; i < 2; i++) {
-                    long v = (raw[i * 3] & 0xff)
-                            | ((raw[i * 3 + 1] & 0xff) << 8)
-                            | ((raw[i * 3 + 2] & 0xff) << 16);
-                    data[INDEX_Analogue_channel_1 + i] = v;
+        // decodes a line from the Attys which has just been read
+        private void handleLine(LineFramer framer, int len) {
+            final PacketCapture c = capture;
+            final PacketTimeListener tl = packetTimeListener;
+            final long t = System.nanoTime();
+            if (!framer.isOK()) {
+                liveness.alive(t);
+                if (0 == startTime) {
+                    startTime = Calendar.getInstance().getTimeInMillis();
                 }
-
-                sample[INDEX_GPIO0] = (raw[6] & 32) == 0 ? 0 : 1;
-                sample[INDEX_GPIO1] = (raw[6] & 64) == 0 ? 0 : 1;
-                sample[INDEX_CHARGING] = (raw[6] & 0x80) == 0 ? 0 : 1;
-                // Log.d(TAG,""+sample[INDEX_CHARGING]);
-
-                if (fullOrPartialData == FULL_DATA) {
-                    for (int i = 0; i < 6; i++) {
-                        long v = (raw[8 + i * 2] & 0xff)
-                                | ((raw[8 + i * 2 + 1] & 0xff) << 8);
-                        data[i] = v;
-                    }
+                final int status;
+                packetNanos = t;
+                if (highSpeed) {
+                    status = decoder.decodeHighSpeedPacket(framer.getLine(), len);
+                } else {
+                    status = decoder.decodeStandardSpeedPacket(framer.getLine(), len);
                 }
-
-                // check that the timestamp is the expected one
-                byte ts = 0;
-                nTrans = 1;
-                if (raw.length > 7) {
-                    // Log.d(TAG,"tbcorr");
-                    ts = raw[7];
-                    if ((ts - expectedTimestamp) > 0) {
-                        if (correctTimestampDifference) {
-                            nTrans = 1 + (ts - expectedTimestamp);
-                            if (Log.isLoggable(TAG, Log.WARN)) {
-                                Log.w(TAG, String.format("Timestamp=%s,expected=%d",
-                                        ts, expectedTimestamp));
-                            }
-                        } else {
-                            correctTimestampDifference = true;
-                        }
-                    }
+                metrics.increment(AttysMetrics.PACKETS);
+                if (status != AttysPacketDecoder.STATUS_OK) {
+                    logDecodeStatus(status);
                 }
-                // update timestamp
-                expectedTimestamp = ++ts;
-
-            } catch (Exception e) {
-                // this is triggered if the base64 is too short or any data is too short
-                // this leads to data processed from the previous sample instead
-                if (Log.isLoggable(TAG, Log.WARN)) {
-                    Log.w(TAG, "reception error: " + oneLine, e);
+                if ((tl != null) && ((status == AttysPacketDecoder.STATUS_OK) ||
+                        (status == AttysPacketDecoder.STATUS_SAMPLES_LOST))) {
+                    // arrival time of the last sample of the packet
+                    tl.gotPacket(decoder.getSampleNumber() - 1, t);
                 }
-                expectedTimestamp++;
-            }
-
-            // acceleration
-            for (int i = AttysComm.INDEX_Acceleration_X;
-                 i <= AttysComm.INDEX_Acceleration_Z; i++) {
-                float norm = 0x8000;
-                try {
-                    sample[i] = ((float) data[i] - norm) / norm *
-                            getAccelFullScaleRange();
-                } catch (Exception e) {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "Acc conv err");
-                    }
-                    sample[i] = 0;
+                if (c != null) {
+                    c.line(t, framer.getLine(), len, status);
                 }
-            }
-
-            // magnetometer
-            for (int i = AttysComm.INDEX_Magnetic_field_X;
-                 i <= AttysComm.INDEX_Magnetic_field_Z; i++) {
-                float norm = 0x8000;
-                try {
-                    sample[i] = ((float) data[i] - norm) / norm *
-                            MAG_FULL_SCALE;
-                    //Log.d(TAG,"i="+i+","+sample[i]);
-                } catch (Exception e) {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "Mag conv err");
-                    }
-                    sample[i] = 0;
+                if (waitingForFirstSample && (status != AttysPacketDecoder.STATUS_RECEPTION_ERROR)) {
+                    waitingForFirstSample = false;
+                    metrics.set(AttysMetrics.CONNECT_TO_FIRST_SAMPLE_NANOS, t - connectNanos);
                 }
-            }
-
-            for (int i = AttysComm.INDEX_Analogue_channel_1;
-                 i <= AttysComm.INDEX_Analogue_channel_2; i++) {
-                float norm = 0x800000;
-                try {
-                    sample[i] = ((float) data[i] - norm) / norm *
-                            ADC_REF / ADC_GAIN_FACTOR[adcGainRegister[i
-                            - AttysComm.INDEX_Analogue_channel_1]];
-                } catch (Exception e) {
-                    sample[i] = 0;
+            } else {
+                if (!isLeftoverOK()) {
+                    metrics.increment(AttysMetrics.UNEXPECTED_OK);
                 }
-            }
-
-            // in case a sample has been lost
-            for (int j = 0; j < nTrans; j++) {
-                if (dataListener != null) {
-                    dataListener.gotData(sampleNumber, sample);
+                if (c != null) {
+                    c.line(t, framer.getLine(), len, PacketCapture.LINE_OK);
                 }
-                timestamp = ((double) sampleNumber) / ((double) getSamplingRateInHz());
-                sampleNumber++;
-                if (useRingBuffer) {
-                    System.arraycopy(sample, 0, ringBuffer[inPtr], 0, sample.length);
-                    inPtr++;
-                    if (inPtr == RINGBUFFERSIZE) {
-                        inPtr = 0;
-                    }
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "OK caught from the Attys");
                 }
             }
         }
 
-        public void decodeHighSpeedPacket(String oneLine) {
-            int nTrans = 1;
-            // we have a real sample
-            try {
-                final byte[] raw = Base64.decode(oneLine, Base64.DEFAULT);
-
-                sample[INDEX_GPIO0] = (raw[12] & 32) == 0 ? 0 : 1;
-                sample[INDEX_GPIO1] = (raw[12] & 64) == 0 ? 0 : 1;
-                sample[INDEX_CHARGING] = (raw[12] & 0x80) == 0 ? 0 : 1;
-
-                // check that the timestamp is the expected one
-                byte ts = 0;
-                ts = raw[13];
-                if ((ts - expectedTimestamp) > 0) {
-                    if (correctTimestampDifference) {
-                        nTrans = 1 + (ts - expectedTimestamp);
-                        if (Log.isLoggable(TAG, Log.WARN)) {
-                            Log.w(TAG, String.format("Timestamp=%s,expected=%d",
-                                    ts, expectedTimestamp));
-                        }
-                    } else {
-                        correctTimestampDifference = true;
-                    }
+        // sends the registers which differ from the ones the Attys has
+        // confirmed. The data acquisition is stopped as briefly as possible
+        // and the sample numbers continue on the same time base.
+        private void applyConfig() throws IOException {
+            configPending = false;
+            if (deviceConfig == null) return;
+            final AttysConfig want = getConfig();
+            final int[] wanted = new int[NREGISTERS];
+            registerValues(want, wanted);
+            if ((wanted[REG_RATE] != registers[REG_RATE]) ||
+                    (wanted[REG_FULL_DATA] != registers[REG_FULL_DATA])) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "The sampling rate and full/partial data change with the next start.");
                 }
-                // update timestamp
-                expectedTimestamp = ++ts;
-
-                for (int s = 0; s < 2; s++) {
-
-                    // acceleration
-                    for (int i = 0; i < 3; i++) {
-                        float norm = 0x8000;
-                        try {
-                            long v = (raw[14 + i * 2] & 0xff)
-                                    | ((raw[14 + i * 2 + 1] & 0xff) << 8);
-                            sample[AttysComm.INDEX_Acceleration_X + i] =
-                                    ((float) v - norm) / norm * getAccelFullScaleRange();
-                        } catch (Exception e) {
-                            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                                Log.d(TAG, "Acc conv err");
-                            }
-                            sample[i] = 0;
-                        }
-                    }
-
-                    for (int i = 0; i < 2; i++) {
-                        float norm = 0x800000;
-                        try {
-                            long v = (raw[s * 6 + i * 3] & 0xff)
-                                    | ((raw[s * 6 + i * 3 + 1] & 0xff) << 8)
-                                    | ((raw[s * 6 + i * 3 + 2] & 0xff) << 16);
-                            sample[AttysComm.INDEX_Analogue_channel_1 + i] =
-                                    ((float) v - norm) / norm *
-                                            ADC_REF / ADC_GAIN_FACTOR[adcGainRegister[i]];
-                        } catch (Exception e) {
-                            sample[i] = 0;
-                        }
-                    }
-
-                    // in case a sample has been lost
-                    for (int j = 0; j < nTrans; j++) {
-                        if (dataListener != null) {
-                            dataListener.gotData(sampleNumber, sample);
-                        }
-                        timestamp = ((double) sampleNumber) / ((double) getSamplingRateInHz());
-                        sampleNumber++;
-                        if (useRingBuffer) {
-                            System.arraycopy(sample, 0, ringBuffer[inPtr], 0, sample.length);
-                            inPtr++;
-                            if (inPtr == RINGBUFFERSIZE) {
-                                inPtr = 0;
-                            }
-                        }
-                    }
+            }
+            // the packet format can't change while streaming
+            wanted[REG_RATE] = -1;
+            wanted[REG_FULL_DATA] = -1;
+            if (countChanges(wanted) == 0) return;
+
+            fastStopADC();
+            final long lastPacket = packetNanos;
+            sendRegisters(wanted);
+            updateDeviceConfig();
+            final AttysConfig c = deviceConfig;
+            configureDecoder(c);
+
+            // skips the samples the Attys would have sent while it was stopped
+            final long now = System.nanoTime();
+            if (lastPacket > 0) {
+                decoder.setSampleNumber(decoder.getSampleNumber() +
+                        (now - lastPacket) * decoder.getSamplingRate() / 1000000000L);
+            }
+            decoder.resync();
+            final long boundary = decoder.getSampleNumber();
+            final PacketCapture pc = capture;
+            if (pc != null) {
+                pc.liveConfig(decoder, highSpeed, boundary);
+            }
+            startADC();
 
-                }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "New config from sample " + boundary + ": " + c);
+            }
+            final ConfigChangeListener l = configChangeListener;
+            if (l != null) {
+                l.configChanged(boundary, c);
+            }
+            final AttysRecorder r = recorder;
+            if (r != null) {
+                // not the setters which may have moved on already
+                r.markConfigChange(boundary, c, fullScaleRangesOf(c));
+            }
+            final EdfWriter w = edfWriter;
+            if (w != null) {
+                // continues in a new file if the recorded ranges have changed
+                w.markConfigChange(boundary, c, fullScaleRangesOf(c));
+            }
+        }
 
-            } catch (Exception e) {
-                // this is triggered if the base64 is too short or any data is too short
-                // this leads to data processed from the previous sample instead
-                if (Log.isLoggable(TAG, Log.WARN)) {
-                    Log.w(TAG, "reception error: " + oneLine, e);
+        // stops the data acquisition with a single x=0 and decodes the
+        // packets which are still on their way till the OK arrives.
+        // Falls back to stopADC() if it doesn't in time.
+        private void fastStopADC() throws IOException {
+            final LineFramer framer = lineFramer;
+            if (framer == null) throw new IOException("Not connected.");
+            write(STOP);
+            final long deadline = System.nanoTime() + STOP_REPEAT_NS;
+            while (doRun && (System.nanoTime() - deadline < 0)) {
+                final int len = framer.readLine();
+                if (len < 0) throw new IOException("Stream closed.");
+                if (framer.isOK()) {
+                    if (isLeftoverOK()) continue;
+                    captureLine(System.nanoTime(), PacketCapture.LINE_OK);
+                    return;
                 }
-                expectedTimestamp++;
+                handleLine(framer, len);
             }
-
+            stopADC();
+            // the first x=0 might still be confirmed
+            staleOKs++;
         }
 
-        final Object watchdogSem = new Object();
+        final Object retrySem = new Object();
+        private LivenessMonitor liveness = null;
 
-        class WatchdogRunnable implements Runnable {
-            final int TIMEOUT_IN_MS = 300;
-            final int TIMEOUTCTR = 3;
-            boolean reconnecting = false;
-            int timeoutCtr = TIMEOUTCTR;
+        // no data within the watchdog timeout: closing the connection
+        // makes the acquisition thread reconnect
+        private final Runnable onWatchdogTimeout = new Runnable() {
             @Override
             public void run() {
-                while (doRun) {
-                    try {
-                        synchronized (mainThreadSem) {
-                            mainThreadSem.wait(TIMEOUT_IN_MS);
+                metrics.increment(AttysMetrics.WATCHDOG_TIMEOUTS);
+                Log.d(TAG, "No data from the Attys. Reconnecting.");
+                if (isConnected) {
+                    setConnectionState(CONNECTION_LOST, 0, 0);
+                }
+                final AttysTransport t = connection;
+                if (t != null) {
+                    t.close();
+                }
+            }
+        };
+
+        // connects to the Attys and configures it. Failed attempts are
+        // repeated after the backoff delay till it works or cancel() is
+        // called. Returns false if it has been cancelled.
+        private boolean connect(boolean reconnect) {
+            final long reconnectStart = System.nanoTime();
+            int failedAttempts = 0;
+            while (doRun) {
+                setConnectionState(CONNECTION_CONNECTING, failedAttempts, 0);
+                try {
+                    if (reconnect) {
+                        Log.d(TAG, "Trying to reconnect.");
+                        metrics.increment(AttysMetrics.RECONNECT_ATTEMPTS);
+                    }
+                    // all registers again: the Attys might have lost them
+                    forgetRegisters();
+                    connectToAttys();
+                    sendInit();
+                    if (!doRun) return false;
+                    isConnected = true;
+                    if (reconnect) {
+                        Log.d(TAG, "Reconnect successful");
+                        final long t = System.nanoTime() - reconnectStart;
+                        metrics.increment(AttysMetrics.RECONNECTS);
+                        metrics.add(AttysMetrics.RECONNECT_NANOS, t);
+                        metrics.set(AttysMetrics.LAST_RECONNECT_NANOS, t);
+                        decoder.resync();
+                        if (startTime > 0) {
+                            decoder.setSampleNumber((Calendar.getInstance().getTimeInMillis() - startTime)
+                                    * getSamplingRateInHz() / 1000);
+                        }
+                        final AttysRecorder r = recorder;
+                        if (r != null) {
+                            r.markReconnect(decoder.getSampleNumber());
                         }
-                    } catch (Exception e) {
-                        Log.d(TAG,"watchdig sleep",e);
+                        final EdfWriter w = edfWriter;
+                        if (w != null) {
+                            w.markReconnect(decoder.getSampleNumber());
+                        }
+                    }
+                    liveness.arm();
+                    setConnectionState(CONNECTION_CONNECTED, failedAttempts, 0);
+                    if (messageListener != null) {
+                        messageListener.haveMessage(MESSAGE_CONNECTED);
                     }
-                    if (timeoutCtr > 0) {
-                        timeoutCtr--;
-                    } else {
-                        reconnect();
-                        timeoutCtr = TIMEOUTCTR;
+                    return true;
+                } catch (IOException e) {
+                    liveness.disarm();
+                    failedAttempts++;
+                    final long delay = backoff.getDelayInMs(failedAttempts, random);
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Connect failed. Retrying in " + delay + "ms.");
                     }
+                    if (!doRun) return false;
+                    setConnectionState(CONNECTION_RETRY_SCHEDULED, failedAttempts, delay);
+                    if (messageListener != null) {
+                        messageListener.haveMessage(MESSAGE_RETRY);
+                    }
+                    awaitRetry(delay);
                 }
             }
+            return false;
+        }
 
-            void ping() {
-                timeoutCtr = TIMEOUTCTR;
-            }
-
-            void reconnect() {
-                reconnecting = true;
-                while (doRun) {
+        // sleeps till the next connection attempt or till cancel()
+        private void awaitRetry(long delayInMs) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+            synchronized (retrySem) {
+                long remaining;
+                while (doRun && ((remaining = deadline - System.nanoTime()) > 0)) {
                     try {
-                        Log.d(TAG,"Trying to reconnect.");
-                        connectToAttys();
-                        sendInit();
-                        timeoutCtr = TIMEOUTCTR;
-                        Log.d(TAG,"Reconnect successful");
-                        if (messageListener != null) {
-                            messageListener.haveMessage(MESSAGE_CONNECTED);
-                        }
-                        reconnecting = false;
-                        correctTimestampDifference = false;
-                        synchronized (watchdogSem) {
-                            watchdogSem.notify();
-                        }
-                        if (startTime > 0) {
-                            sampleNumber = (Calendar.getInstance().getTimeInMillis() - startTime)
-                                    * getSamplingRateInHz() / 1000;
-                        }
+                        TimeUnit.NANOSECONDS.timedWait(retrySem, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                         return;
-                    } catch (IOException e) {
-                        if (Log.isLoggable(TAG, Log.DEBUG)) {
-                            Log.d(TAG, "Reconnect failed. Retrying...");
-                        }
                     }
                 }
-                reconnecting = false;
-                timeoutCtr = TIMEOUTCTR;
             }
         }
 
@@ -1083,101 +1843,66 @@ public class AttysComm {
 
             doRun = true;
 
-            adcMuxRegister = new byte[2];
-            adcMuxRegister[0] = 0;
-            adcMuxRegister[1] = 0;
-            adcGainRegister = new byte[2];
-            adcGainRegister[0] = 0;
-            adcGainRegister[1] = 0;
+            decoder.setSampleListener(rawMode ? null : sampleSink);
+            decoder.setRawSampleListener(rawSink);
 
-            while ((doRun) && (!isConnected)) {
-                try {
-                    connectToAttys();
-                    sendInit();
-                    isConnected = true;
-                } catch (IOException e) {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "Connect failed. Retrying...");
-                    }
-                    isConnected = false;
-                }
-            }
+            final ScheduledExecutorService s = scheduler;
+            liveness = new LivenessMonitor(s != null ? s : LivenessMonitor.getSharedScheduler(),
+                    watchdogTimeoutInMs, onWatchdogTimeout);
 
-            if (!doRun) return;
+            if (!connect(false)) {
+                setConnectionState(CONNECTION_CLOSED, 0, 0);
+                // a connect which has finished after cancel()
+                connection.close();
+                return;
+            }
 
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "Starting main data acquistion loop");
             }
 
-            if (messageListener != null) {
-                messageListener.haveMessage(MESSAGE_CONNECTED);
-            }
-
-            final WatchdogRunnable watchdogRunnable = new WatchdogRunnable();
-            final Thread watchdogThread = new Thread(watchdogRunnable);
-            watchdogThread.start();
-
-            correctTimestampDifference = false;
-            expectedTimestamp = 0;
-            sampleNumber = 0;
+            decoder.reset();
 
-            // Keep listening to the InputStream until an exception occurs
+            // Keep listening to the InputStream till it's closed
+            // and reconnect if it has been lost
             while (doRun) {
-                if (watchdogRunnable.reconnecting) {
-                    try {
-                        synchronized (watchdogSem) {
-                            watchdogSem.wait(100);
-                        }
-                    } catch (Exception ignored){}
-                } else {
-                    try {
-                        String oneLine;
-                        if (bufferedReader != null) {
-                            oneLine = bufferedReader.readLine();
-                            // Log.v(TAG, oneLine);
-                        } else {
-                            return;
-                        }
-                        if (!oneLine.equals("OK")) {
-                            watchdogRunnable.ping();
-                            if (0 == startTime) {
-                                startTime = Calendar.getInstance().getTimeInMillis();
-                            }
-                            if (highSpeed) {
-                                decodeHighSpeedPacket(oneLine);
-                            } else {
-                                decodeStandardSpeedPacket(oneLine);
-                            }
-                        } else {
-                            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                                Log.d(TAG, "OK caught from the Attys");
-                            }
-                        }
-                    } catch (Exception e) {
-                        if (Log.isLoggable(TAG, Log.DEBUG)) {
-                            Log.d(TAG, "Stream lost or closing.", e);
-                        }
+                try {
+                    if (configPending) {
+                        applyConfig();
+                    }
+                    final LineFramer framer = lineFramer;
+                    if (framer == null) {
+                        break;
+                    }
+                    final int len = framer.readLine();
+                    if (len < 0) {
+                        throw new IOException("Stream closed.");
+                    }
+                    handleLine(framer, len);
+                } catch (IOException e) {
+                    if (!doRun) break;
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Stream lost.", e);
+                    }
+                    liveness.disarm();
+                    isConnected = false;
+                    deviceConfig = null;
+                    if (connectionState != CONNECTION_LOST) {
+                        setConnectionState(CONNECTION_LOST, 0, 0);
+                    }
+                    connect(true);
+                } catch (Exception e) {
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Error in the data acquisition loop.", e);
                     }
                 }
             }
 
-            synchronized (mainThreadSem) {
-                mainThreadSem.notify();
-            }
-
-            try {
-                watchdogThread.join();
-            } catch (Exception e) {
-                Log.v(TAG,"Watchdog join: ",e);
-            }
-
+            liveness.disarm();
+            setConnectionState(CONNECTION_CLOSED, 0, 0);
             isConnected = false;
             fatalError = false;
-            try {
-                mmSocket.close();
-            } catch (Exception ignored) {
-            }
-            ;
+            connection.close();
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "Data acquisition has been shut down.");
             }
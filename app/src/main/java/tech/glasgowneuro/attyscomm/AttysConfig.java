@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * The registers of an Attys as index numbers: sampling rate ("r="),
+ * full or partial data ("f="), accelerometer range ("t="), gain and
+ * mux of both ADC channels ("a=", "b="), the current mask ("c=")
+ * and the bias current ("i="). See the constants in AttysComm.
+ * <p>
+ * Immutable. pack() squeezes it into a long, one nibble per register,
+ * for example to store it in a marker of a recording.
+ */
+public final class AttysConfig {
+
+    private final int samplingRateIndex;
+    private final int fullOrPartialData;
+    private final int accelFullScaleIndex;
+    private final int[] adcGainIndex;
+    private final int[] adcMuxIndex;
+    private final int currentMask;
+    private final int biasCurrentIndex;
+
+    public AttysConfig(int samplingRateIndex, int fullOrPartialData, int accelFullScaleIndex,
+                       int adc0GainIndex, int adc1GainIndex, int adc0MuxIndex, int adc1MuxIndex,
+                       int currentMask, int biasCurrentIndex) {
+        this.samplingRateIndex = samplingRateIndex;
+        this.fullOrPartialData = fullOrPartialData;
+        this.accelFullScaleIndex = accelFullScaleIndex;
+        adcGainIndex = new int[]{adc0GainIndex, adc1GainIndex};
+        adcMuxIndex = new int[]{adc0MuxIndex, adc1MuxIndex};
+        this.currentMask = currentMask;
+        this.biasCurrentIndex = biasCurrentIndex;
+    }
+
+    public int getSamplingRateIndex() {
+        return samplingRateIndex;
+    }
+
+    public int getFullOrPartialData() {
+        return fullOrPartialData;
+    }
+
+    public int getAccelFullScaleIndex() {
+        return accelFullScaleIndex;
+    }
+
+    // channel is 0 or 1
+    public int getAdcGainIndex(int channel) {
+        return adcGainIndex[channel];
+    }
+
+    public int getAdcMuxIndex(int channel) {
+        return adcMuxIndex[channel];
+    }
+
+    public int getCurrentMask() {
+        return currentMask;
+    }
+
+    public int getBiasCurrentIndex() {
+        return biasCurrentIndex;
+    }
+
+    // true if the packets look different (rate, full or partial data)
+    // so that the data acquisition has to be restarted
+    public boolean changesPacketFormat(AttysConfig c) {
+        return (samplingRateIndex != c.samplingRateIndex) || (fullOrPartialData != c.fullOrPartialData);
+    }
+
+    // one nibble per register starting with the sampling rate in the lowest one
+    public long pack() {
+        final int[] v = values();
+        long p = 0;
+        for (int i = v.length - 1; i >= 0; i--) {
+            p = (p << 4) | (v[i] & 0x0f);
+        }
+        return p;
+    }
+
+    public static AttysConfig unpack(long p) {
+        final int[] v = new int[NREGISTERS];
+        for (int i = 0; i < NREGISTERS; i++) {
+            v[i] = (int) (p >>> (4 * i)) & 0x0f;
+        }
+        return new AttysConfig(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8]);
+    }
+
+    private final static int NREGISTERS = 9;
+
+    private int[] values() {
+        return new int[]{samplingRateIndex, fullOrPartialData, accelFullScaleIndex,
+                adcGainIndex[0], adcGainIndex[1], adcMuxIndex[0], adcMuxIndex[1],
+                currentMask, biasCurrentIndex};
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AttysConfig)) return false;
+        final AttysConfig c = (AttysConfig) o;
+        return (samplingRateIndex == c.samplingRateIndex) &&
+                (fullOrPartialData == c.fullOrPartialData) &&
+                (accelFullScaleIndex == c.accelFullScaleIndex) &&
+                (adcGainIndex[0] == c.adcGainIndex[0]) &&
+                (adcGainIndex[1] == c.adcGainIndex[1]) &&
+                (adcMuxIndex[0] == c.adcMuxIndex[0]) &&
+                (adcMuxIndex[1] == c.adcMuxIndex[1]) &&
+                (currentMask == c.currentMask) &&
+                (biasCurrentIndex == c.biasCurrentIndex);
+    }
+
+    @Override
+    public int hashCode() {
+        final long p = pack();
+        return (int) (p ^ (p >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "r=" + samplingRateIndex + " f=" + fullOrPartialData + " t=" + accelFullScaleIndex +
+                " a=" + adcGainIndex[0] + "/" + adcMuxIndex[0] +
+                " b=" + adcGainIndex[1] + "/" + adcMuxIndex[1] +
+                " c=" + currentMask + " i=" + biasCurrentIndex;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and gauges of the data acquisition which can be read at
+ * any time without slowing it down. Every metric has exactly one
+ * thread writing it (the acquisition thread or the watchdog) so an
+ * update is a plain read plus an ordered write without any locking
+ * or compare and set.
+ * <p>
+ * snapshot() copies all of them together with the time into a
+ * reusable Snapshot. Rates such as packets per second are computed
+ * from two snapshots.
+ */
+public class AttysMetrics {
+
+    // counters
+    public final static int PACKETS = 0;
+    public final static int SAMPLES = 1;
+    // filled in because of jumps in the timestamps (nTrans - 1)
+    public final static int LOST_SAMPLES = 2;
+    public final static int BASE64_ERRORS = 3;
+    public final static int SHORT_PACKETS = 4;
+    // "OK" from the Attys while no command was waiting for it
+    public final static int UNEXPECTED_OK = 5;
+    public final static int WATCHDOG_TIMEOUTS = 6;
+    public final static int RECONNECT_ATTEMPTS = 7;
+    public final static int RECONNECTS = 8;
+    // time spent reconnecting in total
+    public final static int RECONNECT_NANOS = 9;
+    // samples the ring buffer has overwritten or dropped
+    public final static int RINGBUFFER_OVERFLOWS = 10;
+
+    // gauges
+    public final static int RINGBUFFER_FILL = 11;
+    public final static int RINGBUFFER_CAPACITY = 12;
+    // duration of the most recent reconnect
+    public final static int LAST_RECONNECT_NANOS = 13;
+    // from the start of the most recent connection attempt till
+    // its first sample has been decoded
+    public final static int CONNECT_TO_FIRST_SAMPLE_NANOS = 14;
+
+    public final static int NMETRICS = 15;
+
+    public final static String[] NAMES = {
+            "packets",
+            "samples",
+            "lost_samples",
+            "base64_errors",
+            "short_packets",
+            "unexpected_ok",
+            "watchdog_timeouts",
+            "reconnect_attempts",
+            "reconnects",
+            "reconnect_ns",
+            "ringbuffer_overflows",
+            "ringbuffer_fill",
+            "ringbuffer_capacity",
+            "last_reconnect_ns",
+            "connect_to_first_sample_ns"
+    };
+
+    /**
+     * The metrics at one moment.
+     */
+    public final static class Snapshot {
+        public long nanoTime;
+        public long timeMillis;
+        public final long[] values = new long[NMETRICS];
+
+        public long get(int metric) {
+            return values[metric];
+        }
+
+        // change of the metric per second since the previous snapshot
+        public double getRate(int metric, Snapshot previous) {
+            final long dt = nanoTime - previous.nanoTime;
+            if (dt <= 0) return 0;
+            return (values[metric] - previous.values[metric]) * 1E9 / dt;
+        }
+
+        public void copyFrom(Snapshot s) {
+            nanoTime = s.nanoTime;
+            timeMillis = s.timeMillis;
+            System.arraycopy(s.values, 0, values, 0, NMETRICS);
+        }
+
+        // one line of name=value pairs, with rates if previous isn't null
+        public void format(StringBuilder b, Snapshot previous) {
+            b.append("time=").append(timeMillis);
+            for (int i = 0; i < NMETRICS; i++) {
+                b.append(' ').append(NAMES[i]).append('=').append(values[i]);
+            }
+            if (previous != null) {
+                b.append(" packets_per_s=").append(Math.round(getRate(PACKETS, previous)));
+                b.append(" samples_per_s=").append(Math.round(getRate(SAMPLES, previous)));
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder b = new StringBuilder();
+            format(b, null);
+            return b.toString();
+        }
+    }
+
+    private final AtomicLongArray values = new AtomicLongArray(NMETRICS);
+    private final Runnable gaugeUpdater;
+
+    // gaugeUpdater is run by snapshot() to refresh the gauges which
+    // are sampled instead of being updated all the time. It's the
+    // one thread writing those.
+    public AttysMetrics(Runnable gaugeUpdater) {
+        this.gaugeUpdater = gaugeUpdater;
+    }
+
+    public AttysMetrics() {
+        this(null);
+    }
+
+    // only from the one thread writing the metric
+    public void increment(int metric) {
+        values.lazySet(metric, values.get(metric) + 1);
+    }
+
+    // only from the one thread writing the metric
+    public void add(int metric, long delta) {
+        values.lazySet(metric, values.get(metric) + delta);
+    }
+
+    // only from the one thread writing the metric
+    public void set(int metric, long value) {
+        values.lazySet(metric, value);
+    }
+
+    public long get(int metric) {
+        return values.get(metric);
+    }
+
+    // copies all metrics into s and returns it
+    public synchronized Snapshot snapshot(Snapshot s) {
+        if (gaugeUpdater != null) {
+            gaugeUpdater.run();
+        }
+        s.nanoTime = System.nanoTime();
+        s.timeMillis = System.currentTimeMillis();
+        for (int i = 0; i < NMETRICS; i++) {
+            s.values[i] = values.get(i);
+        }
+        return s;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(new Snapshot());
+    }
+}
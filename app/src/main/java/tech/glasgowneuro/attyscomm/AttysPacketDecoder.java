@@ -0,0 +1,297 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Decodes the base64 packets of the Attys into raw counts for a
+ * RawSampleListener and into samples in SI units for a SampleListener.
+ * The conversion only happens if there is a SampleListener. Keeps track of the sample
+ * numbers and of lost packets via the Attys' timestamp.
+ * It doesn't allocate any memory while decoding and doesn't
+ * depend on the Android runtime so that it can be benchmarked
+ * on any JVM.
+ * Not thread safe: it's used by the acquisition thread only.
+ */
+public class AttysPacketDecoder {
+
+    // same channel layout as in AttysComm
+    public final static int NCHANNELS = 11;
+    private static final int INDEX_Acceleration_X = 0;
+    private static final int INDEX_Magnetic_field_X = 3;
+    private static final int INDEX_Analogue_channel_1 = 6;
+    private static final int INDEX_GPIO0 = 8;
+    private static final int INDEX_GPIO1 = 9;
+    private static final int INDEX_CHARGING = 10;
+
+    // minimum number of decoded bytes for the different packets
+    private static final int MIN_PACKET_SIZE_PARTIAL = 7;
+    private static final int MIN_PACKET_SIZE_FULL = 20;
+    private static final int MIN_PACKET_SIZE_HIGHSPEED = 20;
+
+    // return values of the decode functions
+    public final static int STATUS_OK = 0;
+    // the timestamp has jumped and the missing samples have been filled in
+    public final static int STATUS_SAMPLES_LOST = 1;
+    // the base64 was invalid or the packet too short
+    public final static int STATUS_RECEPTION_ERROR = 2;
+
+    // what went wrong with the last STATUS_RECEPTION_ERROR
+    public final static int RECEPTION_ERROR_BASE64 = 1;
+    public final static int RECEPTION_ERROR_SHORT_PACKET = 2;
+
+    private final float[] sample = new float[NCHANNELS];
+    private final int[] counts = new int[NCHANNELS];
+    // scratch space for the decoded base64 packets
+    private final byte[] raw = new byte[AttysBase64.decodedLength(LineFramer.DEFAULT_MAX_LINE_LENGTH)];
+
+    private SampleListener sampleListener = null;
+    private RawSampleListener rawSampleListener = null;
+
+    private boolean correctTimestampDifference = false;
+    private byte expectedTimestamp = 0;
+    private int lostSamples = 0;
+    private int receptionErrorType = 0;
+    private volatile long sampleNumber = 0;
+    private int samplingRate = 250;
+
+    // conversion from the raw data to SI units
+    private boolean fullData = true;
+    private AttysCalibration calibration = new AttysCalibration(16 * 9.80665F, 4800.0E-6F, 2.42F / 6, 2.42F / 6);
+
+    // null switches the conversion into SI units off
+    public void setSampleListener(SampleListener l) {
+        sampleListener = l;
+    }
+
+    public void setRawSampleListener(RawSampleListener l) {
+        rawSampleListener = l;
+    }
+
+    public void setFullData(boolean f) {
+        fullData = f;
+    }
+
+    public boolean isFullData() {
+        return fullData;
+    }
+
+    public void setSamplingRate(int hz) {
+        samplingRate = hz;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public void setCalibration(AttysCalibration c) {
+        calibration = c;
+    }
+
+    public AttysCalibration getCalibration() {
+        return calibration;
+    }
+
+    public void setAccelFullScaleRange(float range) {
+        final AttysCalibration c = calibration;
+        calibration = new AttysCalibration(range, c.getMagFullScaleRange(),
+                c.getADCFullScaleRange(0), c.getADCFullScaleRange(1));
+    }
+
+    public float getAccelFullScaleRange() {
+        return calibration.getAccelFullScaleRange();
+    }
+
+    public void setMagFullScaleRange(float range) {
+        final AttysCalibration c = calibration;
+        calibration = new AttysCalibration(c.getAccelFullScaleRange(), range,
+                c.getADCFullScaleRange(0), c.getADCFullScaleRange(1));
+    }
+
+    public float getMagFullScaleRange() {
+        return calibration.getMagFullScaleRange();
+    }
+
+    public void setADCFullScaleRange(int channel, float range) {
+        final AttysCalibration c = calibration;
+        calibration = new AttysCalibration(c.getAccelFullScaleRange(), c.getMagFullScaleRange(),
+                channel == 0 ? range : c.getADCFullScaleRange(0),
+                channel == 1 ? range : c.getADCFullScaleRange(1));
+    }
+
+    public float getADCFullScaleRange(int channel) {
+        return calibration.getADCFullScaleRange(channel);
+    }
+
+    // sample number of the next sample
+    public long getSampleNumber() {
+        return sampleNumber;
+    }
+
+    public void setSampleNumber(long sn) {
+        sampleNumber = sn;
+    }
+
+    // time of the most recent sample in secs
+    public double getTimestamp() {
+        final long n = sampleNumber;
+        if (n == 0) return 0;
+        return ((double) (n - 1)) / ((double) samplingRate);
+    }
+
+    // number of samples filled in by the most recent packet
+    public int getLostSamples() {
+        return lostSamples;
+    }
+
+    // RECEPTION_ERROR_BASE64 or RECEPTION_ERROR_SHORT_PACKET after
+    // a packet with STATUS_RECEPTION_ERROR
+    public int getReceptionErrorType() {
+        return receptionErrorType;
+    }
+
+    // the timestamp byte the next packet should carry
+    public byte getExpectedTimestamp() {
+        return expectedTimestamp;
+    }
+
+    // the next packet defines the timestamp. Used after (re)connecting.
+    public void resync() {
+        correctTimestampDifference = false;
+    }
+
+    public void reset() {
+        correctTimestampDifference = false;
+        expectedTimestamp = 0;
+        sampleNumber = 0;
+    }
+
+    private int checkTimestamp(byte ts) {
+        int nTrans = 1;
+        if ((ts - expectedTimestamp) > 0) {
+            if (correctTimestampDifference) {
+                nTrans = 1 + (ts - expectedTimestamp);
+            } else {
+                correctTimestampDifference = true;
+            }
+        }
+        // update timestamp
+        expectedTimestamp = ++ts;
+        return nTrans;
+    }
+
+    private void deliver(int nTrans) {
+        final RawSampleListener rl = rawSampleListener;
+        final SampleListener l = sampleListener;
+        if (l != null) {
+            calibration.toSI(counts, sample);
+        }
+        // in case a sample has been lost
+        for (int j = 0; j < nTrans; j++) {
+            if (rl != null) {
+                rl.gotRawData(sampleNumber, counts);
+            }
+            if (l != null) {
+                l.gotData(sampleNumber, sample);
+            }
+            sampleNumber++;
+        }
+    }
+
+    public int decodeStandardSpeedPacket(byte[] line, int len) {
+        int nTrans = 1;
+        int status = STATUS_OK;
+        final int rawLength = AttysBase64.decode(line, 0, len, raw, 0);
+        if ((rawLength < MIN_PACKET_SIZE_PARTIAL) ||
+                (fullData && (rawLength < MIN_PACKET_SIZE_FULL))) {
+            // the base64 is invalid or the data is too short
+            // this leads to data processed from the previous sample instead
+            expectedTimestamp++;
+            status = STATUS_RECEPTION_ERROR;
+            receptionErrorType = (rawLength < 0) ? RECEPTION_ERROR_BASE64 : RECEPTION_ERROR_SHORT_PACKET;
+        } else {
+            for (int i = 0; i < 2; i++) {
+                counts[INDEX_Analogue_channel_1 + i] = (raw[i * 3] & 0xff)
+                        | ((raw[i * 3 + 1] & 0xff) << 8)
+                        | ((raw[i * 3 + 2] & 0xff) << 16);
+            }
+
+            counts[INDEX_GPIO0] = (raw[6] >> 5) & 1;
+            counts[INDEX_GPIO1] = (raw[6] >> 6) & 1;
+            counts[INDEX_CHARGING] = (raw[6] >> 7) & 1;
+
+            if (fullData) {
+                for (int i = 0; i < 6; i++) {
+                    counts[i] = (raw[8 + i * 2] & 0xff)
+                            | ((raw[8 + i * 2 + 1] & 0xff) << 8);
+                }
+            }
+
+            // check that the timestamp is the expected one
+            if (rawLength > 7) {
+                nTrans = checkTimestamp(raw[7]);
+            } else {
+                // no timestamp in the packet
+                expectedTimestamp = 1;
+            }
+            if (nTrans > 1) {
+                status = STATUS_SAMPLES_LOST;
+            }
+        }
+        lostSamples = nTrans - 1;
+
+        deliver(nTrans);
+        return status;
+    }
+
+    public int decodeHighSpeedPacket(byte[] line, int len) {
+        final int rawLength = AttysBase64.decode(line, 0, len, raw, 0);
+        if (rawLength < MIN_PACKET_SIZE_HIGHSPEED) {
+            // the base64 is invalid or the data is too short
+            expectedTimestamp++;
+            lostSamples = 0;
+            receptionErrorType = (rawLength < 0) ? RECEPTION_ERROR_BASE64 : RECEPTION_ERROR_SHORT_PACKET;
+            return STATUS_RECEPTION_ERROR;
+        }
+
+        counts[INDEX_GPIO0] = (raw[12] >> 5) & 1;
+        counts[INDEX_GPIO1] = (raw[12] >> 6) & 1;
+        counts[INDEX_CHARGING] = (raw[12] >> 7) & 1;
+
+        // check that the timestamp is the expected one
+        final int nTrans = checkTimestamp(raw[13]);
+        lostSamples = (nTrans - 1) * 2;
+
+        // acceleration
+        for (int i = 0; i < 3; i++) {
+            counts[INDEX_Acceleration_X + i] = (raw[14 + i * 2] & 0xff)
+                    | ((raw[14 + i * 2 + 1] & 0xff) << 8);
+            // no magnetometer at high speed
+            counts[INDEX_Magnetic_field_X + i] = AttysCalibration.MAG_ZERO_COUNT;
+        }
+
+        for (int s = 0; s < 2; s++) {
+            for (int i = 0; i < 2; i++) {
+                counts[INDEX_Analogue_channel_1 + i] = (raw[s * 6 + i * 3] & 0xff)
+                        | ((raw[s * 6 + i * 3 + 1] & 0xff) << 8)
+                        | ((raw[s * 6 + i * 3 + 2] & 0xff) << 16);
+            }
+            deliver(nTrans);
+        }
+        return nTrans > 1 ? STATUS_SAMPLES_LOST : STATUS_OK;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Generates the base64 packets an Attys sends with synthetic signals.
+ * Used by the AttysSimulator and to create test and benchmark data.
+ * It's configured with the same register values as the Attys itself.
+ */
+public class AttysPacketGenerator {
+
+    // same tables as in AttysComm but the generator needs to run
+    // without the Android runtime
+    private final static int[] SAMPLINGRATE = {125, 250, 500};
+    private final static int RATE_500HZ = 2;
+    private final static int[] GAIN_FACTOR = {6, 1, 2, 3, 4, 8, 12};
+    private final static float[] ACCEL_FULL_SCALE_IN_G = {2, 4, 8, 16};
+    private final static float ADC_REF = 2.42F;
+    private final static float MAG_FULL_SCALE = 4800.0E-6F;
+    private final static int MUX_SHORT = 1;
+
+    // size of the binary packets before base64 encoding
+    public final static int PACKET_SIZE_FULL = 20;
+    public final static int PACKET_SIZE_PARTIAL = 8;
+    public final static int PACKET_SIZE_HIGHSPEED = 20;
+
+    // maximum length of a base64 line without CR/LF
+    public final static int MAX_LINE_LENGTH = 28;
+
+    private int rateIndex = 1;
+    private boolean fullData = true;
+    private int accelFullScaleIndex = 3;
+    private final int[] gainMux = {0, 0};
+
+    private final byte[] raw = new byte[PACKET_SIZE_FULL];
+    private long sampleCounter = 0;
+    private byte timestamp = 0;
+
+    // "r=" register
+    public void setSamplingRateIndex(int idx) {
+        if ((idx >= 0) && (idx < SAMPLINGRATE.length)) rateIndex = idx;
+    }
+
+    public int getSamplingRateIndex() {
+        return rateIndex;
+    }
+
+    public int getSamplingRateInHz() {
+        return SAMPLINGRATE[rateIndex];
+    }
+
+    public boolean isHighSpeed() {
+        return rateIndex == RATE_500HZ;
+    }
+
+    // packets per second at the current sampling rate
+    public int getPacketRate() {
+        return isHighSpeed() ? SAMPLINGRATE[rateIndex] / 2 : SAMPLINGRATE[rateIndex];
+    }
+
+    // "f=" register
+    public void setFullData(boolean f) {
+        fullData = f;
+    }
+
+    // "t=" register
+    public void setAccelFullScaleIndex(int idx) {
+        if ((idx >= 0) && (idx < ACCEL_FULL_SCALE_IN_G.length)) accelFullScaleIndex = idx;
+    }
+
+    // "a=" and "b=" registers
+    public void setGainMux(int channel, int v) {
+        gainMux[channel] = v;
+    }
+
+    public long getSampleCounter() {
+        return sampleCounter;
+    }
+
+    // writes the next base64 packet without CR/LF into line
+    // and returns its length
+    public int nextLine(byte[] line, int offset) {
+        final int len = nextPacket();
+        timestamp++;
+        return AttysBase64.encode(raw, 0, len, line, offset);
+    }
+
+    // skips a packet as if it had been lost over the air
+    public void skipPacket() {
+        nextPacket();
+        timestamp++;
+    }
+
+    private int nextPacket() {
+        if (isHighSpeed()) {
+            return buildHighSpeedPacket();
+        } else {
+            return buildStandardSpeedPacket();
+        }
+    }
+
+    private int adc(int channel, double t) {
+        final int gain = GAIN_FACTOR[(gainMux[channel] >> 4) % GAIN_FACTOR.length];
+        final int mux = gainMux[channel] & 0x0f;
+        double v = 0;
+        if (mux != MUX_SHORT) {
+            if (channel == 0) {
+                // 1mV, 1.2Hz "heartbeat" plus some 50Hz hum
+                v = 1E-3 * Math.sin(2 * Math.PI * 1.2 * t)
+                        + 1E-4 * Math.sin(2 * Math.PI * 50 * t);
+            } else {
+                v = 5E-4 * Math.sin(2 * Math.PI * 10 * t);
+            }
+        }
+        final double norm = 0x800000;
+        long c = Math.round(norm + v / (ADC_REF / gain) * norm);
+        if (c < 0) c = 0;
+        if (c > 0xffffff) c = 0xffffff;
+        return (int) c;
+    }
+
+    private void put24(int offset, int v) {
+        raw[offset] = (byte) v;
+        raw[offset + 1] = (byte) (v >> 8);
+        raw[offset + 2] = (byte) (v >> 16);
+    }
+
+    private void put16(int offset, int v) {
+        raw[offset] = (byte) v;
+        raw[offset + 1] = (byte) (v >> 8);
+    }
+
+    private void putAccMag(int offset, boolean withMag) {
+        final int norm = 0x8000;
+        final int oneG = Math.round(norm / ACCEL_FULL_SCALE_IN_G[accelFullScaleIndex]);
+        put16(offset, norm);
+        put16(offset + 2, norm);
+        put16(offset + 4, norm + oneG);
+        if (withMag) {
+            final int earth = Math.round(50E-6F / MAG_FULL_SCALE * norm);
+            put16(offset + 6, norm + earth);
+            put16(offset + 8, norm);
+            put16(offset + 10, norm - earth);
+        }
+    }
+
+    private int buildStandardSpeedPacket() {
+        final double t = (double) sampleCounter / SAMPLINGRATE[rateIndex];
+        sampleCounter++;
+        put24(0, adc(0, t));
+        put24(3, adc(1, t));
+        raw[6] = 0;
+        raw[7] = timestamp;
+        if (!fullData) {
+            return PACKET_SIZE_PARTIAL;
+        }
+        putAccMag(8, true);
+        return PACKET_SIZE_FULL;
+    }
+
+    private int buildHighSpeedPacket() {
+        for (int s = 0; s < 2; s++) {
+            final double t = (double) sampleCounter / SAMPLINGRATE[rateIndex];
+            sampleCounter++;
+            put24(s * 6, adc(0, t));
+            put24(s * 6 + 3, adc(1, t));
+        }
+        raw[12] = 0;
+        raw[13] = timestamp;
+        putAccMag(14, false);
+        return PACKET_SIZE_HIGHSPEED;
+    }
+}
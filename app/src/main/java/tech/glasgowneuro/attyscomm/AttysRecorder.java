@@ -0,0 +1,651 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records samples into a compact binary file. It's a BlockListener
+ * and is normally fed by its own dispatch thread so that neither the
+ * acquisition nor the disk slow each other down.
+ * <p>
+ * The samples are written into one of two direct ByteBuffers. Once
+ * it's full it's handed over to the writer thread which writes it
+ * with a FileChannel while the other one is being filled.
+ * <p>
+ * The sample numbers of the blocks have to increase. Missing samples
+ * are recorded as gaps, samples which overlap with ones which have
+ * already been recorded are skipped. A sparse index from sample
+ * number to file offset is appended when the recording is stopped
+ * so that AttysRecordingReader can go to any sample straight away.
+ * A SummaryPyramid of the channels is saved next to the recording.
+ * <p>
+ * The file is big endian (as DataOutputStream) and starts with a
+ * header:
+ * <pre>
+ * byte[8]  "ATTYSREC"
+ * int      format version
+ * int      length of the header in bytes
+ * int      sampling rate in Hz
+ * long     start of the recording in ms since 1970
+ * long     number of samples recorded (-1 while recording)
+ * long     offset of the index (0 while recording)
+ * int      number of ADC channels, for each: int gain factor
+ * int      number of channels, for each:
+ *          int index in the sample array (AttysComm.INDEX_...),
+ *          float full scale range,
+ *          short + UTF-8 label, short + UTF-8 unit
+ * int      COMPRESSION_NONE or COMPRESSION_LOSSLESS (version 4)
+ * </pre>
+ * followed by the records, blocks of samples:
+ * <pre>
+ * int      RECORD_SAMPLES
+ * long     sample number of the first sample
+ * int      number of samples n
+ * float[n * number of channels] interleaved samples
+ * </pre>
+ * or with COMPRESSION_LOSSLESS blocks which can be decoded on their own:
+ * <pre>
+ * int      RECORD_COMPRESSED
+ * long     sample number of the first sample
+ * int      number of samples n
+ * int      number of bytes m
+ * byte[m]  the samples encoded by the LosslessCodec
+ * </pre>
+ * and markers:
+ * <pre>
+ * int      RECORD_GAP, RECORD_RECONNECT or RECORD_CONFIG
+ * long     RECORD_GAP: first missing sample, otherwise: sample number
+ * long     RECORD_GAP: sample after the gap, RECORD_RECONNECT: time in ms since 1970,
+ *          RECORD_CONFIG: AttysConfig.pack() valid from the sample number on
+ * </pre>
+ * The last record is the index:
+ * <pre>
+ * int      RECORD_INDEX
+ * long     first sample number, long sample number after the last one
+ * int      interval, long first slot, int number of slots,
+ *          long[number of slots] offsets (see RecordingIndex)
+ * int      number of markers, for each: int type, long, long as above
+ * </pre>
+ */
+public class AttysRecorder implements BlockListener {
+
+    public final static byte[] MAGIC = {'A', 'T', 'T', 'Y', 'S', 'R', 'E', 'C'};
+    public final static int VERSION = 4;
+
+    // record types
+    public final static int RECORD_SAMPLES = 1;
+    // samples missing, for example dropped because the disk was too slow
+    public final static int RECORD_GAP = 2;
+    // the Attys has reconnected
+    public final static int RECORD_RECONNECT = 3;
+    public final static int RECORD_INDEX = 4;
+    // the gains or ranges have changed (version 3)
+    public final static int RECORD_CONFIG = 5;
+    // samples compressed by the LosslessCodec (version 4)
+    public final static int RECORD_COMPRESSED = 6;
+
+    public final static int COMPRESSION_NONE = 0;
+    // the writer thread compresses the blocks with the LosslessCodec
+    public final static int COMPRESSION_LOSSLESS = 1;
+
+    // type + sample number + number of samples
+    public final static int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    // type + sample number + number of samples + number of bytes
+    public final static int COMPRESSED_RECORD_HEADER_SIZE = 4 + 8 + 4 + 4;
+    // type + two longs
+    public final static int MARKER_SIZE = 4 + 8 + 8;
+    // where the number of samples is in the header
+    public final static int SAMPLE_COUNT_POSITION = 8 + 4 + 4 + 4 + 8;
+    // where the offset of the index is in the header
+    public final static int INDEX_OFFSET_POSITION = SAMPLE_COUNT_POSITION + 8;
+
+    public final static int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final static int MAX_HEADER_SIZE = 4096;
+
+    private final File file;
+    private final int samplingRate;
+    private final int[] channelMap;
+    private final int frameSize;
+    private final String[] labels;
+    private final String[] units;
+    private final float[] fullScaleRanges;
+    private int[] adcGains = new int[0];
+    private int compression = COMPRESSION_NONE;
+    // the ranges the writer thread compresses with
+    private float[] codecRanges;
+    private final int bufferSize;
+    private final RecordingIndex index;
+    private final SummaryPyramid pyramid;
+
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel fileChannel = null;
+    private Thread writerThread = null;
+
+    // buffers going to the writer and coming back from it
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(2);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(2);
+    // tells the writer thread to finish
+    private final static ByteBuffer END = ByteBuffer.allocate(0);
+
+    // producer side
+    private ByteBuffer active = null;
+    // file offset of the start of the active buffer
+    private long activeOffset = 0;
+    private long firstSample = -1;
+    private long nextSample = -1;
+    // type, first and second value of every marker
+    private long[] markers = new long[3 * 16];
+    private int nMarkers = 0;
+    private volatile boolean recording = false;
+    private volatile long samplesRecorded = 0;
+    private volatile long skippedSamples = 0;
+    private volatile long missingSamples = 0;
+    // set by markReconnect(), -1 if there's none pending
+    private final AtomicLong pendingReconnect = new AtomicLong(-1);
+    // from markConfigChange(), in the order of their sample numbers
+    private final ConcurrentLinkedQueue<ConfigChange> pendingConfigs = new ConcurrentLinkedQueue<ConfigChange>();
+    // the changes in the buffers, in the order of their markers
+    private final ConcurrentLinkedQueue<ConfigChange> codecConfigs = new ConcurrentLinkedQueue<ConfigChange>();
+
+    private static final class ConfigChange {
+        final long sampleNumber;
+        final long packed;
+        // of the recorded channels, null if they haven't changed
+        final float[] ranges;
+
+        ConfigChange(long sampleNumber, long packed, float[] ranges) {
+            this.sampleNumber = sampleNumber;
+            this.packed = packed;
+            this.ranges = ranges;
+        }
+    }
+
+    // writer side
+    private volatile long bytesWritten = 0;
+    private volatile IOException error = null;
+    private LosslessCodec codec = null;
+    private float[] block = null;
+    private ByteBuffer compressed = null;
+
+    // records the channels in channelMap (indices of the sample array)
+    public AttysRecorder(File file, int samplingRate, int[] channelMap, int bufferSize) {
+        this.file = file;
+        this.samplingRate = samplingRate;
+        this.channelMap = channelMap.clone();
+        frameSize = channelMap.length * 4;
+        if (bufferSize < RECORD_HEADER_SIZE + frameSize) {
+            throw new IllegalArgumentException("Buffer too small for one sample.");
+        }
+        this.bufferSize = bufferSize;
+        index = new RecordingIndex();
+        pyramid = new SummaryPyramid(channelMap);
+        labels = new String[channelMap.length];
+        units = new String[channelMap.length];
+        fullScaleRanges = new float[channelMap.length];
+        codecRanges = fullScaleRanges.clone();
+        for (int i = 0; i < channelMap.length; i++) {
+            labels[i] = "";
+            units[i] = "";
+        }
+    }
+
+    public AttysRecorder(File file, int samplingRate, int[] channelMap) {
+        this(file, samplingRate, channelMap, DEFAULT_BUFFER_SIZE);
+    }
+
+    // the descriptions of all channels of the sample array, for example
+    // AttysComm.CHANNEL_DESCRIPTION. Call before start().
+    public void setLabels(String[] allLabels) {
+        for (int i = 0; i < channelMap.length; i++) {
+            labels[i] = allLabels[channelMap[i]];
+        }
+    }
+
+    // the units of all channels of the sample array. Call before start().
+    public void setUnits(String[] allUnits) {
+        for (int i = 0; i < channelMap.length; i++) {
+            units[i] = allUnits[channelMap[i]];
+        }
+    }
+
+    // the full scale ranges of all channels of the sample array.
+    // Call before start(), they go into the header. Later changes go
+    // to markConfigChange().
+    public void setFullScaleRanges(float[] allRanges) {
+        for (int i = 0; i < channelMap.length; i++) {
+            fullScaleRanges[i] = allRanges[channelMap[i]];
+        }
+        codecRanges = fullScaleRanges.clone();
+    }
+
+    // COMPRESSION_NONE or COMPRESSION_LOSSLESS. Call before start().
+    public void setCompression(int c) {
+        compression = c;
+    }
+
+    public int getCompression() {
+        return compression;
+    }
+
+    // gain factors of the ADC channels. Call before start().
+    public void setAdcGains(int[] gains) {
+        adcGains = gains.clone();
+    }
+
+    // min/max/mean of the recorded channels for zooming out. It's
+    // saved next to the recording, see SummaryPyramid.getFile().
+    public SummaryPyramid getSummaryPyramid() {
+        return pyramid;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public int[] getChannelMap() {
+        return channelMap.clone();
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public long getSamplesRecorded() {
+        return samplesRecorded;
+    }
+
+    // samples which haven't been recorded because of gaps in the sample numbers
+    public long getMissingSamples() {
+        return missingSamples;
+    }
+
+    // samples which have been skipped because their sample numbers
+    // had already been recorded
+    public long getSkippedSamples() {
+        return skippedSamples;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // the error of the writer thread or null
+    public IOException getError() {
+        return error;
+    }
+
+    // creates the file, writes the header and starts the writer thread
+    public synchronized void start() throws IOException {
+        if (writerThread != null) return;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            fileChannel = randomAccessFile.getChannel();
+            final ByteBuffer header = createHeader();
+            while (header.hasRemaining()) {
+                fileChannel.write(header);
+            }
+            bytesWritten = fileChannel.position();
+            activeOffset = bytesWritten;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        active = ByteBuffer.allocateDirect(bufferSize);
+        free.add(ByteBuffer.allocateDirect(bufferSize));
+        if (compression == COMPRESSION_LOSSLESS) {
+            // the largest block which fits into a buffer
+            final int maxSamples = (bufferSize - RECORD_HEADER_SIZE) / frameSize;
+            codec = new LosslessCodec(channelMap, maxSamples);
+            block = new float[maxSamples * channelMap.length];
+            compressed = ByteBuffer.allocateDirect(Math.max(bufferSize, COMPRESSED_RECORD_HEADER_SIZE +
+                    LosslessCodec.getMaxEncodedSize(channelMap.length, maxSamples)));
+        }
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AttysRecorder");
+        writerThread.start();
+        recording = true;
+    }
+
+    private ByteBuffer createHeader() {
+        final ByteBuffer b = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        b.put(MAGIC);
+        b.putInt(VERSION);
+        // header length, filled in below
+        b.putInt(0);
+        b.putInt(samplingRate);
+        b.putLong(System.currentTimeMillis());
+        b.putLong(-1);
+        b.putLong(0);
+        b.putInt(adcGains.length);
+        for (int g : adcGains) {
+            b.putInt(g);
+        }
+        b.putInt(channelMap.length);
+        for (int i = 0; i < channelMap.length; i++) {
+            b.putInt(channelMap[i]);
+            b.putFloat(fullScaleRanges[i]);
+            putString(b, labels[i]);
+            putString(b, units[i]);
+        }
+        b.putInt(compression);
+        b.putInt(MAGIC.length + 4, b.position());
+        b.flip();
+        return b;
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    /////////////////////////////////////////////////
+    // producer
+
+    // writes the samples into the active buffer and hands it over to
+    // the writer thread when it's full. Blocks if the writer hasn't
+    // finished with the other buffer yet.
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        if (!recording) return;
+        int i = 0;
+        if ((nextSample >= 0) && (firstSampleNumber < nextSample)) {
+            i = (int) Math.min(nSamples, nextSample - firstSampleNumber);
+            skippedSamples += i;
+        }
+        if (i == nSamples) return;
+        final long reconnect = pendingReconnect.getAndSet(-1);
+        if (reconnect >= 0) {
+            if (!putMarker(RECORD_RECONNECT, reconnect, System.currentTimeMillis())) return;
+        }
+        if (!putConfigMarkers(firstSampleNumber + i)) return;
+        if ((nextSample >= 0) && (firstSampleNumber + i > nextSample)) {
+            if (!putMarker(RECORD_GAP, nextSample, firstSampleNumber + i)) return;
+            missingSamples += firstSampleNumber + i - nextSample;
+        }
+        if (firstSample < 0) {
+            firstSample = firstSampleNumber + i;
+        }
+        for (int k = i; k < nSamples; k++) {
+            pyramid.put(firstSampleNumber + k, interleaved, k * stride);
+        }
+        while (i < nSamples) {
+            if (!putConfigMarkers(firstSampleNumber + i)) return;
+            final int space = (active.remaining() - RECORD_HEADER_SIZE) / frameSize;
+            if (space <= 0) {
+                if (!handOver()) return;
+                continue;
+            }
+            int n = Math.min(space, nSamples - i);
+            final ConfigChange change = pendingConfigs.peek();
+            if ((change != null) && (change.sampleNumber < firstSampleNumber + i + n)) {
+                // the samples from the change on are compressed with the new ranges
+                n = (int) (change.sampleNumber - firstSampleNumber - i);
+            }
+            final ByteBuffer b = active;
+            if (codec == null) {
+                // the writer thread indexes the compressed blocks
+                index.add(firstSampleNumber + i, n, activeOffset + b.position());
+            }
+            b.putInt(RECORD_SAMPLES);
+            b.putLong(firstSampleNumber + i);
+            b.putInt(n);
+            for (int k = 0; k < n; k++) {
+                final int p = (i + k) * stride;
+                for (int c : channelMap) {
+                    b.putFloat(interleaved[p + c]);
+                }
+            }
+            i += n;
+            samplesRecorded += n;
+            nextSample = firstSampleNumber + i;
+        }
+    }
+
+    // tells the recorder that the Attys has reconnected and continues
+    // at sampleNumber. Can be called from any thread.
+    public void markReconnect(long sampleNumber) {
+        pendingReconnect.set(sampleNumber);
+    }
+
+    // tells the recorder that the registers of the Attys have changed
+    // from sampleNumber on. Can be called from any thread.
+    public void markConfigChange(long sampleNumber, AttysConfig config) {
+        pendingConfigs.add(new ConfigChange(sampleNumber, config.pack(), null));
+    }
+
+    // as above with the new full scale ranges of all channels of the
+    // sample array which the samples from sampleNumber on are
+    // compressed with
+    public void markConfigChange(long sampleNumber, AttysConfig config, float[] allRanges) {
+        final float[] r = new float[channelMap.length];
+        for (int i = 0; i < channelMap.length; i++) {
+            r[i] = allRanges[channelMap[i]];
+        }
+        pendingConfigs.add(new ConfigChange(sampleNumber, config.pack(), r));
+    }
+
+    // the markers of the changes up to sample number n
+    private boolean putConfigMarkers(long n) {
+        ConfigChange c;
+        while (((c = pendingConfigs.peek()) != null) && (c.sampleNumber <= n)) {
+            if (!putMarker(RECORD_CONFIG, c.sampleNumber, c.packed)) return false;
+            pendingConfigs.poll();
+            if (codec != null) {
+                codecConfigs.add(c);
+            }
+        }
+        return true;
+    }
+
+    private boolean putMarker(int type, long a, long b) {
+        if (active.remaining() < MARKER_SIZE) {
+            if (!handOver()) return false;
+        }
+        active.putInt(type);
+        active.putLong(a);
+        active.putLong(b);
+        if (3 * nMarkers == markers.length) {
+            final long[] m = new long[markers.length * 2];
+            System.arraycopy(markers, 0, m, 0, markers.length);
+            markers = m;
+        }
+        markers[3 * nMarkers] = type;
+        markers[3 * nMarkers + 1] = a;
+        markers[3 * nMarkers + 2] = b;
+        nMarkers++;
+        return true;
+    }
+
+    // swaps the buffers
+    private boolean handOver() {
+        activeOffset += active.position();
+        active.flip();
+        try {
+            filled.put(active);
+            active = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            recording = false;
+            return false;
+        }
+        return true;
+    }
+
+    // writes out what's left and closes the file. Call it once the
+    // producer has stopped calling gotDataBlock().
+    public synchronized void stop() throws IOException {
+        if (writerThread == null) return;
+        recording = false;
+        try {
+            if (active.position() > 0) {
+                active.flip();
+                filled.put(active);
+            }
+            filled.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        try {
+            if (error == null) {
+                final long indexOffset = bytesWritten;
+                final ByteBuffer footer = createIndex();
+                while (footer.hasRemaining()) {
+                    fileChannel.write(footer, indexOffset + footer.position());
+                }
+                bytesWritten = indexOffset + footer.limit();
+                final ByteBuffer b = ByteBuffer.allocate(16);
+                b.putLong(samplesRecorded);
+                b.putLong(indexOffset);
+                b.flip();
+                fileChannel.write(b, SAMPLE_COUNT_POSITION);
+                fileChannel.force(false);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+        pyramid.write(SummaryPyramid.getFile(file));
+    }
+
+    private ByteBuffer createIndex() {
+        final ByteBuffer b = ByteBuffer.allocate(4 + 8 + 8 + index.getSerializedSize()
+                + 4 + nMarkers * MARKER_SIZE);
+        b.putInt(RECORD_INDEX);
+        b.putLong(firstSample);
+        b.putLong(nextSample);
+        index.toBuffer(b);
+        b.putInt(nMarkers);
+        for (int i = 0; i < nMarkers; i++) {
+            b.putInt((int) markers[3 * i]);
+            b.putLong(markers[3 * i + 1]);
+            b.putLong(markers[3 * i + 2]);
+        }
+        b.flip();
+        return b;
+    }
+
+    /////////////////////////////////////////////////
+    // writer thread
+
+    private void writeLoop() {
+        while (true) {
+            final ByteBuffer b;
+            try {
+                b = filled.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (b == END) return;
+            if (error == null) {
+                try {
+                    if (codec != null) {
+                        compress(b);
+                    } else {
+                        write(b);
+                    }
+                } catch (IOException e) {
+                    // the rest is discarded
+                    error = e;
+                }
+            }
+            b.clear();
+            free.add(b);
+        }
+    }
+
+    private void write(ByteBuffer b) throws IOException {
+        final int n = b.remaining();
+        while (b.hasRemaining()) {
+            fileChannel.write(b);
+        }
+        bytesWritten += n;
+    }
+
+    // replaces the sample records of the buffer with compressed ones
+    // and writes them together with the markers
+    private void compress(ByteBuffer b) throws IOException {
+        final ByteBuffer out = compressed;
+        final int nChannels = channelMap.length;
+        while (b.remaining() >= 4) {
+            final int type = b.getInt();
+            if (type == RECORD_SAMPLES) {
+                final long first = b.getLong();
+                final int n = b.getInt();
+                for (int k = 0; k < n * nChannels; k++) {
+                    block[k] = b.getFloat();
+                }
+                final int len = codec.encode(block, n, codecRanges);
+                if (out.remaining() < COMPRESSED_RECORD_HEADER_SIZE + len) {
+                    flush(out);
+                }
+                index.add(first, n, bytesWritten + out.position());
+                out.putInt(RECORD_COMPRESSED);
+                out.putLong(first);
+                out.putInt(n);
+                out.putInt(len);
+                out.put(codec.getEncoded(), 0, len);
+            } else {
+                if (type == RECORD_CONFIG) {
+                    // the blocks from here on have the new ranges
+                    final ConfigChange c = codecConfigs.poll();
+                    if ((c != null) && (c.ranges != null)) {
+                        codecRanges = c.ranges;
+                    }
+                }
+                if (out.remaining() < MARKER_SIZE) {
+                    flush(out);
+                }
+                out.putInt(type);
+                out.putLong(b.getLong());
+                out.putLong(b.getLong());
+            }
+        }
+        flush(out);
+    }
+
+    private void flush(ByteBuffer out) throws IOException {
+        out.flip();
+        write(out);
+        out.clear();
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads recordings of the AttysRecorder with random access by sample
+ * number. The file is memory mapped in windows so that files larger
+ * than the memory can be read. The index at the end of the file takes
+ * read() straight to the right block of samples. Files which haven't
+ * been closed properly don't have an index; it's then rebuilt by
+ * going once through the file. Compressed blocks are decoded as a
+ * whole and the most recent one is kept for the next read().
+ * Not thread safe.
+ */
+public class AttysRecordingReader {
+
+    public final static int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long fileLength;
+    private final int windowSize;
+
+    // the currently mapped part of the file
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+
+    // header
+    private int version;
+    private int headerLength;
+    private int samplingRate;
+    private long startTime;
+    private int[] adcGains;
+    private int[] channelMap;
+    private float[] fullScaleRanges;
+    private String[] labels;
+    private String[] units;
+    private int frameSize;
+    private int compression = AttysRecorder.COMPRESSION_NONE;
+
+    // the most recently decoded compressed block
+    private LosslessCodec codec = null;
+    private byte[] encoded = new byte[0];
+    private float[] decoded = new float[0];
+    private long decodedOffset = -1;
+
+    private RecordingIndex index;
+    private long firstSample = -1;
+    private long endSample = -1;
+    private long samplesRecorded = 0;
+    // end of the sample records
+    private long recordsEnd;
+    private long[] markers = new long[0];
+    private SummaryPyramid pyramid = null;
+
+    public AttysRecordingReader(File file, int windowSize) throws IOException {
+        this.file = file;
+        this.windowSize = windowSize;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            fileChannel = randomAccessFile.getChannel();
+            fileLength = fileChannel.size();
+            readHeader();
+            if (!readIndex()) {
+                rebuildIndex();
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            randomAccessFile.close();
+            throw new IOException("Not a valid recording: " + file, e);
+        }
+    }
+
+    public AttysRecordingReader(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    // the min/max/mean summary saved next to the recording or
+    // null if there's none, for example if the recording was not
+    // stopped properly
+    public SummaryPyramid getSummaryPyramid() throws IOException {
+        if (pyramid == null) {
+            final File f = SummaryPyramid.getFile(file);
+            if (f.exists()) {
+                pyramid = SummaryPyramid.read(f);
+            }
+        }
+        return pyramid;
+    }
+
+    public void close() {
+        window = null;
+        try {
+            randomAccessFile.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getSamplingRateInHz() {
+        return samplingRate;
+    }
+
+    // ms since 1970
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int[] getAdcGains() {
+        return adcGains.clone();
+    }
+
+    public int getNumberOfChannels() {
+        return channelMap.length;
+    }
+
+    // index in the sample array (AttysComm.INDEX_...) of each channel
+    public int[] getChannelMap() {
+        return channelMap.clone();
+    }
+
+    // the channel with the index in the sample array or -1
+    public int findChannel(int sampleArrayIndex) {
+        for (int i = 0; i < channelMap.length; i++) {
+            if (channelMap[i] == sampleArrayIndex) return i;
+        }
+        return -1;
+    }
+
+    public String getLabel(int channel) {
+        return labels[channel];
+    }
+
+    public String getUnit(int channel) {
+        return units[channel];
+    }
+
+    public float getFullScaleRange(int channel) {
+        return fullScaleRanges[channel];
+    }
+
+    // AttysRecorder.COMPRESSION_NONE or COMPRESSION_LOSSLESS
+    public int getCompression() {
+        return compression;
+    }
+
+    // sample number of the first sample
+    public long getFirstSampleNumber() {
+        return firstSample;
+    }
+
+    // sample number after the last sample
+    public long getEndSampleNumber() {
+        return endSample;
+    }
+
+    // number of samples in the file without the gaps
+    public long getSamplesRecorded() {
+        return samplesRecorded;
+    }
+
+    public int getNumberOfMarkers() {
+        return markers.length / 3;
+    }
+
+    // AttysRecorder.RECORD_GAP, RECORD_RECONNECT or RECORD_CONFIG
+    public int getMarkerType(int i) {
+        return (int) markers[3 * i];
+    }
+
+    // first missing sample of a gap or sample number of a reconnect
+    // or a config change
+    public long getMarkerSampleNumber(int i) {
+        return markers[3 * i + 1];
+    }
+
+    // sample after a gap, the time of a reconnect in ms since 1970
+    // or the packed AttysConfig of a config change
+    public long getMarkerValue(int i) {
+        return markers[3 * i + 2];
+    }
+
+    // the registers from the config change marker i on
+    public AttysConfig getMarkerConfig(int i) {
+        return AttysConfig.unpack(getMarkerValue(i));
+    }
+
+    // reads nSamples starting at startSample of the channels (0 ..
+    // getNumberOfChannels() - 1) into dst[i] for channels[i].
+    // Samples which aren't in the recording are set to NaN.
+    // Returns the number of samples which were in the recording.
+    public int read(long startSample, int nSamples, int[] channels, float[][] dst) throws IOException {
+        for (int i = 0; i < channels.length; i++) {
+            fill(dst[i], 0, nSamples);
+        }
+        final long end = startSample + nSamples;
+        long offset = index.find(startSample);
+        if (offset < 0) return 0;
+        int found = 0;
+        while (offset + 4 <= recordsEnd) {
+            map(offset, 4);
+            final int type = window.getInt((int) (offset - windowStart));
+            if (type == AttysRecorder.RECORD_COMPRESSED) {
+                map(offset, AttysRecorder.COMPRESSED_RECORD_HEADER_SIZE);
+                final int p = (int) (offset - windowStart);
+                final long first = window.getLong(p + 4);
+                final int n = window.getInt(p + 12);
+                final int len = window.getInt(p + 16);
+                if (first >= end) break;
+                if (first + n > startSample) {
+                    decodeBlock(offset, n, len);
+                    final long from = Math.max(first, startSample);
+                    final long to = Math.min(first + n, end);
+                    final int nChannels = channelMap.length;
+                    for (int i = 0; i < channels.length; i++) {
+                        final float[] d = dst[i];
+                        for (long s = from; s < to; s++) {
+                            d[(int) (s - startSample)] = decoded[(int) (s - first) * nChannels + channels[i]];
+                        }
+                    }
+                    found += (int) (to - from);
+                }
+                offset += AttysRecorder.COMPRESSED_RECORD_HEADER_SIZE + (long) len;
+                continue;
+            }
+            if (type != AttysRecorder.RECORD_SAMPLES) {
+                if (type == AttysRecorder.RECORD_INDEX) break;
+                offset += AttysRecorder.MARKER_SIZE;
+                continue;
+            }
+            map(offset, AttysRecorder.RECORD_HEADER_SIZE);
+            final int p = (int) (offset - windowStart);
+            final long first = window.getLong(p + 4);
+            final int n = window.getInt(p + 12);
+            if (first >= end) break;
+            final long recordSize = AttysRecorder.RECORD_HEADER_SIZE + (long) n * frameSize;
+            if (first + n > startSample) {
+                // the part of the block we need
+                final long from = Math.max(first, startSample);
+                final long to = Math.min(first + n, end);
+                final long dataOffset = offset + AttysRecorder.RECORD_HEADER_SIZE
+                        + (from - first) * frameSize;
+                map(dataOffset, (to - from) * frameSize);
+                final int q = (int) (dataOffset - windowStart);
+                for (int i = 0; i < channels.length; i++) {
+                    final float[] d = dst[i];
+                    int pos = q + channels[i] * 4;
+                    for (long s = from; s < to; s++) {
+                        d[(int) (s - startSample)] = window.getFloat(pos);
+                        pos += frameSize;
+                    }
+                }
+                found += (int) (to - from);
+            }
+            offset += recordSize;
+        }
+        return found;
+    }
+
+    // decodes the compressed block at offset unless it's already decoded
+    private void decodeBlock(long offset, int n, int len) throws IOException {
+        if (offset == decodedOffset) return;
+        if ((codec == null) || (codec.getMaxSamples() < n)) {
+            codec = new LosslessCodec(channelMap, n);
+            decoded = new float[n * channelMap.length];
+        }
+        if (encoded.length < len) {
+            encoded = new byte[len];
+        }
+        final long dataOffset = offset + AttysRecorder.COMPRESSED_RECORD_HEADER_SIZE;
+        map(dataOffset, len);
+        final ByteBuffer b = window.duplicate();
+        b.position((int) (dataOffset - windowStart));
+        b.get(encoded, 0, len);
+        codec.decode(encoded, 0, len, n, decoded);
+        decodedOffset = offset;
+    }
+
+    private static void fill(float[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            a[i] = Float.NaN;
+        }
+    }
+
+    // makes sure that the bytes from offset to offset + length are mapped
+    private void map(long offset, long length) throws IOException {
+        if ((offset >= windowStart) && (offset + length <= windowEnd) && (window != null)) {
+            return;
+        }
+        if (offset + length > fileLength) {
+            throw new IOException("Recording truncated.");
+        }
+        final long size = Math.min(Math.max(windowSize, length), fileLength - offset);
+        window = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        windowStart = offset;
+        windowEnd = offset + size;
+    }
+
+    private void readHeader() throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate((int) Math.min(fileLength, 4096));
+        fileChannel.read(b, 0);
+        b.flip();
+        final byte[] magic = new byte[AttysRecorder.MAGIC.length];
+        b.get(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != AttysRecorder.MAGIC[i]) {
+                throw new IOException("Not an Attys recording.");
+            }
+        }
+        version = b.getInt();
+        if ((version < 1) || (version > AttysRecorder.VERSION)) {
+            throw new IOException("Unsupported version " + version);
+        }
+        headerLength = b.getInt();
+        samplingRate = b.getInt();
+        startTime = b.getLong();
+        b.getLong();
+        long indexOffset = 0;
+        if (version >= 2) {
+            indexOffset = b.getLong();
+        }
+        adcGains = new int[b.getInt()];
+        for (int i = 0; i < adcGains.length; i++) {
+            adcGains[i] = b.getInt();
+        }
+        final int nChannels = b.getInt();
+        channelMap = new int[nChannels];
+        fullScaleRanges = new float[nChannels];
+        labels = new String[nChannels];
+        units = new String[nChannels];
+        for (int i = 0; i < nChannels; i++) {
+            channelMap[i] = b.getInt();
+            fullScaleRanges[i] = b.getFloat();
+            labels[i] = getString(b);
+            units[i] = getString(b);
+        }
+        if ((version >= 4) && (b.position() < headerLength)) {
+            compression = b.getInt();
+        }
+        frameSize = nChannels * 4;
+        recordsEnd = (indexOffset > 0) ? indexOffset : fileLength;
+    }
+
+    private static String getString(ByteBuffer b) {
+        final byte[] bytes = new byte[b.getShort() & 0xffff];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // reads the index at the end of a properly closed file
+    private boolean readIndex() throws IOException {
+        if (recordsEnd == fileLength) return false;
+        final ByteBuffer b = ByteBuffer.allocate((int) (fileLength - recordsEnd));
+        while (b.hasRemaining()) {
+            if (fileChannel.read(b, recordsEnd + b.position()) < 0) break;
+        }
+        b.flip();
+        if (b.getInt() != AttysRecorder.RECORD_INDEX) return false;
+        firstSample = b.getLong();
+        endSample = b.getLong();
+        index = RecordingIndex.fromBuffer(b);
+        markers = new long[3 * b.getInt()];
+        for (int i = 0; i < markers.length; i += 3) {
+            markers[i] = b.getInt();
+            markers[i + 1] = b.getLong();
+            markers[i + 2] = b.getLong();
+        }
+        for (int i = 0; i < markers.length; i += 3) {
+            if (markers[i] == AttysRecorder.RECORD_GAP) {
+                samplesRecorded -= markers[i + 2] - markers[i + 1];
+            }
+        }
+        samplesRecorded += endSample - firstSample;
+        return true;
+    }
+
+    // goes through all records of a file which hasn't been closed
+    // properly (or version 1) up to the last complete one
+    private void rebuildIndex() throws IOException {
+        index = new RecordingIndex();
+        long[] m = new long[3 * 16];
+        int nMarkers = 0;
+        long offset = headerLength;
+        while (offset + 4 <= fileLength) {
+            map(offset, 4);
+            final int type = window.getInt((int) (offset - windowStart));
+            if (type == AttysRecorder.RECORD_SAMPLES) {
+                if (offset + AttysRecorder.RECORD_HEADER_SIZE > fileLength) break;
+                map(offset, AttysRecorder.RECORD_HEADER_SIZE);
+                final int p = (int) (offset - windowStart);
+                final long first = window.getLong(p + 4);
+                final int n = window.getInt(p + 12);
+                final long size = AttysRecorder.RECORD_HEADER_SIZE + (long) n * frameSize;
+                if ((n < 0) || (offset + size > fileLength)) break;
+                index.add(first, n, offset);
+                if (firstSample < 0) firstSample = first;
+                endSample = first + n;
+                samplesRecorded += n;
+                offset += size;
+            } else if (type == AttysRecorder.RECORD_COMPRESSED) {
+                if (offset + AttysRecorder.COMPRESSED_RECORD_HEADER_SIZE > fileLength) break;
+                map(offset, AttysRecorder.COMPRESSED_RECORD_HEADER_SIZE);
+                final int p = (int) (offset - windowStart);
+                final long first = window.getLong(p + 4);
+                final int n = window.getInt(p + 12);
+                final int len = window.getInt(p + 16);
+                final long size = AttysRecorder.COMPRESSED_RECORD_HEADER_SIZE + (long) len;
+                if ((n < 0) || (len < 0) || (offset + size > fileLength)) break;
+                index.add(first, n, offset);
+                if (firstSample < 0) firstSample = first;
+                endSample = first + n;
+                samplesRecorded += n;
+                offset += size;
+            } else if ((type == AttysRecorder.RECORD_GAP) || (type == AttysRecorder.RECORD_RECONNECT) ||
+                    (type == AttysRecorder.RECORD_CONFIG)) {
+                if (offset + AttysRecorder.MARKER_SIZE > fileLength) break;
+                map(offset, AttysRecorder.MARKER_SIZE);
+                final int p = (int) (offset - windowStart);
+                if (3 * nMarkers == m.length) {
+                    final long[] n = new long[m.length * 2];
+                    System.arraycopy(m, 0, n, 0, m.length);
+                    m = n;
+                }
+                m[3 * nMarkers] = type;
+                m[3 * nMarkers + 1] = window.getLong(p + 4);
+                m[3 * nMarkers + 2] = window.getLong(p + 12);
+                nMarkers++;
+                offset += AttysRecorder.MARKER_SIZE;
+            } else {
+                // index or garbage from an interrupted write
+                break;
+            }
+        }
+        recordsEnd = offset;
+        markers = new long[3 * nMarkers];
+        System.arraycopy(m, 0, markers, 0, markers.length);
+    }
+}
@@ -9,6 +9,7 @@ import android.os.IBinder;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Locale;
 import java.util.Timer;
@@ -51,8 +52,22 @@ public class AttysService extends Service {
         attysComm.start();
     }
 
+    // records all channels into file in the background
+    final public void startRecording(File file) throws IOException {
+        attysComm.startRecording(file);
+    }
+
+    final public void stopRecording() {
+        attysComm.stopRecording();
+    }
+
+    final public boolean isRecording() {
+        return attysComm.isRecording();
+    }
+
     @Override
     public final void onDestroy() {
+        stopRecording();
         stopAttysComm();
         super.onDestroy();
     }
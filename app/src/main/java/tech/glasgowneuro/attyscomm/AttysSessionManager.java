@@ -0,0 +1,236 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several Attys at the same time, for example one for the ECG,
+ * one for the EMG and one for the movement. Every Attys has its own
+ * AttysComm and all of them share one thread pool.
+ * <p>
+ * start() connects and configures all Attys in parallel and then
+ * lets them start their data acquisition together so that their
+ * sample numbers start within a few ms of each other. stop() stops
+ * them in parallel.
+ * getStatus() reports the health and the throughput of every Attys
+ * and of all of them together. createMerger() combines their samples
+ * into one stream on a common time base.
+ */
+public class AttysSessionManager {
+
+    private final ExecutorService executor;
+    private final List<AttysComm> devices = new ArrayList<AttysComm>();
+    private volatile DeviceStatus[] lastStatus = new DeviceStatus[0];
+    private volatile long lastStatusNanos = 0;
+
+    /**
+     * Health of one Attys or of all of them together.
+     */
+    public final static class DeviceStatus {
+        // name of the transport or "all"
+        public String name;
+        public boolean connected;
+        // the sample number, which skips the samples an Attys hasn't sent
+        public long samples;
+        // the samples which have been delivered (AttysMetrics.SAMPLES)
+        public long delivered;
+        // delivered since the previous getStatus()
+        public double samplesPerSecond;
+        public long receptionErrors;
+        public long lostSamples;
+        public long reconnects;
+        // relative to the Attys which has started first
+        public long startOffsetNanos;
+    }
+
+    public AttysSessionManager() {
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "AttysSession-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // adds an Attys connected via the transport and returns its
+    // AttysComm to configure it and to register the listeners
+    public synchronized AttysComm addDevice(AttysTransport transport) {
+        final AttysComm attysComm = new AttysComm(transport);
+        attysComm.setExecutor(executor);
+        devices.add(attysComm);
+        return attysComm;
+    }
+
+    // adds all paired Attys and returns how many have been found
+    public synchronized int addAllPairedDevices() {
+        final List<BluetoothDevice> found = AttysComm.findAllAttysBtDevices();
+        for (BluetoothDevice d : found) {
+            addDevice(new BluetoothTransport(d));
+        }
+        return found.size();
+    }
+
+    public synchronized List<AttysComm> getDevices() {
+        return new ArrayList<AttysComm>(devices);
+    }
+
+    public synchronized int getNumberOfDevices() {
+        return devices.size();
+    }
+
+    // samples per block and latency of the merger's block listeners
+    private final static int MERGER_BLOCK_SIZE = 16;
+    private final static int MERGER_MAX_LATENCY_IN_MS = 10;
+
+    // creates a merger which aligns the samples of all Attys on the
+    // host clock and interleaves them into one stream at outputRate.
+    // Call it after the Attys have been configured and before start().
+    public synchronized MultiDeviceMerger createMerger(int outputRate, long maxLatencyNanos) {
+        final MultiDeviceMerger merger = new MultiDeviceMerger(outputRate, maxLatencyNanos);
+        for (AttysComm a : devices) {
+            final AttysTransport t = a.getTransport();
+            final MultiDeviceMerger.Device d = merger.addDevice((t != null) ? t.getName() : "",
+                    AttysComm.NCHANNELS, a.getSamplingRateInHz());
+            a.setPacketTimeListener(d);
+            a.addDataBlockListener(d, MultiDeviceMerger.DEFAULT_HISTORY_SIZE,
+                    AttysComm.BACKPRESSURE_DROP_OLDEST, MERGER_BLOCK_SIZE, MERGER_MAX_LATENCY_IN_MS);
+        }
+        return merger;
+    }
+
+    // connects to all Attys and starts their data acquisition together
+    public synchronized void start() {
+        if (devices.isEmpty()) return;
+        final CyclicBarrier barrier = new CyclicBarrier(devices.size());
+        for (AttysComm a : devices) {
+            a.setStartBarrier(barrier);
+            a.start();
+        }
+    }
+
+    // stops all Attys in parallel and waits till they have stopped
+    public synchronized void stop() {
+        final List<Future<?>> stopping = new ArrayList<Future<?>>();
+        for (final AttysComm a : devices) {
+            stopping.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    a.stop();
+                }
+            }));
+        }
+        for (Future<?> f : stopping) {
+            try {
+                f.get();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    // stops everything and releases the threads
+    public synchronized void shutdown() {
+        stop();
+        devices.clear();
+        executor.shutdown();
+    }
+
+    // true once every Attys is connected
+    public synchronized boolean allConnected() {
+        for (AttysComm a : devices) {
+            if (!a.hasActiveConnection()) return false;
+        }
+        return !devices.isEmpty();
+    }
+
+    // difference between the first and the last Attys to start in ns
+    // or -1 if not all of them have started yet
+    public synchronized long getStartSkewNanos() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (AttysComm a : devices) {
+            final long t = a.getStartNanos();
+            if (t == 0) return -1;
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        if (devices.isEmpty()) return -1;
+        return max - min;
+    }
+
+    // the status of every Attys followed by the aggregate of all of them.
+    // The rates are measured since the previous call.
+    public synchronized DeviceStatus[] getStatus() {
+        final long now = System.nanoTime();
+        final DeviceStatus[] previous = lastStatus;
+        final double dt = (lastStatusNanos == 0) ? 0 : (now - lastStatusNanos) * 1E-9;
+        final int n = devices.size();
+        final DeviceStatus[] status = new DeviceStatus[n + 1];
+        final DeviceStatus all = new DeviceStatus();
+        all.name = "all";
+        all.connected = n > 0;
+        long firstStart = Long.MAX_VALUE;
+        for (AttysComm a : devices) {
+            if (a.getStartNanos() != 0) {
+                firstStart = Math.min(firstStart, a.getStartNanos());
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            final AttysComm a = devices.get(i);
+            final DeviceStatus s = new DeviceStatus();
+            final AttysTransport t = a.getTransport();
+            s.name = (t != null) ? t.getName() : "";
+            s.connected = a.hasActiveConnection();
+            s.samples = a.getSampleNumber();
+            s.delivered = a.getMetrics().get(AttysMetrics.SAMPLES);
+            s.receptionErrors = a.getReceptionErrors();
+            s.lostSamples = a.getLostSamples();
+            s.reconnects = a.getReconnects();
+            s.startOffsetNanos = (a.getStartNanos() != 0) ? a.getStartNanos() - firstStart : 0;
+            if ((dt > 0) && (i < previous.length - 1)) {
+                s.samplesPerSecond = (s.delivered - previous[i].delivered) / dt;
+            }
+            all.connected = all.connected && s.connected;
+            all.samples += s.samples;
+            all.delivered += s.delivered;
+            all.samplesPerSecond += s.samplesPerSecond;
+            all.receptionErrors += s.receptionErrors;
+            all.lostSamples += s.lostSamples;
+            all.reconnects += s.reconnects;
+            all.startOffsetNanos = Math.max(all.startOffsetNanos, s.startOffsetNanos);
+            status[i] = s;
+        }
+        status[n] = all;
+        lastStatus = status;
+        lastStatusNanos = now;
+        return status;
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates an Attys on a local TCP port so that AttysComm can be
+ * run and benchmarked on any JVM without a real device. Connect to
+ * it with a TcpTransport.
+ * <p>
+ * It speaks the same command protocol as the Attys (x=, r=, f=, t=,
+ * a=, b=, c=, i=, d=, m=), replies with OK and streams base64
+ * encoded standard speed (125Hz, 250Hz) or high speed (500Hz)
+ * packets either in real time or as fast as possible.
+ * <p>
+ * Run it standalone with:
+ * java tech.glasgowneuro.attyscomm.AttysSimulator [port] [maxspeed]
+ */
+public class AttysSimulator {
+
+    public final static int DEFAULT_PORT = 9876;
+
+    private final static int[] SAMPLINGRATE = {125, 250, 500};
+    private final static int NACCEL_RANGES = 4;
+
+    private final int requestedPort;
+    private ServerSocket serverSocket = null;
+    private Thread acceptThread = null;
+    private volatile boolean doRun = false;
+    private volatile boolean maxSpeed = false;
+    private volatile Socket clientSocket = null;
+
+    // the registers of the simulated Attys
+    private volatile int rateIndex = 1;
+    private volatile int fullOrPartialData = 1;
+    private volatile int accelFullScaleIndex = 3;
+    private final int[] gainMux = {0, 0};
+    private volatile int currentMask = 0;
+    private volatile int biasCurrent = 0;
+    private volatile int base64 = 0;
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong commandsReceived = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    // port 0 picks a free port. See getPort().
+    public AttysSimulator(int port) {
+        requestedPort = port;
+    }
+
+    public AttysSimulator() {
+        this(0);
+    }
+
+    // streams as fast as the connection allows instead of in real time
+    public void setMaxSpeed(boolean m) {
+        maxSpeed = m;
+    }
+
+    public boolean isMaxSpeed() {
+        return maxSpeed;
+    }
+
+    public synchronized int getPort() {
+        if (serverSocket == null) return requestedPort;
+        return serverSocket.getLocalPort();
+    }
+
+    public int getSamplingRateInHz() {
+        return SAMPLINGRATE[rateIndex];
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getCommandsReceived() {
+        return commandsReceived.get();
+    }
+
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    // returns a transport which connects to this simulator
+    public TcpTransport createTransport() {
+        return new TcpTransport("127.0.0.1", getPort());
+    }
+
+    public synchronized void start() throws IOException {
+        if (acceptThread != null) return;
+        serverSocket = new ServerSocket(requestedPort, 1, InetAddress.getByName("127.0.0.1"));
+        doRun = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "AttysSimulator");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void stop() {
+        doRun = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        dropConnection();
+        if (acceptThread != null) {
+            try {
+                acceptThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        acceptThread = null;
+        serverSocket = null;
+    }
+
+    // closes the current client connection which simulates the
+    // Attys going out of range
+    public void dropConnection() {
+        final Socket s = clientSocket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // resets the registers and drops the connection which simulates
+    // the Attys being switched off and on again
+    public void powerCycle() {
+        resetRegisters();
+        dropConnection();
+    }
+
+    private void acceptLoop() {
+        while (doRun) {
+            try {
+                final Socket s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+                connections.incrementAndGet();
+                clientSocket = s;
+                serveClient(s);
+            } catch (IOException ignored) {
+                // client gone or server socket closed
+            } finally {
+                dropConnection();
+                clientSocket = null;
+            }
+        }
+    }
+
+    private void resetRegisters() {
+        rateIndex = 1;
+        fullOrPartialData = 1;
+        accelFullScaleIndex = 3;
+        gainMux[0] = 0;
+        gainMux[1] = 0;
+        currentMask = 0;
+        biasCurrent = 0;
+        base64 = 0;
+    }
+
+    private void serveClient(Socket s) throws IOException {
+        final InputStream in = new BufferedInputStream(s.getInputStream());
+        final OutputStream out = s.getOutputStream();
+        final Streamer streamer = new Streamer(out);
+        final byte[] cmd = new byte[64];
+        int n = 0;
+        try {
+            while (doRun) {
+                final int c = in.read();
+                if (c < 0) return;
+                if ((c == '\r') || (c == '\n')) {
+                    if (n > 0) {
+                        handleCommand(cmd, n, streamer, out);
+                    }
+                    n = 0;
+                } else if (n < cmd.length) {
+                    cmd[n++] = (byte) c;
+                }
+            }
+        } finally {
+            streamer.halt();
+        }
+    }
+
+    private void handleCommand(byte[] cmd, int n, Streamer streamer, OutputStream out) throws IOException {
+        if ((n < 3) || (cmd[1] != '=')) return;
+        int v = 0;
+        for (int i = 2; i < n; i++) {
+            if ((cmd[i] < '0') || (cmd[i] > '9')) return;
+            v = v * 10 + (cmd[i] - '0');
+        }
+        commandsReceived.incrementAndGet();
+        switch (cmd[0]) {
+            case 'x':
+                if (v == 0) {
+                    streamer.halt();
+                    reply(out);
+                } else {
+                    reply(out);
+                    streamer.launch();
+                }
+                return;
+            case 'r':
+                if (v < SAMPLINGRATE.length) rateIndex = v;
+                break;
+            case 'f':
+                fullOrPartialData = v;
+                break;
+            case 't':
+                if (v < NACCEL_RANGES) accelFullScaleIndex = v;
+                break;
+            case 'a':
+                gainMux[0] = v;
+                break;
+            case 'b':
+                gainMux[1] = v;
+                break;
+            case 'c':
+                currentMask = v;
+                break;
+            case 'i':
+                biasCurrent = v;
+                break;
+            case 'd':
+                base64 = v;
+                break;
+            case 'm':
+                // master reset: no reply
+                streamer.halt();
+                resetRegisters();
+                return;
+            default:
+                return;
+        }
+        reply(out);
+    }
+
+    private static final byte[] OK = {'O', 'K', '\r', '\n'};
+
+    private void reply(OutputStream out) throws IOException {
+        synchronized (out) {
+            out.write(OK);
+            out.flush();
+        }
+    }
+
+    // generates the packets and sends them
+    private class Streamer implements Runnable {
+        private final OutputStream out;
+        private volatile boolean streaming = false;
+        private Thread thread = null;
+        private final AttysPacketGenerator generator = new AttysPacketGenerator();
+        private final byte[] line = new byte[AttysPacketGenerator.MAX_LINE_LENGTH + 2];
+
+        Streamer(OutputStream o) {
+            out = o;
+        }
+
+        synchronized void launch() {
+            if (thread != null) return;
+            generator.setSamplingRateIndex(rateIndex);
+            generator.setFullData(fullOrPartialData != 0);
+            generator.setAccelFullScaleIndex(accelFullScaleIndex);
+            generator.setGainMux(0, gainMux[0]);
+            generator.setGainMux(1, gainMux[1]);
+            streaming = true;
+            thread = new Thread(this, "AttysSimulatorStreamer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void halt() {
+            streaming = false;
+            if (thread == null) return;
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+            thread = null;
+        }
+
+        @Override
+        public void run() {
+            final long period = 1000000000L / generator.getPacketRate();
+            long next = System.nanoTime();
+            try {
+                while (streaming && doRun) {
+                    int n = generator.nextLine(line, 0);
+                    line[n++] = '\r';
+                    line[n++] = '\n';
+                    synchronized (out) {
+                        out.write(line, 0, n);
+                    }
+                    packetsSent.incrementAndGet();
+                    if (!maxSpeed) {
+                        next += period;
+                        final long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        } else if (wait < -100 * period) {
+                            // we are hopelessly behind: don't try to catch up
+                            next = System.nanoTime();
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+                // connection closed
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        final AttysSimulator simulator = new AttysSimulator(port);
+        if (args.length > 1) {
+            simulator.setMaxSpeed("maxspeed".equals(args[1]));
+        }
+        simulator.start();
+        System.out.println("AttysSimulator listening on 127.0.0.1:" + simulator.getPort());
+        long last = 0;
+        while (true) {
+            Thread.sleep(1000);
+            final long p = simulator.getPacketsSent();
+            System.out.println("packets/s: " + (p - last));
+            last = p;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte stream connection between AttysComm and an Attys.
+ * AttysComm only ever talks to the device through this interface
+ * so that the same acquisition code runs over Bluetooth, over TCP
+ * to the AttysSimulator or over anything else which provides a
+ * pair of streams.
+ */
+public interface AttysTransport {
+
+    // opens the connection. Blocks until connected or throws.
+    // Can be called again after close() to reconnect.
+    void connect() throws IOException;
+
+    // stream with the data coming from the Attys
+    InputStream getInputStream() throws IOException;
+
+    // stream for the commands going to the Attys
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnected();
+
+    // closes the connection. Unblocks any pending reads. Never throws.
+    void close();
+
+    // human readable name of the other end for logging
+    String getName();
+}
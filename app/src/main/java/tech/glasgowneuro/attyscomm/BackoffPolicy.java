@@ -0,0 +1,92 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.Random;
+
+/**
+ * Delays between connection attempts: they start at initialDelay
+ * and grow by the multiplier after every failed attempt up to
+ * maxDelay. The jitter (0..1) shortens every delay by a random
+ * fraction of up to jitter so that several Attys which have
+ * lost their connection at the same time don't all retry at
+ * the same moment.
+ */
+public final class BackoffPolicy {
+
+    public final static long DEFAULT_INITIAL_DELAY_IN_MS = 100;
+    public final static long DEFAULT_MAX_DELAY_IN_MS = 30000;
+    public final static double DEFAULT_MULTIPLIER = 2;
+    public final static double DEFAULT_JITTER = 0.5;
+
+    private final long initialDelayInMs;
+    private final long maxDelayInMs;
+    private final double multiplier;
+    private final double jitter;
+
+    public BackoffPolicy(long initialDelayInMs, long maxDelayInMs, double multiplier, double jitter) {
+        if ((initialDelayInMs < 0) || (maxDelayInMs < initialDelayInMs)) {
+            throw new IllegalArgumentException("Delays must be 0 <= initial <= max.");
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("The multiplier must be at least 1.");
+        }
+        if ((jitter < 0) || (jitter > 1)) {
+            throw new IllegalArgumentException("The jitter must be between 0 and 1.");
+        }
+        this.initialDelayInMs = initialDelayInMs;
+        this.maxDelayInMs = maxDelayInMs;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    public BackoffPolicy() {
+        this(DEFAULT_INITIAL_DELAY_IN_MS, DEFAULT_MAX_DELAY_IN_MS, DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+    }
+
+    public long getInitialDelayInMs() {
+        return initialDelayInMs;
+    }
+
+    public long getMaxDelayInMs() {
+        return maxDelayInMs;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    // delay without the jitter after the given number of failed attempts in a row (>= 1)
+    public long getBaseDelayInMs(int failedAttempts) {
+        double d = initialDelayInMs;
+        for (int i = 1; (i < failedAttempts) && (d < maxDelayInMs); i++) {
+            d *= multiplier;
+        }
+        return Math.min(maxDelayInMs, Math.round(d));
+    }
+
+    // delay with the jitter after the given number of failed attempts in a row (>= 1)
+    public long getDelayInMs(int failedAttempts, Random random) {
+        final long d = getBaseDelayInMs(failedAttempts);
+        return d - Math.round(d * jitter * random.nextDouble());
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Reads what the BitWriter has written. Reading beyond the end
+ * delivers zeros.
+ */
+final class BitReader {
+
+    private byte[] buffer;
+    private int pos;
+    private int end;
+    private long bits;
+    private int nBits;
+
+    BitReader(byte[] b) {
+        reset(b, 0, b.length);
+    }
+
+    BitReader() {
+        reset(new byte[0], 0, 0);
+    }
+
+    void reset(byte[] b, int offset, int length) {
+        buffer = b;
+        pos = offset;
+        end = offset + length;
+        bits = 0;
+        nBits = 0;
+    }
+
+    // makes sure that at least 32 bits are in the accumulator
+    private void refill() {
+        while (nBits <= 56 - 8 && nBits < 32) {
+            final long b = pos < end ? buffer[pos++] & 0xff : 0;
+            bits |= b << nBits;
+            nBits += 8;
+        }
+    }
+
+    // width 1..32
+    int read(int width) {
+        if (nBits < width) refill();
+        final int v = (int) (bits & (0xffffffffL >>> (32 - width)));
+        bits >>>= width;
+        nBits -= width;
+        return v;
+    }
+
+    // counts the ones up to the next zero which is skipped. Stops
+    // after max ones (max < 32) without skipping anything.
+    int readUnary(int max) {
+        refill();
+        final int q = Long.numberOfTrailingZeros(~bits);
+        if (q >= max) {
+            bits >>>= max;
+            nBits -= max;
+            return max;
+        }
+        bits >>>= q + 1;
+        nBits -= q + 1;
+        return q;
+    }
+}
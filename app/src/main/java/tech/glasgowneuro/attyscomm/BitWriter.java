@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.Arrays;
+
+/**
+ * Packs values of up to 32 bits into a byte array, least significant
+ * bit first. The array has a fixed size: the caller makes sure that
+ * the worst case fits. Used by the compressed history and the
+ * lossless codec.
+ */
+final class BitWriter {
+
+    private final byte[] buffer;
+    private int pos = 0;
+    private long bits = 0;
+    private int nBits = 0;
+
+    BitWriter(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    void reset() {
+        pos = 0;
+        bits = 0;
+        nBits = 0;
+    }
+
+    // the lowest width bits of value, width 0..32
+    void write(int value, int width) {
+        bits |= (value & (0xffffffffL >>> (32 - width))) << nBits;
+        nBits += width;
+        while (nBits >= 8) {
+            buffer[pos++] = (byte) bits;
+            bits >>>= 8;
+            nBits -= 8;
+        }
+    }
+
+    // q ones followed by a zero, q < 32
+    void writeUnary(int q) {
+        write((1 << q) - 1, q + 1);
+    }
+
+    // pads the last byte with zeros and returns the number of bytes
+    int finish() {
+        if (nBits > 0) {
+            buffer[pos++] = (byte) bits;
+            bits = 0;
+            nBits = 0;
+        }
+        return pos;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, finish());
+    }
+}
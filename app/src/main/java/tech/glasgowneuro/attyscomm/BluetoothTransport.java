@@ -0,0 +1,147 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Connects to an Attys via a Bluetooth RFCOMM socket (serial port profile).
+ */
+public class BluetoothTransport implements AttysTransport {
+
+    private static final String TAG = "BluetoothTransport";
+
+    // standard SPP uid
+    private static final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothDevice bluetoothDevice;
+    private volatile BluetoothSocket mmSocket = null;
+
+    public BluetoothTransport(BluetoothDevice device) {
+        bluetoothDevice = device;
+    }
+
+    public BluetoothDevice getBluetoothDevice() {
+        return bluetoothDevice;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        close();
+
+        if (bluetoothDevice == null) {
+            Log.e(TAG, "Bluetooth device is null.");
+            throw new IOException();
+        }
+
+        BluetoothSocket socket = null;
+        try {
+            socket = bluetoothDevice.createRfcommSocketToServiceRecord(uuid);
+        } catch (java.lang.SecurityException e) {
+            Log.d(TAG, "BT permission not granted: ", e);
+            throw e;
+        } catch (IOException ex) {
+            Log.d(TAG, "Could not get rfComm socket:", ex);
+            throw ex;
+        }
+
+        if (socket == null) {
+            throw new IOException("No rfComm socket.");
+        }
+
+        Log.v(TAG, "Got rfComm socket!");
+
+        // set before the blocking connect() so that close() can abort it
+        mmSocket = socket;
+        try {
+            socket.connect();
+        } catch (java.lang.SecurityException e) {
+            Log.d(TAG, "BT permission not granted: ", e);
+            forget(socket);
+            throw e;
+        } catch (IOException e) {
+            Log.d(TAG, "mmSocket.connect() failed");
+            forget(socket);
+            throw e;
+        }
+        if (mmSocket != socket) {
+            // close() has been called while connecting
+            closeQuietly(socket);
+            throw new IOException("Closed while connecting.");
+        }
+    }
+
+    private void forget(BluetoothSocket socket) {
+        if (mmSocket == socket) {
+            mmSocket = null;
+        }
+        closeQuietly(socket);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final BluetoothSocket socket = mmSocket;
+        if (socket == null) throw new IOException("Not connected.");
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        final BluetoothSocket socket = mmSocket;
+        if (socket == null) throw new IOException("Not connected.");
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        final BluetoothSocket socket = mmSocket;
+        return (socket != null) && socket.isConnected();
+    }
+
+    @Override
+    public void close() {
+        final BluetoothSocket socket = mmSocket;
+        mmSocket = null;
+        if (socket != null) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public String getName() {
+        if (bluetoothDevice == null) return "none";
+        try {
+            return bluetoothDevice.getName();
+        } catch (java.lang.SecurityException e) {
+            return "unknown";
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (Exception ignored) {
+        }
+    }
+}
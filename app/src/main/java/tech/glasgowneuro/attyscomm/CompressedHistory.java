@@ -0,0 +1,369 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps hours of raw counts (see RawSampleListener) in a few MB.
+ * The samples are collected in chunks of chunkSize samples. Once a
+ * chunk is full every channel is compressed on its own: the
+ * differences between consecutive counts are zigzag encoded (small
+ * negative and positive numbers become small positive ones) and
+ * bit packed in frames of FRAME_SIZE values with just as many bits
+ * as the largest value of the frame needs. The 24 bit ADC, the 16 bit
+ * accelerometer and magnetometer and the single bit digital channels
+ * all end up with a few bits per sample. Only the chunk being
+ * written stays uncompressed.
+ * <p>
+ * Reading a range decodes the chunks it touches. The most recently
+ * decoded chunks are kept in a small LRU cache so that scrolling
+ * back and forth doesn't decode the same chunks again and again.
+ * <p>
+ * There is one writer and any number of readers. The compressed
+ * chunks are immutable and are decoded without holding the lock.
+ * Gaps in the sample numbers are filled with the previous sample.
+ * A sample number which goes backwards starts the history afresh.
+ */
+public class CompressedHistory implements RawSampleListener {
+
+    public final static int DEFAULT_CHUNK_SIZE = 1024;
+    public final static int DEFAULT_CACHE_SIZE = 8;
+    // values bit packed with the same width
+    public final static int FRAME_SIZE = 64;
+    // bits to store the width of a frame (0..32)
+    private final static int WIDTH_BITS = 6;
+
+    private final int chunkSize;
+    private final int nChannels;
+    private final int maxChunks;
+
+    /**
+     * A compressed chunk: immutable once it's in the history.
+     */
+    private final static class Chunk {
+        final long id;
+        final long firstSampleNumber;
+        final byte[] data;
+
+        Chunk(long id, long firstSampleNumber, byte[] data) {
+            this.id = id;
+            this.firstSampleNumber = firstSampleNumber;
+            this.data = data;
+        }
+    }
+
+    // ring of the compressed chunks, oldest at head
+    private final Chunk[] chunks;
+    private int head = 0;
+    private int nChunks = 0;
+    private long nextChunkId = 0;
+    private long compressedBytes = 0;
+
+    // the chunk being written, channel by channel
+    private final int[][] current;
+    private int currentLength = 0;
+    private long currentFirst = 0;
+
+    // first sample number in the history
+    private long start = 0;
+    // sample number after the newest sample
+    private long end = 0;
+    private boolean hasData = false;
+    private long filledSamples = 0;
+
+    // writer side scratch space for compressing a chunk
+    private final BitWriter writer;
+
+    // decoded chunks by their id, readers only
+    private final LinkedHashMap<Long, int[][]> cache;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    // maxChunks compressed chunks of chunkSize samples are kept plus
+    // the one being written. cacheSize decoded chunks are cached.
+    public CompressedHistory(int maxChunks, int chunkSize, int nChannels, final int cacheSize) {
+        if ((maxChunks < 1) || (chunkSize < 1) || (cacheSize < 1)) {
+            throw new IllegalArgumentException("Chunks, chunk size and cache size must be at least 1.");
+        }
+        this.maxChunks = maxChunks;
+        this.chunkSize = chunkSize;
+        this.nChannels = nChannels;
+        chunks = new Chunk[maxChunks];
+        current = new int[nChannels][chunkSize];
+        writer = new BitWriter(maxCompressedSize(chunkSize, nChannels));
+        cache = new LinkedHashMap<Long, int[][]>(cacheSize * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[][]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public CompressedHistory(int maxChunks, int nChannels) {
+        this(maxChunks, DEFAULT_CHUNK_SIZE, nChannels, DEFAULT_CACHE_SIZE);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getNumberOfChannels() {
+        return nChannels;
+    }
+
+    // maximum number of samples kept
+    public long getCapacity() {
+        return (long) maxChunks * chunkSize + chunkSize;
+    }
+
+    /////////////////////////////////////////////////
+    // writer
+
+    @Override
+    public void gotRawData(long samplenumber, int[] counts) {
+        put(samplenumber, counts);
+    }
+
+    // stores one sample (nChannels counts) under its sample number
+    public synchronized void put(long sampleNumber, int[] counts) {
+        // a gap longer than the history would push everything out anyway
+        if (!hasData || (sampleNumber < end) || (sampleNumber - end > getCapacity())) {
+            restart(sampleNumber);
+            hasData = true;
+        }
+        // repeats the newest sample till sampleNumber
+        while (end < sampleNumber) {
+            if (currentLength == 0) {
+                // the previous sample is the last one of the last chunk
+                final int[][] d = lastChunk();
+                for (int c = 0; c < nChannels; c++) {
+                    current[c][0] = d[c][chunkSize - 1];
+                }
+            } else {
+                for (int c = 0; c < nChannels; c++) {
+                    current[c][currentLength] = current[c][currentLength - 1];
+                }
+            }
+            append();
+            filledSamples++;
+        }
+        for (int c = 0; c < nChannels; c++) {
+            current[c][currentLength] = counts[c];
+        }
+        append();
+    }
+
+    // the sample at currentLength has been written
+    private void append() {
+        if (currentLength == 0) {
+            currentFirst = end;
+        }
+        currentLength++;
+        end++;
+        if (currentLength == chunkSize) {
+            compressCurrent();
+        }
+    }
+
+    private void compressCurrent() {
+        final BitWriter w = writer;
+        w.reset();
+        for (int c = 0; c < nChannels; c++) {
+            encode(current[c], chunkSize, w);
+        }
+        final Chunk chunk = new Chunk(nextChunkId++, currentFirst, w.toByteArray());
+        if (nChunks == maxChunks) {
+            compressedBytes -= chunks[head].data.length;
+            chunks[head] = null;
+            head = (head + 1) % maxChunks;
+            nChunks--;
+            start = chunks[head] != null ? chunks[head].firstSampleNumber : currentFirst;
+        }
+        chunks[(head + nChunks) % maxChunks] = chunk;
+        nChunks++;
+        compressedBytes += chunk.data.length;
+        currentLength = 0;
+    }
+
+    // decodes the newest compressed chunk (only needed to fill a gap)
+    private int[][] lastChunk() {
+        final int[][] d = new int[nChannels][chunkSize];
+        decode(chunks[(head + nChunks - 1) % maxChunks].data, d, chunkSize);
+        return d;
+    }
+
+    private void restart(long sampleNumber) {
+        Arrays.fill(chunks, null);
+        head = 0;
+        nChunks = 0;
+        compressedBytes = 0;
+        currentLength = 0;
+        start = sampleNumber;
+        end = sampleNumber;
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /////////////////////////////////////////////////
+    // any thread
+
+    public synchronized long getFirstSampleNumber() {
+        return start;
+    }
+
+    // sample number after the newest sample
+    public synchronized long getEndSampleNumber() {
+        return end;
+    }
+
+    public synchronized long size() {
+        return end - start;
+    }
+
+    // bytes used by the compressed chunks
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    // compressed size of the samples in the compressed chunks in bits
+    // per value
+    public synchronized double getBitsPerValue() {
+        if (nChunks == 0) return 0;
+        return compressedBytes * 8.0 / ((double) nChunks * chunkSize * nChannels);
+    }
+
+    // samples which have been filled in because of gaps in the sample numbers
+    public synchronized long getFilledSamples() {
+        return filledSamples;
+    }
+
+    public long getCacheHits() {
+        synchronized (cache) {
+            return cacheHits;
+        }
+    }
+
+    public long getCacheMisses() {
+        synchronized (cache) {
+            return cacheMisses;
+        }
+    }
+
+    // copies n counts of one channel starting at startSample into dst
+    // at dstOffset. The range is cut off at the newest sample.
+    // Returns the number of counts copied or -1 if startSample
+    // isn't (or no longer) in the history.
+    public int read(int channel, long startSample, int n, int[] dst, int dstOffset) {
+        int copied = 0;
+        long s = startSample;
+        while (copied < n) {
+            Chunk chunk = null;
+            synchronized (this) {
+                if ((s < start) || (s > end)) return -1;
+                if (s == end) return copied;
+                final int k = (int) Math.min(n - copied, end - s);
+                if ((currentLength > 0) && (s >= currentFirst)) {
+                    System.arraycopy(current[channel], (int) (s - currentFirst), dst, dstOffset + copied, k);
+                    return copied + k;
+                }
+                chunk = chunks[(head + (int) ((s - start) / chunkSize)) % maxChunks];
+            }
+            final int[][] d = decoded(chunk);
+            final int offset = (int) (s - chunk.firstSampleNumber);
+            final int k = Math.min(n - copied, chunkSize - offset);
+            System.arraycopy(d[channel], offset, dst, dstOffset + copied, k);
+            copied += k;
+            s += k;
+        }
+        return copied;
+    }
+
+    // the decoded counts of a chunk from the cache or freshly decoded
+    private int[][] decoded(Chunk chunk) {
+        synchronized (cache) {
+            final int[][] d = cache.get(chunk.id);
+            if (d != null) {
+                cacheHits++;
+                return d;
+            }
+            cacheMisses++;
+        }
+        final int[][] d = new int[nChannels][chunkSize];
+        decode(chunk.data, d, chunkSize);
+        synchronized (cache) {
+            cache.put(chunk.id, d);
+        }
+        return d;
+    }
+
+    /////////////////////////////////////////////////
+    // the codec
+
+    // worst case: 32 bits per value plus the widths and the first value
+    static int maxCompressedSize(int n, int nChannels) {
+        final int frames = (n + FRAME_SIZE - 1) / FRAME_SIZE;
+        return nChannels * (4 + (frames * WIDTH_BITS + 7) / 8 + n * 4) + 8;
+    }
+
+    // the first value as it is, then the zigzag encoded differences
+    // in frames
+    static void encode(int[] v, int n, BitWriter w) {
+        w.write(v[0], 32);
+        final int[] zz = new int[FRAME_SIZE];
+        int prev = v[0];
+        for (int i = 1; i < n; i += FRAME_SIZE) {
+            final int m = Math.min(FRAME_SIZE, n - i);
+            int or = 0;
+            for (int j = 0; j < m; j++) {
+                final int d = v[i + j] - prev;
+                prev = v[i + j];
+                zz[j] = (d << 1) ^ (d >> 31);
+                or |= zz[j];
+            }
+            final int width = 32 - Integer.numberOfLeadingZeros(or);
+            w.write(width, WIDTH_BITS);
+            if (width == 0) continue;
+            for (int j = 0; j < m; j++) {
+                w.write(zz[j], width);
+            }
+        }
+    }
+
+    // decodes nChannels channels of n values each
+    static void decode(byte[] data, int[][] dst, int n) {
+        final BitReader r = new BitReader(data);
+        for (int[] v : dst) {
+            v[0] = r.read(32);
+            int prev = v[0];
+            for (int i = 1; i < n; i += FRAME_SIZE) {
+                final int m = Math.min(FRAME_SIZE, n - i);
+                final int width = r.read(WIDTH_BITS);
+                for (int j = 0; j < m; j++) {
+                    if (width > 0) {
+                        final int zz = r.read(width);
+                        prev += (zz >>> 1) ^ -(zz & 1);
+                    }
+                    v[i + j] = prev;
+                }
+            }
+        }
+    }
+}
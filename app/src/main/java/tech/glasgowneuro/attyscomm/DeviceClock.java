@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Maps the sample numbers of one Attys to the host's monotonic clock
+ * (System.nanoTime()) and back. It's a running linear fit of the
+ * receive times of the packets against their sample numbers where
+ * older packets are gradually forgotten so that it follows the drift
+ * of the Attys' clock. The fit is centred at the newest packet to
+ * keep it numerically stable in long sessions.
+ * <p>
+ * A packet which is far off the fit (a reconnect where the sample
+ * number has been recalculated) restarts the fit.
+ * <p>
+ * update() is called by one thread (the acquisition thread), the
+ * conversions can be called from any thread. The fit is published
+ * with a sequence number which is odd while it's being updated.
+ */
+public class DeviceClock implements PacketTimeListener {
+
+    // packets needed before the slope is estimated
+    public final static int MIN_PACKETS = 16;
+    // weight of the previous packets for every new one
+    public final static double DEFAULT_FORGETTING_FACTOR = 0.999;
+    // a packet further off the fit than this restarts it
+    public final static long DEFAULT_RESET_THRESHOLD_NS = 200000000L;
+
+    private final double nominalNanosPerSample;
+    private final double lambda;
+    private final long resetThreshold;
+
+    // writer side: weighted sums relative to the newest packet
+    private double s, sx, sy, sxx, sxy;
+    private long xRef, yRef;
+    private long packets = 0;
+
+    // published fit: t = tRef + offset + slope * (n - nRef)
+    private volatile int version = 0;
+    private volatile long nRef = 0;
+    private volatile long tRef = 0;
+    private volatile double offset = 0;
+    private volatile double slope;
+    private volatile boolean valid = false;
+    private volatile long resets = 0;
+    private volatile double residual = 0;
+
+    public DeviceClock(int nominalSamplingRate, double forgettingFactor, long resetThresholdNanos) {
+        nominalNanosPerSample = 1E9 / nominalSamplingRate;
+        slope = nominalNanosPerSample;
+        lambda = forgettingFactor;
+        resetThreshold = resetThresholdNanos;
+    }
+
+    public DeviceClock(int nominalSamplingRate) {
+        this(nominalSamplingRate, DEFAULT_FORGETTING_FACTOR, DEFAULT_RESET_THRESHOLD_NS);
+    }
+
+    @Override
+    public void gotPacket(long sampleNumber, long receiveNanos) {
+        update(sampleNumber, receiveNanos);
+    }
+
+    // adds the receive time of a packet
+    public void update(long sampleNumber, long receiveNanos) {
+        if (packets > 0) {
+            final double predicted = yRef + offset + slope * (sampleNumber - xRef);
+            final double r = receiveNanos - predicted;
+            residual = r;
+            if ((packets >= MIN_PACKETS) && (Math.abs(r) > resetThreshold)) {
+                restart();
+                resets++;
+            }
+        }
+        if (packets > 0) {
+            // moves the origin to the new packet
+            final double dx = xRef - sampleNumber;
+            final double dy = yRef - receiveNanos;
+            sxy = sxy + dy * sx + dx * sy + s * dx * dy;
+            sxx = sxx + 2 * dx * sx + s * dx * dx;
+            sx = sx + s * dx;
+            sy = sy + s * dy;
+        }
+        xRef = sampleNumber;
+        yRef = receiveNanos;
+        s = lambda * s + 1;
+        sx = lambda * sx;
+        sy = lambda * sy;
+        sxx = lambda * sxx;
+        sxy = lambda * sxy;
+        packets++;
+
+        double b = nominalNanosPerSample;
+        final double d = s * sxx - sx * sx;
+        if ((packets >= MIN_PACKETS) && (d > 0)) {
+            b = (s * sxy - sx * sy) / d;
+            if (b <= 0) b = nominalNanosPerSample;
+        }
+        final double a = (sy - b * sx) / s;
+        publish(a, b);
+    }
+
+    private void restart() {
+        s = 0;
+        sx = 0;
+        sy = 0;
+        sxx = 0;
+        sxy = 0;
+        packets = 0;
+    }
+
+    private void publish(double a, double b) {
+        version++;
+        nRef = xRef;
+        tRef = yRef;
+        offset = a;
+        slope = b;
+        valid = packets >= MIN_PACKETS;
+        version++;
+    }
+
+    // enough packets for a fit
+    public boolean isValid() {
+        return valid;
+    }
+
+    // host time (System.nanoTime()) of the sample
+    public long toNanos(double sampleNumber) {
+        while (true) {
+            final int v = version;
+            final long n0 = nRef;
+            final long t0 = tRef;
+            final double a = offset;
+            final double b = slope;
+            if (((v & 1) == 0) && (v == version)) {
+                return t0 + (long) (a + b * (sampleNumber - n0));
+            }
+        }
+    }
+
+    // (fractional) sample number at the host time
+    public double toSampleNumber(long nanos) {
+        while (true) {
+            final int v = version;
+            final long n0 = nRef;
+            final long t0 = tRef;
+            final double a = offset;
+            final double b = slope;
+            if (((v & 1) == 0) && (v == version)) {
+                return n0 + ((nanos - t0) - a) / b;
+            }
+        }
+    }
+
+    // measured duration of one sample in ns
+    public double getNanosPerSample() {
+        return slope;
+    }
+
+    // deviation of the Attys' clock from its nominal rate in ppm
+    public double getDriftPpm() {
+        return (slope / nominalNanosPerSample - 1) * 1E6;
+    }
+
+    // distance of the newest packet from the fit in ns
+    public double getResidual() {
+        return residual;
+    }
+
+    // how often the fit has been restarted
+    public long getResets() {
+        return resets;
+    }
+}
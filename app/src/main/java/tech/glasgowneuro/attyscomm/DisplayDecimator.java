@@ -0,0 +1,380 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Thins the samples out to what a plot can show. A window of
+ * windowSamples samples is divided into width buckets, one per pixel
+ * column, and for every bucket the min and max (the envelope) and the
+ * point chosen by Largest-Triangle-Three-Buckets (LTTB) are kept.
+ * <p>
+ * Buckets are aligned to the sample numbers so that the plot scrolls
+ * in whole columns. Every sample is looked at when it arrives and once
+ * more when the LTTB point of its bucket is chosen, which happens as
+ * soon as the following bucket is complete. Reading a channel copies
+ * width values so that drawing doesn't depend on the sampling rate
+ * or on the length of the window.
+ * <p>
+ * The bucket which is being filled is published refreshRate times per
+ * second and the listener is called then. Missing samples within a
+ * bucket repeat the previous one and buckets without any samples are NaN.
+ * Only one thread may feed the samples.
+ */
+public class DisplayDecimator implements BlockListener {
+
+    /**
+     * Called on the thread which feeds the samples whenever the
+     * display should be redrawn.
+     */
+    public interface Listener {
+        void displayUpdated(DisplayDecimator decimator);
+    }
+
+    /**
+     * The min/max envelope of one channel, oldest column first.
+     * Column i starts at sample firstSampleNumber + i * bucketSize.
+     */
+    public final static class Envelope {
+        public long firstSampleNumber;
+        public int bucketSize;
+        public int n;
+        public final float[] min;
+        public final float[] max;
+
+        public Envelope(int width) {
+            min = new float[width];
+            max = new float[width];
+        }
+    }
+
+    /**
+     * The LTTB points of one channel, oldest first.
+     */
+    public final static class Points {
+        public int n;
+        public final long[] sampleNumbers;
+        public final float[] values;
+
+        public Points(int width) {
+            sampleNumbers = new long[width];
+            values = new float[width];
+        }
+    }
+
+    private final int[] channels;
+    private final int width;
+    private final int bucketSize;
+    private final int publishInterval;
+    private volatile Listener listener = null;
+
+    // the bucket being filled, owned by the writer
+    private long bucket = -1;
+    private int start = 0;
+    private int count = 0;
+    private float[][] raw;
+    private final float[] curMin;
+    private final float[] curMax;
+    private final double[] curSum;
+    private long lastSampleNumber = -1;
+    private int sinceLastPublish = 0;
+
+    // the previous bucket waiting for its LTTB point, owned by the writer
+    private long prevBucket = -1;
+    private int prevStart = 0;
+    private int prevCount = 0;
+    private float[][] prevRaw;
+    // the previous LTTB point of every channel
+    private final long[] lastX;
+    private final float[] lastY;
+    private boolean hasLast = false;
+
+    // the completed buckets from firstBucket to endBucket, guarded by this
+    private final float[][] min;
+    private final float[][] max;
+    private final long[][] lttbX;
+    private final float[][] lttbY;
+    private long firstBucket = 0;
+    private long endBucket = 0;
+    private long lttbEnd = 0;
+    // published state of the bucket being filled
+    private long partialBucket = -1;
+    private final float[] partialMin;
+    private final float[] partialMax;
+
+    // decimates the listed channels of the samples arriving at
+    // samplingRate to width columns for the last windowSamples samples
+    public DisplayDecimator(int[] channels, int windowSamples, int width,
+                            int samplingRate, int refreshRate) {
+        if (width < 2) {
+            throw new IllegalArgumentException("At least two columns needed.");
+        }
+        this.channels = channels.clone();
+        this.width = width;
+        bucketSize = Math.max(1, (windowSamples + width - 1) / width);
+        publishInterval = Math.max(1, samplingRate / Math.max(1, refreshRate));
+        final int n = channels.length;
+        raw = new float[n][bucketSize];
+        prevRaw = new float[n][bucketSize];
+        curMin = new float[n];
+        curMax = new float[n];
+        curSum = new double[n];
+        lastX = new long[n];
+        lastY = new float[n];
+        min = new float[n][width];
+        max = new float[n][width];
+        lttbX = new long[n][width];
+        lttbY = new float[n][width];
+        partialMin = new float[n];
+        partialMax = new float[n];
+    }
+
+    public void setListener(Listener l) {
+        listener = l;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    // samples per column
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    public int[] getChannels() {
+        return channels.clone();
+    }
+
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        for (int i = 0; i < nSamples; i++) {
+            add(firstSampleNumber + i, interleaved, i * stride);
+        }
+    }
+
+    // one sample with all channels
+    public void put(long sampleNumber, float[] sample) {
+        add(sampleNumber, sample, 0);
+    }
+
+    private void add(long sampleNumber, float[] data, int offset) {
+        if (sampleNumber <= lastSampleNumber) {
+            // the sample numbers have started again
+            clear();
+        }
+        final long b = sampleNumber / bucketSize;
+        final int pos = (int) (sampleNumber - b * bucketSize);
+        if (b != bucket) {
+            if (bucket < 0) {
+                synchronized (this) {
+                    firstBucket = b;
+                    endBucket = b;
+                    lttbEnd = b;
+                }
+            } else {
+                finishBucket();
+            }
+            bucket = b;
+            start = pos;
+            count = 0;
+        } else {
+            // lost samples: repeat the previous one
+            while (start + count < pos) {
+                final int p = start + count;
+                for (int c = 0; c < channels.length; c++) {
+                    raw[c][p] = raw[c][p - 1];
+                }
+                count++;
+            }
+        }
+        for (int c = 0; c < channels.length; c++) {
+            final float v = data[offset + channels[c]];
+            raw[c][pos] = v;
+            if (count == 0) {
+                curMin[c] = v;
+                curMax[c] = v;
+                curSum[c] = v;
+            } else {
+                if (v < curMin[c]) curMin[c] = v;
+                if (v > curMax[c]) curMax[c] = v;
+                curSum[c] += v;
+            }
+        }
+        count++;
+        lastSampleNumber = sampleNumber;
+        if (++sinceLastPublish >= publishInterval) {
+            sinceLastPublish = 0;
+            publish();
+        }
+    }
+
+    // commits the bucket being filled before the samples of the next one arrive
+    private void finishBucket() {
+        synchronized (this) {
+            // buckets without samples
+            endBucket = Math.max(endBucket, bucket - width);
+            for (; endBucket < bucket; endBucket++) {
+                final int i = (int) (endBucket % width);
+                for (int c = 0; c < channels.length; c++) {
+                    min[c][i] = Float.NaN;
+                    max[c][i] = Float.NaN;
+                }
+            }
+            final int i = (int) (bucket % width);
+            for (int c = 0; c < channels.length; c++) {
+                min[c][i] = curMin[c];
+                max[c][i] = curMax[c];
+            }
+            endBucket = bucket + 1;
+            firstBucket = Math.max(firstBucket, endBucket - width);
+            if (prevBucket >= 0) {
+                selectPrevious();
+            }
+        }
+        final float[][] r = prevRaw;
+        prevRaw = raw;
+        raw = r;
+        prevBucket = bucket;
+        prevStart = start;
+        prevCount = count;
+    }
+
+    // chooses the LTTB point of the previous bucket: the one which
+    // spans the largest triangle with the point chosen before and the
+    // average of the bucket which has just been completed
+    private void selectPrevious() {
+        final boolean adjacent = prevBucket + 1 == bucket;
+        final long x0 = prevBucket * bucketSize + prevStart;
+        final double cx = bucket * bucketSize + start + (count - 1) / 2.0;
+        final int i = (int) (prevBucket % width);
+        final boolean inWindow = prevBucket >= firstBucket;
+        for (int c = 0; c < channels.length; c++) {
+            final float[] r = prevRaw[c];
+            int best = 0;
+            if (!hasLast) {
+                // the first point of a line
+                best = 0;
+            } else if (!adjacent) {
+                // the last point of a line
+                best = prevCount - 1;
+            } else {
+                final double ax = lastX[c];
+                final double ay = lastY[c];
+                final double cy = curSum[c] / count;
+                double bestArea = -1;
+                for (int k = 0; k < prevCount; k++) {
+                    final double area = Math.abs((ax - cx) * (r[prevStart + k] - ay)
+                            - (ax - (x0 + k)) * (cy - ay));
+                    if (area > bestArea) {
+                        bestArea = area;
+                        best = k;
+                    }
+                }
+            }
+            lastX[c] = x0 + best;
+            lastY[c] = r[prevStart + best];
+            if (inWindow) {
+                lttbX[c][i] = lastX[c];
+                lttbY[c][i] = lastY[c];
+            }
+        }
+        // after a gap the next point starts a new line
+        hasLast = adjacent;
+        lttbEnd = prevBucket + 1;
+    }
+
+    private void publish() {
+        synchronized (this) {
+            partialBucket = bucket;
+            System.arraycopy(curMin, 0, partialMin, 0, channels.length);
+            System.arraycopy(curMax, 0, partialMax, 0, channels.length);
+        }
+        final Listener l = listener;
+        if (l != null) {
+            l.displayUpdated(this);
+        }
+    }
+
+    private void clear() {
+        synchronized (this) {
+            firstBucket = 0;
+            endBucket = 0;
+            lttbEnd = 0;
+            partialBucket = -1;
+        }
+        bucket = -1;
+        prevBucket = -1;
+        hasLast = false;
+        lastSampleNumber = -1;
+        sinceLastPublish = 0;
+    }
+
+    private int indexOf(int channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel) return i;
+        }
+        throw new IllegalArgumentException("Channel " + channel + " isn't decimated.");
+    }
+
+    // the last bucket shown plus one
+    private long getLastBucket() {
+        return (partialBucket >= endBucket) ? partialBucket + 1 : endBucket;
+    }
+
+    // copies the min/max envelope of the channel, at most width columns
+    // ending with the bucket which is being filled
+    public synchronized void getEnvelope(int channel, Envelope e) {
+        final int c = indexOf(channel);
+        final long last = getLastBucket();
+        final long first = Math.max(firstBucket, last - width);
+        e.firstSampleNumber = first * bucketSize;
+        e.bucketSize = bucketSize;
+        int n = 0;
+        for (long b = first; b < last; b++) {
+            if (b < endBucket) {
+                final int i = (int) (b % width);
+                e.min[n] = min[c][i];
+                e.max[n] = max[c][i];
+            } else if (b == partialBucket) {
+                e.min[n] = partialMin[c];
+                e.max[n] = partialMax[c];
+            } else {
+                e.min[n] = Float.NaN;
+                e.max[n] = Float.NaN;
+            }
+            n++;
+        }
+        e.n = n;
+    }
+
+    // copies the LTTB points of the channel within the same window as
+    // the envelope. The latest bucket gets its point once it's complete.
+    public synchronized void getPoints(int channel, Points p) {
+        final int c = indexOf(channel);
+        final long first = Math.max(firstBucket, getLastBucket() - width);
+        int n = 0;
+        for (long b = first; b < lttbEnd; b++) {
+            final int i = (int) (b % width);
+            if (Float.isNaN(min[c][i])) continue;
+            p.sampleNumbers[n] = lttbX[c][i];
+            p.values[n] = lttbY[c][i];
+            n++;
+        }
+        p.n = n;
+    }
+}
@@ -0,0 +1,764 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams samples into a European Data Format file: EDF+ with 16 bit
+ * or BDF+ with 24 bit samples (the resolution of the ADC of the Attys).
+ * Like the AttysRecorder it's a BlockListener fed by its own dispatch
+ * thread.
+ * <p>
+ * The samples are converted to the digital values of the header and
+ * assembled in a reusable data record of RECORD_DURATION seconds.
+ * Finished records are collected in a buffer which is written with a
+ * FileChannel once it's full, so the memory used doesn't depend on
+ * the length of the session. The number of records in the header is
+ * -1 while recording and filled in by stop().
+ * <p>
+ * Every record has an annotation signal with its onset and the
+ * reconnects and gaps. Missing samples within a record repeat the
+ * last sample, records without any samples are left out and the
+ * file becomes discontinuous (EDF+D / BDF+D).
+ * <p>
+ * The physical ranges of an EDF file can't change. When a gain or
+ * range of a recorded channel changes while recording (see
+ * markConfigChange()) the file is closed at the first sample with the
+ * new settings and the recording continues in the next segment,
+ * getSegmentFile(), with the new ranges. Both files are annotated.
+ * Other changes of the settings are just annotated.
+ */
+public class EdfWriter implements BlockListener {
+
+    // 16 bit samples, EDF+
+    public final static int FORMAT_EDF = 0;
+    // 24 bit samples, BDF+
+    public final static int FORMAT_BDF = 1;
+
+    // duration of a data record in seconds
+    public final static int RECORD_DURATION = 1;
+    // size of the annotation signal of every record
+    public final static int ANNOTATION_BYTES = 120;
+    // annotations waiting for a record with space for them
+    public final static int MAX_PENDING_ANNOTATIONS = 64;
+
+    public final static int HEADER_FIELD_SIZE = 256;
+    // where "EDF+C" is in the header
+    public final static int RESERVED_POSITION = 192;
+    // where the number of records is in the header
+    public final static int RECORD_COUNT_POSITION = 236;
+
+    public final static int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final static String[] MONTHS = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN",
+            "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+
+    // separators of the time-stamped annotation lists (TALs)
+    private final static byte TAL_DURATION = 21;
+    private final static byte TAL_TEXT = 20;
+
+    private final File file;
+    private final int format;
+    private final int bytesPerSample;
+    private final int samplingRate;
+    private final int[] channelMap;
+    private final int samplesPerRecord;
+    private final int recordSize;
+    private final int bufferSize;
+    private final String[] labels;
+    private final String[] transducers;
+    private final String[] units;
+    private final float[] fullScaleRanges;
+    private String patient = "X X X X";
+
+    // per channel conversion to the digital values
+    private final double[] physicalMin;
+    private final double[] physicalMax;
+    private final int[] digitalMin;
+    private final int[] digitalMax;
+    private final double[] gain;
+
+    private volatile File currentFile;
+    private int segment = 0;
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel fileChannel = null;
+    private ByteBuffer out = null;
+    private final byte[] record;
+    // digital values of the last sample for filling gaps
+    private final int[] last;
+    // samples in the record so far
+    private int fill = 0;
+    private long firstSample = -1;
+    private long nextSample = -1;
+    private boolean discontinuous = false;
+    private volatile boolean recording = false;
+    private volatile long records = 0;
+    private volatile long samplesRecorded = 0;
+    private volatile long missingSamples = 0;
+    private volatile long skippedSamples = 0;
+    private volatile long droppedAnnotations = 0;
+    private volatile long bytesWritten = 0;
+    private IOException error = null;
+
+    // set by markReconnect(), -1 if there's none pending
+    private final AtomicLong pendingReconnect = new AtomicLong(-1);
+    // from markConfigChange(), in the order of their sample numbers
+    private final ConcurrentLinkedQueue<ConfigChange> pendingConfigs = new ConcurrentLinkedQueue<ConfigChange>();
+    // annotations for the first sample of the next segment
+    private String continuedFrom = null;
+    private String changedSettings = null;
+
+    private static final class ConfigChange {
+        final long sampleNumber;
+        final float[] ranges;
+        final String text;
+
+        ConfigChange(long sampleNumber, float[] ranges, String text) {
+            this.sampleNumber = sampleNumber;
+            this.ranges = ranges;
+            this.text = text;
+        }
+    }
+    // ring of annotations: onset in samples and the TAL
+    private final long[] annotationOnset = new long[MAX_PENDING_ANNOTATIONS];
+    private final byte[][] annotationText = new byte[MAX_PENDING_ANNOTATIONS][];
+    private int firstAnnotation = 0;
+    private int nAnnotations = 0;
+
+    // writes the channels in channelMap (indices of the sample array)
+    public EdfWriter(File file, int format, int samplingRate, int[] channelMap, int bufferSize) {
+        if ((format != FORMAT_EDF) && (format != FORMAT_BDF)) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        this.file = file;
+        currentFile = file;
+        this.format = format;
+        bytesPerSample = format == FORMAT_BDF ? 3 : 2;
+        this.samplingRate = samplingRate;
+        this.channelMap = channelMap.clone();
+        samplesPerRecord = samplingRate * RECORD_DURATION;
+        recordSize = channelMap.length * samplesPerRecord * bytesPerSample + ANNOTATION_BYTES;
+        if (bufferSize < recordSize) {
+            throw new IllegalArgumentException("Buffer too small for one data record.");
+        }
+        this.bufferSize = bufferSize;
+        record = new byte[recordSize];
+        last = new int[channelMap.length];
+        labels = new String[channelMap.length];
+        transducers = new String[channelMap.length];
+        units = new String[channelMap.length];
+        fullScaleRanges = new float[channelMap.length];
+        physicalMin = new double[channelMap.length];
+        physicalMax = new double[channelMap.length];
+        digitalMin = new int[channelMap.length];
+        digitalMax = new int[channelMap.length];
+        gain = new double[channelMap.length];
+        for (int i = 0; i < channelMap.length; i++) {
+            labels[i] = "";
+            transducers[i] = "";
+            units[i] = "";
+            fullScaleRanges[i] = 1;
+        }
+    }
+
+    public EdfWriter(File file, int format, int samplingRate, int[] channelMap) {
+        this(file, format, samplingRate, channelMap, DEFAULT_BUFFER_SIZE);
+    }
+
+    // the labels of all channels of the sample array, at most 16
+    // characters, for example AttysComm.CHANNEL_DESCRIPTION_SHORT.
+    // Call before start().
+    public void setLabels(String[] allLabels) {
+        for (int i = 0; i < channelMap.length; i++) {
+            labels[i] = allLabels[channelMap[i]];
+        }
+    }
+
+    // the transducer types of all channels of the sample array, for
+    // example AttysComm.CHANNEL_DESCRIPTION. Call before start().
+    public void setTransducers(String[] allTransducers) {
+        for (int i = 0; i < channelMap.length; i++) {
+            transducers[i] = allTransducers[channelMap[i]];
+        }
+    }
+
+    // the units of all channels of the sample array. Call before start().
+    public void setUnits(String[] allUnits) {
+        for (int i = 0; i < channelMap.length; i++) {
+            units[i] = allUnits[channelMap[i]];
+        }
+    }
+
+    // the full scale ranges of all channels of the sample array.
+    // The physical range is -range..+range. Call before start().
+    public void setFullScaleRanges(float[] allRanges) {
+        for (int i = 0; i < channelMap.length; i++) {
+            fullScaleRanges[i] = allRanges[channelMap[i]];
+        }
+    }
+
+    // the EDF+ patient identification: code, sex, birthdate, name,
+    // "X" if unknown. Call before start().
+    public void setPatient(String p) {
+        patient = p;
+    }
+
+    // the file given to the constructor, the first segment
+    public File getFile() {
+        return file;
+    }
+
+    // the segment which is being written
+    public File getCurrentFile() {
+        return currentFile;
+    }
+
+    // number of files started: 1 + the changes of the ranges
+    public synchronized int getNumberOfSegments() {
+        return segment + 1;
+    }
+
+    // segment 0 is file itself, segment n is name-(n+1).edf
+    public static File getSegmentFile(File file, int segment) {
+        if (segment == 0) return file;
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final String segmentName = dot > 0 ?
+                name.substring(0, dot) + "-" + (segment + 1) + name.substring(dot) :
+                name + "-" + (segment + 1);
+        return new File(file.getParentFile(), segmentName);
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public int[] getChannelMap() {
+        return channelMap.clone();
+    }
+
+    public int getSamplesPerRecord() {
+        return samplesPerRecord;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public long getSamplesRecorded() {
+        return samplesRecorded;
+    }
+
+    // the data records written so far into the current segment
+    public long getRecords() {
+        return records;
+    }
+
+    // samples which were missing in the sample numbers
+    public long getMissingSamples() {
+        return missingSamples;
+    }
+
+    // samples which have been skipped because their sample numbers
+    // had already been written
+    public long getSkippedSamples() {
+        return skippedSamples;
+    }
+
+    // annotations which didn't fit into MAX_PENDING_ANNOTATIONS or
+    // into the last record of a file
+    public long getDroppedAnnotations() {
+        return droppedAnnotations;
+    }
+
+    // bytes written into the current segment
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // creates the file and writes the header
+    public synchronized void start() throws IOException {
+        if (recording) return;
+        out = ByteBuffer.allocateDirect(bufferSize - bufferSize % recordSize);
+        open(file);
+        recording = true;
+    }
+
+    private void open(File f) throws IOException {
+        setupConversion();
+        currentFile = f;
+        records = 0;
+        randomAccessFile = new RandomAccessFile(f, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            fileChannel = randomAccessFile.getChannel();
+            writeHeader();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            fileChannel = null;
+            throw e;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        final ByteBuffer header = createHeader();
+        final int n = header.remaining();
+        while (header.hasRemaining()) {
+            fileChannel.write(header, header.position());
+        }
+        // the records follow the header
+        fileChannel.position(n);
+        bytesWritten = n;
+    }
+
+    // the physical range is -range to +range, minus one step so that
+    // the counts of the Attys map straight onto the digital values
+    private void setupConversion() {
+        final int bits = 8 * bytesPerSample;
+        for (int i = 0; i < channelMap.length; i++) {
+            final float range = fullScaleRanges[i];
+            if ((AttysCalibration.getBits(channelMap[i]) <= 1) || !(range > 0) || Float.isInfinite(range)) {
+                physicalMin[i] = 0;
+                physicalMax[i] = 1;
+                digitalMin[i] = 0;
+                digitalMax[i] = 1;
+            } else {
+                // as the reader will see them
+                physicalMin[i] = Double.parseDouble(formatNumber(-range));
+                physicalMax[i] = Double.parseDouble(formatNumber(range - 2.0 * range / (1 << bits)));
+                digitalMin[i] = -(1 << (bits - 1));
+                digitalMax[i] = (1 << (bits - 1)) - 1;
+            }
+            gain[i] = (digitalMax[i] - digitalMin[i]) / (physicalMax[i] - physicalMin[i]);
+        }
+    }
+
+    private ByteBuffer createHeader() {
+        final int ns = channelMap.length + 1;
+        final ByteBuffer b = ByteBuffer.allocate(HEADER_FIELD_SIZE * (ns + 1));
+        if (format == FORMAT_BDF) {
+            b.put((byte) 0xff);
+            putField(b, "BIOSEMI", 7);
+        } else {
+            putField(b, "0", 8);
+        }
+        final Calendar c = Calendar.getInstance();
+        putField(b, patient, 80);
+        putField(b, String.format(Locale.US, "Startdate %02d-%s-%04d X X Attys",
+                c.get(Calendar.DAY_OF_MONTH), MONTHS[c.get(Calendar.MONTH)], c.get(Calendar.YEAR)), 80);
+        putField(b, String.format(Locale.US, "%02d.%02d.%02d",
+                c.get(Calendar.DAY_OF_MONTH), c.get(Calendar.MONTH) + 1, c.get(Calendar.YEAR) % 100), 8);
+        putField(b, String.format(Locale.US, "%02d.%02d.%02d",
+                c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE), c.get(Calendar.SECOND)), 8);
+        putField(b, Integer.toString(HEADER_FIELD_SIZE * (ns + 1)), 8);
+        putField(b, format == FORMAT_BDF ? "BDF+C" : "EDF+C", 44);
+        putField(b, "-1", 8);
+        putField(b, Integer.toString(RECORD_DURATION), 8);
+        putField(b, Integer.toString(ns), 4);
+        final String annotations = format == FORMAT_BDF ? "BDF Annotations" : "EDF Annotations";
+        for (int i = 0; i < channelMap.length; i++) putField(b, labels[i], 16);
+        putField(b, annotations, 16);
+        for (int i = 0; i < channelMap.length; i++) putField(b, transducers[i], 80);
+        putField(b, "", 80);
+        for (int i = 0; i < channelMap.length; i++) putField(b, units[i], 8);
+        putField(b, "", 8);
+        for (int i = 0; i < channelMap.length; i++) putField(b, formatNumber(physicalMin[i]), 8);
+        putField(b, "-1", 8);
+        for (int i = 0; i < channelMap.length; i++) putField(b, formatNumber(physicalMax[i]), 8);
+        putField(b, "1", 8);
+        final int annotationMin = format == FORMAT_BDF ? -(1 << 23) : Short.MIN_VALUE;
+        for (int i = 0; i < channelMap.length; i++) putField(b, Integer.toString(digitalMin[i]), 8);
+        putField(b, Integer.toString(annotationMin), 8);
+        for (int i = 0; i < channelMap.length; i++) putField(b, Integer.toString(digitalMax[i]), 8);
+        putField(b, Integer.toString(-annotationMin - 1), 8);
+        for (int i = 0; i < ns; i++) putField(b, "", 80);
+        for (int i = 0; i < channelMap.length; i++) putField(b, Integer.toString(samplesPerRecord), 8);
+        putField(b, Integer.toString(ANNOTATION_BYTES / bytesPerSample), 8);
+        for (int i = 0; i < ns; i++) putField(b, "", 32);
+        b.flip();
+        return b;
+    }
+
+    // ASCII, left aligned and padded with spaces
+    private static void putField(ByteBuffer b, String s, int width) {
+        for (int i = 0; i < width; i++) {
+            char ch = i < s.length() ? s.charAt(i) : ' ';
+            if ((ch < 32) || (ch > 126)) ch = '?';
+            b.put((byte) ch);
+        }
+    }
+
+    // as many decimals as fit into the 8 characters of a header field
+    static String formatNumber(double v) {
+        for (int decimals = 7; decimals > 0; decimals--) {
+            String s = String.format(Locale.US, "%." + decimals + "f", v);
+            if (s.length() <= 8) {
+                while (s.endsWith("0")) s = s.substring(0, s.length() - 1);
+                if (s.endsWith(".")) s = s.substring(0, s.length() - 1);
+                return "-0".equals(s) ? "0" : s;
+            }
+        }
+        return String.format(Locale.US, "%.0f", v);
+    }
+
+    /////////////////////////////////////////////////
+    // producer
+
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        if (!recording) return;
+        int i = 0;
+        if ((nextSample >= 0) && (firstSampleNumber < nextSample)) {
+            i = (int) Math.min(nSamples, nextSample - firstSampleNumber);
+            skippedSamples += i;
+        }
+        if (i == nSamples) return;
+        try {
+            applyConfigChanges(firstSampleNumber + i);
+        } catch (IOException e) {
+            abort(e);
+            return;
+        }
+        if (firstSample < 0) {
+            begin(firstSampleNumber + i);
+        } else if (firstSampleNumber + i > nextSample) {
+            final long gap = firstSampleNumber + i - nextSample;
+            annotate(nextSample, gap, "Gap");
+            missingSamples += gap;
+            try {
+                fillUpTo(firstSampleNumber + i);
+            } catch (IOException e) {
+                abort(e);
+                return;
+            }
+        }
+        // after the gap which has led to it
+        final long reconnect = pendingReconnect.getAndSet(-1);
+        if (reconnect >= 0) {
+            annotate(reconnect, 0, "Reconnect");
+        }
+        final int nch = channelMap.length;
+        for (; i < nSamples; i++) {
+            if (!pendingConfigs.isEmpty()) {
+                try {
+                    if (applyConfigChanges(firstSampleNumber + i)) {
+                        // a new segment which starts with this sample
+                        begin(firstSampleNumber + i);
+                    }
+                } catch (IOException e) {
+                    abort(e);
+                    return;
+                }
+            }
+            final int p = i * stride;
+            for (int c = 0; c < nch; c++) {
+                last[c] = toDigital(c, interleaved[p + channelMap[c]]);
+            }
+            try {
+                putSample();
+            } catch (IOException e) {
+                abort(e);
+                return;
+            }
+            samplesRecorded++;
+        }
+    }
+
+    // tells the writer that the Attys has reconnected and continues
+    // at sampleNumber. Can be called from any thread.
+    public void markReconnect(long sampleNumber) {
+        pendingReconnect.set(sampleNumber);
+    }
+
+    // n is the first sample of the file
+    private void begin(long n) {
+        firstSample = n;
+        nextSample = n;
+        if (continuedFrom != null) {
+            annotate(n, 0, changedSettings);
+            annotate(n, 0, "Continued from " + continuedFrom);
+            continuedFrom = null;
+            changedSettings = null;
+        }
+    }
+
+    // tells the writer that the gains or ranges have changed from
+    // sampleNumber on. allRanges are the full scale ranges of all
+    // channels of the sample array. Can be called from any thread.
+    public void markConfigChange(long sampleNumber, AttysConfig config, float[] allRanges) {
+        final float[] r = new float[channelMap.length];
+        for (int i = 0; i < channelMap.length; i++) {
+            r[i] = allRanges[channelMap[i]];
+        }
+        pendingConfigs.add(new ConfigChange(sampleNumber, r, "Settings changed: " + config));
+    }
+
+    // the changes which apply from sample number n on. Returns true if
+    // a new segment has been started.
+    private boolean applyConfigChanges(long n) throws IOException {
+        boolean newSegment = false;
+        ConfigChange c;
+        while (((c = pendingConfigs.peek()) != null) && (c.sampleNumber <= n)) {
+            pendingConfigs.poll();
+            if (Arrays.equals(c.ranges, fullScaleRanges)) {
+                if (firstSample >= 0) {
+                    annotate(Math.max(c.sampleNumber, nextSample), 0, c.text);
+                }
+                continue;
+            }
+            System.arraycopy(c.ranges, 0, fullScaleRanges, 0, c.ranges.length);
+            if (firstSample < 0) {
+                // nothing written yet: the header can still be changed
+                setupConversion();
+                writeHeader();
+                continue;
+            }
+            nextSegment(c);
+            newSegment = true;
+        }
+        return newSegment;
+    }
+
+    // closes the current file and continues with the new ranges in the next one
+    private void nextSegment(ConfigChange c) throws IOException {
+        final File next = getSegmentFile(file, segment + 1);
+        annotate(nextSample, 0, "Continued in " + next.getName());
+        close();
+        synchronized (this) {
+            segment++;
+        }
+        continuedFrom = currentFile.getName();
+        changedSettings = c.text;
+        firstSample = -1;
+        nextSample = -1;
+        fill = 0;
+        discontinuous = false;
+        open(next);
+    }
+
+    private int toDigital(int c, float v) {
+        if (v != v) return digitalMin[c];
+        final long d = Math.round((v - physicalMin[c]) * gain[c]) + digitalMin[c];
+        if (d < digitalMin[c]) return digitalMin[c];
+        if (d > digitalMax[c]) return digitalMax[c];
+        return (int) d;
+    }
+
+    // puts the digital values in last into the record
+    private void putSample() throws IOException {
+        final byte[] r = record;
+        final int bps = bytesPerSample;
+        int p = fill * bps;
+        for (int c = 0; c < last.length; c++) {
+            final int v = last[c];
+            r[p] = (byte) v;
+            r[p + 1] = (byte) (v >> 8);
+            if (bps == 3) r[p + 2] = (byte) (v >> 16);
+            p += samplesPerRecord * bps;
+        }
+        fill++;
+        nextSample++;
+        if (fill == samplesPerRecord) {
+            finishRecord();
+        }
+    }
+
+    // repeats the last sample till sample number to. Leaves out
+    // the records which would only consist of repeated samples.
+    private void fillUpTo(long to) throws IOException {
+        while (nextSample < to) {
+            if ((fill == 0) && (to - nextSample >= samplesPerRecord)) {
+                nextSample += (to - nextSample) / samplesPerRecord * samplesPerRecord;
+                discontinuous = true;
+            } else {
+                putSample();
+            }
+        }
+    }
+
+    private void annotate(long onset, long duration, String text) {
+        if (nAnnotations == MAX_PENDING_ANNOTATIONS) {
+            droppedAnnotations++;
+            return;
+        }
+        byte[] t = tal(onset, duration, text);
+        // shortened so that there's space for the time keeping
+        while (t.length > ANNOTATION_BYTES - 24) {
+            text = text.substring(0, text.length() - 1);
+            t = tal(onset, duration, text);
+        }
+        final int i = (firstAnnotation + nAnnotations) % MAX_PENDING_ANNOTATIONS;
+        annotationOnset[i] = onset;
+        annotationText[i] = t;
+        nAnnotations++;
+    }
+
+    // seconds since the start of the recording
+    private String seconds(long samples) {
+        final long s = Math.max(0, samples - firstSample);
+        if (s % samplingRate == 0) {
+            return Long.toString(s / samplingRate);
+        }
+        return formatSeconds((double) s / samplingRate);
+    }
+
+    private static String formatSeconds(double s) {
+        String t = String.format(Locale.US, "%.6f", s);
+        while (t.endsWith("0")) t = t.substring(0, t.length() - 1);
+        if (t.endsWith(".")) t = t.substring(0, t.length() - 1);
+        return t;
+    }
+
+    // +onset[0x15 duration]0x14 text 0x14 0x00
+    private byte[] tal(long onset, long duration, String text) {
+        final StringBuilder s = new StringBuilder("+").append(seconds(onset));
+        if (duration > 0) {
+            s.append((char) TAL_DURATION).append(formatSeconds((double) duration / samplingRate));
+        }
+        s.append((char) TAL_TEXT).append(text).append((char) TAL_TEXT).append((char) 0);
+        return s.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // adds the annotation signal and moves the record into the buffer
+    private void finishRecord() throws IOException {
+        final byte[] r = record;
+        final long start = nextSample - fill;
+        int p = recordSize - ANNOTATION_BYTES;
+        // time keeping TAL: onset of the record
+        r[p++] = '+';
+        p = putDigits(r, p, (start - firstSample) / samplingRate);
+        r[p++] = TAL_TEXT;
+        r[p++] = TAL_TEXT;
+        r[p++] = 0;
+        // the annotations up to the end of the record which still fit
+        while ((nAnnotations > 0) && (annotationOnset[firstAnnotation] < nextSample)) {
+            final byte[] t = annotationText[firstAnnotation];
+            if (p + t.length > recordSize) break;
+            System.arraycopy(t, 0, r, p, t.length);
+            p += t.length;
+            annotationText[firstAnnotation] = null;
+            firstAnnotation = (firstAnnotation + 1) % MAX_PENDING_ANNOTATIONS;
+            nAnnotations--;
+        }
+        Arrays.fill(r, p, recordSize, (byte) 0);
+        if (out.remaining() < recordSize) {
+            flush();
+        }
+        out.put(r);
+        fill = 0;
+        records++;
+    }
+
+    private static int putDigits(byte[] r, int p, long v) {
+        long div = 1;
+        while (v / div >= 10) div *= 10;
+        for (; div > 0; div /= 10) {
+            r[p++] = (byte) ('0' + (v / div) % 10);
+        }
+        return p;
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        final int n = out.remaining();
+        while (out.hasRemaining()) {
+            fileChannel.write(out);
+        }
+        bytesWritten += n;
+        out.clear();
+    }
+
+    private void abort(IOException e) {
+        error = e;
+        recording = false;
+    }
+
+    // the error while writing or null
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    // completes the last record with its last sample, writes out the
+    // buffer, fills in the number of records and closes the file. Call
+    // it once the producer has stopped calling gotDataBlock().
+    public synchronized void stop() throws IOException {
+        recording = false;
+        if (fileChannel != null) {
+            try {
+                if (error == null) {
+                    if (fill > 0) {
+                        annotate(nextSample, 0, "Recording ends");
+                    }
+                    close();
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                if (fileChannel != null) {
+                    randomAccessFile.close();
+                    fileChannel = null;
+                }
+            }
+        }
+        out = null;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // completes the last record, fills in the header and closes the
+    // current file
+    private void close() throws IOException {
+        try {
+            if (fill > 0) {
+                fillUpTo(nextSample + samplesPerRecord - fill);
+            }
+            // what hasn't fit into the last record is lost
+            droppedAnnotations += nAnnotations;
+            Arrays.fill(annotationText, null);
+            firstAnnotation = 0;
+            nAnnotations = 0;
+            flush();
+            final ByteBuffer b = ByteBuffer.allocate(44 + 8);
+            putField(b, discontinuous ? (format == FORMAT_BDF ? "BDF+D" : "EDF+D")
+                    : (format == FORMAT_BDF ? "BDF+C" : "EDF+C"), 44);
+            putField(b, Long.toString(records), 8);
+            b.flip();
+            fileChannel.write(b, RESERVED_POSITION);
+            fileChannel.force(false);
+        } finally {
+            randomAccessFile.close();
+            fileChannel = null;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cascaded biquad filters for every channel which run on the
+ * acquisition thread before the samples are delivered, for example
+ * a 50Hz notch and a 0.5Hz highpass for the ECG.
+ * <p>
+ * The filters are specified by their type and frequency and designed
+ * (RBJ audio EQ cookbook) for the current sampling rate. Changing the
+ * sampling rate or the filters designs a new set of coefficients and
+ * state arrays which the filtering thread picks up with the next
+ * sample. Filtering itself doesn't allocate anything: it works in
+ * place in transposed direct form II with the state in double arrays.
+ * Only one thread may filter.
+ */
+public class FilterStage {
+
+    public final static int NOTCH = 0;
+    public final static int HIGHPASS = 1;
+    public final static int LOWPASS = 2;
+
+    // 5Hz wide at 50Hz
+    public final static double DEFAULT_NOTCH_Q = 10;
+    // Butterworth
+    public final static double DEFAULT_Q = 0.7071067811865476;
+
+    // coefficients per section: b0, b1, b2, a1, a2
+    private final static int NCOEFF = 5;
+    // state per section
+    private final static int NSTATE = 2;
+
+    private final int nChannels;
+    private final List<List<double[]>> specs;
+    private int samplingRate;
+
+    // what the filtering thread uses. Replaced as a whole.
+    private volatile Design design = null;
+
+    private final static class Design {
+        // channels which have filters
+        final int[] channels;
+        // per entry of channels
+        final double[][] coeff;
+        final double[][] state;
+
+        Design(int[] channels, double[][] coeff) {
+            this.channels = channels;
+            this.coeff = coeff;
+            state = new double[channels.length][];
+            for (int i = 0; i < channels.length; i++) {
+                state[i] = new double[coeff[i].length / NCOEFF * NSTATE];
+            }
+        }
+    }
+
+    public FilterStage(int nChannels, int samplingRate) {
+        this.nChannels = nChannels;
+        this.samplingRate = samplingRate;
+        specs = new ArrayList<List<double[]>>(nChannels);
+        for (int i = 0; i < nChannels; i++) {
+            specs.add(new ArrayList<double[]>());
+        }
+    }
+
+    public int getNumberOfChannels() {
+        return nChannels;
+    }
+
+    public synchronized int getSamplingRate() {
+        return samplingRate;
+    }
+
+    // designs all filters for the new sampling rate. The filter
+    // states start from zero again.
+    public synchronized void setSamplingRate(int rate) {
+        if (rate == samplingRate) return;
+        samplingRate = rate;
+        redesign();
+    }
+
+    // appends a filter to the chain of the channel
+    public synchronized void addFilter(int channel, int type, double frequency, double q) {
+        if ((type < NOTCH) || (type > LOWPASS)) {
+            throw new IllegalArgumentException("Unknown filter type: " + type);
+        }
+        if ((frequency <= 0) || (q <= 0)) {
+            throw new IllegalArgumentException("Frequency and Q need to be positive.");
+        }
+        specs.get(channel).add(new double[]{type, frequency, q});
+        redesign();
+    }
+
+    public void addNotch(int channel, double frequency) {
+        addFilter(channel, NOTCH, frequency, DEFAULT_NOTCH_Q);
+    }
+
+    public void addHighpass(int channel, double frequency) {
+        addFilter(channel, HIGHPASS, frequency, DEFAULT_Q);
+    }
+
+    public void addLowpass(int channel, double frequency) {
+        addFilter(channel, LOWPASS, frequency, DEFAULT_Q);
+    }
+
+    // removes all filters of the channel
+    public synchronized void clearFilters(int channel) {
+        specs.get(channel).clear();
+        redesign();
+    }
+
+    public synchronized void clearAll() {
+        for (List<double[]> s : specs) {
+            s.clear();
+        }
+        redesign();
+    }
+
+    public synchronized int getNumberOfFilters(int channel) {
+        return specs.get(channel).size();
+    }
+
+    // true if at least one channel is filtered
+    public boolean isActive() {
+        return design != null;
+    }
+
+    // sets the filter states back to zero
+    public synchronized void reset() {
+        redesign();
+    }
+
+    private void redesign() {
+        int n = 0;
+        for (List<double[]> s : specs) {
+            if (!s.isEmpty()) n++;
+        }
+        if (n == 0) {
+            design = null;
+            return;
+        }
+        final int[] channels = new int[n];
+        final double[][] coeff = new double[n][];
+        int j = 0;
+        for (int c = 0; c < nChannels; c++) {
+            final List<double[]> s = specs.get(c);
+            if (s.isEmpty()) continue;
+            final double[] k = new double[s.size() * NCOEFF];
+            for (int i = 0; i < s.size(); i++) {
+                final double[] spec = s.get(i);
+                design(k, i * NCOEFF, (int) spec[0], spec[1], spec[2], samplingRate);
+            }
+            channels[j] = c;
+            coeff[j] = k;
+            j++;
+        }
+        design = new Design(channels, coeff);
+    }
+
+    // writes the coefficients of one biquad to k at offset. Filters at
+    // or above the Nyquist frequency are replaced by a bypass.
+    static void design(double[] k, int offset, int type, double f, double q, int rate) {
+        if (f >= rate / 2.0) {
+            k[offset] = 1;
+            k[offset + 1] = 0;
+            k[offset + 2] = 0;
+            k[offset + 3] = 0;
+            k[offset + 4] = 0;
+            return;
+        }
+        final double w0 = 2 * Math.PI * f / rate;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        final double b0, b1, b2;
+        switch (type) {
+            case NOTCH:
+                b0 = 1;
+                b1 = -2 * cos;
+                b2 = 1;
+                break;
+            case HIGHPASS:
+                b0 = (1 + cos) / 2;
+                b1 = -(1 + cos);
+                b2 = (1 + cos) / 2;
+                break;
+            default:
+                b0 = (1 - cos) / 2;
+                b1 = 1 - cos;
+                b2 = (1 - cos) / 2;
+                break;
+        }
+        final double a0 = 1 + alpha;
+        k[offset] = b0 / a0;
+        k[offset + 1] = b1 / a0;
+        k[offset + 2] = b2 / a0;
+        k[offset + 3] = -2 * cos / a0;
+        k[offset + 4] = (1 - alpha) / a0;
+    }
+
+    // filters one sample with all channels in place
+    public void filter(float[] sample) {
+        final Design d = design;
+        if (d == null) return;
+        final int[] channels = d.channels;
+        for (int i = 0; i < channels.length; i++) {
+            final int c = channels[i];
+            sample[c] = (float) run(d.coeff[i], d.state[i], sample[c]);
+        }
+    }
+
+    // filters nSamples interleaved samples in place
+    public void filter(float[] interleaved, int nSamples, int stride) {
+        final Design d = design;
+        if (d == null) return;
+        final int[] channels = d.channels;
+        for (int i = 0; i < channels.length; i++) {
+            final double[] k = d.coeff[i];
+            final double[] z = d.state[i];
+            final int nSections = k.length / NCOEFF;
+            // one section at a time over the whole block so that its
+            // coefficients and state stay in registers
+            for (int s = 0; s < nSections; s++) {
+                final int o = s * NCOEFF;
+                final double b0 = k[o];
+                final double b1 = k[o + 1];
+                final double b2 = k[o + 2];
+                final double a1 = k[o + 3];
+                final double a2 = k[o + 4];
+                double z1 = z[s * NSTATE];
+                double z2 = z[s * NSTATE + 1];
+                for (int j = channels[i], n = 0; n < nSamples; n++, j += stride) {
+                    final double x = interleaved[j];
+                    final double y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    interleaved[j] = (float) y;
+                }
+                z[s * NSTATE] = z1;
+                z[s * NSTATE + 1] = z2;
+            }
+        }
+    }
+
+    // runs one value through the chain of sections
+    private static double run(double[] k, double[] z, double x) {
+        for (int o = 0, s = 0; o < k.length; o += NCOEFF, s += NSTATE) {
+            final double y = k[o] * x + z[s];
+            z[s] = k[o + 1] * x - k[o + 3] * y + z[s + 1];
+            z[s + 1] = k[o + 2] * x - k[o + 4] * y;
+            x = y;
+        }
+        return x;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in nanoseconds in a fixed number of
+ * logarithmic buckets: every power of two is split into SUB_BUCKETS
+ * buckets so that a percentile is off by less than 1/SUB_BUCKETS
+ * (6%) from the exact value. Covers the whole range of long with
+ * a few kilobytes and never allocates.
+ * <p>
+ * Any number of threads can record at the same time without locking.
+ * Reading while others record gives a consistent enough picture for
+ * monitoring: the counts of the buckets may be a few samples apart.
+ * reset() clears it at runtime, for example after a warm up.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 4;
+    public final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKETS have a bucket each, then
+    // SUB_BUCKETS per power of two up to 2^63
+    public final static int NBUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public LatencyHistogram() {
+        this("latency");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // bucket of a value. Negative values count as 0.
+    public static int bucketOf(long v) {
+        if (v < SUB_BUCKETS) {
+            return v < 0 ? 0 : (int) v;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(v);
+        final int sub = (int) (v >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // smallest value which falls into the bucket
+    public static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    // largest value which falls into the bucket
+    public static long highestValueOf(int bucket) {
+        if (bucket == NBUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValueOf(bucket + 1) - 1;
+    }
+
+    public void record(long nanos) {
+        counts.getAndIncrement(bucketOf(nanos));
+        total.getAndIncrement();
+        sum.getAndAdd(nanos);
+        long m = max.get();
+        while ((nanos > m) && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    // clears all buckets
+    public void reset() {
+        for (int i = 0; i < NBUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long n = total.get();
+        if (n == 0) return 0;
+        return sum.get() / (double) n;
+    }
+
+    // the value below which the given percentage (0..100) of all
+    // recorded values lie. Reports the upper end of the bucket so that
+    // it never underestimates but never beyond the maximum. 0 if empty.
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < NBUCKETS; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        if (rank < 1) rank = 1;
+        long c = 0;
+        for (int i = 0; i < NBUCKETS; i++) {
+            c += counts.get(i);
+            if (c >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // appends name=value pairs: <name>_count, <name>_p50_ns,
+    // <name>_p99_ns, <name>_p999_ns and <name>_max_ns
+    public void format(StringBuilder b) {
+        b.append(name).append("_count=").append(getCount());
+        b.append(' ').append(name).append("_p50_ns=").append(getPercentile(50));
+        b.append(' ').append(name).append("_p99_ns=").append(getPercentile(99));
+        b.append(' ').append(name).append("_p999_ns=").append(getPercentile(99.9));
+        b.append(' ').append(name).append("_max_ns=").append(getMax());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder b = new StringBuilder();
+        format(b);
+        return b.toString();
+    }
+}
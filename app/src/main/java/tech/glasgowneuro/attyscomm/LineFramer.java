@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the byte stream from the Attys into lines without
+ * allocating anything per line. The current line is kept in
+ * a reusable buffer which is overwritten by the next readLine().
+ * Lines end with CR, LF or any combination of them and empty
+ * lines are skipped.
+ */
+public final class LineFramer {
+
+    public final static int DEFAULT_BUFFER_SIZE = 1024;
+    public final static int DEFAULT_MAX_LINE_LENGTH = 128;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private final byte[] line;
+    private int lineLength = 0;
+    private long overlongLines = 0;
+
+    public LineFramer(InputStream inputStream, int bufferSize, int maxLineLength) {
+        in = inputStream;
+        buffer = new byte[bufferSize];
+        line = new byte[maxLineLength];
+    }
+
+    public LineFramer(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    // blocks until a complete line has arrived and returns its length
+    // or -1 at the end of the stream. Characters beyond the
+    // maximum line length are dropped.
+    public int readLine() throws IOException {
+        final byte[] buf = buffer;
+        final byte[] l = line;
+        int n = 0;
+        boolean overlong = false;
+        int p = pos;
+        int lim = limit;
+        while (true) {
+            if (p == lim) {
+                final int r = in.read(buf, 0, buf.length);
+                if (r < 0) {
+                    pos = 0;
+                    limit = 0;
+                    lineLength = n;
+                    return n > 0 ? n : -1;
+                }
+                p = 0;
+                lim = r;
+                continue;
+            }
+            final byte b = buf[p++];
+            if ((b == '\r') || (b == '\n')) {
+                if (n > 0) {
+                    pos = p;
+                    limit = lim;
+                    lineLength = n;
+                    if (overlong) overlongLines++;
+                    return n;
+                }
+            } else if (n < l.length) {
+                l[n++] = b;
+            } else {
+                overlong = true;
+            }
+        }
+    }
+
+    // the buffer holding the current line. Valid till the next readLine().
+    public byte[] getLine() {
+        return line;
+    }
+
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    // checks if the current line is the "OK" from the Attys
+    public boolean isOK() {
+        return (lineLength == 2) && (line[0] == 'O') && (line[1] == 'K');
+    }
+
+    public long getOverlongLines() {
+        return overlongLines;
+    }
+
+    // allocates! Only for logging.
+    public String lineToString() {
+        return new String(line, 0, lineLength, StandardCharsets.US_ASCII);
+    }
+}
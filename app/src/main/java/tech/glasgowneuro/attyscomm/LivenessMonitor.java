@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects that the Attys has stopped sending. The acquisition thread
+ * reports the arrival time of every packet which is just a volatile
+ * write. A task on a scheduler wakes up when the timeout after the
+ * most recent packet would expire: if a packet has arrived in the
+ * meantime it goes back to sleep until the new deadline, otherwise
+ * it calls onTimeout and stays quiet until it's armed again.
+ * <p>
+ * Nothing polls at a fixed rate so one scheduler thread can watch
+ * any number of Attys. getSharedScheduler() is the one used by default.
+ */
+public class LivenessMonitor {
+
+    public final static long DEFAULT_TIMEOUT_IN_MS = 1000;
+
+    private static ScheduledExecutorService sharedScheduler = null;
+
+    private final ScheduledExecutorService scheduler;
+    private final Runnable onTimeout;
+    private final long timeoutNanos;
+    private volatile long lastPacketNanos = 0;
+    private volatile long timeouts = 0;
+
+    // guarded by this
+    private boolean armed = false;
+    // checks from before the most recent arm() or disarm() are ignored
+    private long generation = 0;
+    private ScheduledFuture<?> check = null;
+
+    // onTimeout is run on the scheduler thread and should return quickly
+    public LivenessMonitor(ScheduledExecutorService scheduler, long timeoutInMs, Runnable onTimeout) {
+        this.scheduler = scheduler;
+        this.onTimeout = onTimeout;
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+    }
+
+    // one daemon thread for all Attys in this process
+    public static synchronized ScheduledExecutorService getSharedScheduler() {
+        if (sharedScheduler == null) {
+            sharedScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "AttysScheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sharedScheduler;
+    }
+
+    public long getTimeoutInMs() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    // called by the acquisition thread for every packet
+    public void alive(long nanoTime) {
+        lastPacketNanos = nanoTime;
+    }
+
+    public long getLastPacketNanos() {
+        return lastPacketNanos;
+    }
+
+    // number of times onTimeout has been called
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    // starts watching, counting from now
+    public synchronized void arm() {
+        lastPacketNanos = System.nanoTime();
+        armed = true;
+        generation++;
+        schedule(timeoutNanos);
+    }
+
+    // stops watching, for example while reconnecting
+    public synchronized void disarm() {
+        armed = false;
+        generation++;
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    public synchronized boolean isArmed() {
+        return armed;
+    }
+
+    private void schedule(long delayNanos) {
+        if (check != null) {
+            check.cancel(false);
+        }
+        check = scheduler.schedule(new Check(generation), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private final class Check implements Runnable {
+        private final long armedGeneration;
+
+        Check(long g) {
+            armedGeneration = g;
+        }
+
+        @Override
+        public void run() {
+            synchronized (LivenessMonitor.this) {
+                if (!armed || (generation != armedGeneration)) return;
+                final long silent = System.nanoTime() - lastPacketNanos;
+                if (silent < timeoutNanos) {
+                    check = scheduler.schedule(this, timeoutNanos - silent, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                armed = false;
+                generation++;
+                check = null;
+            }
+            timeouts++;
+            onTimeout.run();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Compresses blocks of recorded samples without losing a single bit,
+ * similar to FLAC. The samples are floats but the ones coming straight
+ * from the decoder are counts times the scale of AttysCalibration plus
+ * its offset, so every channel is turned back into its 24 bit (ADC),
+ * 16 bit (accelerometer, magnetometer) or 1 bit (digital inputs) counts
+ * with the full scale range of the block. A float which doesn't come
+ * back exactly is stored as it is, so that filtered samples or a range
+ * which doesn't match cost space but never accuracy.
+ * <p>
+ * The counts are predicted by the best of the fixed linear predictors
+ * of order 0 to MAX_ORDER (polynomials through the previous samples)
+ * and the residuals are zigzag and Rice coded in partitions of
+ * PARTITION_SIZE values, each with its own Rice parameter.
+ * <p>
+ * Every block can be decoded on its own. All buffers are allocated
+ * by the constructor for blocks of up to maxSamples samples.
+ * Not thread safe: one per thread.
+ * <p>
+ * A block is, per channel:
+ * <pre>
+ * 32 bits  full scale range (float)
+ * 2 bits   MODE_RAW:       32 bits float per sample, done
+ *          MODE_CONSTANT:  the count with the bits of the channel
+ *          MODE_PREDICTED: 3 bits order, order counts with the bits
+ *                          of the channel, then for every partition
+ *                          5 bits Rice parameter k and the residuals:
+ *                          unary quotient (31 ones: 32 bits zigzag
+ *                          residual follows) and k bits remainder
+ * exceptions (not for MODE_RAW): their number and for each
+ *          its position and the float, the number and the position
+ *          with as many bits as the number of samples needs
+ * </pre>
+ */
+public final class LosslessCodec {
+
+    public final static int MAX_ORDER = 4;
+    public final static int PARTITION_SIZE = 64;
+
+    private final static int MODE_RAW = 0;
+    private final static int MODE_CONSTANT = 1;
+    private final static int MODE_PREDICTED = 2;
+    // quotient which escapes to the zigzag residual as it is
+    private final static int ESCAPE_Q = 31;
+
+    private final int nChannels;
+    private final int maxSamples;
+    private final int[] bits;
+    private final int[] zeroCount;
+
+    // scratch
+    private final int[] counts;
+    private final int[] residuals;
+    private final int[] exceptions;
+    private final long[] sum = new long[MAX_ORDER + 1];
+    private final BitWriter writer;
+    private final BitReader reader = new BitReader();
+
+    // channelMap: the index in the sample array (AttysComm.INDEX_...)
+    // of every channel
+    public LosslessCodec(int[] channelMap, int maxSamples) {
+        if (maxSamples < 1) {
+            throw new IllegalArgumentException("maxSamples must be at least 1.");
+        }
+        nChannels = channelMap.length;
+        this.maxSamples = maxSamples;
+        bits = new int[nChannels];
+        zeroCount = new int[nChannels];
+        for (int c = 0; c < nChannels; c++) {
+            bits[c] = AttysCalibration.getBits(channelMap[c]);
+            zeroCount[c] = bits[c] > 1 ? 1 << (bits[c] - 1) : 0;
+        }
+        counts = new int[maxSamples];
+        residuals = new int[maxSamples];
+        exceptions = new int[maxSamples];
+        writer = new BitWriter(getMaxEncodedSize(nChannels, maxSamples));
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    // bytes a block of n samples can take in the worst case
+    public static int getMaxEncodedSize(int nChannels, int n) {
+        final long perChannel = 32 + 2 + 3 + 32L * MAX_ORDER + (n / PARTITION_SIZE + 1) * 5L
+                + n * (long) (ESCAPE_Q + 32) + 32 + (n / 4 + 1) * 64L;
+        return (int) (nChannels * (perChannel / 8 + 1) + 8);
+    }
+
+    // the encoded block, valid till the next encode()
+    public byte[] getEncoded() {
+        return writer.getBuffer();
+    }
+
+    // encodes n samples of interleaved (nChannels floats each) with the
+    // full scale range of every channel and returns the number of
+    // bytes in getEncoded()
+    public int encode(float[] interleaved, int n, float[] fullScaleRanges) {
+        if (n > maxSamples) {
+            throw new IllegalArgumentException("More than " + maxSamples + " samples.");
+        }
+        final BitWriter w = writer;
+        w.reset();
+        for (int c = 0; c < nChannels; c++) {
+            encodeChannel(interleaved, c, n, fullScaleRanges[c], w);
+        }
+        return w.finish();
+    }
+
+    private void encodeChannel(float[] interleaved, int c, int n, float range, BitWriter w) {
+        w.write(Float.floatToRawIntBits(range), 32);
+        final int nExceptions = quantise(interleaved, c, n, range);
+        if ((nExceptions < 0) || (nExceptions > n / 4)) {
+            w.write(MODE_RAW, 2);
+            for (int i = 0; i < n; i++) {
+                w.write(Float.floatToRawIntBits(interleaved[i * nChannels + c]), 32);
+            }
+            return;
+        }
+        final int[] x = counts;
+        boolean constant = true;
+        for (int i = 1; i < n; i++) {
+            if (x[i] != x[0]) {
+                constant = false;
+                break;
+            }
+        }
+        if (constant) {
+            w.write(MODE_CONSTANT, 2);
+            w.write(x[0], bits[c]);
+        } else {
+            final int order = bestOrder(n);
+            w.write(MODE_PREDICTED, 2);
+            w.write(order, 3);
+            for (int i = 0; i < order; i++) {
+                w.write(x[i], bits[c]);
+            }
+            residuals(order, n);
+            for (int p = order; p < n; p += PARTITION_SIZE) {
+                writePartition(p, Math.min(n, p + PARTITION_SIZE), w);
+            }
+        }
+        final int indexBits = 32 - Integer.numberOfLeadingZeros(n);
+        w.write(nExceptions, indexBits);
+        for (int i = 0; i < nExceptions; i++) {
+            final int k = exceptions[i];
+            w.write(k, indexBits);
+            w.write(Float.floatToRawIntBits(interleaved[k * nChannels + c]), 32);
+        }
+    }
+
+    // turns the floats of channel c back into counts and notes the
+    // positions of the ones which don't come back exactly. Returns
+    // their number or -1 if the channel can't have counts.
+    private int quantise(float[] interleaved, int c, int n, float range) {
+        if ((bits[c] == 0) || !(range > 0) || Float.isInfinite(range)) return -1;
+        final int zero = zeroCount[c];
+        final float scale = zero > 0 ? range / zero : 1;
+        final long max = (1L << bits[c]) - 1;
+        int nExceptions = 0;
+        int prev = zero;
+        for (int i = 0; i < n; i++) {
+            final float f = interleaved[i * nChannels + c];
+            final double q = Math.floor((double) f / scale + zero + 0.5);
+            if ((q >= 0) && (q <= max)) {
+                final int k = (int) q;
+                if (Float.floatToRawIntBits(AttysCalibration.toSI(k, zero, scale)) == Float.floatToRawIntBits(f)) {
+                    counts[i] = k;
+                    prev = k;
+                    continue;
+                }
+            }
+            // the float is stored as it is, the count continues smoothly
+            counts[i] = prev;
+            exceptions[nExceptions++] = i;
+        }
+        return nExceptions;
+    }
+
+    // the fixed predictor with the smallest sum of absolute residuals
+    private int bestOrder(int n) {
+        if (n <= MAX_ORDER) return 0;
+        final int[] x = counts;
+        final long[] sum = this.sum;
+        for (int p = 0; p <= MAX_ORDER; p++) {
+            sum[p] = 0;
+        }
+        for (int i = MAX_ORDER; i < n; i++) {
+            // the residual of order p is the difference of the
+            // residuals of order p - 1
+            final int e0 = x[i];
+            final int e1 = e0 - x[i - 1];
+            final int e2 = e1 - (x[i - 1] - x[i - 2]);
+            final int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+            final int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+            sum[0] += Math.abs(e0);
+            sum[1] += Math.abs(e1);
+            sum[2] += Math.abs(e2);
+            sum[3] += Math.abs(e3);
+            sum[4] += Math.abs(e4);
+        }
+        int order = 0;
+        for (int p = 1; p <= MAX_ORDER; p++) {
+            if (sum[p] < sum[order]) {
+                order = p;
+            }
+        }
+        return order;
+    }
+
+    // the zigzag encoded residuals from order on
+    private void residuals(int order, int n) {
+        final int[] x = counts;
+        final int[] r = residuals;
+        for (int i = order; i < n; i++) {
+            final int e = x[i] - predict(x, i, order);
+            r[i] = (e << 1) ^ (e >> 31);
+        }
+    }
+
+    private static int predict(int[] x, int i, int order) {
+        switch (order) {
+            case 1:
+                return x[i - 1];
+            case 2:
+                return 2 * x[i - 1] - x[i - 2];
+            case 3:
+                return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            case 4:
+                return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+            default:
+                return 0;
+        }
+    }
+
+    private void writePartition(int from, int to, BitWriter w) {
+        final int[] r = residuals;
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += r[i] & 0xffffffffL;
+        }
+        final long mean = sum / (to - from);
+        final int guess = mean > 0 ? 63 - Long.numberOfLeadingZeros(mean) : 0;
+        int k = guess;
+        long best = Long.MAX_VALUE;
+        for (int t = Math.max(0, guess - 1); t <= Math.min(30, guess + 1); t++) {
+            long cost = (long) (to - from) * (t + 1);
+            for (int i = from; i < to; i++) {
+                cost += r[i] >>> t;
+            }
+            if (cost < best) {
+                best = cost;
+                k = t;
+            }
+        }
+        w.write(k, 5);
+        for (int i = from; i < to; i++) {
+            final int u = r[i];
+            final int q = u >>> k;
+            if (q < ESCAPE_Q) {
+                w.writeUnary(q);
+                if (k > 0) w.write(u, k);
+            } else {
+                w.write(0x7fffffff, ESCAPE_Q);
+                w.write(u, 32);
+            }
+        }
+    }
+
+    // decodes a block of n samples from length bytes of src at offset
+    // into dst (nChannels floats per sample)
+    public void decode(byte[] src, int offset, int length, int n, float[] dst) {
+        if (n > maxSamples) {
+            throw new IllegalArgumentException("More than " + maxSamples + " samples.");
+        }
+        final BitReader r = reader;
+        r.reset(src, offset, length);
+        for (int c = 0; c < nChannels; c++) {
+            decodeChannel(r, c, n, dst);
+        }
+    }
+
+    private void decodeChannel(BitReader r, int c, int n, float[] dst) {
+        final float range = Float.intBitsToFloat(r.read(32));
+        final int mode = r.read(2);
+        if (mode == MODE_RAW) {
+            for (int i = 0; i < n; i++) {
+                dst[i * nChannels + c] = Float.intBitsToFloat(r.read(32));
+            }
+            return;
+        }
+        final int[] x = counts;
+        if (mode == MODE_CONSTANT) {
+            final int v = r.read(bits[c]);
+            for (int i = 0; i < n; i++) {
+                x[i] = v;
+            }
+        } else {
+            final int order = r.read(3);
+            for (int i = 0; i < order; i++) {
+                x[i] = r.read(bits[c]);
+            }
+            for (int p = order; p < n; p += PARTITION_SIZE) {
+                final int to = Math.min(n, p + PARTITION_SIZE);
+                final int k = r.read(5);
+                for (int i = p; i < to; i++) {
+                    final int q = r.readUnary(ESCAPE_Q);
+                    final int u;
+                    if (q == ESCAPE_Q) {
+                        u = r.read(32);
+                    } else {
+                        u = k > 0 ? (q << k) | r.read(k) : q;
+                    }
+                    x[i] = predict(x, i, order) + ((u >>> 1) ^ -(u & 1));
+                }
+            }
+        }
+        final int zero = zeroCount[c];
+        final float scale = zero > 0 ? range / zero : 1;
+        for (int i = 0; i < n; i++) {
+            dst[i * nChannels + c] = AttysCalibration.toSI(x[i], zero, scale);
+        }
+        final int indexBits = 32 - Integer.numberOfLeadingZeros(n);
+        final int nExceptions = r.read(indexBits);
+        for (int i = 0; i < nExceptions; i++) {
+            final int k = r.read(indexBits);
+            dst[k * nChannels + c] = Float.intBitsToFloat(r.read(32));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a snapshot of the AttysMetrics every period as one line of
+ * name=value pairs to a file (appended) or to a TCP socket, for
+ * example a local logging daemon. It runs on its own daemon thread;
+ * a socket which can't be reached is tried again with the next line.
+ * Latency histograms added with addHistogram() are appended to
+ * every line with their percentiles.
+ */
+public class MetricsExporter {
+
+    private final static int CONNECT_TIMEOUT_IN_MS = 1000;
+
+    private final AttysMetrics metrics;
+    private final long periodInMs;
+    private final File file;
+    private final String host;
+    private final int port;
+
+    private ScheduledExecutorService scheduler = null;
+    private OutputStream out = null;
+    private Socket socket = null;
+    private final AttysMetrics.Snapshot current = new AttysMetrics.Snapshot();
+    private final AttysMetrics.Snapshot previous = new AttysMetrics.Snapshot();
+    private boolean hasPrevious = false;
+    private final StringBuilder line = new StringBuilder();
+    private final List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+    private volatile long linesWritten = 0;
+    private volatile long errors = 0;
+
+    // appends to the file
+    public MetricsExporter(AttysMetrics metrics, long periodInMs, File file) {
+        this.metrics = metrics;
+        this.periodInMs = periodInMs;
+        this.file = file;
+        host = null;
+        port = 0;
+    }
+
+    // sends to host:port
+    public MetricsExporter(AttysMetrics metrics, long periodInMs, String host, int port) {
+        this.metrics = metrics;
+        this.periodInMs = periodInMs;
+        file = null;
+        this.host = host;
+        this.port = port;
+    }
+
+    public synchronized void addHistogram(LatencyHistogram h) {
+        histograms.add(h);
+    }
+
+    public long getLinesWritten() {
+        return linesWritten;
+    }
+
+    // lines which couldn't be written
+    public long getErrors() {
+        return errors;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "MetricsExporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                export();
+            }
+        }, 0, periodInMs, TimeUnit.MILLISECONDS);
+    }
+
+    // writes a last line and closes the file or socket
+    public void stop() {
+        final ScheduledExecutorService s;
+        synchronized (this) {
+            s = scheduler;
+            scheduler = null;
+        }
+        if (s == null) return;
+        s.shutdown();
+        try {
+            s.awaitTermination(periodInMs + CONNECT_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            export();
+            close();
+        }
+    }
+
+    private synchronized void export() {
+        metrics.snapshot(current);
+        line.setLength(0);
+        current.format(line, hasPrevious ? previous : null);
+        for (LatencyHistogram h : histograms) {
+            line.append(' ');
+            h.format(line);
+        }
+        line.append('\n');
+        previous.copyFrom(current);
+        hasPrevious = true;
+        try {
+            if (out == null) {
+                open();
+            }
+            out.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            linesWritten++;
+        } catch (IOException e) {
+            errors++;
+            close();
+        }
+    }
+
+    private void open() throws IOException {
+        if (file != null) {
+            out = new FileOutputStream(file, true);
+        } else {
+            final Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_IN_MS);
+                out = s.getOutputStream();
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            socket = s;
+        }
+    }
+
+    private void close() {
+        try {
+            if (out != null) out.close();
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+        socket = null;
+    }
+}
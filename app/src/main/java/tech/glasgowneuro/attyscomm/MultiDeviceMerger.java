@@ -0,0 +1,283 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Merges the samples of several Attys into one stream on the host's
+ * monotonic clock. Every device keeps its samples in a SampleHistory
+ * and its DeviceClock maps its sample numbers to System.nanoTime().
+ * The merge thread steps through the common time base at outputRate
+ * and, for every tick, interpolates each device's samples at the
+ * sample number its clock gives for that time.
+ * <p>
+ * A frame holds the channels of all devices one after the other
+ * (device 0 channels, device 1 channels, ...) and goes to a
+ * BlockListener with the tick number as the sample number. A tick is
+ * merged once all devices have the samples for it or, at the latest,
+ * maxLatency after it; devices which haven't delivered by then are NaN.
+ */
+public class MultiDeviceMerger implements Runnable {
+
+    // samples kept per device
+    public final static int DEFAULT_HISTORY_SIZE = 4096;
+    // frames per block
+    public final static int DEFAULT_BLOCK_SIZE = 32;
+    // longest the merge thread sleeps
+    private final static long MAX_WAIT_NS = 1000000;
+
+    private final int outputRate;
+    private final long periodNanos;
+    private final long maxLatencyNanos;
+    private final int historySize;
+    private final int blockSize;
+
+    private Device[] devices = new Device[0];
+    private int stride = 0;
+    private volatile BlockListener listener = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    // ticks
+    private long startNanos = 0;
+    private long tick = 0;
+    private volatile long mergedFrames = 0;
+    private volatile long lateFrames = 0;
+    private volatile long incompleteFrames = 0;
+
+    /**
+     * One Attys. It's registered at its AttysComm as the
+     * PacketTimeListener and as a BlockListener.
+     */
+    public final static class Device implements BlockListener, PacketTimeListener {
+        private final String name;
+        private final int nChannels;
+        private final SampleHistory history;
+        private final DeviceClock clock;
+        private final float[] pair;
+        private int offset;
+
+        private Device(String name, int nChannels, int samplingRate, int historySize) {
+            this.name = name;
+            this.nChannels = nChannels;
+            history = new SampleHistory(historySize, nChannels);
+            clock = new DeviceClock(samplingRate);
+            pair = new float[2];
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SampleHistory getHistory() {
+            return history;
+        }
+
+        public DeviceClock getClock() {
+            return clock;
+        }
+
+        // position of the first channel of this device in the frame
+        public int getFrameOffset() {
+            return offset;
+        }
+
+        @Override
+        public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+            history.gotDataBlock(firstSampleNumber, interleaved, nSamples, stride);
+        }
+
+        @Override
+        public void gotPacket(long sampleNumber, long receiveNanos) {
+            clock.update(sampleNumber, receiveNanos);
+        }
+
+        // true if the samples around the fractional sample number s have arrived
+        private boolean hasArrived(double s) {
+            return history.getEndSampleNumber() > (long) Math.floor(s) + 1;
+        }
+
+        // interpolates the channels at s into frame at offset.
+        // Returns false if they aren't in the history.
+        private boolean interpolate(double s, float[] frame, int frameOffset) {
+            final long n = (long) Math.floor(s);
+            final float f = (float) (s - n);
+            boolean ok = true;
+            for (int c = 0; c < nChannels; c++) {
+                if (ok && (history.read(c, n, 2, pair, 0) == 2)) {
+                    frame[frameOffset + c] = pair[0] + f * (pair[1] - pair[0]);
+                } else {
+                    ok = false;
+                    frame[frameOffset + c] = Float.NaN;
+                }
+            }
+            return ok;
+        }
+    }
+
+    public MultiDeviceMerger(int outputRate, long maxLatencyNanos, int historySize, int blockSize) {
+        this.outputRate = outputRate;
+        periodNanos = 1000000000L / outputRate;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.historySize = historySize;
+        this.blockSize = blockSize;
+    }
+
+    public MultiDeviceMerger(int outputRate, long maxLatencyNanos) {
+        this(outputRate, maxLatencyNanos, DEFAULT_HISTORY_SIZE, DEFAULT_BLOCK_SIZE);
+    }
+
+    // adds a device with nChannels channels. Call before start().
+    public synchronized Device addDevice(String name, int nChannels, int samplingRate) {
+        final Device d = new Device(name, nChannels, samplingRate, historySize);
+        d.offset = stride;
+        stride += nChannels;
+        final Device[] n = new Device[devices.length + 1];
+        System.arraycopy(devices, 0, n, 0, devices.length);
+        n[devices.length] = d;
+        devices = n;
+        return d;
+    }
+
+    public synchronized Device[] getDevices() {
+        return devices.clone();
+    }
+
+    // number of values per frame
+    public synchronized int getFrameSize() {
+        return stride;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    public void setListener(BlockListener l) {
+        listener = l;
+    }
+
+    public long getMergedFrames() {
+        return mergedFrames;
+    }
+
+    // frames merged after waiting maxLatency for a device
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    // frames where at least one device was NaN
+    public long getIncompleteFrames() {
+        return incompleteFrames;
+    }
+
+    // host time (System.nanoTime()) of a frame
+    public long getFrameNanos(long frame) {
+        return startNanos + frame * periodNanos;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "MultiDeviceMerger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread == null) return;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private boolean allClocksValid(Device[] d) {
+        for (Device device : d) {
+            if (!device.clock.isValid()) return false;
+        }
+        return d.length > 0;
+    }
+
+    @Override
+    public void run() {
+        final Device[] d;
+        final int frameSize;
+        synchronized (this) {
+            d = devices;
+            frameSize = stride;
+        }
+        final float[] block = new float[blockSize * frameSize];
+        final double[] positions = new double[d.length];
+        int nFrames = 0;
+        long firstFrame = 0;
+        while (running && !allClocksValid(d)) {
+            LockSupport.parkNanos(MAX_WAIT_NS);
+        }
+        // the first tick is the most recent time all devices have samples for
+        startNanos = System.nanoTime() - maxLatencyNanos;
+        tick = 0;
+        while (running) {
+            final long t = getFrameNanos(tick);
+            boolean ready = true;
+            for (int i = 0; i < d.length; i++) {
+                positions[i] = d[i].clock.toSampleNumber(t);
+                ready = ready && d[i].hasArrived(positions[i]);
+            }
+            final long now = System.nanoTime();
+            final boolean late = now >= t + maxLatencyNanos;
+            if (ready || late) {
+                if (nFrames == 0) firstFrame = tick;
+                boolean complete = true;
+                for (int i = 0; i < d.length; i++) {
+                    complete &= d[i].interpolate(positions[i], block, nFrames * frameSize + d[i].offset);
+                }
+                if (!ready) lateFrames++;
+                if (!complete) incompleteFrames++;
+                nFrames++;
+                tick++;
+                mergedFrames++;
+                if (nFrames < blockSize) continue;
+            }
+            // nothing more to merge right now
+            if (nFrames > 0) {
+                deliver(firstFrame, block, nFrames, frameSize);
+                nFrames = 0;
+                continue;
+            }
+            final long wait = Math.min(t + maxLatencyNanos - now, MAX_WAIT_NS);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        if (nFrames > 0) {
+            deliver(firstFrame, block, nFrames, frameSize);
+        }
+    }
+
+    private void deliver(long firstFrame, float[] block, int nFrames, int frameSize) {
+        final BlockListener l = listener;
+        if (l != null) {
+            l.gotDataBlock(firstFrame, block, nFrames, frameSize);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Captures the raw lines from the Attys with the time they have
+ * arrived (System.nanoTime()) so that a session can be replayed
+ * with PacketReplay exactly as it happened, including the OK replies
+ * and the lines which couldn't be decoded.
+ * <p>
+ * The lines are copied into one of two ByteBuffers which are written
+ * to the file by a background thread. The acquisition thread never
+ * waits: if the writer is too slow the line is dropped and counted.
+ * <p>
+ * The file is big endian and starts with:
+ * <pre>
+ * byte[8]  "ATTYSCAP"
+ * int      format version
+ * long     start of the capture in ms since 1970
+ * </pre>
+ * followed by line records:
+ * <pre>
+ * byte     RECORD_LINE
+ * long     ns since the start of the capture
+ * byte     LINE_OK, LINE_NOT_DECODED or the AttysPacketDecoder.STATUS_...
+ * short    length n
+ * byte[n]  the line without CR/LF
+ * </pre>
+ * and the configuration of the decoder whenever the Attys has been
+ * (re)configured:
+ * <pre>
+ * byte     RECORD_CONFIG
+ * long     ns since the start of the capture
+ * int      sampling rate in Hz
+ * byte     high speed packets (1) or standard packets (0)
+ * byte     full data (1) or partial data (0)
+ * float    accelerometer, magnetometer, ADC 1 and ADC 2 full scale range
+ * </pre>
+ * and when the gains or ranges have changed while streaming (version 2)
+ * the same followed by the sample number the new settings start at:
+ * <pre>
+ * byte     RECORD_LIVE_CONFIG
+ * ...      as RECORD_CONFIG
+ * long     sample number of the first sample with the new settings
+ * </pre>
+ */
+public class PacketCapture {
+
+    public final static byte[] MAGIC = {'A', 'T', 'T', 'Y', 'S', 'C', 'A', 'P'};
+    public final static int VERSION = 2;
+    public final static int HEADER_SIZE = 8 + 4 + 8;
+
+    public final static byte RECORD_LINE = 1;
+    public final static byte RECORD_CONFIG = 2;
+    // a configuration change without a reconnect (version 2)
+    public final static byte RECORD_LIVE_CONFIG = 3;
+
+    // the OK reply to a command
+    public final static byte LINE_OK = 16;
+    // a line which arrived while waiting for an OK
+    public final static byte LINE_NOT_DECODED = 17;
+
+    // type + time + kind + length
+    public final static int LINE_HEADER_SIZE = 1 + 8 + 1 + 2;
+    public final static int CONFIG_SIZE = 1 + 8 + 4 + 1 + 1 + 4 * 4;
+    public final static int LIVE_CONFIG_SIZE = CONFIG_SIZE + 8;
+
+    public final static int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final int bufferSize;
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel fileChannel = null;
+    private Thread writerThread = null;
+
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(2);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(2);
+    private final static ByteBuffer END = ByteBuffer.allocate(0);
+
+    // producer side
+    private ByteBuffer active = null;
+    private long startNanos = 0;
+    private volatile boolean capturing = false;
+    private volatile long lines = 0;
+    private volatile long droppedLines = 0;
+
+    // writer side
+    private volatile long bytesWritten = 0;
+    private volatile IOException error = null;
+
+    public PacketCapture(File file, int bufferSize) {
+        if (bufferSize < LINE_HEADER_SIZE + LineFramer.DEFAULT_MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("Buffer too small.");
+        }
+        this.file = file;
+        this.bufferSize = bufferSize;
+    }
+
+    public PacketCapture(File file) {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isCapturing() {
+        return capturing;
+    }
+
+    // lines captured
+    public long getLines() {
+        return lines;
+    }
+
+    // lines which couldn't be captured because the disk was too slow
+    public long getDroppedLines() {
+        return droppedLines;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // the error of the writer thread or null
+    public IOException getError() {
+        return error;
+    }
+
+    public synchronized void start() throws IOException {
+        if (writerThread != null) return;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            fileChannel = randomAccessFile.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(System.currentTimeMillis());
+            header.flip();
+            while (header.hasRemaining()) {
+                fileChannel.write(header);
+            }
+            bytesWritten = HEADER_SIZE;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        active = ByteBuffer.allocateDirect(bufferSize);
+        free.add(ByteBuffer.allocateDirect(bufferSize));
+        startNanos = System.nanoTime();
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "PacketCapture");
+        writerThread.start();
+        capturing = true;
+    }
+
+    /////////////////////////////////////////////////
+    // producer
+
+    // captures a line which has arrived at nanoTime (System.nanoTime())
+    // kind is LINE_OK, LINE_NOT_DECODED or the status returned
+    // by the decoder.
+    public synchronized void line(long nanoTime, byte[] line, int length, int kind) {
+        if (!capturing) return;
+        if (!ensure(LINE_HEADER_SIZE + length)) {
+            droppedLines++;
+            return;
+        }
+        final ByteBuffer b = active;
+        b.put(RECORD_LINE);
+        b.putLong(nanoTime - startNanos);
+        b.put((byte) kind);
+        b.putShort((short) length);
+        b.put(line, 0, length);
+        lines++;
+    }
+
+    // captures the settings of the decoder. Call it every time
+    // the Attys has been configured.
+    public synchronized void config(AttysPacketDecoder decoder, boolean highSpeed) {
+        if (!capturing) return;
+        if (!ensure(CONFIG_SIZE)) {
+            droppedLines++;
+            return;
+        }
+        active.put(RECORD_CONFIG);
+        putConfig(decoder, highSpeed);
+    }
+
+    // captures the settings of the decoder after the gains or ranges
+    // have been changed while streaming. The samples from sampleNumber
+    // on use them.
+    public synchronized void liveConfig(AttysPacketDecoder decoder, boolean highSpeed, long sampleNumber) {
+        if (!capturing) return;
+        if (!ensure(LIVE_CONFIG_SIZE)) {
+            droppedLines++;
+            return;
+        }
+        active.put(RECORD_LIVE_CONFIG);
+        putConfig(decoder, highSpeed);
+        active.putLong(sampleNumber);
+    }
+
+    private void putConfig(AttysPacketDecoder decoder, boolean highSpeed) {
+        final ByteBuffer b = active;
+        b.putLong(System.nanoTime() - startNanos);
+        b.putInt(decoder.getSamplingRate());
+        b.put((byte) (highSpeed ? 1 : 0));
+        b.put((byte) (decoder.isFullData() ? 1 : 0));
+        b.putFloat(decoder.getAccelFullScaleRange());
+        b.putFloat(decoder.getMagFullScaleRange());
+        b.putFloat(decoder.getADCFullScaleRange(0));
+        b.putFloat(decoder.getADCFullScaleRange(1));
+    }
+
+    // hands the active buffer over to the writer if there's not
+    // enough space left. Never waits.
+    private boolean ensure(int n) {
+        if (active.remaining() >= n) return true;
+        final ByteBuffer next = free.poll();
+        if (next == null) return false;
+        active.flip();
+        filled.add(active);
+        active = next;
+        return true;
+    }
+
+    // writes out what's left and closes the file
+    public synchronized void stop() throws IOException {
+        if (writerThread == null) return;
+        capturing = false;
+        try {
+            if (active.position() > 0) {
+                active.flip();
+                filled.put(active);
+            }
+            filled.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        randomAccessFile.close();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /////////////////////////////////////////////////
+    // writer thread
+
+    private void writeLoop() {
+        while (true) {
+            final ByteBuffer b;
+            try {
+                b = filled.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (b == END) return;
+            if (error == null) {
+                try {
+                    final int n = b.remaining();
+                    while (b.hasRemaining()) {
+                        fileChannel.write(b);
+                    }
+                    bytesWritten += n;
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            b.clear();
+            free.add(b);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Goes through a file written by PacketCapture record by record.
+ * The line is kept in a reusable buffer which is overwritten by
+ * the next call of next().
+ */
+public class PacketCaptureReader {
+
+    private final DataInputStream in;
+    private final long startTime;
+
+    private int type = 0;
+    private long nanos = 0;
+    private int kind = 0;
+    private final byte[] line = new byte[65536];
+    private int lineLength = 0;
+
+    private int samplingRate = 250;
+    private boolean highSpeed = false;
+    private boolean fullData = true;
+    private final float[] ranges = new float[4];
+    private long boundary = -1;
+
+    public PacketCaptureReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final byte[] magic = new byte[PacketCapture.MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != PacketCapture.MAGIC[i]) {
+                    throw new IOException("Not a packet capture: " + file);
+                }
+            }
+            final int version = in.readInt();
+            if ((version < 1) || (version > PacketCapture.VERSION)) {
+                throw new IOException("Unsupported version " + version);
+            }
+            startTime = in.readLong();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // checks if the file starts like a packet capture
+    public static boolean isPacketCapture(File file) {
+        try {
+            final DataInputStream d = new DataInputStream(new FileInputStream(file));
+            try {
+                final byte[] magic = new byte[PacketCapture.MAGIC.length];
+                d.readFully(magic);
+                for (int i = 0; i < magic.length; i++) {
+                    if (magic[i] != PacketCapture.MAGIC[i]) return false;
+                }
+                return true;
+            } finally {
+                d.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // reads the next record. Returns false at the end of the file.
+    // A record which has been cut off at the end counts as the end.
+    public boolean next() throws IOException {
+        try {
+            type = in.readByte();
+            nanos = in.readLong();
+            switch (type) {
+                case PacketCapture.RECORD_LINE:
+                    kind = in.readByte();
+                    lineLength = in.readShort() & 0xffff;
+                    in.readFully(line, 0, lineLength);
+                    break;
+                case PacketCapture.RECORD_CONFIG:
+                    readConfig();
+                    break;
+                case PacketCapture.RECORD_LIVE_CONFIG:
+                    readConfig();
+                    boundary = in.readLong();
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void readConfig() throws IOException {
+        samplingRate = in.readInt();
+        highSpeed = in.readByte() != 0;
+        fullData = in.readByte() != 0;
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = in.readFloat();
+        }
+    }
+
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ms since 1970
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public boolean isLine() {
+        return type == PacketCapture.RECORD_LINE;
+    }
+
+    // the Attys has been (re)connected and configured
+    public boolean isConfig() {
+        return type == PacketCapture.RECORD_CONFIG;
+    }
+
+    // the gains or ranges have changed while streaming
+    public boolean isLiveConfig() {
+        return type == PacketCapture.RECORD_LIVE_CONFIG;
+    }
+
+    // the first sample number of the most recent live configuration
+    public long getBoundarySampleNumber() {
+        return boundary;
+    }
+
+    // arrival of the current record in ns since the start of the capture
+    public long getNanos() {
+        return nanos;
+    }
+
+    // PacketCapture.LINE_OK, PacketCapture.LINE_NOT_DECODED or
+    // the status of the decoder when it was captured
+    public int getKind() {
+        return kind;
+    }
+
+    public byte[] getLine() {
+        return line;
+    }
+
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    // a data packet which went through the decoder
+    public boolean isPacket() {
+        return isLine() && (kind != PacketCapture.LINE_OK) && (kind != PacketCapture.LINE_NOT_DECODED);
+    }
+
+    /////////////////////////////////////////////////
+    // the most recent configuration
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public boolean isHighSpeed() {
+        return highSpeed;
+    }
+
+    // configures the decoder as it was at the current record
+    public void configure(AttysPacketDecoder decoder) {
+        decoder.setSamplingRate(samplingRate);
+        decoder.setFullData(fullData);
+        decoder.setAccelFullScaleRange(ranges[0]);
+        decoder.setMagFullScaleRange(ranges[1]);
+        decoder.setADCFullScaleRange(0, ranges[2]);
+        decoder.setADCFullScaleRange(1, ranges[3]);
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a PacketCapture back through the AttysPacketDecoder in real
+ * time, N times faster or as fast as possible. The samples go to the
+ * SampleListener of the decoder as if they came from the Attys, so
+ * that problems from the field can be reproduced and the decoder can
+ * be tested and benchmarked with real traffic.
+ * <p>
+ * The configuration records set up the decoder. After a
+ * reconfiguration (a reconnect) the sample number is recalculated
+ * from the time since the first packet as AttysComm does. A change
+ * of the gains or ranges while streaming continues at the sample
+ * number which has been captured with it.
+ * The status of every packet is compared with the status it had when
+ * it was captured.
+ */
+public class PacketReplay implements Runnable {
+
+    // as fast as possible
+    public final static double SPEED_MAX = 0;
+    public final static double SPEED_REALTIME = 1;
+
+    private final File file;
+    private final AttysPacketDecoder decoder = new AttysPacketDecoder();
+    private volatile double speed = SPEED_REALTIME;
+    private volatile boolean doRun = false;
+    private Thread thread = null;
+
+    private volatile long lines = 0;
+    private volatile long packets = 0;
+    private volatile long receptionErrors = 0;
+    private volatile long lostSampleEvents = 0;
+    private volatile long mismatches = 0;
+    private volatile IOException error = null;
+
+    public PacketReplay(File file) {
+        this.file = file;
+    }
+
+    // the decoder used for the replay. Its SampleListener gets the samples.
+    public AttysPacketDecoder getDecoder() {
+        return decoder;
+    }
+
+    public void setSampleListener(SampleListener l) {
+        decoder.setSampleListener(l);
+    }
+
+    // 1 is real time, 10 ten times as fast, SPEED_MAX as fast as possible
+    public void setSpeed(double s) {
+        speed = s;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    // all lines including the OKs
+    public long getLines() {
+        return lines;
+    }
+
+    // lines which went through the decoder
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getReceptionErrors() {
+        return receptionErrors;
+    }
+
+    public long getLostSampleEvents() {
+        return lostSampleEvents;
+    }
+
+    // packets which have been decoded with a different status than
+    // when they were captured
+    public long getMismatches() {
+        return mismatches;
+    }
+
+    // the error of the background replay or null
+    public IOException getError() {
+        return error;
+    }
+
+    // replays the whole file on the calling thread
+    public void replay() throws IOException {
+        doRun = true;
+        replayFile();
+    }
+
+    private void replayFile() throws IOException {
+        final PacketCaptureReader reader = new PacketCaptureReader(file);
+        try {
+            boolean configured = false;
+            long firstPacketNanos = -1;
+            long origin = 0;
+            long firstNanos = -1;
+            while (doRun && reader.next()) {
+                final long t = reader.getNanos();
+                if (firstNanos < 0) {
+                    firstNanos = t;
+                    origin = System.nanoTime();
+                }
+                final double s = speed;
+                if (s > 0) {
+                    final long target = origin + (long) ((t - firstNanos) / s);
+                    long wait;
+                    while (doRun && ((wait = target - System.nanoTime()) > 0)) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                if (reader.isConfig()) {
+                    reader.configure(decoder);
+                    if (!configured) {
+                        decoder.reset();
+                        configured = true;
+                    } else {
+                        decoder.resync();
+                        if (firstPacketNanos >= 0) {
+                            decoder.setSampleNumber((t - firstPacketNanos)
+                                    * decoder.getSamplingRate() / 1000000000L);
+                        }
+                    }
+                    continue;
+                }
+                if (reader.isLiveConfig()) {
+                    reader.configure(decoder);
+                    decoder.resync();
+                    decoder.setSampleNumber(reader.getBoundarySampleNumber());
+                    continue;
+                }
+                lines++;
+                if (!reader.isPacket()) continue;
+                if (firstPacketNanos < 0) {
+                    firstPacketNanos = t;
+                }
+                final int status;
+                if (reader.isHighSpeed()) {
+                    status = decoder.decodeHighSpeedPacket(reader.getLine(), reader.getLineLength());
+                } else {
+                    status = decoder.decodeStandardSpeedPacket(reader.getLine(), reader.getLineLength());
+                }
+                packets++;
+                if (status == AttysPacketDecoder.STATUS_RECEPTION_ERROR) {
+                    receptionErrors++;
+                } else if (status == AttysPacketDecoder.STATUS_SAMPLES_LOST) {
+                    lostSampleEvents++;
+                }
+                if (status != reader.getKind()) {
+                    mismatches++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            replayFile();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    // replays in the background
+    public synchronized void start() {
+        if (thread != null) return;
+        doRun = true;
+        thread = new Thread(this, "PacketReplay");
+        thread.start();
+    }
+
+    // stops the replay and waits for the thread to finish
+    public synchronized void stop() {
+        doRun = false;
+        join();
+    }
+
+    // waits till the replay has finished
+    public synchronized void join() {
+        if (thread == null) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Gets the time when a packet has arrived on the acquisition thread.
+ * sampleNumber is the number of the newest sample in the packet and
+ * receiveNanos is System.nanoTime() right after the packet has been
+ * read. Must return quickly.
+ */
+public interface PacketTimeListener {
+    void gotPacket(long sampleNumber, long receiveNanos);
+}
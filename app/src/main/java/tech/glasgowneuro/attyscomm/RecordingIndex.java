@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse index of a recording from sample number to file offset.
+ * Slot k holds the offset of the first block of samples which
+ * contains or comes after sample number k * interval, so that the
+ * block of any sample is found with one array lookup and a forward
+ * scan over at most interval samples. Sample numbers have to
+ * increase from block to block.
+ */
+public final class RecordingIndex {
+
+    public final static int DEFAULT_INTERVAL = 1024;
+
+    private final int interval;
+    private long firstSlot = -1;
+    private long[] offsets = new long[64];
+    private int nSlots = 0;
+
+    public RecordingIndex(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive.");
+        }
+        this.interval = interval;
+    }
+
+    public RecordingIndex() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return nSlots;
+    }
+
+    // registers a block of nSamples starting at firstSampleNumber
+    // which is stored at offset
+    public void add(long firstSampleNumber, int nSamples, long offset) {
+        if (firstSlot < 0) {
+            firstSlot = firstSampleNumber / interval;
+        }
+        final long end = firstSampleNumber + nSamples;
+        while ((firstSlot + nSlots) * interval < end) {
+            if (nSlots == offsets.length) {
+                final long[] n = new long[offsets.length * 2];
+                System.arraycopy(offsets, 0, n, 0, nSlots);
+                offsets = n;
+            }
+            offsets[nSlots++] = offset;
+        }
+    }
+
+    // offset of the block from which on to search for sampleNumber or
+    // -1 if it's beyond the indexed samples. Samples before the
+    // first one map to the first block.
+    public long find(long sampleNumber) {
+        if (nSlots == 0) return -1;
+        long k = sampleNumber / interval - firstSlot;
+        if (k < 0) k = 0;
+        if (k >= nSlots) return -1;
+        return offsets[(int) k];
+    }
+
+    // number of bytes of toBuffer()
+    public int getSerializedSize() {
+        return 4 + 8 + 4 + nSlots * 8;
+    }
+
+    public void toBuffer(ByteBuffer b) {
+        b.putInt(interval);
+        b.putLong(firstSlot);
+        b.putInt(nSlots);
+        for (int i = 0; i < nSlots; i++) {
+            b.putLong(offsets[i]);
+        }
+    }
+
+    public static RecordingIndex fromBuffer(ByteBuffer b) {
+        final RecordingIndex index = new RecordingIndex(b.getInt());
+        index.firstSlot = b.getLong();
+        index.nSlots = b.getInt();
+        index.offsets = new long[Math.max(1, index.nSlots)];
+        for (int i = 0; i < index.nSlots; i++) {
+            index.offsets[i] = b.getLong();
+        }
+        return index;
+    }
+}
@@ -0,0 +1,436 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the samples from the acquisition thread to any number of
+ * listeners. Every listener has its own bounded queue and its own
+ * thread so that a slow listener never delays the acquisition thread
+ * which only ever publishes into the queues.
+ * <p>
+ * The listeners get the samples in blocks (BlockListener) of up to
+ * maxBlockSize samples. A block is delivered once it's full or once
+ * its first sample has waited maxLatency. SampleListeners are served
+ * one sample at a time via a SampleListenerAdapter.
+ * <p>
+ * When a queue is full the backpressure policy of the listener decides:
+ * BACKPRESSURE_DROP_OLDEST discards the oldest queued samples,
+ * BACKPRESSURE_DROP_NEWEST discards the new sample and
+ * BACKPRESSURE_BLOCK makes the acquisition thread wait for the listener.
+ * Each Subscription reports how far its listener lags behind.
+ * <p>
+ * An exception thrown by a listener is counted and the dispatch goes
+ * on with the next block. Should the dispatch thread die nevertheless
+ * the subscription stops accepting samples so that a blocking listener
+ * can never stall the acquisition thread.
+ * <p>
+ * Samples published with their arrival time are recorded in the
+ * latency histogram, if set, from their arrival to the moment
+ * they are handed to the listener.
+ */
+public class SampleDispatcher {
+
+    public final static int BACKPRESSURE_BLOCK = 0;
+    public final static int BACKPRESSURE_DROP_OLDEST = 1;
+    public final static int BACKPRESSURE_DROP_NEWEST = 2;
+
+    // block size for SampleListeners: whatever has arrived up to this size
+    public final static int DEFAULT_BLOCK_SIZE = 64;
+    // how long the acquisition thread waits before it checks again
+    // if a blocking listener has made room
+    private final static long BLOCK_WAIT_NS = 100000;
+    // the dispatch threads check for shutdown at this interval when idle
+    private final static long IDLE_WAIT_NS = 100000000;
+
+    private final int nChannels;
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    private volatile long lastPublished = -1;
+    private volatile LatencyHistogram latency = null;
+
+    public SampleDispatcher(int nChannels) {
+        this.nChannels = nChannels;
+    }
+
+    /**
+     * A listener with its queue and dispatch thread.
+     */
+    public final class Subscription implements Runnable {
+        private final Object listener;
+        private final BlockListener blockListener;
+        private final int backpressure;
+        private final int maxBlockSize;
+        private final long maxLatencyNanos;
+        private final SampleRingBuffer queue;
+        private final Thread thread;
+        private volatile boolean running = true;
+        // deliver what's queued without waiting for full blocks, then stop
+        private volatile boolean draining = false;
+        private volatile boolean waiting = false;
+        // number of queued samples at which the acquisition thread wakes us up
+        private volatile int wakeThreshold = 1;
+
+        private volatile long delivered = 0;
+        private volatile long blocks = 0;
+        private volatile long lastDelivered = -1;
+        private volatile int maxQueued = 0;
+        private volatile long blockedNanos = 0;
+        private volatile long errors = 0;
+        private volatile Throwable lastError = null;
+
+        private Subscription(Object l, BlockListener bl, int capacity, int bp,
+                             int blockSize, long latencyNanos) {
+            listener = l;
+            blockListener = bl;
+            backpressure = bp;
+            maxBlockSize = Math.max(1, Math.min(blockSize, capacity));
+            maxLatencyNanos = latencyNanos;
+            queue = new SampleRingBuffer(capacity, nChannels,
+                    bp == BACKPRESSURE_DROP_OLDEST ?
+                            SampleRingBuffer.OVERFLOW_OVERWRITE : SampleRingBuffer.OVERFLOW_DROP_NEW);
+            thread = new Thread(this, "AttysDispatch-" + l.getClass().getSimpleName());
+            thread.setDaemon(true);
+        }
+
+        // the listener as registered: a SampleListener or a BlockListener
+        public Object getListener() {
+            return listener;
+        }
+
+        public int getBackpressure() {
+            return backpressure;
+        }
+
+        public int getMaxBlockSize() {
+            return maxBlockSize;
+        }
+
+        // samples waiting in the queue
+        public int getQueued() {
+            return queue.size();
+        }
+
+        // highest number of samples which have been waiting in the queue
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public int getQueueCapacity() {
+            return queue.getCapacity();
+        }
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        // number of blocks delivered
+        public long getDeliveredBlocks() {
+            return blocks;
+        }
+
+        // samples which the listener has never seen because of the backpressure policy
+        public long getDropped() {
+            return queue.getDroppedSamples() + queue.getOverwrittenSamples();
+        }
+
+        // difference between the newest published sample number and the
+        // sample number the listener has most recently received
+        public long getLag() {
+            final long p = lastPublished;
+            final long d = lastDelivered;
+            if (p < 0) return 0;
+            return p - d;
+        }
+
+        // time the acquisition thread has spent waiting for this listener
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        // exceptions the listener has thrown
+        public long getErrors() {
+            return errors;
+        }
+
+        // the most recent exception of the listener or null
+        public Throwable getLastError() {
+            return lastError;
+        }
+
+        // false once cancelled or if the dispatch thread has died
+        public boolean isRunning() {
+            return running;
+        }
+
+        // called by the acquisition thread
+        private void offer(long sampleNumber, float[] sample, long nanos) {
+            if (backpressure == BACKPRESSURE_BLOCK) {
+                if (!queue.tryPut(sampleNumber, sample, nanos)) {
+                    final long t0 = System.nanoTime();
+                    while (running && !queue.tryPut(sampleNumber, sample, nanos)) {
+                        wakeUp();
+                        LockSupport.parkNanos(BLOCK_WAIT_NS);
+                    }
+                    blockedNanos += System.nanoTime() - t0;
+                }
+            } else {
+                queue.put(sampleNumber, sample, nanos);
+            }
+            final int n = queue.size();
+            if (n > maxQueued) {
+                maxQueued = n;
+            }
+        }
+
+        private void wakeUp() {
+            waiting = false;
+            LockSupport.unpark(thread);
+        }
+
+        // parks until at least threshold samples are queued or the timeout
+        // has passed. Reading the head of the queue after announcing that
+        // we wait pairs with its write in offer(): either we see the new
+        // samples or publish() sees us waiting.
+        private void await(int threshold, long timeoutNanos) {
+            wakeThreshold = threshold;
+            waiting = true;
+            if ((queue.size() < threshold) && running) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+            waiting = false;
+        }
+
+        @Override
+        public void run() {
+            try {
+                dispatchLoop();
+            } catch (Throwable t) {
+                errors++;
+                lastError = t;
+            } finally {
+                // offer() mustn't wait for a thread which is gone
+                running = false;
+            }
+        }
+
+        private void dispatchLoop() {
+            final float[] block = new float[maxBlockSize * nChannels];
+            final long[] sampleNumbers = new long[maxBlockSize];
+            final long[] timestamps = new long[maxBlockSize];
+            long pendingSince = 0;
+            while (running) {
+                final int queued = queue.size();
+                if (queued == 0) {
+                    if (draining) return;
+                    pendingSince = 0;
+                    await(1, IDLE_WAIT_NS);
+                    continue;
+                }
+                if ((queued < maxBlockSize) && (maxLatencyNanos > 0) && !draining) {
+                    final long now = System.nanoTime();
+                    if (pendingSince == 0) {
+                        pendingSince = now;
+                    }
+                    final long remaining = pendingSince + maxLatencyNanos - now;
+                    if (remaining > 0) {
+                        await(maxBlockSize, remaining);
+                        continue;
+                    }
+                }
+                pendingSince = 0;
+                final int n = queue.drainTo(block, sampleNumbers, timestamps, maxBlockSize);
+                if (n > 0) {
+                    final LatencyHistogram h = latency;
+                    if (h != null) {
+                        recordLatency(h, timestamps, n);
+                    }
+                    deliver(block, sampleNumbers, n);
+                }
+            }
+        }
+
+        private void recordLatency(LatencyHistogram h, long[] timestamps, int n) {
+            final long now = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                if (timestamps[i] != 0) {
+                    h.record(now - timestamps[i]);
+                }
+            }
+        }
+
+        // delivers the drained samples in blocks of consecutive sample numbers
+        private void deliver(float[] block, long[] sampleNumbers, int n) {
+            int start = 0;
+            while (start < n) {
+                int end = start + 1;
+                while ((end < n) && (sampleNumbers[end] == sampleNumbers[end - 1] + 1)) {
+                    end++;
+                }
+                if (start > 0) {
+                    // a gap: move the next part to the front of the buffer
+                    System.arraycopy(block, start * nChannels, block, 0, (n - start) * nChannels);
+                    System.arraycopy(sampleNumbers, start, sampleNumbers, 0, n - start);
+                    end -= start;
+                    n -= start;
+                    start = 0;
+                }
+                try {
+                    blockListener.gotDataBlock(sampleNumbers[0], block, end, nChannels);
+                } catch (RuntimeException e) {
+                    // the block is lost but not the listener
+                    errors++;
+                    lastError = e;
+                }
+                lastDelivered = sampleNumbers[end - 1];
+                delivered += end;
+                blocks++;
+                start = end;
+            }
+        }
+
+        // stops accepting samples, delivers the ones still queued and
+        // stops the dispatch thread
+        public void drain() {
+            remove(this);
+            draining = true;
+            LockSupport.unpark(thread);
+            join();
+        }
+
+        // stops the dispatch thread. Samples still queued are discarded.
+        public void cancel() {
+            remove(this);
+            running = false;
+            LockSupport.unpark(thread);
+            join();
+        }
+
+        private void join() {
+            if (Thread.currentThread() != thread) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    // registers a block listener with its own queue of the given capacity
+    // and backpressure policy and starts its thread. Blocks have up to
+    // maxBlockSize samples and are delivered at the latest maxLatencyNanos
+    // after their first sample has arrived (0 = as soon as possible).
+    public Subscription subscribe(BlockListener l, int queueCapacity, int backpressure,
+                                  int maxBlockSize, long maxLatencyNanos) {
+        return add(new Subscription(l, l, queueCapacity, backpressure, maxBlockSize, maxLatencyNanos));
+    }
+
+    // registers a listener which gets one sample at a time
+    public Subscription subscribe(SampleListener l, int queueCapacity, int backpressure) {
+        return add(new Subscription(l, new SampleListenerAdapter(l), queueCapacity, backpressure,
+                DEFAULT_BLOCK_SIZE, 0));
+    }
+
+    private Subscription add(Subscription s) {
+        s.thread.start();
+        synchronized (this) {
+            final Subscription[] old = subscriptions;
+            final Subscription[] n = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, n, 0, old.length);
+            n[old.length] = s;
+            subscriptions = n;
+        }
+        return s;
+    }
+
+    // removes the listener (SampleListener or BlockListener) and stops its thread
+    public void unsubscribe(Object l) {
+        for (Subscription s : subscriptions) {
+            if (s.listener == l) {
+                s.cancel();
+            }
+        }
+    }
+
+    // removes the listener once it has got all samples published so far
+    public void drainAndUnsubscribe(Object l) {
+        for (Subscription s : subscriptions) {
+            if (s.listener == l) {
+                s.drain();
+            }
+        }
+    }
+
+    private synchronized void remove(Subscription s) {
+        final Subscription[] old = subscriptions;
+        int k = -1;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == s) k = i;
+        }
+        if (k < 0) return;
+        final Subscription[] n = new Subscription[old.length - 1];
+        System.arraycopy(old, 0, n, 0, k);
+        System.arraycopy(old, k + 1, n, k, old.length - k - 1);
+        subscriptions = n;
+    }
+
+    public Subscription[] getSubscriptions() {
+        return subscriptions;
+    }
+
+    public boolean hasSubscriptions() {
+        return subscriptions.length > 0;
+    }
+
+    // stops all dispatch threads
+    public void shutdown() {
+        for (Subscription s : subscriptions) {
+            s.cancel();
+        }
+    }
+
+    // records the time from the arrival of the samples to their delivery
+    // to the listeners, all listeners together. null switches it off.
+    public void setLatencyHistogram(LatencyHistogram h) {
+        latency = h;
+    }
+
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    // called by the acquisition thread only
+    public void publish(long sampleNumber, float[] sample) {
+        publish(sampleNumber, sample, 0);
+    }
+
+    // as above with the System.nanoTime() when the sample has arrived
+    public void publish(long sampleNumber, float[] sample, long nanos) {
+        final Subscription[] subs = subscriptions;
+        for (Subscription s : subs) {
+            s.offer(sampleNumber, sample, nanos);
+        }
+        // volatile write after the samples have been queued
+        lastPublished = sampleNumber;
+        for (Subscription s : subs) {
+            if (s.waiting && (s.queue.size() >= s.wakeThreshold)) {
+                s.wakeUp();
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent samples column by column: every channel has
+ * its own contiguous float array which is used as a ring indexed by
+ * the sample number. Reading one channel for plotting or an FFT is
+ * then a copy of at most two contiguous pieces of memory instead of
+ * picking every NCHANNELS-th value out of the samples.
+ * <p>
+ * There is one writer (the acquisition thread or a dispatch thread
+ * when it's added as a BlockListener) and any number of readers.
+ * end is the number of the sample after the newest one and is
+ * published after the sample has been written. The slot the writer
+ * is working on belongs to the oldest sample so that at most
+ * capacity - 1 samples can be read.
+ * <p>
+ * Before writing, the writer claims the samples it's about to write
+ * (a seqlock): claimed is set with a volatile store, which the
+ * writer's stores into the columns can't overtake. Readers copy, order
+ * their loads with a volatile store and then check against claimed
+ * that the writer hasn't overtaken them.
+ * <p>
+ * Gaps in the sample numbers are filled with the previous sample.
+ * A sample number which goes backwards starts the history afresh.
+ */
+public class SampleHistory implements BlockListener {
+
+    private final int capacity;
+    private final int nChannels;
+    private final float[][] channels;
+
+    // first sample number in the history since the last restart
+    private volatile long start = 0;
+    // sample number after the newest sample
+    private final AtomicLong end = new AtomicLong();
+    // sample number after the last one the writer has started writing
+    private final AtomicLong claimed = new AtomicLong();
+    // only stored to, see loadFence()
+    private volatile int fence = 0;
+
+    // writer side
+    private boolean hasData = false;
+    private long writeEnd = 0;
+    private volatile long filledSamples = 0;
+
+    public SampleHistory(int capacity, int nChannels) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2.");
+        }
+        this.capacity = capacity;
+        this.nChannels = nChannels;
+        channels = new float[nChannels][capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getNumberOfChannels() {
+        return nChannels;
+    }
+
+    /////////////////////////////////////////////////
+    // writer
+
+    // stores one sample (nChannels values) under its sample number
+    public void put(long sampleNumber, float[] sample) {
+        prepare(sampleNumber);
+        claimed.set(sampleNumber + 1);
+        final int slot = (int) (sampleNumber % capacity);
+        for (int c = 0; c < nChannels; c++) {
+            channels[c][slot] = sample[c];
+        }
+        writeEnd = sampleNumber + 1;
+        end.lazySet(writeEnd);
+    }
+
+    // stores nSamples interleaved samples with consecutive sample numbers
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        if (nSamples <= 0) return;
+        prepare(firstSampleNumber);
+        // chunks which don't wrap around
+        int i = 0;
+        while (i < nSamples) {
+            final int slot = (int) ((firstSampleNumber + i) % capacity);
+            final int n = Math.min(nSamples - i, capacity - slot);
+            claimed.set(firstSampleNumber + i + n);
+            for (int c = 0; c < nChannels; c++) {
+                final float[] column = channels[c];
+                int p = i * stride + c;
+                for (int k = 0; k < n; k++) {
+                    column[slot + k] = interleaved[p];
+                    p += stride;
+                }
+            }
+            i += n;
+            writeEnd = firstSampleNumber + i;
+            end.lazySet(writeEnd);
+        }
+    }
+
+    // makes sure that sampleNumber directly follows the newest sample
+    private void prepare(long sampleNumber) {
+        if (!hasData || (sampleNumber < writeEnd)) {
+            restart(sampleNumber);
+            hasData = true;
+            return;
+        }
+        if (sampleNumber == writeEnd) return;
+        // repeats the newest sample till sampleNumber
+        final long gap = sampleNumber - writeEnd;
+        final int prev = (int) ((writeEnd - 1) % capacity);
+        final long from = Math.max(writeEnd, sampleNumber - capacity);
+        claimed.set(sampleNumber);
+        for (long s = from; s < sampleNumber; s++) {
+            final int slot = (int) (s % capacity);
+            for (int c = 0; c < nChannels; c++) {
+                channels[c][slot] = channels[c][prev];
+            }
+        }
+        filledSamples += gap;
+        writeEnd = sampleNumber;
+        end.lazySet(sampleNumber);
+    }
+
+    private void restart(long sampleNumber) {
+        // invalidate everything for the readers first
+        end.set(sampleNumber);
+        claimed.set(sampleNumber);
+        start = sampleNumber;
+        writeEnd = sampleNumber;
+    }
+
+    // samples which have been filled in because of gaps in the sample numbers
+    public long getFilledSamples() {
+        return filledSamples;
+    }
+
+    /////////////////////////////////////////////////
+    // any thread
+
+    // sample number after the newest sample
+    public long getEndSampleNumber() {
+        return end.get();
+    }
+
+    // oldest sample number which can be read
+    public long getFirstSampleNumber() {
+        return Math.max(start, end.get() + 1 - capacity);
+    }
+
+    // number of samples which can be read
+    public int size() {
+        final long e = end.get();
+        return (int) (e - Math.max(start, e + 1 - capacity));
+    }
+
+    // copies n samples of one channel starting at startSample into dst
+    // at dstOffset. The range is cut off at the newest sample.
+    // Returns the number of samples copied or -1 if startSample
+    // isn't (or no longer) in the history.
+    public int read(int channel, long startSample, int n, float[] dst, int dstOffset) {
+        final long s0 = start;
+        final long e = end.get();
+        if ((startSample < Math.max(s0, e + 1 - capacity)) || (startSample > e)) {
+            return -1;
+        }
+        final int k = (int) Math.min(n, e - startSample);
+        if (k <= 0) return 0;
+        copy(channels[channel], startSample, k, dst, dstOffset);
+        if (!isValid(startSample, s0)) return -1;
+        return k;
+    }
+
+    // copies the most recent n samples of one channel (oldest first)
+    // into dst at dstOffset. Returns the number of samples copied.
+    public int readLast(int channel, int n, float[] dst, int dstOffset) {
+        while (true) {
+            final long e = end.get();
+            final int k = (int) Math.min(n, e - Math.max(start, e + 1 - capacity));
+            if (k <= 0) return 0;
+            final int r = read(channel, e - k, k, dst, dstOffset);
+            // only fails if the writer has overtaken us, try again
+            if (r >= 0) return r;
+        }
+    }
+
+    // copies n samples of several channels starting at startSample,
+    // channel list[i] into dst[i]. Returns the number of samples
+    // copied per channel or -1 if startSample isn't in the history.
+    public int read(int[] list, long startSample, int n, float[][] dst) {
+        final long s0 = start;
+        final long e = end.get();
+        if ((startSample < Math.max(s0, e + 1 - capacity)) || (startSample > e)) {
+            return -1;
+        }
+        final int k = (int) Math.min(n, e - startSample);
+        if (k <= 0) return 0;
+        for (int i = 0; i < list.length; i++) {
+            copy(channels[list[i]], startSample, k, dst[i], 0);
+        }
+        if (!isValid(startSample, s0)) return -1;
+        return k;
+    }
+
+    private void copy(float[] column, long startSample, int n, float[] dst, int dstOffset) {
+        final int slot = (int) (startSample % capacity);
+        final int first = Math.min(n, capacity - slot);
+        System.arraycopy(column, slot, dst, dstOffset, first);
+        if (first < n) {
+            System.arraycopy(column, 0, dst, dstOffset + first, n - first);
+        }
+    }
+
+    // checks that the samples from startSample on are still there
+    private boolean isValid(long startSample, long expectedStart) {
+        loadFence();
+        return (start == expectedStart) && (startSample >= claimed.get() + 1 - capacity);
+    }
+
+    // a volatile store keeps the plain loads before it from being
+    // reordered after the volatile loads which follow
+    private void loadFence() {
+        fence = 0;
+    }
+
+    /////////////////////////////////////////////////
+    // slices
+
+    /**
+     * A view of a range of one channel without copying: the samples
+     * are array[offset1 .. offset1 + length1 - 1] followed by
+     * array[offset2 .. offset2 + length2 - 1] when the range wraps
+     * around. The writer keeps on writing into the array: check
+     * with stillValid() after having used the values.
+     */
+    public final static class Slice {
+        public float[] array;
+        public int offset1;
+        public int length1;
+        public int offset2;
+        public int length2;
+        public long firstSampleNumber;
+        private long start;
+        private SampleHistory history;
+
+        public int length() {
+            return length1 + length2;
+        }
+
+        // value i of the slice
+        public float get(int i) {
+            if (i < length1) return array[offset1 + i];
+            return array[offset2 + i - length1];
+        }
+
+        // true if none of the samples in the slice has been overwritten since
+        public boolean stillValid() {
+            return (history != null) && history.isValid(firstSampleNumber, start);
+        }
+    }
+
+    // points the slice at n samples of one channel starting at startSample
+    // and cut off at the newest sample. Returns false if startSample
+    // isn't in the history.
+    public boolean slice(int channel, long startSample, int n, Slice slice) {
+        final long s0 = start;
+        final long e = end.get();
+        if ((startSample < Math.max(s0, e + 1 - capacity)) || (startSample > e)) {
+            return false;
+        }
+        final int k = (int) Math.max(0, Math.min(n, e - startSample));
+        final int slot = (int) (startSample % capacity);
+        slice.array = channels[channel];
+        slice.offset1 = slot;
+        slice.length1 = Math.min(k, capacity - slot);
+        slice.offset2 = 0;
+        slice.length2 = k - slice.length1;
+        slice.firstSampleNumber = startSample;
+        slice.start = s0;
+        slice.history = this;
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Turns the blocks back into single samples for a SampleListener.
+ */
+public class SampleListenerAdapter implements BlockListener {
+
+    private final SampleListener sampleListener;
+    private float[] sample = new float[0];
+
+    public SampleListenerAdapter(SampleListener l) {
+        sampleListener = l;
+    }
+
+    public SampleListener getSampleListener() {
+        return sampleListener;
+    }
+
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        if (sample.length != stride) {
+            sample = new float[stride];
+        }
+        for (int i = 0; i < nSamples; i++) {
+            System.arraycopy(interleaved, i * stride, sample, 0, stride);
+            sampleListener.gotData(firstSampleNumber + i, sample);
+        }
+    }
+}
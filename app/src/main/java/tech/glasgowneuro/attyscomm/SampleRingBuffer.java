@@ -0,0 +1,361 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer / single consumer ring buffer for samples.
+ * The acquisition thread is the only one calling put(), one consumer
+ * thread (for example the plotting thread) calls get(), drainTo(),
+ * empty() and reset(). size() and peekLast() can be called from
+ * anywhere.
+ * <p>
+ * The samples are stored one after the other in one flat float array
+ * together with their sample numbers.
+ * head and tail count the samples ever written and read. The producer
+ * publishes a sample by incrementing head after having written it
+ * (release) and the consumer reads head before reading the
+ * samples (acquire).
+ * <p>
+ * If the consumer falls behind the policy decides what happens:
+ * OVERFLOW_OVERWRITE keeps the most recent samples and the consumer
+ * skips the overwritten ones, OVERFLOW_DROP_NEW keeps the oldest
+ * samples and the producer drops the new ones. Both are counted.
+ * <p>
+ * With OVERFLOW_OVERWRITE, and in peekLast(), the producer can be
+ * writing into the samples while they're being copied. The reader
+ * copies them, orders its loads with a volatile store and then checks
+ * head again. It discards the samples the producer might have reached,
+ * plus a margin of SAFETY_MARGIN slots, because the producer's stores
+ * into its next slot can become visible before head. This is best
+ * effort: Java 7 has no load fence and no seqlock which would make it
+ * exact. The samples within the margin are counted as overwritten.
+ */
+public class SampleRingBuffer {
+
+    // the oldest samples are overwritten if the buffer is full
+    public final static int OVERFLOW_OVERWRITE = 0;
+    // new samples are dropped if the buffer is full
+    public final static int OVERFLOW_DROP_NEW = 1;
+
+    // slots next to the producer which readers don't trust
+    public final static int SAFETY_MARGIN = 2;
+
+    private final int capacity;
+    private final int nChannels;
+    private final int overflowPolicy;
+    private final float[] buffer;
+    private final long[] sampleNumbers;
+    // System.nanoTime() of the samples when they have been put in
+    private final long[] timestamps;
+    private volatile LatencyHistogram residence = null;
+
+    // number of samples ever written, written by the producer only
+    private final AtomicLong head = new AtomicLong();
+    // number of samples ever read, written by the consumer only
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer side
+    private long writeSeq = 0;
+    private int writeSlot = 0;
+    private long tailCache = 0;
+    private volatile long droppedSamples = 0;
+
+    // consumer side
+    private volatile long overwrittenSamples = 0;
+    private final float[] sample;
+
+    // only stored to, see loadFence()
+    private volatile int fence = 0;
+
+    public SampleRingBuffer(int capacity, int nChannels, int overflowPolicy) {
+        if (capacity <= SAFETY_MARGIN) {
+            throw new IllegalArgumentException("Capacity must be at least " + (SAFETY_MARGIN + 1) + ".");
+        }
+        this.capacity = capacity;
+        this.nChannels = nChannels;
+        this.overflowPolicy = overflowPolicy;
+        buffer = new float[capacity * nChannels];
+        sampleNumbers = new long[capacity];
+        timestamps = new long[capacity];
+        sample = new float[nChannels];
+    }
+
+    public SampleRingBuffer(int capacity, int nChannels) {
+        this(capacity, nChannels, OVERFLOW_OVERWRITE);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getNumberOfChannels() {
+        return nChannels;
+    }
+
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    // records how long every sample has been waiting in the buffer
+    // from its timestamp to when it's been read. Only samples which
+    // have been put in with a timestamp are recorded. null switches it off.
+    public void setResidenceHistogram(LatencyHistogram h) {
+        residence = h;
+    }
+
+    public LatencyHistogram getResidenceHistogram() {
+        return residence;
+    }
+
+    /////////////////////////////////////////////////
+    // producer
+
+    // copies the sample into the buffer and numbers it
+    // consecutively. Returns false if the sample has been dropped
+    // because the buffer is full.
+    public boolean put(float[] s) {
+        return put(writeSeq, s);
+    }
+
+    // copies the sample with its sample number into the buffer.
+    // Returns false if the sample has been dropped because the buffer is full.
+    public boolean put(long sampleNumber, float[] s) {
+        return put(sampleNumber, s, 0);
+    }
+
+    // as above with the System.nanoTime() when the sample has arrived
+    public boolean put(long sampleNumber, float[] s, long nanos) {
+        if (tryPut(sampleNumber, s, nanos)) {
+            return true;
+        }
+        droppedSamples++;
+        return false;
+    }
+
+    // as put() but a full buffer doesn't count as a dropped sample
+    // so that the caller can try again later
+    public boolean tryPut(long sampleNumber, float[] s) {
+        return tryPut(sampleNumber, s, 0);
+    }
+
+    // as above with the System.nanoTime() when the sample has arrived, 0 for none
+    public boolean tryPut(long sampleNumber, float[] s, long nanos) {
+        final long h = writeSeq;
+        if (overflowPolicy == OVERFLOW_DROP_NEW) {
+            if (h - tailCache >= capacity) {
+                tailCache = tail.get();
+                if (h - tailCache >= capacity) {
+                    return false;
+                }
+            }
+        }
+        final int slot = writeSlot;
+        System.arraycopy(s, 0, buffer, slot * nChannels, nChannels);
+        sampleNumbers[slot] = sampleNumber;
+        timestamps[slot] = nanos;
+        writeSlot = (slot + 1 == capacity) ? 0 : slot + 1;
+        writeSeq = h + 1;
+        // publishes the sample
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /////////////////////////////////////////////////
+    // consumer
+
+    // returns the oldest sample or null if the buffer is empty.
+    // The array is reused by the next call.
+    public float[] get() {
+        if (drainTo(sample, 1) == 1) {
+            return sample;
+        }
+        return null;
+    }
+
+    // copies up to maxSamples of the oldest samples into dst
+    // (interleaved, nChannels per sample) and removes them from
+    // the buffer. Returns the number of samples copied.
+    public int drainTo(float[] dst, int maxSamples) {
+        return drainTo(dst, null, maxSamples);
+    }
+
+    // as above but also copies the sample numbers into
+    // sampleNumbersDst if it's not null
+    public int drainTo(float[] dst, long[] sampleNumbersDst, int maxSamples) {
+        return drainTo(dst, sampleNumbersDst, null, maxSamples);
+    }
+
+    // as above and also copies the timestamps into timestampsDst
+    // if it's not null
+    public int drainTo(float[] dst, long[] sampleNumbersDst, long[] timestampsDst, int maxSamples) {
+        long t = tail.get();
+        final long h = head.get();
+        if (h - t > capacity) {
+            // the producer has overtaken us
+            overwrittenSamples += h - t - capacity;
+            t = h - capacity;
+        }
+        int max = Math.min(maxSamples, dst.length / nChannels);
+        if (sampleNumbersDst != null) {
+            max = Math.min(max, sampleNumbersDst.length);
+        }
+        if (timestampsDst != null) {
+            max = Math.min(max, timestampsDst.length);
+        }
+        int n = (int) Math.min(h - t, max);
+        if (n <= 0) {
+            tail.lazySet(t);
+            return 0;
+        }
+        copyOut(t, n, dst, sampleNumbersDst, timestampsDst);
+        if (overflowPolicy == OVERFLOW_OVERWRITE) {
+            // the producer might have overwritten what we have just copied
+            // including the slots it's writing at the moment
+            loadFence();
+            final long firstValid = head.get() + SAFETY_MARGIN - capacity;
+            if (firstValid > t) {
+                final int invalid = (int) Math.min(firstValid - t, n);
+                overwrittenSamples += invalid;
+                n -= invalid;
+                System.arraycopy(dst, invalid * nChannels, dst, 0, n * nChannels);
+                if (sampleNumbersDst != null) {
+                    System.arraycopy(sampleNumbersDst, invalid, sampleNumbersDst, 0, n);
+                }
+                if (timestampsDst != null) {
+                    System.arraycopy(timestampsDst, invalid, timestampsDst, 0, n);
+                }
+                t += invalid;
+            }
+        }
+        final LatencyHistogram r = residence;
+        if (r != null) {
+            recordResidence(r, t, n, timestampsDst);
+        }
+        tail.lazySet(t + n);
+        return n;
+    }
+
+    // discards all samples which haven't been read
+    public void empty() {
+        tail.lazySet(head.get());
+    }
+
+    // empties the buffer and clears the overflow counters
+    public void reset() {
+        empty();
+        overwrittenSamples = 0;
+        droppedSamples = 0;
+    }
+
+    /////////////////////////////////////////////////
+    // any thread
+
+    // number of samples which can be read. O(1).
+    public int size() {
+        final long t = tail.get();
+        final long n = head.get() - t;
+        if (n > capacity) return capacity;
+        return (int) n;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    // copies the most recent n samples (oldest first) into dst
+    // without removing them. Returns the number of samples copied
+    // which is less than n if there aren't enough samples yet. At
+    // most capacity - SAFETY_MARGIN samples, best effort (see above).
+    public int peekLast(int n, float[] dst) {
+        final long h = head.get();
+        int k = (int) Math.min(Math.min(n, h), Math.min(capacity - SAFETY_MARGIN, dst.length / nChannels));
+        if (k <= 0) return 0;
+        long start = h - k;
+        copyOut(start, k, dst, null, null);
+        loadFence();
+        final long firstValid = head.get() + SAFETY_MARGIN - capacity;
+        if (firstValid > start) {
+            final int invalid = (int) Math.min(firstValid - start, k);
+            k -= invalid;
+            System.arraycopy(dst, invalid * nChannels, dst, 0, k * nChannels);
+        }
+        return k;
+    }
+
+    // samples the consumer has lost because the producer overwrote them
+    public long getOverwrittenSamples() {
+        return overwrittenSamples;
+    }
+
+    // samples the producer has dropped because the buffer was full
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    // total number of samples ever written
+    public long getWrittenSamples() {
+        return head.get();
+    }
+
+    // a volatile store keeps the plain loads before it from being
+    // reordered after the volatile load of head which follows
+    private void loadFence() {
+        fence = 0;
+    }
+
+    private void recordResidence(LatencyHistogram r, long seq, int n, long[] timestampsDst) {
+        final long now = System.nanoTime();
+        int slot = (int) (seq % capacity);
+        for (int i = 0; i < n; i++) {
+            // the producer might overwrite the slot any moment
+            // but a wrong timestamp now and then doesn't matter
+            final long ts = (timestampsDst != null) ? timestampsDst[i] : timestamps[slot];
+            if (ts != 0) {
+                r.record(now - ts);
+            }
+            slot = (slot + 1 == capacity) ? 0 : slot + 1;
+        }
+    }
+
+    private void copyOut(long seq, int n, float[] dst, long[] sampleNumbersDst, long[] timestampsDst) {
+        final int slot = (int) (seq % capacity);
+        final int pos = slot * nChannels;
+        final int len = n * nChannels;
+        final int first = Math.min(len, buffer.length - pos);
+        System.arraycopy(buffer, pos, dst, 0, first);
+        if (first < len) {
+            System.arraycopy(buffer, 0, dst, first, len - first);
+        }
+        if (sampleNumbersDst != null) {
+            final int firstN = Math.min(n, capacity - slot);
+            System.arraycopy(sampleNumbers, slot, sampleNumbersDst, 0, firstN);
+            if (firstN < n) {
+                System.arraycopy(sampleNumbers, 0, sampleNumbersDst, firstN, n - firstN);
+            }
+        }
+        if (timestampsDst != null) {
+            final int firstN = Math.min(n, capacity - slot);
+            System.arraycopy(timestamps, slot, timestampsDst, 0, firstN);
+            if (firstN < n) {
+                System.arraycopy(timestamps, 0, timestampsDst, firstN, n - firstN);
+            }
+        }
+    }
+}
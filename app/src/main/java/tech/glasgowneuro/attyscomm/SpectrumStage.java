@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+/**
+ * Sliding window spectra of channels while the samples arrive. Every
+ * hop samples the last fftSize samples of every channel are windowed,
+ * transformed and handed to the listener as magnitude or power
+ * spectral density.
+ * <p>
+ * The bit reversal, twiddle factors, window and all buffers are set
+ * up once in the constructor so that computing a spectrum doesn't
+ * allocate anything. The real valued input is transformed with one
+ * complex FFT of half the length. A new sampling rate takes effect
+ * with the next sample and starts the window again; a gap in the
+ * sample numbers does the same. Only one thread may add samples.
+ */
+public class SpectrumStage implements BlockListener {
+
+    public final static int WINDOW_RECTANGULAR = 0;
+    public final static int WINDOW_HANN = 1;
+    public final static int WINDOW_HAMMING = 2;
+    public final static int WINDOW_BLACKMAN = 3;
+
+    // amplitude spectrum: a sine of amplitude A shows up as A
+    public final static int OUTPUT_MAGNITUDE = 0;
+    // one sided power spectral density in unit^2/Hz
+    public final static int OUTPUT_POWER = 1;
+
+    /**
+     * Gets the spectra every hop samples on the thread adding the
+     * samples. The arrays are reused for the next spectra.
+     */
+    public interface Listener {
+        // spectra[i][bin] of the channel getChannels()[i] ending with
+        // the sample sampleNumber. Bin k is at k * binWidth Hz.
+        void gotSpectrum(long sampleNumber, float[][] spectra, int nBins, double binWidth);
+    }
+
+    private final int[] channels;
+    private final int fftSize;
+    private final int hop;
+    private final int output;
+    private final int nBins;
+    private volatile Listener listener = null;
+
+    // tables
+    private final int[] bitReverse;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] splitCos;
+    private final double[] splitSin;
+    private final double[] window;
+    private final double windowSum;
+    private final double windowPower;
+
+    // buffers
+    private final float[][] input;
+    private final double[] re;
+    private final double[] im;
+    private final float[][] spectra;
+    private int pos = 0;
+    private int filled = 0;
+    private int sinceLastSpectrum = 0;
+    private long nextSampleNumber = -1;
+    private long spectraComputed = 0;
+
+    private volatile int requestedRate;
+    private int samplingRate;
+    private double scale;
+
+    // fftSize is a power of two of at least 8 and hop at most fftSize
+    public SpectrumStage(int[] channels, int fftSize, int hop, int windowType, int output, int samplingRate) {
+        if ((fftSize < 8) || (Integer.bitCount(fftSize) != 1)) {
+            throw new IllegalArgumentException("FFT size needs to be a power of two >= 8: " + fftSize);
+        }
+        if ((hop < 1) || (hop > fftSize)) {
+            throw new IllegalArgumentException("Hop needs to be between 1 and the FFT size: " + hop);
+        }
+        this.channels = channels.clone();
+        this.fftSize = fftSize;
+        this.hop = hop;
+        this.output = output;
+        nBins = fftSize / 2 + 1;
+
+        final int m = fftSize / 2;
+        final int bits = Integer.numberOfTrailingZeros(m);
+        bitReverse = new int[m];
+        for (int i = 0; i < m; i++) {
+            bitReverse[i] = (bits == 0) ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[m / 2];
+        sin = new double[m / 2];
+        for (int i = 0; i < m / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / m);
+            sin[i] = -Math.sin(2 * Math.PI * i / m);
+        }
+        splitCos = new double[nBins];
+        splitSin = new double[nBins];
+        for (int k = 0; k < nBins; k++) {
+            splitCos[k] = Math.cos(2 * Math.PI * k / fftSize);
+            splitSin[k] = Math.sin(2 * Math.PI * k / fftSize);
+        }
+        window = new double[fftSize];
+        double sum = 0;
+        double power = 0;
+        for (int i = 0; i < fftSize; i++) {
+            window[i] = windowFunction(windowType, i, fftSize);
+            sum += window[i];
+            power += window[i] * window[i];
+        }
+        windowSum = sum;
+        windowPower = power;
+
+        input = new float[channels.length][fftSize];
+        re = new double[m];
+        im = new double[m];
+        spectra = new float[channels.length][nBins];
+        requestedRate = samplingRate;
+        this.samplingRate = samplingRate;
+        scale = computeScale();
+    }
+
+    // periodic windows as used for spectral analysis
+    private static double windowFunction(int type, int i, int n) {
+        final double x = 2 * Math.PI * i / n;
+        switch (type) {
+            case WINDOW_RECTANGULAR:
+                return 1;
+            case WINDOW_HANN:
+                return 0.5 - 0.5 * Math.cos(x);
+            case WINDOW_HAMMING:
+                return 0.54 - 0.46 * Math.cos(x);
+            case WINDOW_BLACKMAN:
+                return 0.42 - 0.5 * Math.cos(x) + 0.08 * Math.cos(2 * x);
+            default:
+                throw new IllegalArgumentException("Unknown window: " + type);
+        }
+    }
+
+    private double computeScale() {
+        if (output == OUTPUT_POWER) {
+            return 1.0 / (samplingRate * windowPower);
+        }
+        return 1.0 / windowSum;
+    }
+
+    public void setListener(Listener l) {
+        listener = l;
+    }
+
+    // takes effect with the next sample and starts the window again
+    public void setSamplingRate(int rate) {
+        requestedRate = rate;
+    }
+
+    public int[] getChannels() {
+        return channels.clone();
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    public int getNumberOfBins() {
+        return nBins;
+    }
+
+    public double getBinWidth() {
+        return (double) requestedRate / fftSize;
+    }
+
+    public long getSpectraComputed() {
+        return spectraComputed;
+    }
+
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        for (int i = 0; i < nSamples; i++) {
+            put(firstSampleNumber + i, interleaved, i * stride);
+        }
+    }
+
+    // one sample with all channels starting at offset in data
+    public void put(long sampleNumber, float[] data, int offset) {
+        if ((sampleNumber != nextSampleNumber) || (requestedRate != samplingRate)) {
+            samplingRate = requestedRate;
+            scale = computeScale();
+            filled = 0;
+            sinceLastSpectrum = 0;
+        }
+        nextSampleNumber = sampleNumber + 1;
+        for (int c = 0; c < channels.length; c++) {
+            input[c][pos] = data[offset + channels[c]];
+        }
+        pos = (pos + 1) & (fftSize - 1);
+        if (filled < fftSize) {
+            filled++;
+            if (filled < fftSize) return;
+        } else if (++sinceLastSpectrum < hop) {
+            return;
+        }
+        sinceLastSpectrum = 0;
+        for (int c = 0; c < channels.length; c++) {
+            spectrum(input[c], spectra[c]);
+        }
+        spectraComputed++;
+        final Listener l = listener;
+        if (l != null) {
+            l.gotSpectrum(sampleNumber, spectra, nBins, (double) samplingRate / fftSize);
+        }
+    }
+
+    // windows the ring buffer x starting at the oldest sample and
+    // writes the spectrum to dst
+    private void spectrum(float[] x, float[] dst) {
+        final int m = fftSize / 2;
+        final int mask = fftSize - 1;
+        // even samples to the real part, odd ones to the imaginary part
+        for (int i = 0; i < m; i++) {
+            final int j = bitReverse[i];
+            final int n = 2 * i;
+            re[j] = x[(pos + n) & mask] * window[n];
+            im[j] = x[(pos + n + 1) & mask] * window[n + 1];
+        }
+        fft(m);
+        // separates the transforms of the even and the odd samples
+        for (int k = 0; k < nBins; k++) {
+            final int a = k % m;
+            final int b = (m - k) % m;
+            final double er = (re[a] + re[b]) / 2;
+            final double ei = (im[a] - im[b]) / 2;
+            final double or = (im[a] + im[b]) / 2;
+            final double oi = (re[b] - re[a]) / 2;
+            final double c = splitCos[k];
+            final double s = splitSin[k];
+            final double xr = er + c * or + s * oi;
+            final double xi = ei + c * oi - s * or;
+            double v = xr * xr + xi * xi;
+            if (output == OUTPUT_POWER) {
+                v *= scale;
+            } else {
+                v = Math.sqrt(v) * scale;
+            }
+            // one sided: the negative frequencies are added
+            if ((k > 0) && (k < nBins - 1)) {
+                v *= 2;
+            }
+            dst[k] = (float) v;
+        }
+    }
+
+    // in place radix 2 FFT of the bit reversed re/im
+    private void fft(int m) {
+        for (int size = 2; size <= m; size <<= 1) {
+            final int half = size >> 1;
+            final int step = m / size;
+            for (int i = 0; i < m; i += size) {
+                for (int j = 0, k = 0; j < half; j++, k += step) {
+                    final int p = i + j;
+                    final int q = p + half;
+                    final double tr = re[q] * cos[k] - im[q] * sin[k];
+                    final double ti = re[q] * sin[k] + im[q] * cos[k];
+                    re[q] = re[p] - tr;
+                    im[q] = im[p] - ti;
+                    re[p] += tr;
+                    im[p] += ti;
+                }
+            }
+        }
+    }
+
+    // power of a spectrum from this stage between f1 and f2 (inclusive)
+    // in unit^2. Needs OUTPUT_POWER.
+    public double getBandPower(float[] spectrum, double f1, double f2) {
+        final double binWidth = getBinWidth();
+        final int k1 = Math.max(0, (int) Math.ceil(f1 / binWidth));
+        final int k2 = Math.min(nBins - 1, (int) Math.floor(f2 / binWidth));
+        double p = 0;
+        for (int k = k1; k <= k2; k++) {
+            p += spectrum[k];
+        }
+        return p * binWidth;
+    }
+}
@@ -0,0 +1,436 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Min, max and mean of the channels at power of two resolutions for
+ * zooming through long sessions. Level 0 summarises 2^baseShift
+ * samples per entry, level k 2^(baseShift + k). The levels are built
+ * while the samples arrive: every finished level 0 entry is added to
+ * the pending entry of every coarser level.
+ * <p>
+ * query() picks the coarsest level which still has at least one entry
+ * per pixel and copies the entries of the requested range so that
+ * zooming and panning costs the same whatever the length of the
+ * session. Below level 0 the samples themselves are needed, for
+ * example from the SampleHistory or the AttysRecordingReader.
+ * <p>
+ * The entries are aligned to the first sample number and entries
+ * without samples are NaN. Only one thread may add samples, any
+ * thread may query.
+ * <p>
+ * The AttysRecorder saves it next to the recording in a big endian
+ * file (see getFile()):
+ * <pre>
+ * byte[8]  "ATTYSPYR"
+ * int      format version
+ * int      base shift, int number of levels
+ * int      number of channels, int[number of channels] indices in the sample array
+ * long     sample number of the first sample
+ * for every level:
+ * long     number of entries n
+ * float[n * number of channels * 3] min, max, mean
+ * </pre>
+ */
+public class SummaryPyramid implements BlockListener {
+
+    public final static byte[] MAGIC = {'A', 'T', 'T', 'Y', 'S', 'P', 'Y', 'R'};
+    public final static int VERSION = 1;
+    public final static String FILE_EXTENSION = ".pyr";
+
+    // 16 samples per entry at level 0
+    public final static int DEFAULT_BASE_SHIFT = 4;
+    // the top level has 2^23 samples per entry, 4.6h at 500Hz
+    public final static int DEFAULT_LEVELS = 20;
+
+    // entries per chunk
+    private final static int CHUNK_SIZE = 4096;
+    // min, max, mean
+    private final static int NVALUES = 3;
+
+    /**
+     * The entries of one channel, oldest first.
+     */
+    public final static class Summary {
+        public int level;
+        public long firstSampleNumber;
+        public long samplesPerEntry;
+        public int n;
+        public final float[] min;
+        public final float[] max;
+        public final float[] mean;
+
+        // capacity needs to be at least twice the number of pixels
+        public Summary(int capacity) {
+            min = new float[capacity];
+            max = new float[capacity];
+            mean = new float[capacity];
+        }
+    }
+
+    private final static class Level {
+        final List<float[]> chunks = new ArrayList<float[]>();
+        long size = 0;
+        // the entry being summed up
+        long index = -1;
+        int count = 0;
+        final float[] min;
+        final float[] max;
+        final double[] sum;
+
+        Level(int nChannels) {
+            min = new float[nChannels];
+            max = new float[nChannels];
+            sum = new double[nChannels];
+        }
+    }
+
+    private final int[] channels;
+    private final int baseShift;
+    private final Level[] levels;
+    private final int entrySize;
+    private long origin = -1;
+    private long lastSampleNumber = -1;
+
+    // level 0 entry being filled, owned by the writer
+    private long index = -1;
+    private int count = 0;
+    private final float[] curMin;
+    private final float[] curMax;
+    private final double[] curSum;
+
+    public SummaryPyramid(int[] channels, int baseShift, int nLevels) {
+        this.channels = channels.clone();
+        this.baseShift = baseShift;
+        entrySize = channels.length * NVALUES;
+        levels = new Level[nLevels];
+        for (int i = 0; i < nLevels; i++) {
+            levels[i] = new Level(channels.length);
+        }
+        curMin = new float[channels.length];
+        curMax = new float[channels.length];
+        curSum = new double[channels.length];
+    }
+
+    public SummaryPyramid(int[] channels) {
+        this(channels, DEFAULT_BASE_SHIFT, DEFAULT_LEVELS);
+    }
+
+    // the pyramid which belongs to a recording
+    public static File getFile(File recording) {
+        return new File(recording.getPath() + FILE_EXTENSION);
+    }
+
+    public int[] getChannels() {
+        return channels.clone();
+    }
+
+    public int getBaseShift() {
+        return baseShift;
+    }
+
+    public int getNumberOfLevels() {
+        return levels.length;
+    }
+
+    // number of samples per entry of the level
+    public long getSamplesPerEntry(int level) {
+        return 1L << (baseShift + level);
+    }
+
+    // sample number of the first sample or -1 if empty
+    public synchronized long getFirstSampleNumber() {
+        return origin;
+    }
+
+    public synchronized long getNumberOfEntries(int level) {
+        return levels[level].size;
+    }
+
+    @Override
+    public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+        for (int i = 0; i < nSamples; i++) {
+            put(firstSampleNumber + i, interleaved, i * stride);
+        }
+    }
+
+    // one sample with all channels starting at offset in data
+    public void put(long sampleNumber, float[] data, int offset) {
+        if (sampleNumber <= lastSampleNumber) {
+            // the sample numbers have started again
+            clear();
+        }
+        if (origin < 0) {
+            synchronized (this) {
+                origin = sampleNumber;
+            }
+        }
+        lastSampleNumber = sampleNumber;
+        final long i = (sampleNumber - origin) >> baseShift;
+        if (i != index) {
+            if (count > 0) {
+                finishEntry();
+            }
+            index = i;
+            count = 0;
+        }
+        for (int c = 0; c < channels.length; c++) {
+            final float v = data[offset + channels[c]];
+            if (count == 0) {
+                curMin[c] = v;
+                curMax[c] = v;
+                curSum[c] = v;
+            } else {
+                if (v < curMin[c]) curMin[c] = v;
+                if (v > curMax[c]) curMax[c] = v;
+                curSum[c] += v;
+            }
+        }
+        count++;
+    }
+
+    // stores the level 0 entry and adds it to the coarser levels
+    private synchronized void finishEntry() {
+        append(levels[0], index, curMin, curMax, curSum, count);
+        for (int k = 1; k < levels.length; k++) {
+            final Level l = levels[k];
+            final long i = index >> k;
+            if (l.index != i) {
+                if (l.count > 0) {
+                    append(l, l.index, l.min, l.max, l.sum, l.count);
+                }
+                l.index = i;
+                l.count = 0;
+            }
+            for (int c = 0; c < channels.length; c++) {
+                if (l.count == 0) {
+                    l.min[c] = curMin[c];
+                    l.max[c] = curMax[c];
+                    l.sum[c] = curSum[c];
+                } else {
+                    l.min[c] = Math.min(l.min[c], curMin[c]);
+                    l.max[c] = Math.max(l.max[c], curMax[c]);
+                    l.sum[c] += curSum[c];
+                }
+            }
+            l.count += count;
+        }
+    }
+
+    // writes entry i of the level, entries skipped on the way are NaN
+    private void append(Level l, long i, float[] min, float[] max, double[] sum, int n) {
+        while (l.size <= i) {
+            final int p = (int) (l.size % CHUNK_SIZE) * entrySize;
+            if (p == 0) {
+                l.chunks.add(new float[CHUNK_SIZE * entrySize]);
+            }
+            final float[] chunk = l.chunks.get(l.chunks.size() - 1);
+            if (l.size < i) {
+                Arrays.fill(chunk, p, p + entrySize, Float.NaN);
+            } else {
+                for (int c = 0; c < channels.length; c++) {
+                    chunk[p + c * NVALUES] = min[c];
+                    chunk[p + c * NVALUES + 1] = max[c];
+                    chunk[p + c * NVALUES + 2] = (float) (sum[c] / n);
+                }
+            }
+            l.size++;
+        }
+    }
+
+    // adds the pending entries to the levels. Call it when no more
+    // samples arrive.
+    public synchronized void finish() {
+        if (count > 0) {
+            finishEntry();
+            count = 0;
+            index = -1;
+        }
+        for (Level l : levels) {
+            if (l.count > 0) {
+                append(l, l.index, l.min, l.max, l.sum, l.count);
+                l.count = 0;
+                l.index = -1;
+            }
+        }
+    }
+
+    private synchronized void clear() {
+        for (Level l : levels) {
+            l.chunks.clear();
+            l.size = 0;
+            l.index = -1;
+            l.count = 0;
+        }
+        origin = -1;
+        index = -1;
+        count = 0;
+        lastSampleNumber = -1;
+    }
+
+    private int indexOf(int channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel) return i;
+        }
+        throw new IllegalArgumentException("Channel " + channel + " isn't summarised.");
+    }
+
+    // the level for plotting nSamples samples in pixels columns or -1
+    // if even level 0 has fewer entries than pixels
+    public int selectLevel(long nSamples, int pixels) {
+        final long samplesPerPixel = nSamples / Math.max(1, pixels);
+        if (samplesPerPixel < (1L << baseShift)) return -1;
+        final int k = 63 - Long.numberOfLeadingZeros(samplesPerPixel) - baseShift;
+        return Math.min(k, levels.length - 1);
+    }
+
+    // copies the entries of the channel from startSample to endSample
+    // (exclusive) at the coarsest level with at least one entry per
+    // pixel. Returns false if the samples themselves are needed.
+    public synchronized boolean query(int channel, long startSample, long endSample, int pixels, Summary s) {
+        final int c = indexOf(channel);
+        final int k = selectLevel(endSample - startSample, pixels);
+        s.n = 0;
+        if (k < 0) return false;
+        final Level l = levels[k];
+        final int shift = baseShift + k;
+        s.level = k;
+        s.samplesPerEntry = 1L << shift;
+        if (origin < 0) {
+            s.firstSampleNumber = startSample;
+            return true;
+        }
+        final long first = Math.max(0, (startSample - origin) >> shift);
+        final long end = Math.min(((endSample - origin - 1) >> shift) + 1, first + s.min.length);
+        s.firstSampleNumber = origin + (first << shift);
+        int n = 0;
+        for (long i = first; i < end; i++) {
+            if (i < l.size) {
+                final float[] chunk = l.chunks.get((int) (i / CHUNK_SIZE));
+                final int p = (int) (i % CHUNK_SIZE) * entrySize + c * NVALUES;
+                s.min[n] = chunk[p];
+                s.max[n] = chunk[p + 1];
+                s.mean[n] = chunk[p + 2];
+            } else if ((i == l.index) && (l.count > 0)) {
+                // not complete yet
+                s.min[n] = l.min[c];
+                s.max[n] = l.max[c];
+                s.mean[n] = (float) (l.sum[c] / l.count);
+            } else {
+                break;
+            }
+            n++;
+        }
+        s.n = n;
+        return true;
+    }
+
+    /////////////////////////////////////////////////
+    // persistence
+
+    // finishes the pyramid and saves it
+    public synchronized void write(File file) throws IOException {
+        finish();
+        final RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(0);
+            final FileChannel ch = f.getChannel();
+            final ByteBuffer b = ByteBuffer.allocateDirect(65536);
+            b.put(MAGIC);
+            b.putInt(VERSION);
+            b.putInt(baseShift);
+            b.putInt(levels.length);
+            b.putInt(channels.length);
+            for (int c : channels) {
+                b.putInt(c);
+            }
+            b.putLong(origin);
+            for (Level l : levels) {
+                if (b.remaining() < 8) flush(ch, b);
+                b.putLong(l.size);
+                for (long i = 0; i < l.size; i++) {
+                    final float[] chunk = l.chunks.get((int) (i / CHUNK_SIZE));
+                    final int p = (int) (i % CHUNK_SIZE) * entrySize;
+                    if (b.remaining() < entrySize * 4) flush(ch, b);
+                    for (int j = 0; j < entrySize; j++) {
+                        b.putFloat(chunk[p + j]);
+                    }
+                }
+            }
+            flush(ch, b);
+            ch.force(false);
+        } finally {
+            f.close();
+        }
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer b) throws IOException {
+        b.flip();
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+        b.clear();
+    }
+
+    // loads a pyramid saved with write()
+    public static SummaryPyramid read(File file) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel ch = f.getChannel();
+            final ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            final byte[] magic = new byte[MAGIC.length];
+            b.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || (b.getInt() != VERSION)) {
+                throw new IOException("Not a summary pyramid: " + file);
+            }
+            final int baseShift = b.getInt();
+            final int nLevels = b.getInt();
+            final int[] channels = new int[b.getInt()];
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = b.getInt();
+            }
+            final SummaryPyramid p = new SummaryPyramid(channels, baseShift, nLevels);
+            p.origin = b.getLong();
+            for (Level l : p.levels) {
+                final long size = b.getLong();
+                for (long i = 0; i < size; i += CHUNK_SIZE) {
+                    final float[] chunk = new float[CHUNK_SIZE * p.entrySize];
+                    final int n = (int) Math.min(CHUNK_SIZE, size - i) * p.entrySize;
+                    b.asFloatBuffer().get(chunk, 0, n);
+                    b.position(b.position() + n * 4);
+                    l.chunks.add(chunk);
+                }
+                l.size = size;
+            }
+            return p;
+        } catch (RuntimeException e) {
+            throw new IOException("Not a valid summary pyramid: " + file, e);
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Bernd Porr, mail@berndporr.me.uk
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.glasgowneuro.attyscomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects to an Attys (or the AttysSimulator) speaking the Attys
+ * protocol over a TCP socket, for example on localhost.
+ */
+public class TcpTransport implements AttysTransport {
+
+    public final static int DEFAULT_CONNECT_TIMEOUT_IN_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private volatile Socket socket = null;
+
+    public TcpTransport(String host, int port, int connectTimeoutInMs) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeoutInMs;
+    }
+
+    public TcpTransport(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT_IN_MS);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        close();
+        final Socket s = new Socket();
+        // set before the blocking connect() so that close() can abort it
+        socket = s;
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            if (socket == s) {
+                socket = null;
+            }
+            closeQuietly(s);
+            throw e;
+        }
+        if (socket != s) {
+            // close() has been called while connecting
+            closeQuietly(s);
+            throw new IOException("Closed while connecting.");
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final Socket s = socket;
+        if (s == null) throw new IOException("Not connected.");
+        return s.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        final Socket s = socket;
+        if (s == null) throw new IOException("Not connected.");
+        return s.getOutputStream();
+    }
+
+    @Override
+    public boolean isConnected() {
+        final Socket s = socket;
+        return (s != null) && s.isConnected() && !s.isClosed();
+    }
+
+    @Override
+    public void close() {
+        final Socket s = socket;
+        socket = null;
+        if (s != null) {
+            closeQuietly(s);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,57 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Base64 and line framing of the data coming from the Attys.
+ */
+public class AttysBase64Test {
+
+    @Test
+    public void roundTrip() throws Exception {
+        final byte[] src = new byte[20];
+        final byte[] enc = new byte[AttysBase64.encodedLength(src.length)];
+        final byte[] dec = new byte[AttysBase64.decodedLength(enc.length)];
+        for (int len = 0; len <= src.length; len++) {
+            for (int i = 0; i < len; i++) {
+                src[i] = (byte) (i * 37 + len);
+            }
+            final int n = AttysBase64.encode(src, 0, len, enc, 0);
+            assertEquals(AttysBase64.encodedLength(len), n);
+            assertEquals(len, AttysBase64.decode(enc, 0, n, dec, 0));
+            for (int i = 0; i < len; i++) {
+                assertEquals(src[i], dec[i]);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidInput() throws Exception {
+        final byte[] dst = new byte[32];
+        final byte[] bad = "AB*D".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-1, AttysBase64.decode(bad, 0, bad.length, dst, 0));
+        final byte[] truncated = "ABCDE".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-1, AttysBase64.decode(truncated, 0, truncated.length, dst, 0));
+        final byte[] tooLong = new byte[64];
+        for (int i = 0; i < tooLong.length; i++) tooLong[i] = 'A';
+        assertEquals(-1, AttysBase64.decode(tooLong, 0, tooLong.length, dst, 0));
+    }
+
+    @Test
+    public void framesLines() throws Exception {
+        final byte[] stream = "OK\r\n\r\nQUJD\rXYZ\n".getBytes(StandardCharsets.US_ASCII);
+        final LineFramer framer = new LineFramer(new ByteArrayInputStream(stream), 3, 16);
+        assertEquals(2, framer.readLine());
+        assertTrue(framer.isOK());
+        assertEquals(4, framer.readLine());
+        assertFalse(framer.isOK());
+        assertEquals("QUJD", framer.lineToString());
+        assertEquals(3, framer.readLine());
+        assertEquals(-1, framer.readLine());
+    }
+}
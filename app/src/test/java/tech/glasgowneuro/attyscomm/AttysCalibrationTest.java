@@ -0,0 +1,85 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Converting raw counts into SI units.
+ */
+public class AttysCalibrationTest {
+
+    private final AttysCalibration calibration = new AttysCalibration(
+            AttysComm.ACCEL_FULL_SCALE[AttysComm.ACCEL_16G], AttysComm.MAG_FULL_SCALE,
+            AttysComm.ADC_REF / 6, AttysComm.ADC_REF / 12);
+
+    @Test
+    public void convertsCounts() {
+        assertEquals(0, calibration.toSI(AttysComm.INDEX_Acceleration_Z, 0x8000), 0);
+        assertEquals(-AttysComm.ACCEL_FULL_SCALE[AttysComm.ACCEL_16G],
+                calibration.toSI(AttysComm.INDEX_Acceleration_X, 0), 1e-6);
+        assertEquals(AttysComm.ADC_REF / 12 / 2,
+                calibration.toSI(AttysComm.INDEX_Analogue_channel_2, 0xc00000), 1e-7);
+        assertEquals(1, calibration.toSI(AttysComm.INDEX_GPIO0, 1), 0);
+        assertEquals(0x800000, calibration.getZeroCount(AttysComm.INDEX_Analogue_channel_1));
+        // exactly the conversion the decoder has always done
+        for (int v = 0; v < 0x1000000; v += 4099) {
+            final float norm = 0x800000;
+            assertEquals((v - norm) / norm * (AttysComm.ADC_REF / 6),
+                    calibration.toSI(AttysComm.INDEX_Analogue_channel_1, v), 0);
+        }
+        // and precise around zero: one LSB
+        for (int v = 0x800000 - 16; v <= 0x800000 + 16; v++) {
+            final float norm = 0x800000;
+            assertEquals((v - norm) / norm * (AttysComm.ADC_REF / 6),
+                    calibration.toSI(AttysComm.INDEX_Analogue_channel_1, v), 0);
+        }
+        assertEquals(AttysComm.ADC_REF / 6 / 0x800000,
+                calibration.toSI(AttysComm.INDEX_Analogue_channel_1, 0x800001), 1e-15);
+    }
+
+    @Test
+    public void convertsBlocks() {
+        final int n = 3;
+        final int[] counts = new int[n * AttysCalibration.NCHANNELS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = i * 1000;
+        }
+        final float[] block = new float[counts.length];
+        calibration.toSI(counts, 0, block, 0, n);
+        for (int i = 0; i < counts.length; i++) {
+            final int ch = i % AttysCalibration.NCHANNELS;
+            assertEquals(calibration.toSI(ch, counts[i]), block[i], 0);
+        }
+    }
+
+    @Test
+    public void decoderDeliversCountsAndSIUnits() {
+        final AttysPacketGenerator generator = new AttysPacketGenerator();
+        final AttysPacketDecoder decoder = new AttysPacketDecoder();
+        decoder.setCalibration(calibration);
+        final int[] counts = new int[AttysCalibration.NCHANNELS];
+        final float[] si = new float[AttysCalibration.NCHANNELS];
+        decoder.setRawSampleListener(new RawSampleListener() {
+            @Override
+            public void gotRawData(long samplenumber, int[] c) {
+                System.arraycopy(c, 0, counts, 0, c.length);
+            }
+        });
+        decoder.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                System.arraycopy(data, 0, si, 0, data.length);
+            }
+        });
+        final byte[] line = new byte[AttysPacketGenerator.MAX_LINE_LENGTH];
+        for (int j = 0; j < 10; j++) {
+            final int len = generator.nextLine(line, 0);
+            assertEquals(AttysPacketDecoder.STATUS_OK, decoder.decodeStandardSpeedPacket(line, len));
+            for (int i = 0; i < AttysCalibration.NCHANNELS; i++) {
+                assertEquals(calibration.toSI(i, counts[i]), si[i], 0);
+            }
+        }
+        assertEquals(AttysComm.oneG, si[AttysComm.INDEX_Acceleration_Z], 0.01F);
+    }
+}
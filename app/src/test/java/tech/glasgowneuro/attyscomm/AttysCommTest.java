@@ -0,0 +1,448 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs AttysComm against the AttysSimulator.
+ */
+public class AttysCommTest {
+
+    private AttysSimulator simulator;
+    private AttysComm attysComm;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new AttysSimulator();
+        simulator.start();
+        attysComm = new AttysComm(simulator.createTransport());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        attysComm.stop();
+        simulator.stop();
+    }
+
+    private void waitForSamples(int n) throws Exception {
+        for (int i = 0; (i < 500) && (attysComm.getSampleNumber() < n); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(attysComm.getSampleNumber() >= n);
+    }
+
+    @Test
+    public void receivesSamples() throws Exception {
+        attysComm.setAdc_samplingrate_index(AttysComm.ADC_RATE_250HZ);
+        attysComm.start();
+        waitForSamples(50);
+        assertTrue(attysComm.hasActiveConnection());
+        final float[] sample = attysComm.getSampleFromBuffer();
+        assertNotNull(sample);
+        assertEquals(AttysComm.oneG, sample[AttysComm.INDEX_Acceleration_Z], 0.01F);
+        assertEquals(0, sample[AttysComm.INDEX_Acceleration_X], 0.01F);
+        assertEquals(0, sample[AttysComm.INDEX_Analogue_channel_1],
+                attysComm.getADCFullScaleRange(0));
+    }
+
+    @Test
+    public void deliversRawCounts() throws Exception {
+        final int[] counts = new int[AttysComm.NCHANNELS];
+        final CountDownLatch received = new CountDownLatch(50);
+        attysComm.setRawMode(true);
+        attysComm.setRawSampleListener(new RawSampleListener() {
+            @Override
+            public void gotRawData(long samplenumber, int[] c) {
+                System.arraycopy(c, 0, counts, 0, c.length);
+                received.countDown();
+            }
+        });
+        attysComm.start();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        final AttysCalibration calibration = attysComm.getCalibration();
+        assertEquals(AttysComm.oneG,
+                calibration.toSI(AttysComm.INDEX_Acceleration_Z, counts[AttysComm.INDEX_Acceleration_Z]), 0.01F);
+        // nothing has been converted
+        assertNull(attysComm.getSampleFromBuffer());
+        assertTrue(attysComm.getMetrics().get(AttysMetrics.SAMPLES) >= 50);
+    }
+
+    @Test
+    public void countsPacketsAndSamples() throws Exception {
+        attysComm.setAdc_samplingrate_index(AttysComm.ADC_RATE_500Hz);
+        final AttysMetrics.Snapshot first = attysComm.getMetricsSnapshot(new AttysMetrics.Snapshot());
+        attysComm.start();
+        waitForSamples(200);
+        final AttysMetrics.Snapshot s = attysComm.getMetricsSnapshot(new AttysMetrics.Snapshot());
+        // two samples per high speed packet
+        assertTrue(s.get(AttysMetrics.PACKETS) >= 100);
+        assertTrue(s.get(AttysMetrics.SAMPLES) >= 2 * s.get(AttysMetrics.PACKETS) - 2);
+        assertEquals(0, s.get(AttysMetrics.BASE64_ERRORS));
+        assertEquals(0, s.get(AttysMetrics.RECONNECTS));
+        assertEquals(1000, s.get(AttysMetrics.RINGBUFFER_CAPACITY));
+        assertTrue(s.get(AttysMetrics.RINGBUFFER_FILL) > 0);
+        assertTrue(s.getRate(AttysMetrics.SAMPLES, first) > 0);
+    }
+
+    @Test
+    public void measuresLatencies() throws Exception {
+        final CountDownLatch received = new CountDownLatch(100);
+        attysComm.registerDataListener(new AttysComm.DataListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                received.countDown();
+            }
+        });
+        attysComm.start();
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        while (attysComm.getSampleFromBuffer() == null) {
+            Thread.sleep(10);
+        }
+        assertTrue(attysComm.getDecodeLatency().getCount() >= 100);
+        assertTrue(attysComm.getDispatchLatency().getCount() >= 100);
+        assertTrue(attysComm.getRingbufferLatency().getCount() >= 1);
+        // end to end can't be faster than the decoding
+        assertTrue(attysComm.getDispatchLatency().getMax() >= attysComm.getDecodeLatency().getPercentile(50));
+        attysComm.resetLatencies();
+        assertTrue(attysComm.getDecodeLatency().getCount() < 100);
+    }
+
+    // records the changes of the connection state
+    private static class StateRecorder implements AttysComm.ConnectionListener {
+        final List<Integer> states = new CopyOnWriteArrayList<Integer>();
+        final List<Long> retries = new CopyOnWriteArrayList<Long>();
+
+        @Override
+        public void connectionStateChanged(int state, int failedAttempts, long retryInMs) {
+            states.add(state);
+            if (state == AttysComm.CONNECTION_RETRY_SCHEDULED) {
+                retries.add(retryInMs);
+            }
+        }
+    }
+
+    @Test
+    public void reconnectsAfterTheConnectionHasDropped() throws Exception {
+        final StateRecorder recorder = new StateRecorder();
+        attysComm.setConnectionListener(recorder);
+        attysComm.start();
+        waitForSamples(50);
+        assertEquals(AttysComm.CONNECTION_CONNECTED, attysComm.getConnectionState());
+        simulator.dropConnection();
+        for (int i = 0; (i < 500) && (attysComm.getReconnects() == 0); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, attysComm.getReconnects());
+        final long n = attysComm.getSampleNumber();
+        waitForSamples((int) n + 50);
+        assertTrue(recorder.states.contains(AttysComm.CONNECTION_LOST));
+        assertEquals(AttysComm.CONNECTION_CONNECTED,
+                (int) recorder.states.get(recorder.states.size() - 1));
+        attysComm.stop();
+        assertEquals(AttysComm.CONNECTION_CLOSED, attysComm.getConnectionState());
+    }
+
+    @Test
+    public void reconnectsToAnAttysWhichHasBeenReset() throws Exception {
+        attysComm.setAdc1_gain_index(AttysComm.ADC_GAIN_12);
+        attysComm.start();
+        waitForSamples(50);
+        // x=0, the 8 registers in one batch and x=1
+        assertEquals(10, simulator.getCommandsReceived());
+        assertTrue(attysComm.getMetrics().get(AttysMetrics.CONNECT_TO_FIRST_SAMPLE_NANOS) > 0);
+        // back to no base64 and the default gains
+        simulator.powerCycle();
+        for (int i = 0; (i < 500) && (attysComm.getReconnects() == 0); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, attysComm.getReconnects());
+        final long errors = attysComm.getMetrics().get(AttysMetrics.BASE64_ERRORS);
+        waitForSamples((int) attysComm.getSampleNumber() + 50);
+        // all of them again in one batch
+        assertEquals(20, simulator.getCommandsReceived());
+        assertEquals(attysComm.getConfig(), attysComm.getDeviceConfig());
+        assertEquals(errors, attysComm.getMetrics().get(AttysMetrics.BASE64_ERRORS));
+        assertEquals(0, attysComm.getMetrics().get(AttysMetrics.UNEXPECTED_OK));
+    }
+
+    @Test
+    public void changesTheGainWhileStreaming() throws Exception {
+        final List<Long> boundaries = new CopyOnWriteArrayList<Long>();
+        final List<AttysConfig> configs = new CopyOnWriteArrayList<AttysConfig>();
+        attysComm.setConfigChangeListener(new AttysComm.ConfigChangeListener() {
+            @Override
+            public void configChanged(long sampleNumber, AttysConfig config) {
+                boundaries.add(sampleNumber);
+                configs.add(config);
+            }
+        });
+        attysComm.start();
+        waitForSamples(50);
+        final AttysConfig before = attysComm.getDeviceConfig();
+        assertEquals(attysComm.getConfig(), before);
+        final long commands = simulator.getCommandsReceived();
+        final long firstSample = attysComm.getSampleNumber();
+        attysComm.setAdc1_gain_index(AttysComm.ADC_GAIN_12);
+        for (int i = 0; (i < 500) && (boundaries.isEmpty() ||
+                (simulator.getCommandsReceived() < commands + 3)); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, boundaries.size());
+        // x=0, a= and x=1: only the register which has changed
+        assertEquals(commands + 3, simulator.getCommandsReceived());
+        assertEquals(AttysComm.ADC_GAIN_12, configs.get(0).getAdcGainIndex(0));
+        assertEquals(before.getAdcGainIndex(1), configs.get(0).getAdcGainIndex(1));
+        assertEquals(configs.get(0), attysComm.getDeviceConfig());
+        assertEquals(AttysComm.ADC_REF / 12, attysComm.getADCFullScaleRange(0), 1e-6);
+        // the sample numbers go on
+        final long boundary = boundaries.get(0);
+        assertTrue(boundary >= firstSample);
+        waitForSamples((int) boundary + 50);
+        assertEquals(0, attysComm.getReconnects());
+    }
+
+    @Test
+    public void backsOffWhileTheAttysIsUnreachable() throws Exception {
+        final int port = simulator.getPort();
+        simulator.stop();
+        final AttysComm unreachable = new AttysComm(new TcpTransport("127.0.0.1", port));
+        final StateRecorder recorder = new StateRecorder();
+        unreachable.setConnectionListener(recorder);
+        unreachable.setReconnectBackoff(new BackoffPolicy(10, 40, 2, 0));
+        unreachable.start();
+        for (int i = 0; (i < 500) && (recorder.retries.size() < 4); i++) {
+            Thread.sleep(10);
+        }
+        final long t0 = System.nanoTime();
+        unreachable.stop();
+        // the delay doesn't hold up stop()
+        assertTrue(System.nanoTime() - t0 < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertTrue(recorder.retries.size() >= 4);
+        assertEquals(10, (long) recorder.retries.get(0));
+        assertEquals(20, (long) recorder.retries.get(1));
+        assertEquals(40, (long) recorder.retries.get(2));
+        assertEquals(40, (long) recorder.retries.get(3));
+        assertFalse(unreachable.hasActiveConnection());
+        assertEquals(AttysComm.CONNECTION_CLOSED, unreachable.getConnectionState());
+    }
+
+    @Test
+    public void receivesHighSpeedSamples() throws Exception {
+        attysComm.setAdc_samplingrate_index(AttysComm.ADC_RATE_500Hz);
+        attysComm.start();
+        waitForSamples(100);
+        final float[] sample = attysComm.getSampleFromBuffer();
+        assertNotNull(sample);
+        assertEquals(AttysComm.oneG, sample[AttysComm.INDEX_Acceleration_Z], 0.01F);
+    }
+
+    @Test
+    public void recordsWhileStreaming() throws Exception {
+        final File file = File.createTempFile("attys", ".rec");
+        file.deleteOnExit();
+        SummaryPyramid.getFile(file).deleteOnExit();
+        simulator.setMaxSpeed(true);
+        attysComm.start();
+        attysComm.startRecording(file, new int[]{AttysComm.INDEX_Acceleration_Z});
+        assertTrue(attysComm.isRecording());
+        final AttysRecorder recorder = attysComm.getRecorder();
+        waitForSamples(5000);
+        attysComm.stopRecording();
+        assertFalse(attysComm.isRecording());
+        assertNull(recorder.getError());
+        assertTrue(recorder.getSamplesRecorded() > 0);
+        assertEquals(file.length(), recorder.getBytesWritten());
+    }
+
+    @Test
+    public void writesBdfWhileStreaming() throws Exception {
+        final File file = File.createTempFile("attys", ".bdf");
+        file.deleteOnExit();
+        attysComm.start();
+        attysComm.startEdfRecording(file, new int[]{AttysComm.INDEX_Analogue_channel_1,
+                AttysComm.INDEX_Analogue_channel_2}, EdfWriter.FORMAT_BDF);
+        assertTrue(attysComm.isEdfRecording());
+        final EdfWriter writer = attysComm.getEdfWriter();
+        waitForSamples((int) attysComm.getSampleNumber() + 300);
+        attysComm.stopEdfRecording();
+        assertFalse(attysComm.isEdfRecording());
+        assertNull(writer.getError());
+        assertTrue(writer.getRecords() >= 1);
+        assertEquals(file.length(), 256 * 4 + writer.getRecords()
+                * (2 * writer.getSamplesPerRecord() * 3 + EdfWriter.ANNOTATION_BYTES));
+    }
+
+    @Test
+    public void recordsTheSamplesTillTheStop() throws Exception {
+        final File file = File.createTempFile("attys", ".rec");
+        file.deleteOnExit();
+        SummaryPyramid.getFile(file).deleteOnExit();
+        final File edf = File.createTempFile("attys", ".edf");
+        edf.deleteOnExit();
+        attysComm.startRecording(file);
+        attysComm.startEdfRecording(edf, new int[]{AttysComm.INDEX_Analogue_channel_1}, EdfWriter.FORMAT_EDF);
+        final EdfWriter writer = attysComm.getEdfWriter();
+        attysComm.start();
+        waitForSamples(300);
+        attysComm.stop();
+        attysComm.stopRecording();
+        attysComm.stopEdfRecording();
+        final AttysRecordingReader reader = new AttysRecordingReader(file);
+        try {
+            // nothing of the last block has been lost
+            assertEquals(attysComm.getSampleNumber(), reader.getEndSampleNumber());
+            assertEquals(reader.getSamplesRecorded(), writer.getSamplesRecorded());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void capturesAndReplays() throws Exception {
+        final File file = File.createTempFile("attys", ".cap");
+        file.deleteOnExit();
+        attysComm.startCapture(file);
+        attysComm.start();
+        waitForSamples(100);
+        attysComm.stop();
+        attysComm.stopCapture();
+        final long received = attysComm.getSampleNumber();
+        final PacketReplay replay = new PacketReplay(file);
+        final long[] samples = {0};
+        replay.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                samples[0]++;
+            }
+        });
+        replay.setSpeed(PacketReplay.SPEED_MAX);
+        replay.replay();
+        assertEquals(0, replay.getMismatches());
+        assertEquals(received, samples[0]);
+        // the OKs of the initialisation
+        assertTrue(replay.getLines() > replay.getPackets());
+    }
+
+    @Test
+    public void stopsWhileConnecting() throws Exception {
+        // never accepts: once its backlog is full connect() hangs
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final List<Socket> queued = new ArrayList<Socket>();
+        try {
+            boolean full = false;
+            for (int i = 0; (i < 20) && !full; i++) {
+                final Socket s = new Socket();
+                queued.add(s);
+                try {
+                    s.connect(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()), 200);
+                } catch (SocketTimeoutException e) {
+                    full = true;
+                }
+            }
+            assumeTrue(full);
+            final AttysComm a = new AttysComm(new TcpTransport("127.0.0.1", server.getLocalPort(), 30000));
+            a.start();
+            Thread.sleep(300);
+            final long t0 = System.nanoTime();
+            a.stop();
+            assertTrue(System.nanoTime() - t0 < 5000000000L);
+            assertEquals(AttysComm.CONNECTION_CLOSED, a.getConnectionState());
+        } finally {
+            for (Socket s : queued) {
+                s.close();
+            }
+            server.close();
+        }
+    }
+
+    @Test
+    public void recordsAtTheRateWhichIsStreamed() throws Exception {
+        final File file = File.createTempFile("attys", ".att");
+        file.deleteOnExit();
+        final File edf = File.createTempFile("attys", ".bdf");
+        edf.deleteOnExit();
+        attysComm.setAdc_samplingrate_index(AttysComm.ADC_RATE_250HZ);
+        attysComm.setAdc1_gain_index(AttysComm.ADC_GAIN_6);
+        attysComm.start();
+        waitForSamples(50);
+        // both only take effect with the next start()
+        attysComm.setAdc_samplingrate_index(AttysComm.ADC_RATE_500Hz);
+        attysComm.startRecording(file);
+        attysComm.startEdfRecording(edf, new int[]{AttysComm.INDEX_Analogue_channel_1}, EdfWriter.FORMAT_BDF);
+        assertEquals(250, attysComm.getRecorder().getSamplingRate());
+        assertEquals(250, attysComm.getEdfWriter().getSamplingRate());
+        attysComm.stopRecording();
+        attysComm.stopEdfRecording();
+    }
+
+    @Test
+    public void redesignsTheFiltersAtStart() throws Exception {
+        attysComm.getFilterStage().addNotch(AttysComm.INDEX_Analogue_channel_1, 50);
+        final SpectrumStage spectrum = attysComm.addSpectrum(new int[]{AttysComm.INDEX_Analogue_channel_1},
+                256, 128, SpectrumStage.WINDOW_HANN, SpectrumStage.OUTPUT_MAGNITUDE, null);
+        attysComm.setAdc_samplingrate_index(AttysComm.ADC_RATE_500Hz);
+        // still streaming at the old rate
+        assertEquals(250, attysComm.getFilterStage().getSamplingRate());
+        assertEquals(250.0 / 256, spectrum.getBinWidth(), 1e-9);
+        attysComm.start();
+        waitForSamples(50);
+        assertEquals(500, attysComm.getFilterStage().getSamplingRate());
+        assertEquals(500.0 / 256, spectrum.getBinWidth(), 1e-9);
+    }
+
+    @Test
+    public void replaysALiveGainChange() throws Exception {
+        final File file = File.createTempFile("attys", ".cap");
+        file.deleteOnExit();
+        final List<Long> boundaries = new CopyOnWriteArrayList<Long>();
+        attysComm.setConfigChangeListener(new AttysComm.ConfigChangeListener() {
+            @Override
+            public void configChanged(long sampleNumber, AttysConfig config) {
+                boundaries.add(sampleNumber);
+            }
+        });
+        attysComm.startCapture(file);
+        attysComm.start();
+        waitForSamples(50);
+        attysComm.setAdc1_gain_index(AttysComm.ADC_GAIN_12);
+        for (int i = 0; (i < 500) && boundaries.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, boundaries.size());
+        final long boundary = boundaries.get(0);
+        waitForSamples((int) boundary + 50);
+        attysComm.stop();
+        attysComm.stopCapture();
+        final PacketReplay replay = new PacketReplay(file);
+        final List<Long> numbers = new CopyOnWriteArrayList<Long>();
+        replay.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                numbers.add(samplenumber);
+            }
+        });
+        replay.setSpeed(PacketReplay.SPEED_MAX);
+        replay.replay();
+        assertEquals(0, replay.getMismatches());
+        // the skip over the stopped Attys is replayed as it happened
+        assertTrue(numbers.contains(boundary));
+        assertEquals(attysComm.getSampleNumber() - 1, (long) numbers.get(numbers.size() - 1));
+        assertEquals(AttysComm.ADC_REF / 12, replay.getDecoder().getADCFullScaleRange(0), 1e-6);
+    }
+}
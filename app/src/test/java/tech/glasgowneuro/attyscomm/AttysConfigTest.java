@@ -0,0 +1,31 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packing and comparing AttysConfigs.
+ */
+public class AttysConfigTest {
+
+    @Test
+    public void packsAndUnpacks() {
+        final AttysConfig c = new AttysConfig(2, 0, 3, 6, 1, 5, 6, 7, 3);
+        final AttysConfig u = AttysConfig.unpack(c.pack());
+        assertEquals(c, u);
+        assertEquals(c.hashCode(), u.hashCode());
+        assertEquals(6, u.getAdcGainIndex(0));
+        assertEquals(6, u.getAdcMuxIndex(1));
+        assertEquals(3, u.getBiasCurrentIndex());
+    }
+
+    @Test
+    public void detectsChangesOfThePacketFormat() {
+        final AttysConfig c = new AttysConfig(1, 1, 3, 0, 0, 0, 0, 0, 0);
+        assertFalse(c.changesPacketFormat(new AttysConfig(1, 1, 0, 6, 6, 5, 5, 7, 3)));
+        assertTrue(c.changesPacketFormat(new AttysConfig(2, 1, 3, 0, 0, 0, 0, 0, 0)));
+        assertTrue(c.changesPacketFormat(new AttysConfig(1, 0, 3, 0, 0, 0, 0, 0, 0)));
+        assertFalse(c.equals(new AttysConfig(1, 1, 3, 0, 1, 0, 0, 0, 0)));
+    }
+}
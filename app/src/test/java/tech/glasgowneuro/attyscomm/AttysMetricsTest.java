@@ -0,0 +1,99 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshots of the metrics and their export into a file and a socket.
+ */
+public class AttysMetricsTest {
+
+    @Test
+    public void snapshotsAndRates() throws Exception {
+        final int[] updates = new int[1];
+        final AttysMetrics metrics = new AttysMetrics(new Runnable() {
+            @Override
+            public void run() {
+                updates[0]++;
+            }
+        });
+        final AttysMetrics.Snapshot a = metrics.snapshot();
+        metrics.add(AttysMetrics.PACKETS, 125);
+        metrics.increment(AttysMetrics.RECONNECTS);
+        metrics.set(AttysMetrics.RINGBUFFER_FILL, 7);
+        Thread.sleep(100);
+        final AttysMetrics.Snapshot b = metrics.snapshot();
+        assertEquals(2, updates[0]);
+        assertEquals(125, b.get(AttysMetrics.PACKETS));
+        assertEquals(1, b.get(AttysMetrics.RECONNECTS));
+        assertEquals(0, a.get(AttysMetrics.PACKETS));
+        // 125 packets in a bit more than 0.1s
+        final double rate = b.getRate(AttysMetrics.PACKETS, a);
+        assertTrue(rate > 100);
+        assertTrue(rate <= 1250);
+        final String line = b.toString();
+        assertTrue(line.contains(" packets=125 "));
+        assertTrue(line.contains(" ringbuffer_fill=7"));
+        assertEquals(AttysMetrics.NMETRICS, AttysMetrics.NAMES.length);
+    }
+
+    @Test
+    public void exportsToFile() throws Exception {
+        final File file = File.createTempFile("attys", ".metrics");
+        file.deleteOnExit();
+        final AttysMetrics metrics = new AttysMetrics();
+        final MetricsExporter exporter = new MetricsExporter(metrics, 20, file);
+        exporter.start();
+        metrics.add(AttysMetrics.SAMPLES, 1000);
+        Thread.sleep(100);
+        exporter.stop();
+        assertTrue(exporter.getLinesWritten() >= 2);
+        assertEquals(0, exporter.getErrors());
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int n = 0;
+            String last = null;
+            for (String l = reader.readLine(); l != null; l = reader.readLine()) {
+                assertTrue(l.startsWith("time="));
+                last = l;
+                n++;
+            }
+            assertEquals(exporter.getLinesWritten(), n);
+            assertTrue(last.contains(" samples=1000 "));
+            assertTrue(last.contains(" samples_per_s="));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void exportsToSocket() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            final AttysMetrics metrics = new AttysMetrics();
+            metrics.increment(AttysMetrics.WATCHDOG_TIMEOUTS);
+            final MetricsExporter exporter = new MetricsExporter(metrics, 20,
+                    "127.0.0.1", server.getLocalPort());
+            exporter.start();
+            final Socket s = server.accept();
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(reader.readLine().contains(" watchdog_timeouts=1 "));
+            assertTrue(reader.readLine().startsWith("time="));
+            exporter.stop();
+            s.close();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records with small buffers so that they are swapped many times
+ * and reads the file back.
+ */
+public class AttysRecorderTest {
+
+    private static final int NCH = 4;
+
+    @Test
+    public void recordsHeaderAndSamples() throws Exception {
+        final File file = File.createTempFile("attys", ".rec");
+        file.deleteOnExit();
+        SummaryPyramid.getFile(file).deleteOnExit();
+        final int[] map = {3, 1};
+        final AttysRecorder recorder = new AttysRecorder(file, 250, map, 200);
+        recorder.setLabels(new String[]{"a", "b", "c", "d"});
+        recorder.setUnits(new String[]{"V", "T", "m/s^2", "V"});
+        recorder.setFullScaleRanges(new float[]{1, 2, 3, 4});
+        recorder.setAdcGains(new int[]{6, 12});
+        recorder.start();
+        final float[] block = new float[50 * NCH];
+        long n = 0;
+        for (int b = 0; b < 20; b++) {
+            for (int i = 0; i < 50; i++) {
+                for (int c = 0; c < NCH; c++) {
+                    block[i * NCH + c] = (n + i) * 10 + c;
+                }
+            }
+            recorder.gotDataBlock(n, block, 50, NCH);
+            n += 50;
+        }
+        recorder.stop();
+        assertEquals(1000, recorder.getSamplesRecorded());
+        assertEquals(file.length(), recorder.getBytesWritten());
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final byte[] magic = new byte[8];
+            in.readFully(magic);
+            assertArrayEquals(AttysRecorder.MAGIC, magic);
+            assertEquals(AttysRecorder.VERSION, in.readInt());
+            final int headerLength = in.readInt();
+            assertEquals(250, in.readInt());
+            assertTrue(in.readLong() > 0);
+            assertEquals(1000, in.readLong());
+            final long indexOffset = in.readLong();
+            assertEquals(2, in.readInt());
+            assertEquals(6, in.readInt());
+            assertEquals(12, in.readInt());
+            assertEquals(2, in.readInt());
+            assertEquals(3, in.readInt());
+            assertEquals(4, in.readFloat(), 0);
+            assertEquals("d", in.readUTF());
+            assertEquals("V", in.readUTF());
+            assertEquals(1, in.readInt());
+            assertEquals(2, in.readFloat(), 0);
+            assertEquals("b", in.readUTF());
+            assertEquals("T", in.readUTF());
+            assertEquals(AttysRecorder.COMPRESSION_NONE, in.readInt());
+            assertEquals(headerLength, 8 + 4 + 4 + 4 + 8 + 8 + 8 + 4 + 8 + 4 + 2 * (4 + 4 + 3 + 3) + 4);
+
+            long expected = 0;
+            while (expected < 1000) {
+                assertEquals(AttysRecorder.RECORD_SAMPLES, in.readInt());
+                assertEquals(expected, in.readLong());
+                final int k = in.readInt();
+                for (int i = 0; i < k; i++) {
+                    assertEquals(expected * 10 + 3, in.readFloat(), 0);
+                    assertEquals(expected * 10 + 1, in.readFloat(), 0);
+                    expected++;
+                }
+            }
+            assertEquals(AttysRecorder.RECORD_INDEX, in.readInt());
+            assertEquals(indexOffset, file.length() - 4 - in.available());
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Random access to recordings with gaps, with and without the index,
+ * and their summary.
+ */
+public class AttysRecordingReaderTest {
+
+    private static final int NCH = 3;
+
+    private static final AttysConfig CONFIG = new AttysConfig(2, 1, 3, 6, 0, 5, 0, 3, 2);
+
+    // samples 0..4999, gap 5000..5999, reconnect, 6000..9999,
+    // config change at 8000
+    private static File record(int compression) throws Exception {
+        final File file = File.createTempFile("attys", ".rec");
+        file.deleteOnExit();
+        SummaryPyramid.getFile(file).deleteOnExit();
+        final AttysRecorder recorder = new AttysRecorder(file, 500, new int[]{0, 1, 2}, 1000);
+        recorder.setLabels(new String[]{"x", "y", "z"});
+        recorder.setUnits(new String[]{"V", "V", "V"});
+        recorder.setCompression(compression);
+        recorder.start();
+        final float[] block = new float[100 * NCH];
+        for (long n = 0; n < 10000; n += 100) {
+            if ((n >= 5000) && (n < 6000)) continue;
+            if (n == 6000) recorder.markReconnect(6000);
+            if (n == 8000) recorder.markConfigChange(8000, CONFIG);
+            for (int i = 0; i < 100; i++) {
+                for (int c = 0; c < NCH; c++) {
+                    block[i * NCH + c] = (n + i) * 10 + c;
+                }
+            }
+            recorder.gotDataBlock(n, block, 100, NCH);
+        }
+        recorder.stop();
+        assertEquals(1000, recorder.getMissingSamples());
+        return file;
+    }
+
+    private static void check(AttysRecordingReader reader) throws Exception {
+        assertEquals(500, reader.getSamplingRateInHz());
+        assertEquals(3, reader.getNumberOfChannels());
+        assertEquals("z", reader.getLabel(2));
+        assertEquals(0, reader.getFirstSampleNumber());
+        assertEquals(10000, reader.getEndSampleNumber());
+        assertEquals(9000, reader.getSamplesRecorded());
+        assertEquals(3, reader.getNumberOfMarkers());
+        assertEquals(AttysRecorder.RECORD_RECONNECT, reader.getMarkerType(0));
+        assertEquals(6000, reader.getMarkerSampleNumber(0));
+        assertEquals(AttysRecorder.RECORD_GAP, reader.getMarkerType(1));
+        assertEquals(5000, reader.getMarkerSampleNumber(1));
+        assertEquals(6000, reader.getMarkerValue(1));
+        assertEquals(AttysRecorder.RECORD_CONFIG, reader.getMarkerType(2));
+        assertEquals(8000, reader.getMarkerSampleNumber(2));
+        assertEquals(CONFIG, reader.getMarkerConfig(2));
+
+        final float[][] dst = new float[2][300];
+        assertEquals(300, reader.read(1234, 300, new int[]{2, 0}, dst));
+        for (int i = 0; i < 300; i++) {
+            assertEquals((1234 + i) * 10 + 2, dst[0][i], 0);
+            assertEquals((1234 + i) * 10, dst[1][i], 0);
+        }
+        // across the gap
+        final float[][] wide = new float[1][1300];
+        assertEquals(300, reader.read(4900, 1300, new int[]{1}, wide));
+        assertEquals(4999 * 10 + 1, wide[0][99], 0);
+        assertTrue(Float.isNaN(wide[0][100]));
+        assertEquals(6000 * 10 + 1, wide[0][1100], 0);
+        assertEquals(0, reader.read(5100, 300, new int[]{1}, dst));
+        // beyond the end
+        assertEquals(50, reader.read(9950, 100, new int[]{0}, dst));
+        assertTrue(Float.isNaN(dst[0][50]));
+    }
+
+    @Test
+    public void readsWithIndex() throws Exception {
+        final File file = record(AttysRecorder.COMPRESSION_NONE);
+        final AttysRecordingReader reader = new AttysRecordingReader(file, 4096);
+        try {
+            assertEquals(AttysRecorder.VERSION, reader.getVersion());
+            check(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readsCompressed() throws Exception {
+        final File file = record(AttysRecorder.COMPRESSION_LOSSLESS);
+        final AttysRecordingReader reader = new AttysRecordingReader(file, 4096);
+        try {
+            assertEquals(AttysRecorder.COMPRESSION_LOSSLESS, reader.getCompression());
+            check(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void summaryNextToRecording() throws Exception {
+        final File file = record(AttysRecorder.COMPRESSION_NONE);
+        final AttysRecordingReader reader = new AttysRecordingReader(file, 4096);
+        try {
+            final SummaryPyramid pyramid = reader.getSummaryPyramid();
+            assertNotNull(pyramid);
+            final SummaryPyramid.Summary s = new SummaryPyramid.Summary(200);
+            // 100 samples per pixel: 64 per entry
+            assertTrue(pyramid.query(1, 0, 10000, 100, s));
+            assertEquals(2, s.level);
+            assertEquals(157, s.n);
+            assertEquals(1, s.min[0], 0);
+            assertEquals(63 * 10 + 1, s.max[0], 0);
+            assertEquals(31.5 * 10 + 1, s.mean[0], 1E-3);
+            // 5000..5999 missing
+            assertTrue(Float.isNaN(s.mean[80]));
+            assertEquals(9999 * 10 + 1, s.max[156], 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void rebuildsIndexOfUnfinishedRecording() throws Exception {
+        rebuildsIndex(AttysRecorder.COMPRESSION_NONE);
+        rebuildsIndex(AttysRecorder.COMPRESSION_LOSSLESS);
+    }
+
+    private static void rebuildsIndex(int compression) throws Exception {
+        final File file = record(compression);
+        // as if the app had been killed: no index
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(AttysRecorder.INDEX_OFFSET_POSITION);
+            final long indexOffset = raf.readLong();
+            raf.setLength(indexOffset + 3);
+            raf.seek(AttysRecorder.SAMPLE_COUNT_POSITION);
+            raf.writeLong(-1);
+            raf.writeLong(0);
+        } finally {
+            raf.close();
+        }
+        final AttysRecordingReader reader = new AttysRecordingReader(file, 4096);
+        try {
+            check(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void compressesAcrossAGainChange() throws Exception {
+        final File file = File.createTempFile("attys", ".rec");
+        file.deleteOnExit();
+        SummaryPyramid.getFile(file).deleteOnExit();
+        final int[] map = {AttysComm.INDEX_Analogue_channel_1};
+        final AttysConfig before = new AttysConfig(1, 1, 3, AttysComm.ADC_GAIN_6, 0, 0, 0, 0, 0);
+        final AttysConfig after = new AttysConfig(1, 1, 3, AttysComm.ADC_GAIN_1, 0, 0, 0, 0, 0);
+        final AttysRecorder recorder = new AttysRecorder(file, 250, map);
+        recorder.setCompression(AttysRecorder.COMPRESSION_LOSSLESS);
+        recorder.setFullScaleRanges(AttysComm.fullScaleRangesOf(before));
+        recorder.start();
+        // the samples before the change are still queued when it's announced
+        recorder.markConfigChange(4000, after, AttysComm.fullScaleRangesOf(after));
+        final AttysCalibration[] calibration = {AttysComm.calibrationOf(before), AttysComm.calibrationOf(after)};
+        final float[] block = new float[128 * AttysComm.NCHANNELS];
+        for (long n = 0; n < 8192; n += 128) {
+            for (int i = 0; i < 128; i++) {
+                final int count = 0x800000 + (int) (100000 * Math.sin((n + i) * 0.01));
+                block[i * AttysComm.NCHANNELS + map[0]] =
+                        calibration[n + i < 4000 ? 0 : 1].toSI(map[0], count);
+            }
+            recorder.gotDataBlock(n, block, 128, AttysComm.NCHANNELS);
+        }
+        recorder.stop();
+        // less than a byte per sample: no floats stored as exceptions
+        assertTrue(file.length() < 8192);
+        final AttysRecordingReader reader = new AttysRecordingReader(file);
+        try {
+            assertEquals(AttysRecorder.RECORD_CONFIG, reader.getMarkerType(0));
+            assertEquals(after, reader.getMarkerConfig(0));
+            final float[][] dst = new float[1][8192];
+            assertEquals(8192, reader.read(0, 8192, new int[]{0}, dst));
+            for (int i = 0; i < 8192; i++) {
+                final int count = 0x800000 + (int) (100000 * Math.sin(i * 0.01));
+                assertEquals(calibration[i < 4000 ? 0 : 1].toSI(map[0], count), dst[0][i], 0);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
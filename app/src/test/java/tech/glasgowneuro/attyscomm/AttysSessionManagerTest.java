@@ -0,0 +1,132 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Three simulated Attys started and stopped together.
+ */
+public class AttysSessionManagerTest {
+
+    @Test
+    public void runsSeveralAttys() throws Exception {
+        final AttysSimulator[] simulators = new AttysSimulator[3];
+        final AttysSessionManager manager = new AttysSessionManager();
+        try {
+            for (int i = 0; i < simulators.length; i++) {
+                simulators[i] = new AttysSimulator();
+                simulators[i].start();
+                manager.addDevice(simulators[i].createTransport());
+            }
+            assertEquals(3, manager.getNumberOfDevices());
+            manager.start();
+            for (int i = 0; (i < 500) && (manager.getStartSkewNanos() < 0); i++) {
+                Thread.sleep(10);
+            }
+            // x=1 sent to all of them within 50ms
+            assertTrue(manager.getStartSkewNanos() >= 0);
+            assertTrue(manager.getStartSkewNanos() < 50000000L);
+            assertTrue(manager.allConnected());
+            manager.getStatus();
+            Thread.sleep(500);
+            final AttysSessionManager.DeviceStatus[] status = manager.getStatus();
+            assertEquals(4, status.length);
+            double sum = 0;
+            for (int i = 0; i < 3; i++) {
+                assertTrue(status[i].connected);
+                assertTrue(status[i].samples > 0);
+                assertTrue(status[i].delivered > 0);
+                assertTrue(status[i].delivered <= manager.getDevices().get(i).getMetrics().get(AttysMetrics.SAMPLES));
+                // 250Hz
+                assertEquals(250, status[i].samplesPerSecond, 100);
+                sum += status[i].samplesPerSecond;
+            }
+            assertEquals("all", status[3].name);
+            assertEquals(sum, status[3].samplesPerSecond, 1E-6);
+            manager.stop();
+            for (AttysComm a : manager.getDevices()) {
+                assertFalse(a.hasActiveConnection());
+            }
+        } finally {
+            manager.shutdown();
+            for (AttysSimulator s : simulators) {
+                if (s != null) s.stop();
+            }
+        }
+    }
+
+    @Test
+    public void namesTheAttysBeforeStart() throws Exception {
+        final AttysSessionManager manager = new AttysSessionManager();
+        try {
+            final TcpTransport t = new TcpTransport("127.0.0.1", 1);
+            manager.addDevice(t);
+            final MultiDeviceMerger merger = manager.createMerger(250, 100000000L);
+            assertEquals(t.getName(), merger.getDevices()[0].getName());
+            assertEquals(t.getName(), manager.getStatus()[0].name);
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    // takes its time to connect the first time as RFCOMM sometimes does
+    private static class SlowTransport extends TcpTransport {
+        private final long delayInMs;
+        private boolean first = true;
+
+        SlowTransport(AttysSimulator s, long delayInMs) {
+            super("127.0.0.1", s.getPort());
+            this.delayInMs = delayInMs;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (first) {
+                first = false;
+                try {
+                    Thread.sleep(delayInMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.connect();
+        }
+    }
+
+    @Test
+    public void waitsForAnAttysWhichConnectsLate() throws Exception {
+        final AttysSimulator[] simulators = new AttysSimulator[2];
+        final AttysSessionManager manager = new AttysSessionManager();
+        try {
+            for (int i = 0; i < simulators.length; i++) {
+                simulators[i] = new AttysSimulator();
+                simulators[i].start();
+            }
+            manager.addDevice(simulators[0].createTransport());
+            // later than the timeout of the liveness monitor
+            manager.addDevice(new SlowTransport(simulators[1], 3 * LivenessMonitor.DEFAULT_TIMEOUT_IN_MS / 2));
+            manager.start();
+            for (int i = 0; (i < 500) && (manager.getStartSkewNanos() < 0); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(manager.getStartSkewNanos() >= 0);
+            assertTrue(manager.getStartSkewNanos() < 50000000L);
+            Thread.sleep(200);
+            assertTrue(manager.allConnected());
+            for (AttysComm a : manager.getDevices()) {
+                // the waiting Attys hasn't been taken for dead
+                assertEquals(0, a.getReconnects());
+                assertEquals(0, a.getMetrics().get(AttysMetrics.WATCHDOG_TIMEOUTS));
+            }
+            manager.stop();
+        } finally {
+            manager.shutdown();
+            for (AttysSimulator s : simulators) {
+                if (s != null) s.stop();
+            }
+        }
+    }
+}
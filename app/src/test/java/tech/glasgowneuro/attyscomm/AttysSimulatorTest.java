@@ -0,0 +1,79 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Talks to the AttysSimulator over a TcpTransport.
+ */
+public class AttysSimulatorTest {
+
+    private AttysSimulator simulator;
+    private TcpTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new AttysSimulator();
+        simulator.start();
+        transport = simulator.createTransport();
+        transport.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        simulator.stop();
+    }
+
+    private void send(String s) throws Exception {
+        final OutputStream out = transport.getOutputStream();
+        out.write(("\r\n" + s + "\r").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Test
+    public void repliesOkAndStreams() throws Exception {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(transport.getInputStream(), StandardCharsets.US_ASCII));
+        send("d=1");
+        assertEquals("OK", reader.readLine());
+        send("r=0");
+        assertEquals("OK", reader.readLine());
+        send("f=1");
+        assertEquals("OK", reader.readLine());
+        send("x=1");
+        assertEquals("OK", reader.readLine());
+        // 20 bytes base64 encoded
+        for (int i = 0; i < 10; i++) {
+            assertEquals(28, reader.readLine().length());
+        }
+        send("x=0");
+        String l;
+        do {
+            l = reader.readLine();
+        } while (!"OK".equals(l));
+        assertEquals(125, simulator.getSamplingRateInHz());
+        assertTrue(simulator.getPacketsSent() >= 10);
+    }
+
+    @Test
+    public void partialDataPackets() throws Exception {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(transport.getInputStream(), StandardCharsets.US_ASCII));
+        simulator.setMaxSpeed(true);
+        send("f=0");
+        assertEquals("OK", reader.readLine());
+        send("x=1");
+        assertEquals("OK", reader.readLine());
+        // 8 bytes base64 encoded
+        assertEquals(12, reader.readLine().length());
+    }
+}
@@ -0,0 +1,52 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exponential growth, the cap and the jitter of the BackoffPolicy.
+ */
+public class BackoffPolicyTest {
+
+    @Test
+    public void growsExponentiallyUpToTheMaximum() {
+        final BackoffPolicy b = new BackoffPolicy(100, 1000, 2, 0);
+        assertEquals(100, b.getBaseDelayInMs(1));
+        assertEquals(200, b.getBaseDelayInMs(2));
+        assertEquals(400, b.getBaseDelayInMs(3));
+        assertEquals(800, b.getBaseDelayInMs(4));
+        assertEquals(1000, b.getBaseDelayInMs(5));
+        assertEquals(1000, b.getBaseDelayInMs(1000000));
+        assertEquals(400, b.getDelayInMs(3, new Random()));
+    }
+
+    @Test
+    public void jitterShortensTheDelay() {
+        final BackoffPolicy b = new BackoffPolicy(1000, 1000, 2, 0.5);
+        final Random random = new Random(1);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            final long d = b.getDelayInMs(1, random);
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+        }
+        assertTrue(min >= 500);
+        assertTrue(max <= 1000);
+        // spread out and not all the same
+        assertTrue(max - min > 400);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShrinkingDelays() {
+        new BackoffPolicy(100, 1000, 0.5, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooMuchJitter() {
+        new BackoffPolicy(100, 1000, 2, 1.5);
+    }
+}
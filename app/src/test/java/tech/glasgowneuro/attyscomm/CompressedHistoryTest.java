@@ -0,0 +1,97 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Storing and reading raw counts in the compressed history.
+ */
+public class CompressedHistoryTest {
+
+    private static final int NCH = 3;
+
+    // channel 0 like the ADC, 1 like the accelerometer, 2 a digital input
+    private static int count(long i, int c) {
+        switch (c) {
+            case 0:
+                return 0x800000 + (int) (100000 * Math.sin(i * 0.01)) + (int) (i % 7);
+            case 1:
+                return 0x8000 + (int) (i % 300);
+            default:
+                return (int) ((i / 100) & 1);
+        }
+    }
+
+    private static void put(CompressedHistory h, long from, long to) {
+        final int[] s = new int[NCH];
+        for (long i = from; i < to; i++) {
+            for (int c = 0; c < NCH; c++) {
+                s[c] = count(i, c);
+            }
+            h.put(i, s);
+        }
+    }
+
+    @Test
+    public void readsAcrossChunks() {
+        final CompressedHistory h = new CompressedHistory(4, 100, NCH, 4);
+        put(h, 1000, 1550);
+        assertEquals(1550, h.getEndSampleNumber());
+        // 4 compressed chunks and the 50 samples being written
+        assertEquals(1100, h.getFirstSampleNumber());
+        assertEquals(450, h.size());
+        final int[] dst = new int[300];
+        for (int c = 0; c < NCH; c++) {
+            assertEquals(300, h.read(c, 1120, 300, dst, 0));
+            for (int i = 0; i < 300; i++) {
+                assertEquals(count(1120 + i, c), dst[i]);
+            }
+        }
+        // gone
+        assertEquals(-1, h.read(0, 1000, 10, dst, 0));
+        // cut off at the newest sample
+        assertEquals(20, h.read(1, 1530, 100, dst, 0));
+        assertEquals(count(1549, 1), dst[19]);
+        assertTrue(h.getCacheHits() > 0);
+        assertTrue(h.getBitsPerValue() < 12);
+    }
+
+    @Test
+    public void fillsGapsAndRestarts() {
+        final CompressedHistory h = new CompressedHistory(10, 64, NCH, 4);
+        put(h, 0, 64);
+        put(h, 100, 200);
+        assertEquals(36, h.getFilledSamples());
+        final int[] dst = new int[40];
+        assertEquals(40, h.read(0, 63, 40, dst, 0));
+        for (int i = 0; i < 37; i++) {
+            assertEquals(count(63, 0), dst[i]);
+        }
+        assertEquals(count(100, 0), dst[37]);
+        // going backwards starts afresh
+        put(h, 50, 60);
+        assertEquals(50, h.getFirstSampleNumber());
+        assertEquals(10, h.size());
+    }
+
+    @Test
+    public void roundTripsAnyInt() {
+        final Random random = new Random(1);
+        final int n = 1000;
+        final int[][] v = new int[2][n];
+        for (int i = 0; i < n; i++) {
+            v[0][i] = random.nextInt();
+            v[1][i] = (i % 2 == 0) ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        }
+        final BitWriter w = new BitWriter(CompressedHistory.maxCompressedSize(n, 2));
+        CompressedHistory.encode(v[0], n, w);
+        CompressedHistory.encode(v[1], n, w);
+        final int[][] d = new int[2][n];
+        CompressedHistory.decode(w.toByteArray(), d, n);
+        assertArrayEquals(v[0], d[0]);
+        assertArrayEquals(v[1], d[1]);
+    }
+}
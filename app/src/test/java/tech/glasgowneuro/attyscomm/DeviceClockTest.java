@@ -0,0 +1,52 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fits the clock of a simulated Attys with offset, drift and jitter.
+ */
+public class DeviceClockTest {
+
+    private final static double PERIOD = 1E9 / 250;
+
+    @Test
+    public void fitsOffsetAndDrift() {
+        final DeviceClock clock = new DeviceClock(250);
+        final Random random = new Random(1);
+        final long offset = 5000000000L;
+        // 100ppm too slow
+        final double period = PERIOD * (1 + 100E-6);
+        assertFalse(clock.isValid());
+        for (long n = 1000; n < 10000; n++) {
+            // up to 2ms bluetooth jitter
+            final long t = offset + (long) (n * period) + random.nextInt(2000000);
+            clock.update(n, t);
+        }
+        assertTrue(clock.isValid());
+        assertEquals(100, clock.getDriftPpm(), 20);
+        assertEquals(period, clock.getNanosPerSample(), PERIOD * 20E-6);
+        // the mean jitter of 1ms ends up in the offset
+        final long expected = offset + (long) (9000 * period) + 1000000;
+        assertEquals(expected, clock.toNanos(9000), 500000);
+        assertEquals(9000, clock.toSampleNumber(expected), 0.2);
+        assertEquals(0, clock.getResets());
+    }
+
+    @Test
+    public void restartsAfterJump() {
+        final DeviceClock clock = new DeviceClock(250);
+        for (long n = 0; n < 100; n++) {
+            clock.update(n, (long) (n * PERIOD));
+        }
+        // the Attys has reconnected and its sample numbers are 1s off
+        for (long n = 100; n < 200; n++) {
+            clock.update(n, (long) ((n + 250) * PERIOD));
+        }
+        assertEquals(1, clock.getResets());
+        assertEquals((long) (450 * PERIOD), clock.toNanos(200), 100000);
+    }
+}
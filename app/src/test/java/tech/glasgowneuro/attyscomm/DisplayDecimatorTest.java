@@ -0,0 +1,108 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Envelopes and LTTB points of ramps, spikes and gaps with 10 samples
+ * per column.
+ */
+public class DisplayDecimatorTest {
+
+    private final static int[] CHANNELS = {1};
+
+    private static void feed(DisplayDecimator d, long from, long to, float[] values) {
+        final float[] sample = new float[2];
+        for (long n = from; n < to; n++) {
+            sample[1] = (values != null) ? values[(int) n] : n;
+            d.put(n, sample);
+        }
+    }
+
+    @Test
+    public void envelopeOfRamp() {
+        final DisplayDecimator d = new DisplayDecimator(CHANNELS, 1000, 100, 250, 25);
+        assertEquals(10, d.getBucketSize());
+        final int[] updates = new int[1];
+        d.setListener(new DisplayDecimator.Listener() {
+            @Override
+            public void displayUpdated(DisplayDecimator decimator) {
+                updates[0]++;
+            }
+        });
+        feed(d, 0, 2000, null);
+        // 2000 samples at 250Hz refreshed 25 times per second
+        assertEquals(200, updates[0]);
+        final DisplayDecimator.Envelope e = new DisplayDecimator.Envelope(100);
+        d.getEnvelope(1, e);
+        assertEquals(100, e.n);
+        assertEquals(1000, e.firstSampleNumber);
+        for (int i = 0; i < e.n; i++) {
+            assertEquals(1000 + i * 10, e.min[i], 0);
+            assertEquals(1009 + i * 10, e.max[i], 0);
+        }
+        final DisplayDecimator.Points p = new DisplayDecimator.Points(100);
+        d.getPoints(1, p);
+        // the last two buckets don't have their point yet
+        assertEquals(98, p.n);
+        for (int i = 0; i < p.n; i++) {
+            assertEquals(p.sampleNumbers[i], p.values[i], 0);
+            assertEquals(1000 + i * 10, p.sampleNumbers[i] / 10 * 10);
+        }
+    }
+
+    @Test
+    public void lttbKeepsSpike() {
+        final float[] v = new float[1000];
+        v[555] = 100;
+        v[556] = -3;
+        final DisplayDecimator d = new DisplayDecimator(CHANNELS, 1000, 100, 250, 25);
+        feed(d, 0, 1000, v);
+        final DisplayDecimator.Envelope e = new DisplayDecimator.Envelope(100);
+        d.getEnvelope(1, e);
+        assertEquals(100, e.max[55], 0);
+        assertEquals(-3, e.min[55], 0);
+        final DisplayDecimator.Points p = new DisplayDecimator.Points(100);
+        d.getPoints(1, p);
+        assertEquals(98, p.n);
+        assertEquals(555, p.sampleNumbers[55]);
+        assertEquals(100, p.values[55], 0);
+        assertEquals(0, p.values[54], 0);
+    }
+
+    @Test
+    public void gapsAndRestarts() {
+        final DisplayDecimator d = new DisplayDecimator(CHANNELS, 1000, 100, 250, 25);
+        feed(d, 0, 500, null);
+        // one lost sample within a bucket
+        feed(d, 501, 505, null);
+        feed(d, 800, 1000, null);
+        final DisplayDecimator.Envelope e = new DisplayDecimator.Envelope(100);
+        d.getEnvelope(1, e);
+        assertEquals(100, e.n);
+        assertEquals(0, e.firstSampleNumber);
+        assertEquals(490, e.min[49], 0);
+        assertEquals(501, e.min[50], 0);
+        assertEquals(504, e.max[50], 0);
+        for (int i = 51; i < 80; i++) {
+            assertTrue(Float.isNaN(e.min[i]));
+        }
+        assertEquals(800, e.min[80], 0);
+        final DisplayDecimator.Points p = new DisplayDecimator.Points(100);
+        d.getPoints(1, p);
+        // no points for the empty buckets
+        assertEquals(51 + 18, p.n);
+        // the line ends with the last sample before the gap
+        assertEquals(504, p.sampleNumbers[50]);
+        // and starts again with the first one after it
+        assertEquals(800, p.sampleNumbers[51]);
+
+        // sample numbers start again
+        feed(d, 0, 20, null);
+        d.getEnvelope(1, e);
+        assertEquals(2, e.n);
+        assertEquals(0, e.min[0], 0);
+        assertEquals(10, e.min[1], 0);
+    }
+}
@@ -0,0 +1,265 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes EDF+ and BDF+ files and parses them back.
+ */
+public class EdfWriterTest {
+
+    private static final int RATE = 250;
+    private static final float[] RANGES = new float[AttysComm.NCHANNELS];
+    private static final AttysCalibration CALIBRATION = new AttysCalibration(
+            AttysComm.ACCEL_FULL_SCALE[AttysComm.ACCEL_16G], AttysComm.MAG_FULL_SCALE,
+            AttysComm.ADC_REF / 6, AttysComm.ADC_REF / 6);
+
+    static {
+        for (int i = 0; i < RANGES.length; i++) {
+            RANGES[i] = CALIBRATION.getFullScaleRange(i) > 0 ? CALIBRATION.getFullScaleRange(i) : 1;
+        }
+    }
+
+    private static final int[] MAP = {AttysComm.INDEX_Acceleration_Z,
+            AttysComm.INDEX_Analogue_channel_1, AttysComm.INDEX_GPIO0};
+
+    // an ADC count which changes with the sample number
+    private static int adcCount(long n) {
+        return 0x800000 + (int) (n * 997 % 0x7fffff) - 0x400000;
+    }
+
+    private static byte[] load(File file) throws Exception {
+        final RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            final byte[] b = new byte[(int) f.length()];
+            f.readFully(b);
+            return b;
+        } finally {
+            f.close();
+        }
+    }
+
+    private static String field(byte[] b, int offset, int length) {
+        return new String(b, offset, length, StandardCharsets.US_ASCII).trim();
+    }
+
+    private static void write(EdfWriter writer, long first, int n) {
+        final float[] block = new float[n * AttysComm.NCHANNELS];
+        for (int i = 0; i < n; i++) {
+            final int p = i * AttysComm.NCHANNELS;
+            block[p + AttysComm.INDEX_Acceleration_Z] = CALIBRATION.toSI(AttysComm.INDEX_Acceleration_Z,
+                    0x8000 + (int) ((first + i) % 1000));
+            block[p + AttysComm.INDEX_Analogue_channel_1] = CALIBRATION.toSI(AttysComm.INDEX_Analogue_channel_1,
+                    adcCount(first + i));
+            block[p + AttysComm.INDEX_GPIO0] = (first + i) % 2;
+        }
+        writer.gotDataBlock(first, block, n, AttysComm.NCHANNELS);
+    }
+
+    private static EdfWriter create(File file, int format) throws Exception {
+        final EdfWriter writer = new EdfWriter(file, format, RATE, MAP, 10000);
+        writer.setLabels(AttysComm.CHANNEL_DESCRIPTION_SHORT);
+        writer.setTransducers(AttysComm.CHANNEL_DESCRIPTION);
+        writer.setUnits(AttysComm.CHANNEL_UNITS);
+        writer.setFullScaleRanges(RANGES);
+        writer.start();
+        return writer;
+    }
+
+    @Test
+    public void writesContinuousEdf() throws Exception {
+        final File file = File.createTempFile("attys", ".edf");
+        file.deleteOnExit();
+        final EdfWriter writer = create(file, EdfWriter.FORMAT_EDF);
+        for (int i = 0; i < 40; i++) {
+            write(writer, i * 25, 25);
+        }
+        writer.stop();
+        final byte[] b = load(file);
+        final int ns = MAP.length + 1;
+        assertEquals("0", field(b, 0, 8));
+        assertEquals(256 * (ns + 1), Integer.parseInt(field(b, 184, 8)));
+        assertEquals("EDF+C", field(b, EdfWriter.RESERVED_POSITION, 44));
+        assertEquals(4, Integer.parseInt(field(b, EdfWriter.RECORD_COUNT_POSITION, 8)));
+        assertEquals(ns, Integer.parseInt(field(b, 252, 4)));
+        assertEquals("Acc Z", field(b, 256, 16));
+        assertEquals("EDF Annotations", field(b, 256 + 3 * 16, 16));
+        assertEquals("Analogue channel 1", field(b, 256 + ns * 16 + 80, 80));
+        assertEquals("m/s^2", field(b, 256 + ns * 96, 8));
+        assertEquals(RATE, Integer.parseInt(field(b, 256 + ns * 216, 8)));
+        assertEquals(b.length, 256 * (ns + 1) + 4 * writer.getSamplesPerRecord() * 3 * 2 + 4 * EdfWriter.ANNOTATION_BYTES);
+        // the 16 bit counts of the accelerometer come back as they were
+        final int data = 256 * (ns + 1) + RATE * 2 * 3 + EdfWriter.ANNOTATION_BYTES;
+        for (int i = 0; i < RATE; i++) {
+            final int d = (short) ((b[data + 2 * i] & 0xff) | (b[data + 2 * i + 1] << 8));
+            assertEquals(0x8000 + RATE + i, d + 0x8000, 1);
+        }
+        assertEquals("+1", field(b, data + RATE * 2 * 3, 2));
+    }
+
+    @Test
+    public void writesBdfWithGapsAndReconnects() throws Exception {
+        final File file = File.createTempFile("attys", ".bdf");
+        file.deleteOnExit();
+        final EdfWriter writer = create(file, EdfWriter.FORMAT_BDF);
+        write(writer, 0, 625);
+        // 3s missing, then the Attys reconnects
+        writer.markReconnect(1375);
+        write(writer, 1375, 300);
+        writer.stop();
+        assertEquals(750, writer.getMissingSamples());
+        assertEquals(925, writer.getSamplesRecorded());
+        final byte[] b = load(file);
+        final int ns = MAP.length + 1;
+        assertEquals(0xff, b[0] & 0xff);
+        assertEquals("BIOSEMI", field(b, 1, 7));
+        assertEquals("BDF+D", field(b, EdfWriter.RESERVED_POSITION, 44));
+        assertEquals("BDF Annotations", field(b, 256 + 3 * 16, 16));
+        // records 0, 1, 2, 5 and 6
+        assertEquals(5, Integer.parseInt(field(b, EdfWriter.RECORD_COUNT_POSITION, 8)));
+        final int recordSize = RATE * 3 * 3 + EdfWriter.ANNOTATION_BYTES;
+        assertEquals(b.length, 256 * (ns + 1) + 5 * recordSize);
+        final double physicalMin = Double.parseDouble(field(b, 256 + ns * 104 + 8, 8));
+        final double physicalMax = Double.parseDouble(field(b, 256 + ns * 112 + 8, 8));
+        assertEquals(-8388608, Integer.parseInt(field(b, 256 + ns * 120 + 8, 8)));
+        assertEquals(8388607, Integer.parseInt(field(b, 256 + ns * 128 + 8, 8)));
+        final String[] annotations = new String[5];
+        for (int r = 0; r < 5; r++) {
+            final int p = 256 * (ns + 1) + r * recordSize;
+            annotations[r] = new String(b, p + RATE * 3 * 3, EdfWriter.ANNOTATION_BYTES, StandardCharsets.UTF_8);
+            // the ADC in volts
+            final int first = (r < 3 ? r : r + 2) * RATE;
+            for (int i = 0; i < RATE; i++) {
+                final int q = p + RATE * 3 + 3 * i;
+                final int d = (b[q] & 0xff) | ((b[q + 1] & 0xff) << 8) | (b[q + 2] << 16);
+                final double v = (d + 8388608.0) / 16777215 * (physicalMax - physicalMin) + physicalMin;
+                final long n = first + i;
+                if ((n < 625) || ((n >= 1375) && (n < 1675))) {
+                    assertEquals(CALIBRATION.toSI(AttysComm.INDEX_Analogue_channel_1, adcCount(n)), v, 1e-5);
+                }
+            }
+        }
+        assertTrue(annotations[0].startsWith("+0\u0014\u0014\0"));
+        assertTrue(annotations[2].startsWith("+2\u0014\u0014\0+2.5\u00153\u0014Gap\u0014\0"));
+        assertTrue(annotations[3].startsWith("+5\u0014\u0014\0+5.5\u0014Reconnect\u0014\0"));
+        assertTrue(annotations[4].startsWith("+6\u0014\u0014\0+6.7\u0014Recording ends\u0014\0"));
+    }
+
+    @Test
+    public void formatsHeaderNumbers() {
+        assertEquals("-0.40333", EdfWriter.formatNumber(-0.40333334));
+        assertEquals("156.9064", EdfWriter.formatNumber(156.9064));
+        assertEquals("0.0048", EdfWriter.formatNumber(4800.0E-6));
+        assertEquals("-1", EdfWriter.formatNumber(-1));
+        assertEquals("0", EdfWriter.formatNumber(0));
+    }
+
+    private static void writeConstant(EdfWriter writer, long first, int n, float adc) {
+        final float[] block = new float[n * AttysComm.NCHANNELS];
+        for (int i = 0; i < n; i++) {
+            block[i * AttysComm.NCHANNELS + AttysComm.INDEX_Analogue_channel_1] = adc;
+        }
+        writer.gotDataBlock(first, block, n, AttysComm.NCHANNELS);
+    }
+
+    private static AttysConfig config(int adc0Gain) {
+        return new AttysConfig(AttysComm.ADC_RATE_250HZ, AttysComm.FULL_DATA, AttysComm.ACCEL_16G,
+                adc0Gain, AttysComm.ADC_GAIN_6, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void continuesInANewFileWhenTheRangeChanges() throws Exception {
+        final File file = File.createTempFile("attys", ".bdf");
+        file.deleteOnExit();
+        final File second = EdfWriter.getSegmentFile(file, 1);
+        second.deleteOnExit();
+        final EdfWriter writer = create(file, EdfWriter.FORMAT_BDF);
+        writeConstant(writer, 0, 600, 0.1F);
+        // the gain goes down from 6 to 1: 1V is beyond the old range
+        final AttysConfig c = config(AttysComm.ADC_GAIN_1);
+        writer.markConfigChange(700, c, AttysComm.fullScaleRangesOf(c));
+        writeConstant(writer, 600, 600, 1.0F);
+        writer.stop();
+        assertEquals(2, writer.getNumberOfSegments());
+        assertEquals(second, writer.getCurrentFile());
+        final int ns = MAP.length + 1;
+        final int recordSize = RATE * 3 * 3 + EdfWriter.ANNOTATION_BYTES;
+        final int headerSize = 256 * (ns + 1);
+
+        // 0..699 in three records
+        final byte[] a = load(file);
+        assertEquals(3, Integer.parseInt(field(a, EdfWriter.RECORD_COUNT_POSITION, 8)));
+        assertEquals(a.length, headerSize + 3 * recordSize);
+        final String end = new String(a, headerSize + 2 * recordSize + RATE * 3 * 3,
+                EdfWriter.ANNOTATION_BYTES, StandardCharsets.UTF_8);
+        assertTrue(end.startsWith("+2\u0014\u0014\0+2.8\u0014Continued in " + second.getName() + "\u0014\0"));
+
+        // 700..1199 in two records with the new range
+        final byte[] b = load(second);
+        assertEquals(2, Integer.parseInt(field(b, EdfWriter.RECORD_COUNT_POSITION, 8)));
+        final double physicalMin = Double.parseDouble(field(b, 256 + ns * 104 + 8, 8));
+        final double physicalMax = Double.parseDouble(field(b, 256 + ns * 112 + 8, 8));
+        assertEquals(-AttysComm.ADC_REF, physicalMin, 1e-4);
+        final int q = headerSize + RATE * 3;
+        final int d = (b[q] & 0xff) | ((b[q + 1] & 0xff) << 8) | (b[q + 2] << 16);
+        // not clipped
+        assertEquals(1.0, (d + 8388608.0) / 16777215 * (physicalMax - physicalMin) + physicalMin, 1e-5);
+        final String start = new String(b, headerSize + RATE * 3 * 3, EdfWriter.ANNOTATION_BYTES,
+                StandardCharsets.UTF_8);
+        assertTrue(start.startsWith("+0\u0014\u0014\0+0\u0014Settings changed: " + c + "\u0014\0+0\u0014Continued from "
+                + file.getName() + "\u0014\0"));
+    }
+
+    @Test
+    public void annotatesChangesWhichKeepTheRanges() throws Exception {
+        final File file = File.createTempFile("attys", ".edf");
+        file.deleteOnExit();
+        final EdfWriter writer = create(file, EdfWriter.FORMAT_EDF);
+        writeConstant(writer, 0, 300, 0.1F);
+        // ADC 2 isn't recorded
+        final AttysConfig c = new AttysConfig(AttysComm.ADC_RATE_250HZ, AttysComm.FULL_DATA, AttysComm.ACCEL_16G,
+                AttysComm.ADC_GAIN_6, AttysComm.ADC_GAIN_12, 0, 0, 0, 0);
+        writer.markConfigChange(400, c, AttysComm.fullScaleRangesOf(c));
+        writeConstant(writer, 300, 300, 0.1F);
+        writer.stop();
+        assertEquals(1, writer.getNumberOfSegments());
+        final byte[] b = load(file);
+        final int ns = MAP.length + 1;
+        final String annotations = new String(b, 256 * (ns + 1) + 2 * (RATE * 2 * 3 + EdfWriter.ANNOTATION_BYTES)
+                - EdfWriter.ANNOTATION_BYTES, EdfWriter.ANNOTATION_BYTES, StandardCharsets.UTF_8);
+        assertTrue(annotations.startsWith("+1\u0014\u0014\0+1.6\u0014Settings changed: " + c));
+    }
+
+    @Test
+    public void countsTheAnnotationsWhichDontFitIntoASegment() throws Exception {
+        final File file = File.createTempFile("attys", ".bdf");
+        file.deleteOnExit();
+        final File second = EdfWriter.getSegmentFile(file, 1);
+        second.deleteOnExit();
+        final EdfWriter writer = create(file, EdfWriter.FORMAT_BDF);
+        writeConstant(writer, 0, 600, 0.1F);
+        // the last record of the first file has only space for two of them
+        final AttysConfig same = config(AttysComm.ADC_GAIN_6);
+        writer.markConfigChange(610, same, AttysComm.fullScaleRangesOf(same));
+        writer.markConfigChange(615, same, AttysComm.fullScaleRangesOf(same));
+        writer.markConfigChange(620, same, AttysComm.fullScaleRangesOf(same));
+        final AttysConfig c = config(AttysComm.ADC_GAIN_1);
+        writer.markConfigChange(630, c, AttysComm.fullScaleRangesOf(c));
+        writeConstant(writer, 600, 300, 1.0F);
+        writer.stop();
+        assertEquals(2, writer.getNumberOfSegments());
+        assertEquals(2, writer.getDroppedAnnotations());
+        final byte[] a = load(file);
+        final int ns = MAP.length + 1;
+        final String end = new String(a, a.length - EdfWriter.ANNOTATION_BYTES, EdfWriter.ANNOTATION_BYTES,
+                StandardCharsets.UTF_8);
+        assertTrue(end.startsWith("+2\u0014\u0014\0+2.44\u0014Settings changed: " + same + "\u0014\0"
+                + "+2.46\u0014Settings changed: " + same + "\u0014\0"));
+        assertEquals(256 * (ns + 1) + 3 * (RATE * 3 * 3 + EdfWriter.ANNOTATION_BYTES), a.length);
+    }
+}
@@ -0,0 +1,98 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sine waves through the notch, highpass and lowpass filters.
+ */
+public class FilterStageTest {
+
+    // amplitude of a sine of frequency f after the filter in channel 0
+    private static double amplitude(FilterStage stage, double f, int rate) {
+        final float[] sample = new float[2];
+        double max = 0;
+        for (int i = 0; i < rate * 10; i++) {
+            sample[0] = (float) Math.sin(2 * Math.PI * f * i / rate);
+            sample[1] = 1;
+            stage.filter(sample);
+            // only the last second when the filter has settled
+            if (i > rate * 9) max = Math.max(max, Math.abs(sample[0]));
+            assertEquals(1, sample[1], 0);
+        }
+        return max;
+    }
+
+    @Test
+    public void notch() {
+        final FilterStage stage = new FilterStage(2, 250);
+        stage.addNotch(0, 50);
+        assertTrue(stage.isActive());
+        assertEquals(0, amplitude(stage, 50, 250), 0.01);
+        assertEquals(1, amplitude(stage, 10, 250), 0.05);
+        // same notch at the new rate
+        stage.setSamplingRate(500);
+        assertEquals(0, amplitude(stage, 50, 500), 0.01);
+        assertEquals(1, amplitude(stage, 10, 500), 0.05);
+    }
+
+    @Test
+    public void highpassAndLowpass() {
+        final FilterStage stage = new FilterStage(2, 250);
+        stage.addHighpass(0, 1);
+        assertEquals(0, amplitude(stage, 0, 250), 0.01);
+        assertEquals(1, amplitude(stage, 20, 250), 0.05);
+        // Butterworth: -3dB at the cutoff
+        assertEquals(Math.sqrt(0.5), amplitude(stage, 1, 250), 0.05);
+        stage.clearFilters(0);
+        assertFalse(stage.isActive());
+        stage.addLowpass(0, 20);
+        stage.addLowpass(0, 20);
+        assertEquals(2, stage.getNumberOfFilters(0));
+        assertEquals(0, amplitude(stage, 100, 250), 0.02);
+        assertEquals(1, amplitude(stage, 1, 250), 0.05);
+    }
+
+    @Test
+    public void bypassAboveNyquist() {
+        final FilterStage stage = new FilterStage(2, 500);
+        stage.addNotch(0, 200);
+        assertEquals(0, amplitude(stage, 200, 500), 0.01);
+        // 200Hz doesn't exist at 125Hz
+        stage.setSamplingRate(125);
+        assertEquals(1, amplitude(stage, 10, 125), 0.01);
+    }
+
+    @Test
+    public void blockSameAsSamples() {
+        final FilterStage a = new FilterStage(3, 250);
+        final FilterStage b = new FilterStage(3, 250);
+        for (FilterStage s : new FilterStage[]{a, b}) {
+            s.addHighpass(1, 0.5);
+            s.addNotch(1, 50);
+            s.addLowpass(2, 30);
+        }
+        final int n = 1000;
+        final float[] block = new float[n * 3];
+        final float[] sample = new float[3];
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) {
+                block[i * 3 + c] = (float) Math.sin(i * (c + 1) * 0.1) + c;
+            }
+        }
+        final float[] expected = block.clone();
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(expected, i * 3, sample, 0, 3);
+            a.filter(sample);
+            System.arraycopy(sample, 0, expected, i * 3, 3);
+        }
+        // in two blocks
+        b.filter(block, 300, 3);
+        final float[] rest = new float[(n - 300) * 3];
+        System.arraycopy(block, 900, rest, 0, rest.length);
+        b.filter(rest, n - 300, 3);
+        System.arraycopy(rest, 0, block, 900, rest.length);
+        assertArrayEquals(expected, block, 1E-6f);
+    }
+}
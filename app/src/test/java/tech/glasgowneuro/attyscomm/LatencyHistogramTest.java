@@ -0,0 +1,94 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Buckets, percentiles and concurrent recording of the LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverAllValues() {
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+        assertEquals(LatencyHistogram.NBUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        int previous = -1;
+        for (long v = 0; v < 100000; v++) {
+            final int b = LatencyHistogram.bucketOf(v);
+            assertTrue(b >= previous);
+            assertTrue(v >= LatencyHistogram.lowestValueOf(b));
+            assertTrue(v <= LatencyHistogram.highestValueOf(b));
+            previous = b;
+        }
+        for (int b = 1; b < LatencyHistogram.NBUCKETS; b++) {
+            assertEquals(b, LatencyHistogram.bucketOf(LatencyHistogram.lowestValueOf(b)));
+            assertEquals(LatencyHistogram.highestValueOf(b - 1) + 1, LatencyHistogram.lowestValueOf(b));
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        final LatencyHistogram h = new LatencyHistogram("test");
+        // 1..100000 ns
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(100000, h.getMax());
+        assertEquals(50000.5, h.getMean(), 1e-6);
+        final double tolerance = 1.0 / LatencyHistogram.SUB_BUCKETS;
+        assertEquals(50000, h.getPercentile(50), 50000 * tolerance);
+        assertEquals(99000, h.getPercentile(99), 99000 * tolerance);
+        assertEquals(99900, h.getPercentile(99.9), 99900 * tolerance);
+        assertTrue(h.getPercentile(99) >= 99000);
+        assertEquals(100000, h.getPercentile(100));
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        final LatencyHistogram h = new LatencyHistogram("test");
+        h.record(1000);
+        h.record(2000000);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(99));
+        h.record(300);
+        assertEquals(300, h.getMax());
+        assertEquals(1, h.getCount());
+    }
+
+    @Test
+    public void formatsNameValuePairs() {
+        final LatencyHistogram h = new LatencyHistogram("decode");
+        h.record(10);
+        assertEquals("decode_count=1 decode_p50_ns=10 decode_p99_ns=10 decode_p999_ns=10 decode_max_ns=10",
+                h.toString());
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final LatencyHistogram h = new LatencyHistogram("test");
+        final int perThread = 100000;
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final long value = (i + 1) * 1000;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        h.record(value);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * perThread, h.getCount());
+        assertEquals(threads.length * 1000, h.getMax());
+        assertEquals(2500, h.getMean(), 1e-6);
+    }
+}
@@ -0,0 +1,56 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The LivenessMonitor fires once the packets stop and not before.
+ */
+public class LivenessMonitorTest {
+
+    @Test
+    public void firesWhenThePacketsStop() throws Exception {
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        final LivenessMonitor m = new LivenessMonitor(LivenessMonitor.getSharedScheduler(), 100,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut.countDown();
+                    }
+                });
+        m.arm();
+        // packets for 300ms: three times the timeout
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+        while (System.nanoTime() < end) {
+            m.alive(System.nanoTime());
+            Thread.sleep(10);
+        }
+        assertEquals(0, m.getTimeouts());
+        assertTrue(m.isArmed());
+        assertTrue(timedOut.await(1, TimeUnit.SECONDS));
+        assertEquals(1, m.getTimeouts());
+        assertFalse(m.isArmed());
+    }
+
+    @Test
+    public void quietWhenDisarmed() throws Exception {
+        final LivenessMonitor m = new LivenessMonitor(LivenessMonitor.getSharedScheduler(), 50,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+        m.arm();
+        m.disarm();
+        Thread.sleep(200);
+        assertEquals(0, m.getTimeouts());
+        // armed again it fires once
+        m.arm();
+        Thread.sleep(200);
+        assertEquals(1, m.getTimeouts());
+    }
+}
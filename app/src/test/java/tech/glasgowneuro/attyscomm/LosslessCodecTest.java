@@ -0,0 +1,105 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lossless compression of blocks of samples.
+ */
+public class LosslessCodecTest {
+
+    private static final int[] ALL = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private static final AttysCalibration CALIBRATION = new AttysCalibration(
+            AttysComm.ACCEL_FULL_SCALE[AttysComm.ACCEL_16G], AttysComm.MAG_FULL_SCALE,
+            AttysComm.ADC_REF / 6, AttysComm.ADC_REF / 6);
+
+    private static float[] ranges() {
+        final float[] r = new float[ALL.length];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = CALIBRATION.getFullScaleRange(i) > 0 ? CALIBRATION.getFullScaleRange(i) : 1;
+        }
+        return r;
+    }
+
+    // n samples of all channels as the decoder delivers them
+    private static float[] decoded(final int n) {
+        final AttysPacketGenerator generator = new AttysPacketGenerator();
+        final AttysPacketDecoder decoder = new AttysPacketDecoder();
+        decoder.setCalibration(CALIBRATION);
+        final float[] samples = new float[n * ALL.length];
+        decoder.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                if (samplenumber < n) {
+                    System.arraycopy(data, 0, samples, (int) samplenumber * ALL.length, ALL.length);
+                }
+            }
+        });
+        final byte[] line = new byte[AttysPacketGenerator.MAX_LINE_LENGTH];
+        while (decoder.getSampleNumber() < n) {
+            decoder.decodeStandardSpeedPacket(line, generator.nextLine(line, 0));
+        }
+        return samples;
+    }
+
+    private static void assertBitExact(float[] expected, float[] actual, int n) {
+        for (int i = 0; i < n; i++) {
+            assertEquals("value " + i, Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(actual[i]));
+        }
+    }
+
+    private static int roundTrip(LosslessCodec codec, float[] samples, int n, float[] ranges) {
+        final int len = codec.encode(samples, n, ranges);
+        final byte[] encoded = new byte[len];
+        System.arraycopy(codec.getEncoded(), 0, encoded, 0, len);
+        final float[] back = new float[samples.length];
+        new LosslessCodec(ALL, n).decode(encoded, 0, len, n, back);
+        assertBitExact(samples, back, n * ALL.length);
+        return len;
+    }
+
+    @Test
+    public void compressesDecodedSamples() {
+        final int n = 1000;
+        final float[] samples = decoded(n);
+        final LosslessCodec codec = new LosslessCodec(ALL, n);
+        final int len = roundTrip(codec, samples, n, ranges());
+        // the floats take 4 bytes each
+        assertTrue("compressed to " + len, len * 3 < n * ALL.length * 4);
+    }
+
+    @Test
+    public void keepsWhatIsNoCount() {
+        final int n = 300;
+        final float[] samples = decoded(n);
+        final Random random = new Random(7);
+        // filtered values, NaN and -0 in between
+        for (int i = 0; i < 20; i++) {
+            samples[random.nextInt(n) * ALL.length + AttysComm.INDEX_Analogue_channel_1] = random.nextFloat();
+        }
+        samples[5 * ALL.length + AttysComm.INDEX_Acceleration_X] = Float.NaN;
+        samples[6 * ALL.length + AttysComm.INDEX_GPIO0] = -0.0f;
+        // nothing but noise in channel 2
+        for (int i = 0; i < n; i++) {
+            samples[i * ALL.length + AttysComm.INDEX_Analogue_channel_2] = random.nextFloat() - 0.5f;
+        }
+        roundTrip(new LosslessCodec(ALL, n), samples, n, ranges());
+        // a wrong range
+        final float[] wrong = ranges();
+        wrong[AttysComm.INDEX_Analogue_channel_1] *= 2;
+        wrong[AttysComm.INDEX_Magnetic_field_X] = 0;
+        roundTrip(new LosslessCodec(ALL, n), samples, n, wrong);
+    }
+
+    @Test
+    public void encodesShortBlocks() {
+        final float[] samples = decoded(10);
+        for (int n = 1; n <= 10; n++) {
+            roundTrip(new LosslessCodec(ALL, 10), samples, n, ranges());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two simulated Attys sampling the same ramp with different sample
+ * numbers and clocks which have to line up in the merged stream.
+ */
+public class MultiDeviceMergerTest {
+
+    @Test
+    public void alignsTwoDevices() throws Exception {
+        final MultiDeviceMerger merger = new MultiDeviceMerger(100, 50000000L);
+        final MultiDeviceMerger.Device a = merger.addDevice("a", 1, 250);
+        final MultiDeviceMerger.Device b = merger.addDevice("b", 1, 250);
+        assertEquals(2, merger.getFrameSize());
+        assertEquals(1, b.getFrameOffset());
+        final List<float[]> frames = new ArrayList<float[]>();
+        final List<Long> frameNumbers = new ArrayList<Long>();
+        merger.setListener(new BlockListener() {
+            @Override
+            public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+                synchronized (frames) {
+                    for (int i = 0; i < nSamples; i++) {
+                        frames.add(new float[]{interleaved[i * stride], interleaved[i * stride + 1]});
+                        frameNumbers.add(firstSampleNumber + i);
+                    }
+                }
+            }
+        });
+        merger.start();
+
+        final long base = System.nanoTime();
+        // b started 1000 samples earlier and its clock is 0.1% slower
+        final double periodA = 4000000;
+        final double periodB = 4004000;
+        long nA = 0;
+        long nB = 1000;
+        final float[] v = new float[1];
+        while (System.nanoTime() - base < 1500000000L) {
+            final long now = System.nanoTime();
+            while (base + nA * periodA <= now) {
+                // the ramp in ms at the time of the sample
+                v[0] = (float) (nA * periodA / 1E6);
+                a.gotDataBlock(nA, v, 1, 1);
+                // arrives when it's sampled, whenever this thread wakes up
+                a.gotPacket(nA, base + (long) (nA * periodA));
+                nA++;
+            }
+            while (base + (nB - 1000) * periodB <= now) {
+                v[0] = (float) ((nB - 1000) * periodB / 1E6);
+                b.gotDataBlock(nB, v, 1, 1);
+                b.gotPacket(nB, base + (long) ((nB - 1000) * periodB));
+                nB++;
+            }
+            LockSupport.parkNanos(1000000);
+        }
+        merger.stop();
+
+        assertEquals(1000, b.getClock().getDriftPpm(), 200);
+        int complete = 0;
+        synchronized (frames) {
+            assertTrue(frames.size() > 50);
+            for (int i = 0; i < frames.size(); i++) {
+                final float[] f = frames.get(i);
+                assertEquals((long) i, (long) frameNumbers.get(i) - frameNumbers.get(0));
+                if (Float.isNaN(f[0]) || Float.isNaN(f[1])) continue;
+                complete++;
+                // both sampled the same moment within a few ms
+                assertEquals(f[0], f[1], 3);
+                // and that's the time of the frame
+                final double ms = (merger.getFrameNanos(frameNumbers.get(i)) - base) / 1E6;
+                assertEquals(ms, f[0], 5);
+            }
+        }
+        assertTrue(complete > 50);
+        assertEquals(merger.getMergedFrames() - merger.getIncompleteFrames(), complete);
+    }
+}
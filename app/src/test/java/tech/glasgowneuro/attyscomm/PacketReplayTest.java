@@ -0,0 +1,79 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Captures generated packets and replays them through the decoder.
+ */
+public class PacketReplayTest {
+
+    // 1 s of 250Hz packets, every 100th one truncated, with an OK in front
+    private static File capture() throws Exception {
+        final File file = File.createTempFile("attys", ".cap");
+        file.deleteOnExit();
+        final PacketCapture capture = new PacketCapture(file, 256);
+        capture.start();
+        final AttysPacketDecoder decoder = new AttysPacketDecoder();
+        decoder.setSamplingRate(250);
+        capture.config(decoder, false);
+        final long t0 = System.nanoTime();
+        capture.line(t0, new byte[]{'O', 'K'}, 2, PacketCapture.LINE_OK);
+        final AttysPacketGenerator generator = new AttysPacketGenerator();
+        final byte[] line = new byte[AttysPacketGenerator.MAX_LINE_LENGTH];
+        for (int i = 0; i < 250; i++) {
+            int n = generator.nextLine(line, 0);
+            if (i % 100 == 99) n = 5;
+            final int status = decoder.decodeStandardSpeedPacket(line, n);
+            capture.line(t0 + (i + 1) * 4000000L, line, n, status);
+            // gives the writer thread the chance to keep up
+            Thread.sleep(0, 1000);
+        }
+        capture.stop();
+        assertEquals(251, capture.getLines());
+        assertEquals(0, capture.getDroppedLines());
+        assertEquals(file.length(), capture.getBytesWritten());
+        return file;
+    }
+
+    @Test
+    public void replaysAsFastAsPossible() throws Exception {
+        final File file = capture();
+        final PacketReplay replay = new PacketReplay(file);
+        final long[] samples = {0};
+        replay.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                assertEquals(samples[0], samplenumber);
+                assertEquals(AttysComm.oneG, data[AttysComm.INDEX_Acceleration_Z], 0.01F);
+                samples[0]++;
+            }
+        });
+        replay.setSpeed(PacketReplay.SPEED_MAX);
+        replay.replay();
+        assertEquals(251, replay.getLines());
+        assertEquals(250, replay.getPackets());
+        assertEquals(2, replay.getReceptionErrors());
+        assertEquals(0, replay.getMismatches());
+        assertEquals(250, samples[0]);
+    }
+
+    @Test
+    public void replaysInScaledTime() throws Exception {
+        final File file = capture();
+        final PacketReplay replay = new PacketReplay(file);
+        replay.setSpeed(10);
+        final long t0 = System.nanoTime();
+        replay.start();
+        replay.join();
+        final long t = System.nanoTime() - t0;
+        assertNull(replay.getError());
+        assertEquals(250, replay.getPackets());
+        // 1 s of data at 10x
+        assertTrue(t >= 90000000L);
+        assertTrue(t < 2000000000L);
+    }
+}
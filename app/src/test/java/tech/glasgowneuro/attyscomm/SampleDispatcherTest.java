@@ -0,0 +1,190 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Listeners on their own threads with the different backpressure policies.
+ */
+public class SampleDispatcherTest {
+
+    private static final int NCH = 2;
+
+    private static class CountingListener implements SampleListener {
+        final CountDownLatch done;
+        long expected = 0;
+        boolean inOrder = true;
+        final long delayMs;
+
+        CountingListener(int n, long delayMs) {
+            done = new CountDownLatch(n);
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public void gotData(long samplenumber, float[] data) {
+            if ((samplenumber != expected) || (data[0] != samplenumber)) {
+                inOrder = false;
+            }
+            expected = samplenumber + 1;
+            done.countDown();
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void publish(SampleDispatcher d, int n) {
+        final float[] s = new float[NCH];
+        for (int i = 0; i < n; i++) {
+            s[0] = i;
+            d.publish(i, s);
+        }
+    }
+
+    @Test
+    public void allListenersGetAllSamples() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final CountingListener a = new CountingListener(10000, 0);
+        final CountingListener b = new CountingListener(10000, 0);
+        d.subscribe(a, 100, SampleDispatcher.BACKPRESSURE_BLOCK);
+        final SampleDispatcher.Subscription sb = d.subscribe(b, 100, SampleDispatcher.BACKPRESSURE_BLOCK);
+        publish(d, 10000);
+        assertTrue(a.done.await(10, TimeUnit.SECONDS));
+        assertTrue(b.done.await(10, TimeUnit.SECONDS));
+        assertTrue(a.inOrder);
+        assertTrue(b.inOrder);
+        assertEquals(0, sb.getDropped());
+        d.shutdown();
+    }
+
+    @Test
+    public void slowListenerDoesNotBlock() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final CountingListener slow = new CountingListener(1, 50);
+        final SampleDispatcher.Subscription s =
+                d.subscribe(slow, 10, SampleDispatcher.BACKPRESSURE_DROP_NEWEST);
+        final long t0 = System.nanoTime();
+        publish(d, 1000);
+        assertTrue(System.nanoTime() - t0 < TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(s.getDropped() > 0);
+        assertTrue(s.getLag() > 0);
+        assertTrue(s.getMaxQueued() <= s.getQueueCapacity());
+        d.shutdown();
+        assertFalse(d.hasSubscriptions());
+    }
+
+    @Test
+    public void blocksAreConsecutiveAndBounded() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] maxBlock = {0};
+        final boolean[] ok = {true};
+        final BlockListener l = new BlockListener() {
+            long expected = 0;
+
+            @Override
+            public void gotDataBlock(long first, float[] interleaved, int nSamples, int stride) {
+                if ((first != expected) || (stride != NCH)) ok[0] = false;
+                for (int i = 0; i < nSamples; i++) {
+                    if (interleaved[i * stride] != first + i) ok[0] = false;
+                }
+                maxBlock[0] = Math.max(maxBlock[0], nSamples);
+                expected = first + nSamples;
+                if (expected == 5000) done.countDown();
+            }
+        };
+        final SampleDispatcher.Subscription s = d.subscribe(l, 1000,
+                SampleDispatcher.BACKPRESSURE_BLOCK, 32, TimeUnit.MILLISECONDS.toNanos(10));
+        publish(d, 5000);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        d.shutdown();
+        assertTrue(ok[0]);
+        assertTrue(maxBlock[0] <= 32);
+        assertEquals(5000, s.getDelivered());
+        assertTrue(s.getDeliveredBlocks() >= 5000 / 32);
+    }
+
+    @Test
+    public void partialBlockAfterLatency() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] n = {0};
+        d.subscribe(new BlockListener() {
+            @Override
+            public void gotDataBlock(long first, float[] interleaved, int nSamples, int stride) {
+                n[0] += nSamples;
+                if (n[0] == 3) done.countDown();
+            }
+        }, 100, SampleDispatcher.BACKPRESSURE_DROP_OLDEST, 64, TimeUnit.MILLISECONDS.toNanos(20));
+        publish(d, 3);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        d.shutdown();
+    }
+
+    @Test
+    public void throwingListenerDoesNotStallBlockingPublish() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final CountDownLatch calls = new CountDownLatch(5);
+        final SampleDispatcher.Subscription s = d.subscribe(new BlockListener() {
+            @Override
+            public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+                calls.countDown();
+                throw new IllegalStateException("listener failed");
+            }
+        }, 10, SampleDispatcher.BACKPRESSURE_BLOCK, 4, 0);
+        final long t0 = System.nanoTime();
+        publish(d, 1000);
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(calls.await(5, TimeUnit.SECONDS));
+        // the dispatch goes on after the exceptions
+        assertTrue(s.isRunning());
+        assertTrue(s.getErrors() >= 5);
+        assertTrue(s.getLastError() instanceof IllegalStateException);
+        d.shutdown();
+    }
+
+    @Test
+    public void deadDispatchThreadDoesNotStallBlockingPublish() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final SampleDispatcher.Subscription s = d.subscribe(new BlockListener() {
+            @Override
+            public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+                throw new AssertionError("not an exception");
+            }
+        }, 10, SampleDispatcher.BACKPRESSURE_BLOCK, 4, 0);
+        final long t0 = System.nanoTime();
+        publish(d, 1000);
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(5));
+        assertFalse(s.isRunning());
+        assertEquals(1, s.getErrors());
+        d.shutdown();
+    }
+
+    @Test
+    public void drainDeliversTheQueuedSamples() throws Exception {
+        final SampleDispatcher d = new SampleDispatcher(NCH);
+        final long[] received = {0, -1};
+        final BlockListener l = new BlockListener() {
+            @Override
+            public void gotDataBlock(long firstSampleNumber, float[] interleaved, int nSamples, int stride) {
+                received[0] += nSamples;
+                received[1] = firstSampleNumber + nSamples - 1;
+            }
+        };
+        // would wait a minute for a full block
+        d.subscribe(l, 1000, SampleDispatcher.BACKPRESSURE_BLOCK, 500, TimeUnit.SECONDS.toNanos(60));
+        publish(d, 123);
+        d.drainAndUnsubscribe(l);
+        assertEquals(123, received[0]);
+        assertEquals(122, received[1]);
+        assertFalse(d.hasSubscriptions());
+    }
+}
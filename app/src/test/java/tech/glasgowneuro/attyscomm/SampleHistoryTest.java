@@ -0,0 +1,123 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per channel reads from the columnar history.
+ */
+public class SampleHistoryTest {
+
+    private static final int NCH = 3;
+
+    private static void put(SampleHistory h, long from, long to) {
+        final float[] s = new float[NCH];
+        for (long i = from; i < to; i++) {
+            for (int c = 0; c < NCH; c++) {
+                s[c] = i * 10 + c;
+            }
+            h.put(i, s);
+        }
+    }
+
+    @Test
+    public void readsAcrossTheWrap() {
+        final SampleHistory h = new SampleHistory(100, NCH);
+        put(h, 0, 250);
+        assertEquals(250, h.getEndSampleNumber());
+        assertEquals(151, h.getFirstSampleNumber());
+        assertEquals(99, h.size());
+        final float[] dst = new float[50];
+        assertEquals(50, h.read(2, 180, 50, dst, 0));
+        for (int i = 0; i < 50; i++) {
+            assertEquals((180 + i) * 10 + 2, dst[i], 0);
+        }
+        // overwritten
+        assertEquals(-1, h.read(0, 100, 10, dst, 0));
+        // cut off at the newest sample
+        assertEquals(10, h.read(0, 240, 50, dst, 0));
+        assertEquals(5, h.readLast(1, 5, dst, 0));
+        assertEquals(245 * 10 + 1, dst[0], 0);
+    }
+
+    @Test
+    public void slicesAndBlocks() {
+        final SampleHistory h = new SampleHistory(64, NCH);
+        final float[] block = new float[40 * NCH];
+        for (int i = 0; i < 40; i++) {
+            for (int c = 0; c < NCH; c++) {
+                block[i * NCH + c] = (1000 + i) * 10 + c;
+            }
+        }
+        h.gotDataBlock(1000, block, 40, NCH);
+        h.gotDataBlock(1040, block, 40, NCH);
+        assertEquals(1080, h.getEndSampleNumber());
+        final SampleHistory.Slice slice = new SampleHistory.Slice();
+        assertTrue(h.slice(1, 1020, 20, slice));
+        assertEquals(20, slice.length());
+        assertTrue(slice.length2 > 0);
+        for (int i = 0; i < 20; i++) {
+            assertEquals((1020 + i) * 10 + 1, slice.get(i), 0);
+        }
+        assertTrue(slice.stillValid());
+        put(h, 1080, 1200);
+        assertFalse(slice.stillValid());
+        final float[][] dst = new float[2][10];
+        assertEquals(10, h.read(new int[]{0, 2}, 1190, 10, dst));
+        assertEquals(1195 * 10 + 2, dst[1][5], 0);
+    }
+
+    @Test
+    public void gapsAndRestarts() {
+        final SampleHistory h = new SampleHistory(100, NCH);
+        put(h, 0, 10);
+        put(h, 15, 20);
+        assertEquals(5, h.getFilledSamples());
+        final float[] dst = new float[20];
+        assertEquals(20, h.read(0, 0, 20, dst, 0));
+        assertEquals(90, dst[12], 0);
+        assertEquals(150, dst[15], 0);
+        // reconnect with a lower sample number
+        put(h, 5, 8);
+        assertEquals(5, h.getFirstSampleNumber());
+        assertEquals(3, h.size());
+    }
+
+    @Test
+    public void readersDetectTheWriterOvertakingThem() throws Exception {
+        final int total = 1000000;
+        final int block = 50;
+        final SampleHistory h = new SampleHistory(64, NCH);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final float[] interleaved = new float[block * NCH];
+                for (long n = 0; n < total; n += block) {
+                    for (int i = 0; i < block; i++) {
+                        for (int c = 0; c < NCH; c++) {
+                            interleaved[i * NCH + c] = (n + i) * 10 + c;
+                        }
+                    }
+                    h.gotDataBlock(n, interleaved, block, NCH);
+                }
+            }
+        });
+        writer.start();
+        final int[] list = {0, 2};
+        final float[][] dst = new float[2][60];
+        int valid = 0;
+        while (writer.isAlive()) {
+            final long first = h.getFirstSampleNumber();
+            final int k = h.read(list, first, 60, dst);
+            if (k <= 0) continue;
+            valid++;
+            for (int j = 0; j < k; j++) {
+                assertEquals((first + j) * 10, dst[0][j], 0);
+                assertEquals((first + j) * 10 + 2, dst[1][j], 0);
+            }
+        }
+        writer.join();
+        assertTrue(valid > 0);
+    }
+}
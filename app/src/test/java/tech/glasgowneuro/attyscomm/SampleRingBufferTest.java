@@ -0,0 +1,168 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Single threaded semantics and a producer/consumer run of the ring buffer.
+ */
+public class SampleRingBufferTest {
+
+    private static final int NCH = 3;
+
+    private static float[] sample(float v) {
+        return new float[]{v, v + 0.5F, -v};
+    }
+
+    @Test
+    public void putGetAndSize() {
+        final SampleRingBuffer rb = new SampleRingBuffer(4, NCH);
+        assertNull(rb.get());
+        rb.put(sample(1));
+        rb.put(sample(2));
+        assertEquals(2, rb.size());
+        assertArrayEquals(sample(1), rb.get(), 0);
+        assertArrayEquals(sample(2), rb.get(), 0);
+        assertNull(rb.get());
+        assertEquals(0, rb.size());
+    }
+
+    @Test
+    public void overwriteKeepsNewest() {
+        final SampleRingBuffer rb = new SampleRingBuffer(4, NCH, SampleRingBuffer.OVERFLOW_OVERWRITE);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rb.put(sample(i)));
+        }
+        assertEquals(4, rb.size());
+        final float[] dst = new float[10 * NCH];
+        final int n = rb.drainTo(dst, 10);
+        // the slots the producer writes next are not trusted
+        assertEquals(4 - SampleRingBuffer.SAFETY_MARGIN, n);
+        assertEquals(8, dst[0], 0);
+        assertEquals(9, dst[NCH], 0);
+        assertEquals(8, rb.getOverwrittenSamples());
+        assertEquals(0, rb.size());
+    }
+
+    @Test
+    public void dropNewKeepsOldest() {
+        final SampleRingBuffer rb = new SampleRingBuffer(4, NCH, SampleRingBuffer.OVERFLOW_DROP_NEW);
+        for (int i = 0; i < 10; i++) {
+            rb.put(sample(i));
+        }
+        assertEquals(4, rb.size());
+        assertEquals(6, rb.getDroppedSamples());
+        final float[] dst = new float[10 * NCH];
+        assertEquals(4, rb.drainTo(dst, 10));
+        assertEquals(0, dst[0], 0);
+        assertEquals(3, dst[3 * NCH], 0);
+        assertTrue(rb.put(sample(10)));
+    }
+
+    @Test
+    public void recordsResidence() {
+        final SampleRingBuffer rb = new SampleRingBuffer(8, NCH);
+        final LatencyHistogram h = new LatencyHistogram("residence");
+        rb.setResidenceHistogram(h);
+        final long t0 = System.nanoTime() - 1000000;
+        for (int i = 0; i < 4; i++) {
+            rb.put(i, sample(i), t0 + i);
+        }
+        // without a timestamp: not recorded
+        rb.put(4, sample(4));
+        final float[] dst = new float[8 * NCH];
+        final long[] timestamps = new long[8];
+        assertEquals(5, rb.drainTo(dst, null, timestamps, 8));
+        assertEquals(t0 + 3, timestamps[3]);
+        assertEquals(0, timestamps[4]);
+        assertEquals(4, h.getCount());
+        assertTrue(h.getPercentile(50) >= 1000000 * 15 / 16);
+    }
+
+    @Test
+    public void peekLastDoesNotConsume() {
+        final SampleRingBuffer rb = new SampleRingBuffer(8, NCH);
+        for (int i = 0; i < 5; i++) {
+            rb.put(sample(i));
+        }
+        final float[] dst = new float[3 * NCH];
+        assertEquals(3, rb.peekLast(3, dst));
+        assertEquals(2, dst[0], 0);
+        assertEquals(4, dst[2 * NCH], 0);
+        assertEquals(5, rb.size());
+    }
+
+    @Test
+    public void producerConsumer() throws Exception {
+        final int total = 200000;
+        final SampleRingBuffer rb = new SampleRingBuffer(1000, NCH, SampleRingBuffer.OVERFLOW_DROP_NEW);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final float[] s = new float[NCH];
+                int i = 0;
+                while (i < total) {
+                    s[0] = i;
+                    s[1] = i;
+                    s[2] = i;
+                    if (rb.put(s)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        final float[] dst = new float[100 * NCH];
+        int expected = 0;
+        while (expected < total) {
+            final int n = rb.drainTo(dst, 100);
+            for (int j = 0; j < n; j++) {
+                assertEquals(expected, (int) dst[j * NCH]);
+                assertEquals(expected, (int) dst[j * NCH + 2]);
+                expected++;
+            }
+        }
+        producer.join();
+        assertTrue(rb.isEmpty());
+    }
+
+    @Test
+    public void overwriteNeverReturnsTornSamples() throws Exception {
+        final int total = 2000000;
+        final SampleRingBuffer rb = new SampleRingBuffer(16, NCH, SampleRingBuffer.OVERFLOW_OVERWRITE);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final float[] s = new float[NCH];
+                for (int i = 0; i < total; i++) {
+                    s[0] = i;
+                    s[1] = i;
+                    s[2] = i;
+                    rb.put(i, s);
+                }
+            }
+        });
+        producer.start();
+        final float[] dst = new float[16 * NCH];
+        final long[] sampleNumbers = new long[16];
+        final float[] last = new float[8 * NCH];
+        long read = 0;
+        while (producer.isAlive() || !rb.isEmpty()) {
+            final int n = rb.drainTo(dst, sampleNumbers, 16);
+            for (int j = 0; j < n; j++) {
+                assertEquals(sampleNumbers[j], (long) dst[j * NCH]);
+                assertEquals(sampleNumbers[j], (long) dst[j * NCH + 2]);
+            }
+            read += n;
+            final int k = rb.peekLast(8, last);
+            for (int j = 1; j < k; j++) {
+                assertEquals(last[(j - 1) * NCH] + 1, last[j * NCH], 0);
+            }
+        }
+        producer.join();
+        assertEquals(total, read + rb.getOverwrittenSamples());
+    }
+}
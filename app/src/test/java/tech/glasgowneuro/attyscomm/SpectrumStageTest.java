@@ -0,0 +1,116 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Spectra of sines and noise against a plain DFT.
+ */
+public class SpectrumStageTest {
+
+    // the last spectrum of channel 0
+    private static final class Last implements SpectrumStage.Listener {
+        float[] spectrum;
+        long sampleNumber = -1;
+        double binWidth;
+        int n = 0;
+
+        @Override
+        public void gotSpectrum(long sampleNumber, float[][] spectra, int nBins, double binWidth) {
+            spectrum = spectra[0].clone();
+            assertEquals(nBins, spectrum.length);
+            this.sampleNumber = sampleNumber;
+            this.binWidth = binWidth;
+            n++;
+        }
+    }
+
+    private static void feed(SpectrumStage stage, long from, float[] x) {
+        final float[] sample = new float[3];
+        for (int i = 0; i < x.length; i++) {
+            sample[2] = x[i];
+            stage.put(from + i, sample, 0);
+        }
+    }
+
+    @Test
+    public void sameAsDft() {
+        for (int n : new int[]{8, 16, 64, 512}) {
+            final SpectrumStage stage = new SpectrumStage(new int[]{2}, n, n,
+                    SpectrumStage.WINDOW_RECTANGULAR, SpectrumStage.OUTPUT_MAGNITUDE, 250);
+            final Last last = new Last();
+            stage.setListener(last);
+            final Random random = new Random(n);
+            final float[] x = new float[n + n / 2];
+            for (int i = 0; i < x.length; i++) {
+                x[i] = (float) random.nextGaussian();
+            }
+            feed(stage, 0, x);
+            assertEquals(1, last.n);
+            assertEquals(n - 1, last.sampleNumber);
+            for (int k = 0; k <= n / 2; k++) {
+                double r = 0;
+                double i = 0;
+                for (int j = 0; j < n; j++) {
+                    r += x[j] * Math.cos(2 * Math.PI * j * k / n);
+                    i -= x[j] * Math.sin(2 * Math.PI * j * k / n);
+                }
+                double expected = Math.sqrt(r * r + i * i) / n;
+                if ((k > 0) && (k < n / 2)) expected *= 2;
+                assertEquals(expected, last.spectrum[k], 1E-4);
+            }
+        }
+    }
+
+    @Test
+    public void sineAndBandPower() {
+        final int rate = 256;
+        final SpectrumStage magnitude = new SpectrumStage(new int[]{2}, 256, 32,
+                SpectrumStage.WINDOW_HANN, SpectrumStage.OUTPUT_MAGNITUDE, rate);
+        final SpectrumStage power = new SpectrumStage(new int[]{2}, 256, 32,
+                SpectrumStage.WINDOW_RECTANGULAR, SpectrumStage.OUTPUT_POWER, rate);
+        final Last m = new Last();
+        final Last p = new Last();
+        magnitude.setListener(m);
+        power.setListener(p);
+        final float[] x = new float[1000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = (float) (3 * Math.sin(2 * Math.PI * 10 * i / rate));
+        }
+        feed(magnitude, 0, x);
+        feed(power, 0, x);
+        // one at 256 samples and then every 32
+        assertEquals(1 + (1000 - 256) / 32, m.n);
+        assertEquals(1.0, m.binWidth, 0);
+        assertEquals(3, m.spectrum[10], 1E-3);
+        assertEquals(0, m.spectrum[20], 1E-3);
+        // sine of amplitude 3 has a power of 4.5
+        assertEquals(4.5, power.getBandPower(p.spectrum, 9, 11), 1E-3);
+        assertEquals(0, power.getBandPower(p.spectrum, 20, 100), 1E-3);
+    }
+
+    @Test
+    public void startsAgainAfterGapOrNewRate() {
+        final SpectrumStage stage = new SpectrumStage(new int[]{2}, 64, 16,
+                SpectrumStage.WINDOW_HAMMING, SpectrumStage.OUTPUT_POWER, 250);
+        final Last last = new Last();
+        stage.setListener(last);
+        feed(stage, 0, new float[100]);
+        assertEquals(3, last.n);
+        // 50 samples after the gap aren't enough for a window
+        feed(stage, 200, new float[50]);
+        assertEquals(3, last.n);
+        feed(stage, 250, new float[14]);
+        assertEquals(4, last.n);
+        assertEquals(263, last.sampleNumber);
+        stage.setSamplingRate(500);
+        feed(stage, 264, new float[63]);
+        assertEquals(4, last.n);
+        feed(stage, 327, new float[1]);
+        assertEquals(5, last.n);
+        assertEquals(500.0 / 64, last.binWidth, 0);
+    }
+}
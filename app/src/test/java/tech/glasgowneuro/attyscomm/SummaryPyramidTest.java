@@ -0,0 +1,102 @@
+package tech.glasgowneuro.attyscomm;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Zooming through a long ramp with gaps at every level.
+ */
+public class SummaryPyramidTest {
+
+    private static SummaryPyramid ramp(long from, long to) {
+        final SummaryPyramid p = new SummaryPyramid(new int[]{1});
+        final float[] sample = new float[2];
+        for (long n = from; n < to; n++) {
+            sample[1] = n;
+            p.put(n, sample, 0);
+        }
+        return p;
+    }
+
+    @Test
+    public void selectsLevel() {
+        final SummaryPyramid p = ramp(0, 100);
+        assertEquals(-1, p.selectLevel(1000, 100));
+        assertEquals(0, p.selectLevel(1600, 100));
+        assertEquals(0, p.selectLevel(3199, 100));
+        assertEquals(1, p.selectLevel(3200, 100));
+        assertEquals(SummaryPyramid.DEFAULT_LEVELS - 1, p.selectLevel(1L << 40, 100));
+    }
+
+    @Test
+    public void zooms() {
+        final SummaryPyramid p = ramp(1000, 1001000);
+        final SummaryPyramid.Summary s = new SummaryPyramid.Summary(2000);
+        // everything: 1000 samples per pixel, 512 per entry
+        assertTrue(p.query(1, 1000, 1001000, 1000, s));
+        assertEquals(5, s.level);
+        assertEquals(512, s.samplesPerEntry);
+        assertEquals(1000, s.firstSampleNumber);
+        assertEquals(1954, s.n);
+        for (int i = 0; i < s.n - 1; i++) {
+            assertEquals(1000 + i * 512, s.min[i], 0);
+            assertEquals(1000 + i * 512 + 511, s.max[i], 0);
+            assertEquals(1000 + i * 512 + 255.5, s.mean[i], 0.1);
+        }
+        // the last one isn't complete yet
+        assertEquals(1000 + 1953 * 512, s.min[s.n - 1], 0);
+        // a few seconds in the middle
+        assertTrue(p.query(1, 500000, 502000, 100, s));
+        assertEquals(0, s.level);
+        // entries start at 1000 + i * 16
+        assertEquals(499992, s.firstSampleNumber);
+        assertEquals(126, s.n);
+        assertEquals(s.firstSampleNumber, s.min[0], 0);
+        // closer: the samples themselves
+        assertFalse(p.query(1, 500000, 500100, 100, s));
+        assertEquals(0, s.n);
+    }
+
+    @Test
+    public void gapsRestartsAndFiles() throws Exception {
+        final SummaryPyramid p = ramp(0, 1000);
+        final float[] sample = new float[2];
+        for (long n = 2000; n < 3000; n++) {
+            sample[1] = n;
+            p.put(n, sample, 0);
+        }
+        final SummaryPyramid.Summary s = new SummaryPyramid.Summary(400);
+        assertTrue(p.query(1, 0, 3000, 150, s));
+        assertEquals(0, s.level);
+        assertEquals(0, s.min[0], 0);
+        assertTrue(Float.isNaN(s.min[100]));
+        assertEquals(2000, s.min[125], 0);
+
+        final File file = File.createTempFile("attys", SummaryPyramid.FILE_EXTENSION);
+        file.deleteOnExit();
+        p.write(file);
+        final SummaryPyramid q = SummaryPyramid.read(file);
+        final SummaryPyramid.Summary t = new SummaryPyramid.Summary(400);
+        for (int pixels : new int[]{150, 50, 10, 1}) {
+            assertTrue(p.query(1, 0, 3000, pixels, s));
+            assertTrue(q.query(1, 0, 3000, pixels, t));
+            assertEquals(s.level, t.level);
+            assertEquals(s.n, t.n);
+            for (int i = 0; i < s.n; i++) {
+                assertEquals(s.min[i], t.min[i], 0);
+                assertEquals(s.max[i], t.max[i], 0);
+                assertEquals(s.mean[i], t.mean[i], 0);
+            }
+        }
+        assertEquals(0, q.getFirstSampleNumber());
+
+        // the sample numbers start again
+        sample[1] = 7;
+        p.put(100, sample, 0);
+        assertEquals(100, p.getFirstSampleNumber());
+        assertEquals(0, p.getNumberOfEntries(0));
+    }
+}
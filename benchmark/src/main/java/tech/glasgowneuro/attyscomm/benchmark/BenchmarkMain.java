@@ -0,0 +1,49 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks twice: in ns/packet and in packets/s, both
+ * with the GC profiler so that allocations on the hot path show up
+ * as gc.alloc.rate.norm (bytes per packet).
+ * <p>
+ * Arguments: include-regex [param=value,value ...] result-directory
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        final String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        final File resultDir = new File(args.length > 1 ? args[args.length - 1] : "build/jmh");
+        resultDir.mkdirs();
+
+        final ChainedOptionsBuilder common = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON);
+        for (int i = 1; i < args.length - 1; i++) {
+            final String[] p = args[i].split("=", 2);
+            common.param(p[0], p[1].split(","));
+        }
+
+        new Runner(common
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .result(new File(resultDir, "avgt.json").getPath())
+                .build()).run();
+
+        new Runner(common
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .result(new File(resultDir, "thrpt.json").getPath())
+                .build()).run();
+    }
+}
@@ -0,0 +1,101 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.BlockListener;
+import tech.glasgowneuro.attyscomm.SampleDispatcher;
+import tech.glasgowneuro.attyscomm.SampleListener;
+import tech.glasgowneuro.attyscomm.SampleRingBuffer;
+
+/**
+ * The complete path of a packet on the acquisition thread: decoding,
+ * publishing to the DataListener queues and ring buffer insert, ns/packet.
+ * The listeners themselves run on their dispatch threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    @Param({"FULL_DATA", "PARTIAL_DATA"})
+    public String dataMode;
+
+    // SAMPLE: one gotData() per sample, BLOCK: gotDataBlock() with up to 64 samples
+    @Param({"SAMPLE", "BLOCK"})
+    public String delivery;
+
+    private PacketCorpus packets;
+    private final AttysPacketDecoder decoder = new AttysPacketDecoder();
+    private final SampleRingBuffer ringBuffer =
+            new SampleRingBuffer(1000, AttysPacketDecoder.NCHANNELS);
+    private final SampleDispatcher dispatcher = new SampleDispatcher(AttysPacketDecoder.NCHANNELS);
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        final boolean fullData = "FULL_DATA".equals(dataMode);
+        packets = PacketCorpus.synthetic(1, fullData, 0);
+        decoder.setFullData(fullData);
+        for (int i = 0; i < listeners; i++) {
+            if ("BLOCK".equals(delivery)) {
+                dispatcher.subscribe(new BlockListener() {
+                    @Override
+                    public void gotDataBlock(long firstSampleNumber, float[] interleaved,
+                                             int nSamples, int stride) {
+                        blackhole.consume(firstSampleNumber);
+                        blackhole.consume(interleaved);
+                    }
+                }, 1000, SampleDispatcher.BACKPRESSURE_DROP_OLDEST, 64, 10000000L);
+                continue;
+            }
+            dispatcher.subscribe(new SampleListener() {
+                @Override
+                public void gotData(long samplenumber, float[] data) {
+                    blackhole.consume(samplenumber);
+                    blackhole.consume(data);
+                }
+            }, 1000, SampleDispatcher.BACKPRESSURE_DROP_OLDEST);
+        }
+        // same as AttysComm does with its listeners
+        decoder.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                dispatcher.publish(samplenumber, data);
+                ringBuffer.put(samplenumber, data);
+                // the plotting thread
+                ringBuffer.get();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public int decodeAndDispatch() {
+        final int i = packets.next();
+        return decoder.decodeStandardSpeedPacket(packets.line(i), packets.length(i));
+    }
+}
@@ -0,0 +1,70 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.FilterStage;
+
+/**
+ * The typical ECG filters (highpass and 50Hz notch on both analogue
+ * channels) sample by sample as on the acquisition thread and on
+ * blocks, ns/sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private final static int BLOCK = 256;
+    // same as AttysComm.INDEX_Analogue_channel_1/2
+    private final static int CHANNEL1 = 6;
+    private final static int CHANNEL2 = 7;
+    private final static int NCH = AttysPacketDecoder.NCHANNELS;
+
+    private final FilterStage stage = new FilterStage(NCH, 250);
+    private final float[] block = new float[BLOCK * NCH];
+    private final float[] sample = new float[NCH];
+
+    @Setup
+    public void setup() {
+        for (int c : new int[]{CHANNEL1, CHANNEL2}) {
+            stage.addHighpass(c, 0.5);
+            stage.addNotch(c, 50);
+        }
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (float) Math.sin(i * 0.01);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public float perSample() {
+        for (int i = 0; i < BLOCK; i++) {
+            System.arraycopy(block, i * NCH, sample, 0, NCH);
+            stage.filter(sample);
+        }
+        return sample[CHANNEL1];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public float perBlock() {
+        stage.filter(block, BLOCK, NCH);
+        return block[CHANNEL1];
+    }
+}
@@ -0,0 +1,59 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.SampleListener;
+
+/**
+ * Decoding of one 500Hz packet (= two samples), ns/packet.
+ * The high speed packets always have the same format so there's
+ * no full/partial data parameter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HighSpeedDecoderBenchmark {
+
+    // "synthetic", "noisy" or the path to a recording
+    @Param({PacketCorpus.SYNTHETIC, PacketCorpus.NOISY})
+    public String corpus;
+
+    private PacketCorpus packets;
+    private final AttysPacketDecoder decoder = new AttysPacketDecoder();
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws IOException {
+        packets = PacketCorpus.create(corpus, 2, true);
+        decoder.setSamplingRate(500);
+        decoder.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                blackhole.consume(data);
+            }
+        });
+    }
+
+    @Benchmark
+    public int decodeHighSpeedPacket() {
+        final int i = packets.next();
+        return decoder.decodeHighSpeedPacket(packets.line(i), packets.length(i));
+    }
+}
@@ -0,0 +1,79 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.SampleHistory;
+import tech.glasgowneuro.attyscomm.SampleRingBuffer;
+
+/**
+ * Getting the most recent samples of one channel, for example for
+ * a plot or an FFT, from the interleaved ring buffer and from the
+ * columnar history, ns/sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+    private final static int CAPACITY = 4096;
+    // a typical FFT length
+    private final static int WINDOW = 1024;
+    // same as AttysComm.INDEX_Analogue_channel_1
+    private final static int CHANNEL = 6;
+    private final static int NCH = AttysPacketDecoder.NCHANNELS;
+
+    private final SampleRingBuffer ringBuffer = new SampleRingBuffer(CAPACITY, NCH);
+    private final SampleHistory history = new SampleHistory(CAPACITY, NCH);
+    private final float[] sample = new float[NCH];
+    private final float[] interleaved = new float[WINDOW * NCH];
+    private final float[] window = new float[WINDOW];
+    private long sampleNumber = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < CAPACITY; i++) {
+            insert();
+        }
+    }
+
+    @Benchmark
+    public void insert() {
+        sample[CHANNEL] = sampleNumber;
+        ringBuffer.put(sampleNumber, sample);
+        history.put(sampleNumber, sample);
+        sampleNumber++;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public float channelFromRingBuffer() {
+        final int n = ringBuffer.peekLast(WINDOW, interleaved);
+        for (int i = 0; i < n; i++) {
+            window[i] = interleaved[i * NCH + CHANNEL];
+        }
+        return window[n - 1];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public float channelFromHistory() {
+        final int n = history.readLast(CHANNEL, WINDOW, window, 0);
+        return window[n - 1];
+    }
+}
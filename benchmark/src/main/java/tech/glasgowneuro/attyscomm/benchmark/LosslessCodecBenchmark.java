@@ -0,0 +1,134 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysCalibration;
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.LosslessCodec;
+import tech.glasgowneuro.attyscomm.SampleListener;
+
+/**
+ * Lossless compression of blocks of decoded samples of all channels,
+ * blocks/s. The bytes counter reports the throughput in bytes/s of floats
+ * (4 per value). The compressed size is printed by the setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LosslessCodecBenchmark {
+
+    private final static int NCH = AttysPacketDecoder.NCHANNELS;
+    // number of blocks the corpus is cut into
+    private final static int NBLOCKS = 16;
+
+    // "synthetic", "noisy" or the path to a recording
+    @Param({PacketCorpus.SYNTHETIC, PacketCorpus.NOISY})
+    public String corpus;
+
+    // samples per block
+    @Param({"256", "1024"})
+    public int blockSize;
+
+    private float[][] blocks;
+    private byte[][] encoded;
+    private int[] encodedLength;
+    private final float[] ranges = new float[NCH];
+    private float[] dst;
+    private LosslessCodec codec;
+    private int index = 0;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final PacketCorpus packets = PacketCorpus.create(corpus, 1, true);
+        final AttysPacketDecoder decoder = new AttysPacketDecoder();
+        final AttysCalibration calibration = decoder.getCalibration();
+        for (int i = 0; i < NCH; i++) {
+            ranges[i] = calibration.getFullScaleRange(i) > 0 ? calibration.getFullScaleRange(i) : 1;
+        }
+        final int n = NBLOCKS * blockSize;
+        final float[] samples = new float[n * NCH];
+        decoder.setSampleListener(new SampleListener() {
+            @Override
+            public void gotData(long samplenumber, float[] data) {
+                if (samplenumber < n) {
+                    System.arraycopy(data, 0, samples, (int) samplenumber * NCH, NCH);
+                }
+            }
+        });
+        while (decoder.getSampleNumber() < n) {
+            final int i = packets.next();
+            decoder.decodeStandardSpeedPacket(packets.line(i), packets.length(i));
+        }
+        final int[] channelMap = new int[NCH];
+        for (int i = 0; i < NCH; i++) {
+            channelMap[i] = i;
+        }
+        codec = new LosslessCodec(channelMap, blockSize);
+        blocks = new float[NBLOCKS][blockSize * NCH];
+        encoded = new byte[NBLOCKS][];
+        encodedLength = new int[NBLOCKS];
+        long total = 0;
+        for (int b = 0; b < NBLOCKS; b++) {
+            System.arraycopy(samples, b * blockSize * NCH, blocks[b], 0, blockSize * NCH);
+            encodedLength[b] = codec.encode(blocks[b], blockSize, ranges);
+            encoded[b] = new byte[encodedLength[b]];
+            System.arraycopy(codec.getEncoded(), 0, encoded[b], 0, encodedLength[b]);
+            total += encodedLength[b];
+        }
+        System.out.printf("%n%s, %d samples per block: %.1f%% of the floats, %.2f bits per value%n",
+                corpus, blockSize, total * 100.0 / ((long) n * NCH * 4), total * 8.0 / ((long) n * NCH));
+        dst = new float[blockSize * NCH];
+    }
+
+    private int nextBlock() {
+        index++;
+        if (index == NBLOCKS) {
+            index = 0;
+        }
+        return index;
+    }
+
+    @Benchmark
+    public int encode(Bytes counters) {
+        final int b = nextBlock();
+        counters.bytes += blockSize * NCH * 4;
+        return codec.encode(blocks[b], blockSize, ranges);
+    }
+
+    @Benchmark
+    public float[] decode(Bytes counters) {
+        final int b = nextBlock();
+        counters.bytes += blockSize * NCH * 4;
+        codec.decode(encoded[b], 0, encodedLength[b], blockSize, dst);
+        return dst;
+    }
+}
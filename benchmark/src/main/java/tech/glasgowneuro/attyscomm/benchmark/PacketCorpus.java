@@ -0,0 +1,141 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import tech.glasgowneuro.attyscomm.AttysPacketGenerator;
+import tech.glasgowneuro.attyscomm.PacketCaptureReader;
+
+/**
+ * A set of base64 packet lines fed to the decoder in a loop.
+ * Either synthetic from the AttysPacketGenerator, synthetic with
+ * transmission errors or recorded from a real Attys (one base64
+ * line per line, "OK" lines are skipped, or a PacketCapture).
+ */
+public final class PacketCorpus {
+
+    public final static String SYNTHETIC = "synthetic";
+    public final static String NOISY = "noisy";
+
+    // number of packets of the synthetic corpora
+    private final static int SYNTHETIC_SIZE = 4096;
+
+    private final byte[][] lines;
+    private final int[] lengths;
+    private int index = 0;
+
+    private PacketCorpus(List<byte[]> l) {
+        lines = new byte[l.size()][];
+        lengths = new int[l.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = l.get(i);
+            lengths[i] = lines[i].length;
+        }
+    }
+
+    // creates the corpus: "synthetic", "noisy" or the path to a recording
+    public static PacketCorpus create(String name, int samplingRateIndex, boolean fullData) throws IOException {
+        if (SYNTHETIC.equals(name)) {
+            return synthetic(samplingRateIndex, fullData, 0);
+        } else if (NOISY.equals(name)) {
+            return synthetic(samplingRateIndex, fullData, 0.01);
+        }
+        return load(name);
+    }
+
+    // errorRate is the probability of a lost or a corrupted packet
+    public static PacketCorpus synthetic(int samplingRateIndex, boolean fullData, double errorRate) {
+        final AttysPacketGenerator generator = new AttysPacketGenerator();
+        generator.setSamplingRateIndex(samplingRateIndex);
+        generator.setFullData(fullData);
+        final Random random = new Random(42);
+        final byte[] line = new byte[AttysPacketGenerator.MAX_LINE_LENGTH];
+        final List<byte[]> l = new ArrayList<byte[]>();
+        while (l.size() < SYNTHETIC_SIZE) {
+            if (random.nextDouble() < errorRate / 2) {
+                generator.skipPacket();
+                continue;
+            }
+            int n = generator.nextLine(line, 0);
+            if (random.nextDouble() < errorRate / 2) {
+                // truncated during transmission
+                n = random.nextInt(n);
+            }
+            final byte[] b = new byte[n];
+            System.arraycopy(line, 0, b, 0, n);
+            l.add(b);
+        }
+        return new PacketCorpus(l);
+    }
+
+    public static PacketCorpus load(String filename) throws IOException {
+        if (PacketCaptureReader.isPacketCapture(new File(filename))) {
+            return loadCapture(filename);
+        }
+        final List<byte[]> l = new ArrayList<byte[]>();
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename), StandardCharsets.US_ASCII));
+        try {
+            String s;
+            while ((s = reader.readLine()) != null) {
+                s = s.trim();
+                if (s.isEmpty() || "OK".equals(s)) continue;
+                l.add(s.getBytes(StandardCharsets.US_ASCII));
+            }
+        } finally {
+            reader.close();
+        }
+        if (l.isEmpty()) {
+            throw new IOException("No packets in " + filename);
+        }
+        return new PacketCorpus(l);
+    }
+
+    // the packets of a PacketCapture which went through the decoder
+    public static PacketCorpus loadCapture(String filename) throws IOException {
+        final List<byte[]> l = new ArrayList<byte[]>();
+        final PacketCaptureReader reader = new PacketCaptureReader(new File(filename));
+        try {
+            while (reader.next()) {
+                if (!reader.isPacket()) continue;
+                final byte[] b = new byte[reader.getLineLength()];
+                System.arraycopy(reader.getLine(), 0, b, 0, b.length);
+                l.add(b);
+            }
+        } finally {
+            reader.close();
+        }
+        if (l.isEmpty()) {
+            throw new IOException("No packets in " + filename);
+        }
+        return new PacketCorpus(l);
+    }
+
+    public int size() {
+        return lines.length;
+    }
+
+    // advances to the next packet and returns its index
+    public int next() {
+        index++;
+        if (index == lines.length) {
+            index = 0;
+        }
+        return index;
+    }
+
+    public byte[] line(int i) {
+        return lines[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+}
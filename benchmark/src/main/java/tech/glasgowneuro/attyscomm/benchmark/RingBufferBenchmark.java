@@ -0,0 +1,82 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.SampleRingBuffer;
+
+/**
+ * Insert and drain of the ring buffer as done by the acquisition
+ * thread and the plotting thread, ns/sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+
+    // same as in AttysComm
+    private final static int RINGBUFFERSIZE = 1000;
+    // samples the plotting thread typically finds per screen refresh
+    private final static int CHUNK = 50;
+
+    private final SampleRingBuffer ringBuffer =
+            new SampleRingBuffer(RINGBUFFERSIZE, AttysPacketDecoder.NCHANNELS);
+    private final float[] sample = new float[AttysPacketDecoder.NCHANNELS];
+    private final float[] chunk = new float[CHUNK * AttysPacketDecoder.NCHANNELS];
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = i;
+        }
+    }
+
+    @Benchmark
+    public void insert() {
+        ringBuffer.put(sample);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public void insertAndDrain(Blackhole blackhole) {
+        for (int i = 0; i < CHUNK; i++) {
+            ringBuffer.put(sample);
+        }
+        final int n = ringBuffer.size();
+        for (int i = 0; i < n; i++) {
+            blackhole.consume(ringBuffer.get());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public int insertAndDrainTo() {
+        for (int i = 0; i < CHUNK; i++) {
+            ringBuffer.put(sample);
+        }
+        return ringBuffer.drainTo(chunk, CHUNK);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public int peekLast() {
+        ringBuffer.put(sample);
+        return ringBuffer.peekLast(CHUNK, chunk);
+    }
+}
@@ -0,0 +1,60 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.SpectrumStage;
+
+/**
+ * Power spectra of both analogue channels with a Hann window,
+ * ns/spectrum. Every sample triggers a spectrum (hop 1).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrumBenchmark {
+
+    // same as AttysComm.INDEX_Analogue_channel_1/2
+    private final static int CHANNEL1 = 6;
+    private final static int CHANNEL2 = 7;
+    private final static int NCH = AttysPacketDecoder.NCHANNELS;
+
+    @Param({"256", "1024"})
+    public int fftSize;
+
+    private SpectrumStage stage;
+    private final float[] sample = new float[NCH];
+    private long sampleNumber = 0;
+
+    @Setup
+    public void setup() {
+        stage = new SpectrumStage(new int[]{CHANNEL1, CHANNEL2}, fftSize, 1,
+                SpectrumStage.WINDOW_HANN, SpectrumStage.OUTPUT_POWER, 250);
+        for (int i = 0; i < fftSize; i++) {
+            spectrum();
+        }
+    }
+
+    @Benchmark
+    public long spectrum() {
+        sample[CHANNEL1] = (float) Math.sin(sampleNumber * 0.1);
+        sample[CHANNEL2] = sampleNumber & 0xff;
+        stage.put(sampleNumber++, sample, 0);
+        return stage.getSpectraComputed();
+    }
+}
@@ -0,0 +1,75 @@
+package tech.glasgowneuro.attyscomm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import tech.glasgowneuro.attyscomm.AttysPacketDecoder;
+import tech.glasgowneuro.attyscomm.RawSampleListener;
+import tech.glasgowneuro.attyscomm.SampleListener;
+
+/**
+ * Decoding of one 125Hz/250Hz packet (= one sample), ns/packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StandardSpeedDecoderBenchmark {
+
+    @Param({"FULL_DATA", "PARTIAL_DATA"})
+    public String dataMode;
+
+    // SI units or just the raw counts
+    @Param({"SI", "RAW"})
+    public String output;
+
+    // "synthetic", "noisy" or the path to a recording
+    @Param({PacketCorpus.SYNTHETIC, PacketCorpus.NOISY})
+    public String corpus;
+
+    private PacketCorpus packets;
+    private final AttysPacketDecoder decoder = new AttysPacketDecoder();
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws IOException {
+        final boolean fullData = "FULL_DATA".equals(dataMode);
+        packets = PacketCorpus.create(corpus, 1, fullData);
+        decoder.setFullData(fullData);
+        if ("RAW".equals(output)) {
+            decoder.setRawSampleListener(new RawSampleListener() {
+                @Override
+                public void gotRawData(long samplenumber, int[] counts) {
+                    blackhole.consume(counts);
+                }
+            });
+        } else {
+            decoder.setSampleListener(new SampleListener() {
+                @Override
+                public void gotData(long samplenumber, float[] data) {
+                    blackhole.consume(data);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public int decodeStandardSpeedPacket() {
+        final int i = packets.next();
+        return decoder.decodeStandardSpeedPacket(packets.line(i), packets.length(i));
+    }
+}